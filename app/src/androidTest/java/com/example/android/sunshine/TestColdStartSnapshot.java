@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.sunshine.data.ForecastSnapshot;
+import com.example.android.sunshine.data.SunshinePreferences;
+import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.utilities.FakeDataUtils;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+import com.example.android.sunshine.utils.PollingCheck;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.Callable;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Checks that {@link ForecastSnapshot} gives back the forecast it was taken of, and measures how
+ * long {@link MainActivity} takes to draw its first forecast with and without a snapshot. The
+ * process is already running when the activity is started, so the times leave out starting the
+ * process but include opening the database, which is what the snapshot saves.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestColdStartSnapshot {
+
+    private static final String TAG = TestColdStartSnapshot.class.getSimpleName();
+
+    private static final int DAY_COUNT = 14;
+
+    private static final int LAUNCHES = 5;
+
+    private static final long FIRST_FRAME_TIMEOUT_MILLIS = 5000;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private String mLocation;
+
+    @Before
+    public void setUp() {
+        mLocation = SunshinePreferences.getPreferredWeatherLocation(mContext);
+
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        ContentValues[] values = new ContentValues[DAY_COUNT];
+        long today = SunshineDateUtils.getNormalizedUtcDateForToday();
+        for (int i = 0; i < DAY_COUNT; i++) {
+            values[i] = FakeDataUtils.createTestWeatherContentValues(
+                    today + i * SunshineDateUtils.DAY_IN_MILLIS);
+        }
+        mContext.getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, values);
+    }
+
+    @After
+    public void tearDown() {
+        ForecastSnapshot.delete(mContext);
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+    }
+
+    @Test
+    public void testSnapshotMatchesDatabase() {
+        ForecastSnapshot.write(mContext, mLocation);
+
+        Cursor snapshot = ForecastSnapshot.open(mContext, mLocation);
+        Cursor database = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                MainActivity.MAIN_FORECAST_PROJECTION,
+                null, null,
+                WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+        assertNotNull(snapshot);
+        assertNotNull(database);
+
+        try {
+            assertEquals(DAY_COUNT, snapshot.getCount());
+            assertEquals(database.getCount(), snapshot.getCount());
+            while (database.moveToNext()) {
+                assertTrue(snapshot.moveToNext());
+                assertEquals(database.getLong(MainActivity.INDEX_WEATHER_DATE),
+                        snapshot.getLong(MainActivity.INDEX_WEATHER_DATE));
+                assertEquals(database.getDouble(MainActivity.INDEX_WEATHER_MAX_TEMP),
+                        snapshot.getDouble(MainActivity.INDEX_WEATHER_MAX_TEMP));
+                assertEquals(database.getDouble(MainActivity.INDEX_WEATHER_MIN_TEMP),
+                        snapshot.getDouble(MainActivity.INDEX_WEATHER_MIN_TEMP));
+                assertEquals(database.getInt(MainActivity.INDEX_WEATHER_CONDITION_ID),
+                        snapshot.getInt(MainActivity.INDEX_WEATHER_CONDITION_ID));
+            }
+        } finally {
+            snapshot.close();
+            database.close();
+        }
+    }
+
+    @Test
+    public void testSnapshotOfAnotherLocationIsIgnored() {
+        ForecastSnapshot.write(mContext, mLocation);
+
+        assertNull(ForecastSnapshot.open(mContext, mLocation + " elsewhere"));
+    }
+
+    @Test
+    public void testMissingSnapshotIsIgnored() {
+        ForecastSnapshot.delete(mContext);
+
+        assertNull(ForecastSnapshot.open(mContext, mLocation));
+    }
+
+    @Test
+    public void benchmarkTimeToFirstFrame() throws Exception {
+        long withoutSnapshotMillis = 0;
+        long withSnapshotMillis = 0;
+        int drawnFromSnapshot = 0;
+
+        for (int i = 0; i < LAUNCHES; i++) {
+            ForecastSnapshot.delete(mContext);
+            MainActivity activity = launchMainActivity();
+            assertFalse(activity.isFirstForecastFrameFromSnapshot());
+            withoutSnapshotMillis += activity.getFirstForecastFrameMillis();
+            finish(activity);
+
+            ForecastSnapshot.write(mContext, mLocation);
+            activity = launchMainActivity();
+
+            /* With the database already open, the query can beat the snapshot to the screen */
+            if (activity.isFirstForecastFrameFromSnapshot()) {
+                drawnFromSnapshot++;
+            }
+            withSnapshotMillis += activity.getFirstForecastFrameMillis();
+            finish(activity);
+        }
+
+        Log.i(TAG, String.format("Time to first forecast frame over %d launches: "
+                        + "%d ms from the database, %d ms with a snapshot "
+                        + "(drawn from the snapshot %d times)",
+                LAUNCHES, withoutSnapshotMillis / LAUNCHES, withSnapshotMillis / LAUNCHES,
+                drawnFromSnapshot));
+    }
+
+    /* Starts MainActivity and waits until it has drawn a forecast */
+    private MainActivity launchMainActivity() throws Exception {
+        Intent intent = new Intent(mContext, MainActivity.class);
+        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        final MainActivity activity = (MainActivity) InstrumentationRegistry.getInstrumentation()
+                .startActivitySync(intent);
+
+        PollingCheck.check("MainActivity didn't draw a forecast",
+                FIRST_FRAME_TIMEOUT_MILLIS,
+                new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return activity.getFirstForecastFrameMillis() >= 0;
+                    }
+                });
+        return activity;
+    }
+
+    private void finish(Activity activity) {
+        Instrumentation instrumentation = InstrumentationRegistry.getInstrumentation();
+        activity.finish();
+        instrumentation.waitForIdleSync();
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine;
+
+import android.content.Context;
+import android.database.MatrixCursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import android.view.ContextThemeWrapper;
+import android.widget.FrameLayout;
+
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+import com.example.android.sunshine.utils.PollingCheck;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Measures how long binding a row of {@link ForecastAdapter} takes now that the rows are
+ * formatted into {@link ForecastRow}s off the main thread, and how long the formatting that
+ * binding used to do on the main thread takes. Times are written to logcat under the tag of
+ * this class.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestForecastAdapterBindTime {
+
+    private static final String TAG = TestForecastAdapterBindTime.class.getSimpleName();
+
+    private static final int DAY_COUNT = 365;
+
+    /* Every row is bound this many times, so that the per row time isn't lost in the noise */
+    private static final int ROUNDS = 10;
+
+    private Context mContext;
+    private MatrixCursor mCursor;
+
+    @Before
+    public void setUp() {
+        /* The list item layouts use attributes of the app's theme */
+        mContext = new ContextThemeWrapper(
+                InstrumentationRegistry.getTargetContext(), R.style.AppTheme_Forecast);
+
+        Random random = new Random(DAY_COUNT);
+        long today = SunshineDateUtils.getNormalizedUtcDateForToday();
+        mCursor = new MatrixCursor(MainActivity.MAIN_FORECAST_PROJECTION, DAY_COUNT);
+        for (int i = 0; i < DAY_COUNT; i++) {
+            double max = random.nextInt(400) / 10.0;
+            mCursor.addRow(new Object[]{
+                    today + i * SunshineDateUtils.DAY_IN_MILLIS,
+                    max,
+                    max - random.nextInt(150) / 10.0,
+                    800 + random.nextInt(5)
+            });
+        }
+    }
+
+    @Test
+    public void benchmarkBindTimePerRow() throws Exception {
+        /* Before: every bind formatted its row on the main thread */
+        long mapStartNanos = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            ForecastRow.map(mContext, mCursor, true);
+        }
+        long formatNanosPerRow = (System.nanoTime() - mapStartNanos) / (ROUNDS * DAY_COUNT);
+
+        /* After: binding only assigns what has already been formatted */
+        final ForecastAdapter adapter = new ForecastAdapter(mContext, null);
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                adapter.swapCursor(mCursor);
+            }
+        });
+        PollingCheck.check("The adapter didn't receive its rows", 5000, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return adapter.getItemCount() == DAY_COUNT;
+            }
+        });
+
+        final long[] bindNanos = new long[1];
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                FrameLayout parent = new FrameLayout(mContext);
+                ForecastAdapter.ForecastAdapterViewHolder today =
+                        adapter.onCreateViewHolder(parent, adapter.getItemViewType(0));
+                ForecastAdapter.ForecastAdapterViewHolder futureDay =
+                        adapter.onCreateViewHolder(parent, adapter.getItemViewType(1));
+
+                long startNanos = System.nanoTime();
+                for (int round = 0; round < ROUNDS; round++) {
+                    adapter.onBindViewHolder(today, 0);
+                    for (int position = 1; position < DAY_COUNT; position++) {
+                        adapter.onBindViewHolder(futureDay, position);
+                    }
+                }
+                bindNanos[0] = System.nanoTime() - startNanos;
+            }
+        });
+        long bindNanosPerRow = bindNanos[0] / (ROUNDS * DAY_COUNT);
+
+        Log.i(TAG, String.format("%d rows: formatting %.1f us per row moved off the main "
+                        + "thread, binding now %.1f us per row",
+                DAY_COUNT, formatNanosPerRow / 1e3, bindNanosPerRow / 1e3));
+    }
+
+    @Test
+    public void testBindShowsFormattedRow() throws Exception {
+        final ForecastRow[] rows = ForecastRow.map(mContext, mCursor, true);
+
+        final ForecastAdapter adapter = new ForecastAdapter(mContext, null);
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                adapter.swapCursor(mCursor);
+            }
+        });
+        PollingCheck.check("The adapter didn't receive its rows", 5000, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return adapter.getItemCount() == DAY_COUNT;
+            }
+        });
+
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                ForecastAdapter.ForecastAdapterViewHolder holder = adapter.onCreateViewHolder(
+                        new FrameLayout(mContext), adapter.getItemViewType(1));
+                adapter.onBindViewHolder(holder, 1);
+
+                assertEquals(rows[1].dateText, holder.dateView.getText().toString());
+                assertEquals(rows[1].description, holder.descriptionView.getText().toString());
+                assertEquals(rows[1].highText, holder.highTempView.getText().toString());
+                assertEquals(rows[1].lowText, holder.lowTempView.getText().toString());
+                assertEquals(rows[1].lowA11y,
+                        holder.lowTempView.getContentDescription().toString());
+                assertEquals(rows[1].date, adapter.getItemId(1));
+            }
+        });
+    }
+}
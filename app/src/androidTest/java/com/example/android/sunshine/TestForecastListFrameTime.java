@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import android.view.Choreographer;
+
+import com.example.android.sunshine.data.ForecastBatch;
+import com.example.android.sunshine.data.ForecastSnapshot;
+import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.utilities.FakeDataUtils;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+import com.example.android.sunshine.utils.PollingCheck;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Measures the frame times of the forecast list in {@link MainActivity} while a year of weather
+ * is refreshed over and over, a few days at a time, the way syncs change it. The list is
+ * refreshed once with every swap rebinding the whole list and once with the incremental updates
+ * of {@link ForecastAdapter}. Frame times are written to logcat under the tag of this class.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestForecastListFrameTime {
+
+    private static final String TAG = TestForecastListFrameTime.class.getSimpleName();
+
+    private static final int DAY_COUNT = 365;
+
+    /* How many days each refresh changes, and how many refreshes each run makes */
+    private static final int CHANGED_DAYS_PER_REFRESH = 5;
+    private static final int REFRESHES = 30;
+
+    private static final long REFRESH_INTERVAL_MILLIS = 200;
+
+    /* A frame that took longer than this missed at least one vsync at 60Hz */
+    private static final long JANK_THRESHOLD_NANOS = TimeUnit.MICROSECONDS.toNanos(16700);
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+    private final Random mRandom = new Random(365);
+
+    private ForecastBatch mForecast;
+    private MainActivity mActivity;
+
+    @Before
+    public void setUp() throws Exception {
+        ForecastSnapshot.delete(mContext);
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+
+        mForecast = FakeDataUtils.createTestForecastBatch(new ForecastBatch(DAY_COUNT),
+                SunshineDateUtils.getNormalizedUtcDateForToday(), DAY_COUNT);
+        merge(mForecast);
+
+        Intent intent = new Intent(mContext, MainActivity.class);
+        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        mActivity = (MainActivity) InstrumentationRegistry.getInstrumentation()
+                .startActivitySync(intent);
+
+        PollingCheck.check("MainActivity didn't draw a forecast", 5000,
+                new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return mActivity.getFirstForecastFrameMillis() >= 0;
+                    }
+                });
+    }
+
+    @After
+    public void tearDown() {
+        mActivity.finish();
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+    }
+
+    @Test
+    public void benchmarkRefreshFrameTimes() throws Exception {
+        long[] fullRebindFrames = measureRefreshes(false);
+        long[] incrementalFrames = measureRefreshes(true);
+
+        log("notifyDataSetChanged", fullRebindFrames);
+        log("DiffUtil", incrementalFrames);
+
+        assertTrue(fullRebindFrames.length > 0);
+        assertTrue(incrementalFrames.length > 0);
+    }
+
+    /* Refreshes the forecast REFRESHES times and returns every frame time in the meantime */
+    private long[] measureRefreshes(final boolean incrementalUpdates) throws Exception {
+        final FrameRecorder recorder = new FrameRecorder();
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mActivity.getForecastAdapter().setIncrementalUpdatesEnabled(incrementalUpdates);
+                recorder.start();
+            }
+        });
+
+        for (int i = 0; i < REFRESHES; i++) {
+            mForecast = changeSomeDays(mForecast);
+            merge(mForecast);
+            Thread.sleep(REFRESH_INTERVAL_MILLIS);
+        }
+
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                recorder.stop();
+            }
+        });
+        return recorder.getFrameNanos();
+    }
+
+    /* Returns a copy of the forecast with the high and low of a few random days changed */
+    private ForecastBatch changeSomeDays(ForecastBatch forecast) {
+        boolean[] changed = new boolean[forecast.size()];
+        for (int i = 0; i < CHANGED_DAYS_PER_REFRESH; i++) {
+            changed[mRandom.nextInt(changed.length)] = true;
+        }
+
+        ForecastBatch copy = new ForecastBatch(forecast.size());
+        for (int i = 0; i < forecast.size(); i++) {
+            double change = changed[i] ? 1 + mRandom.nextInt(5) : 0;
+            copy.add(forecast.getDate(i), forecast.getWeatherId(i),
+                    forecast.getMinTemp(i) + change, forecast.getMaxTemp(i) + change,
+                    forecast.getHumidity(i), forecast.getPressure(i),
+                    forecast.getWindSpeed(i), forecast.getDegrees(i));
+        }
+        return copy;
+    }
+
+    private void merge(ForecastBatch forecast) {
+        Bundle extras = new Bundle();
+        extras.putBundle(WeatherContract.EXTRA_WEATHER_BATCH, forecast.toBundle());
+        mContext.getContentResolver().call(WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_MERGE_WEATHER, null, extras);
+    }
+
+    private static void log(String mode, long[] frameNanos) {
+        long[] sorted = frameNanos.clone();
+        Arrays.sort(sorted);
+
+        long total = 0;
+        int jankyFrames = 0;
+        for (long nanos : sorted) {
+            total += nanos;
+            if (nanos > JANK_THRESHOLD_NANOS) {
+                jankyFrames++;
+            }
+        }
+
+        int count = Math.max(1, sorted.length);
+        Log.i(TAG, String.format("%s, %d days: %d frames, mean %.2f ms, p90 %.2f ms, "
+                        + "max %.2f ms, %d over 16.7 ms",
+                mode, DAY_COUNT, sorted.length,
+                total / 1e6 / count,
+                sorted.length > 0 ? sorted[(int) Math.ceil(0.9 * sorted.length) - 1] / 1e6 : 0,
+                sorted.length > 0 ? sorted[sorted.length - 1] / 1e6 : 0,
+                jankyFrames));
+    }
+
+    /**
+     * Asks for every frame while it is running and records the time between each frame and the
+     * one before it. Must be started and stopped on the main thread.
+     */
+    private static class FrameRecorder implements Choreographer.FrameCallback {
+
+        private long[] mFrameNanos = new long[256];
+        private int mFrameCount;
+        private long mLastFrameTimeNanos;
+        private boolean mRunning;
+
+        void start() {
+            mRunning = true;
+            mLastFrameTimeNanos = 0;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        void stop() {
+            mRunning = false;
+            Choreographer.getInstance().removeFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (!mRunning) {
+                return;
+            }
+
+            if (mLastFrameTimeNanos != 0) {
+                if (mFrameCount == mFrameNanos.length) {
+                    mFrameNanos = Arrays.copyOf(mFrameNanos, mFrameCount * 2);
+                }
+                mFrameNanos[mFrameCount++] = frameTimeNanos - mLastFrameTimeNanos;
+            }
+            mLastFrameTimeNanos = frameTimeNanos;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        long[] getFrameNanos() {
+            return Arrays.copyOf(mFrameNanos, mFrameCount);
+        }
+    }
+}
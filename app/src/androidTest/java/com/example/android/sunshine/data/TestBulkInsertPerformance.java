@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.sunshine.utilities.FakeDataUtils;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Compares inserting weather one ContentValues at a time through SQLiteDatabase#insert, which
+ * is what WeatherProvider#bulkInsert used to do, with binding a {@link ForecastBatch} into a
+ * single compiled statement. Rows are generated and inserted in chunks so that even the largest
+ * run fits in memory; every chunk of a run goes into the same transaction. Timings are written
+ * to logcat under the tag of this class.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestBulkInsertPerformance {
+
+    private static final String TAG = TestBulkInsertPerformance.class.getSimpleName();
+
+    private static final int[] BENCHMARK_ROW_COUNTS = {10000, 100000, 1000000};
+
+    private static final int CHUNK_SIZE = 10000;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() {
+        mDatabase = new WeatherDbHelper(mContext).getWritableDatabase();
+        mDatabase.delete(WeatherContract.WeatherEntry.TABLE_NAME, null, null);
+    }
+
+    @After
+    public void tearDown() {
+        mDatabase.delete(WeatherContract.WeatherEntry.TABLE_NAME, null, null);
+        mDatabase.close();
+    }
+
+    @Test
+    public void testBatchInsertStoresEveryRow() {
+        ForecastBatch batch = FakeDataUtils.createTestForecastBatch(
+                new ForecastBatch(), TestUtilities.DATE_NORMALIZED, 100);
+
+        mDatabase.beginTransaction();
+        int inserted;
+        try {
+            inserted = WeatherProvider.insertForecastBatch(mDatabase,
+                    TestUtilities.TEST_LOCATION_ID, batch);
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+
+        assertEquals(100, inserted);
+        assertEquals(100, DatabaseUtils.queryNumEntries(
+                mDatabase, WeatherContract.WeatherEntry.TABLE_NAME));
+    }
+
+    @Test
+    public void benchmarkBulkInsert() {
+        for (int rowCount : BENCHMARK_ROW_COUNTS) {
+            long contentValuesNanos = timeContentValuesInsert(rowCount);
+            mDatabase.delete(WeatherContract.WeatherEntry.TABLE_NAME, null, null);
+
+            long batchNanos = timeBatchInsert(rowCount);
+            mDatabase.delete(WeatherContract.WeatherEntry.TABLE_NAME, null, null);
+
+            Log.i(TAG, String.format("%d rows: ContentValues %.1f ms (%.2f us/row), "
+                            + "compiled batch %.1f ms (%.2f us/row)",
+                    rowCount,
+                    contentValuesNanos / 1e6, contentValuesNanos / 1e3 / rowCount,
+                    batchNanos / 1e6, batchNanos / 1e3 / rowCount));
+        }
+    }
+
+    private long timeContentValuesInsert(int rowCount) {
+        long elapsed = 0;
+        ContentValues[] chunk = new ContentValues[CHUNK_SIZE];
+
+        mDatabase.beginTransaction();
+        try {
+            for (int first = 0; first < rowCount; first += CHUNK_SIZE) {
+                for (int i = 0; i < CHUNK_SIZE; i++) {
+                    chunk[i] = FakeDataUtils.createTestWeatherContentValues(dateForRow(first + i));
+                    chunk[i].put(WeatherContract.WeatherEntry.COLUMN_LOCATION_ID,
+                            TestUtilities.TEST_LOCATION_ID);
+                }
+
+                long start = System.nanoTime();
+                for (ContentValues values : chunk) {
+                    mDatabase.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values);
+                }
+                elapsed += System.nanoTime() - start;
+            }
+
+            long start = System.nanoTime();
+            mDatabase.setTransactionSuccessful();
+            mDatabase.endTransaction();
+            elapsed += System.nanoTime() - start;
+        } finally {
+            if (mDatabase.inTransaction()) {
+                mDatabase.endTransaction();
+            }
+        }
+
+        return elapsed;
+    }
+
+    private long timeBatchInsert(int rowCount) {
+        long elapsed = 0;
+        ForecastBatch chunk = new ForecastBatch(CHUNK_SIZE);
+
+        mDatabase.beginTransaction();
+        try {
+            for (int first = 0; first < rowCount; first += CHUNK_SIZE) {
+                FakeDataUtils.createTestForecastBatch(chunk, dateForRow(first), CHUNK_SIZE);
+
+                long start = System.nanoTime();
+                WeatherProvider.insertForecastBatch(mDatabase, TestUtilities.TEST_LOCATION_ID,
+                        chunk);
+                elapsed += System.nanoTime() - start;
+            }
+
+            long start = System.nanoTime();
+            mDatabase.setTransactionSuccessful();
+            mDatabase.endTransaction();
+            elapsed += System.nanoTime() - start;
+        } finally {
+            if (mDatabase.inTransaction()) {
+                mDatabase.endTransaction();
+            }
+        }
+
+        return elapsed;
+    }
+
+    private static long dateForRow(int row) {
+        return TestUtilities.DATE_NORMALIZED + SunshineDateUtils.DAY_IN_MILLIS * row;
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.os.Debug;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.sunshine.utilities.OpenWeatherJsonUtils;
+import com.example.android.sunshine.utilities.TestOpenWeatherJsonUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Counts the objects allocated to parse a forecast and merge it through
+ * {@link WeatherContract#METHOD_MERGE_WEATHER}, once as a ContentValues[] and once as a
+ * {@link ForecastBatch}. Both paths read the same response and merge into the same stored
+ * forecast. Counts are written to logcat under the tag of this class.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestForecastBatchAllocations {
+
+    private static final String TAG = TestForecastBatchAllocations.class.getSimpleName();
+
+    private static final String LOCATION = "allocation-test";
+
+    private static final int DAY_COUNT = 16;
+
+    /* Runs of each path that aren't counted, so that classes are loaded and caches warm */
+    private static final int WARM_UP_RUNS = 5;
+    private static final int COUNTED_RUNS = 20;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private byte[] mForecastJson;
+
+    @Before
+    public void setUp() throws Exception {
+        mForecastJson = TestOpenWeatherJsonUtils.createForecastJson(DAY_COUNT).getBytes("UTF-8");
+    }
+
+    @After
+    public void tearDown() {
+        mContext.getContentResolver().delete(
+                WeatherContract.WeatherEntry.buildWeatherUriForLocation(LOCATION), null, null);
+    }
+
+    @Test
+    public void testBatchSurvivesBundle() {
+        ForecastBatch batch = new ForecastBatch(2);
+        for (int i = 0; i < 5; i++) {
+            batch.add(TestUtilities.DATE_NORMALIZED + i, 800 + i, i, i + 10, 50, 1000, 2.5, i * 90);
+        }
+
+        ForecastBatch copy = ForecastBatch.fromBundle(batch.toBundle());
+
+        assertEquals(batch.size(), copy.size());
+        for (int i = 0; i < batch.size(); i++) {
+            assertEquals(batch.getDate(i), copy.getDate(i));
+            assertEquals(batch.getWeatherId(i), copy.getWeatherId(i));
+            assertEquals(batch.getMinTemp(i), copy.getMinTemp(i));
+            assertEquals(batch.getMaxTemp(i), copy.getMaxTemp(i));
+            assertEquals(batch.getHumidity(i), copy.getHumidity(i));
+            assertEquals(batch.getPressure(i), copy.getPressure(i));
+            assertEquals(batch.getWindSpeed(i), copy.getWindSpeed(i));
+            assertEquals(batch.getDegrees(i), copy.getDegrees(i));
+        }
+    }
+
+    @Test
+    public void testMergeStoresBatch() throws Exception {
+        Bundle result = mergeBatch();
+
+        assertEquals(DAY_COUNT, result.getInt(WeatherContract.EXTRA_ROWS_INSERTED));
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherUriForLocation(LOCATION),
+                null, null, null, null);
+        assertNotNull(cursor);
+        try {
+            assertEquals(DAY_COUNT, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+
+        /* The same forecast again is the same days, so nothing is written */
+        result = mergeBatch();
+        assertEquals(DAY_COUNT, result.getInt(WeatherContract.EXTRA_ROWS_UNCHANGED));
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void benchmarkAllocationsPerSync() throws Exception {
+        for (int i = 0; i < WARM_UP_RUNS; i++) {
+            mergeContentValues();
+            mergeBatch();
+        }
+
+        Debug.startAllocCounting();
+        try {
+            Debug.resetThreadAllocCount();
+            Debug.resetThreadAllocSize();
+            for (int i = 0; i < COUNTED_RUNS; i++) {
+                mergeContentValues();
+            }
+            int contentValuesCount = Debug.getThreadAllocCount() / COUNTED_RUNS;
+            int contentValuesBytes = Debug.getThreadAllocSize() / COUNTED_RUNS;
+
+            Debug.resetThreadAllocCount();
+            Debug.resetThreadAllocSize();
+            for (int i = 0; i < COUNTED_RUNS; i++) {
+                mergeBatch();
+            }
+            int batchCount = Debug.getThreadAllocCount() / COUNTED_RUNS;
+            int batchBytes = Debug.getThreadAllocSize() / COUNTED_RUNS;
+
+            Log.i(TAG, String.format("%d days per sync: ContentValues %d objects (%d bytes), "
+                            + "ForecastBatch %d objects (%d bytes), %d fewer objects per day",
+                    DAY_COUNT, contentValuesCount, contentValuesBytes, batchCount, batchBytes,
+                    (contentValuesCount - batchCount) / DAY_COUNT));
+
+            /* Counting may not be supported by the runtime, in which case both are zero */
+            if (contentValuesCount > 0) {
+                assertTrue("ForecastBatch allocated " + batchCount + " objects, ContentValues "
+                                + contentValuesCount,
+                        batchCount < contentValuesCount);
+            }
+        } finally {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    /* Parses the response into ContentValues, one per day, and merges them */
+    private Bundle mergeContentValues() throws Exception {
+        ContentValues[] values = OpenWeatherJsonUtils.getWeatherContentValuesFromJson(
+                null, new String(mForecastJson, "UTF-8"));
+
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(WeatherContract.EXTRA_WEATHER_VALUES, values);
+        return call(extras);
+    }
+
+    /* Parses the response into a single ForecastBatch and merges it */
+    private Bundle mergeBatch() throws Exception {
+        ForecastBatch batch = OpenWeatherJsonUtils.getForecastBatchFromJson(
+                null, new ByteArrayInputStream(mForecastJson));
+
+        Bundle extras = new Bundle();
+        extras.putBundle(WeatherContract.EXTRA_WEATHER_BATCH, batch.toBundle());
+        return call(extras);
+    }
+
+    private Bundle call(Bundle extras) {
+        ContentResolver contentResolver = mContext.getContentResolver();
+        return contentResolver.call(WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_MERGE_WEATHER, LOCATION, extras);
+    }
+}
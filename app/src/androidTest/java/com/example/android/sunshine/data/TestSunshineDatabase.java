@@ -56,7 +56,7 @@ import static junit.framework.Assert.fail;
  * with the same date will overwrite that record.
  * 4) Verify that NON NULL constraints are working properly on record inserts
  * 5) Verify auto increment is working with the ID
- * 6) Test the onUpgrade functionality of the WeatherDbHelper
+ * 6) Test that the onUpgrade functionality of the WeatherDbHelper keeps stored records
  */
 @RunWith(AndroidJUnit4.class)
 public class TestSunshineDatabase {
@@ -193,7 +193,7 @@ public class TestSunshineDatabase {
 
     @Test
     public void testDatabaseVersionWasIncremented() {
-        int expectedDatabaseVersion = 3;
+        int expectedDatabaseVersion = 5;
         String databaseVersionShouldBe1 = "Database version should be "
                 + expectedDatabaseVersion + " but isn't."
                 + "\n Database version: ";
@@ -382,16 +382,39 @@ public class TestSunshineDatabase {
     }
 
     /**
-     * This method tests the {@link WeatherDbHelper#onUpgrade(SQLiteDatabase, int, int)}. The proper
-     * behavior for this method in our case is to simply DROP (or delete) the weather table from
-     * the database and then have the table recreated.
+     * This method tests the {@link WeatherDbHelper#onUpgrade(SQLiteDatabase, int, int)}. Upgrading
+     * from the first versioned schema to the current one must keep the weather table, and the
+     * rows stored in it, so that the first launch after an app update can show the forecast
+     * without waiting for a sync. {@link TestWeatherDbMigrations} covers every historical schema.
      */
     @Test
     public void testOnUpgradeBehavesCorrectly() {
 
-        testInsertSingleRecordIntoWeatherTable();
-
-        dbHelper.onUpgrade(database, 13, 14);
+        /*
+         * The database opened in before() already has the current schema, and the migration
+         * scripts can only run on the schema of the version they start from. We therefore
+         * replace the tables with the weather table of version 3, which had no location table
+         * yet, and store a single day in it, just like a device that is about to be updated.
+         */
+        database.execSQL("DROP TABLE IF EXISTS " + REFLECTED_TABLE_NAME);
+        database.execSQL("DROP TABLE IF EXISTS location");
+        database.execSQL("CREATE TABLE " + REFLECTED_TABLE_NAME + " (" +
+                "_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                "date INTEGER NOT NULL, " +
+                "weather_id INTEGER NOT NULL," +
+                "min REAL NOT NULL, " +
+                "max REAL NOT NULL, " +
+                "humidity REAL NOT NULL, " +
+                "pressure REAL NOT NULL, " +
+                "wind REAL NOT NULL, " +
+                "degrees REAL NOT NULL, " +
+                " UNIQUE (date) ON CONFLICT REPLACE);");
+        database.execSQL("INSERT INTO " + REFLECTED_TABLE_NAME + " (date, weather_id, min, max, " +
+                        "humidity, pressure, wind, degrees) " +
+                        "VALUES (?, 800, 10.5, 21.5, 70, 1013.25, 4.5, 270)",
+                new Object[]{TestUtilities.DATE_NORMALIZED});
+
+        dbHelper.onUpgrade(database, 3, REFLECTED_DATABASE_VERSION);
 
         /*
          * This Cursor will contain the names of each table in our database and we will use it to
@@ -414,7 +437,7 @@ public class TestSunshineDatabase {
         /* We are done verifying our table names, so we can close this cursor */
         tableNameCursor.close();
 
-        Cursor shouldBeEmptyWeatherCursor = database.query(
+        Cursor weatherCursor = database.query(
                 REFLECTED_TABLE_NAME,
                 null,
                 null,
@@ -423,14 +446,16 @@ public class TestSunshineDatabase {
                 null,
                 null);
 
-        int expectedRecordCountAfterUpgrade = 0;
-        /* We will finally verify that our weather table is empty after */
-        String weatherTableShouldBeEmpty =
-                "Weather table should be empty after upgrade, but wasn't."
+        int expectedRecordCountAfterUpgrade = 1;
+        /* We will finally verify that our weather record survived the upgrade */
+        String weatherRecordShouldSurvive =
+                "Weather table should still contain its record after upgrade, but didn't."
                         + "\nNumber of records: ";
-        assertEquals(weatherTableShouldBeEmpty,
+        assertEquals(weatherRecordShouldSurvive,
                 expectedRecordCountAfterUpgrade,
-                shouldBeEmptyWeatherCursor.getCount());
+                weatherCursor.getCount());
+
+        weatherCursor.close();
 
         /* Test is over, close the cursor */
         database.close();
@@ -456,6 +481,7 @@ public class TestSunshineDatabase {
 
         /* Here, we add the name of our only table in this particular database */
         tableNameHashSet.add(REFLECTED_TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.LocationEntry.TABLE_NAME);
         /* Students, here is where you would add any other table names if you had them */
 //        tableNameHashSet.add(MyAwesomeSuperCoolTableName);
 //        tableNameHashSet.add(MyOtherCoolTableNameThatContainsOtherCoolData);
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.R;
+import com.example.android.sunshine.utils.PollingCheck;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Checks that the snapshot behind {@link SunshinePreferences} follows changes to the
+ * preferences, whether they are made through SunshinePreferences or straight through
+ * SharedPreferences, as the settings screen does.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestSunshinePreferences {
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private SharedPreferences mPreferences;
+    private String mUnitsKey;
+    private String mLocationKey;
+
+    @Before
+    public void setUp() {
+        mPreferences = PreferenceManager.getDefaultSharedPreferences(mContext);
+        mUnitsKey = mContext.getString(R.string.pref_units_key);
+        mLocationKey = mContext.getString(R.string.pref_location_key);
+
+        /* Reading once takes the first snapshot, so every test starts with one in place */
+        SunshinePreferences.isMetric(mContext);
+    }
+
+    @After
+    public void tearDown() {
+        mPreferences.edit().remove(mUnitsKey).remove(mLocationKey).commit();
+        SunshinePreferences.resetLocationCoordinates(mContext);
+
+        /* Lets the snapshot hear of the changes before the next test reads it */
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+    }
+
+    @Test
+    public void testOwnChangesAreSeenImmediately() {
+        SunshinePreferences.setLocationDetails(mContext, 37.4, -122.1);
+
+        assertTrue(SunshinePreferences.isLocationLatLonAvailable(mContext));
+        double[] coordinates = SunshinePreferences.getLocationCoordinates(mContext);
+        assertEquals(37.4, coordinates[0]);
+        assertEquals(-122.1, coordinates[1]);
+
+        SunshinePreferences.resetLocationCoordinates(mContext);
+
+        assertFalse(SunshinePreferences.isLocationLatLonAvailable(mContext));
+    }
+
+    @Test
+    public void testChangesFromSharedPreferencesAreSeen() throws Exception {
+        mPreferences.edit()
+                .putString(mUnitsKey, mContext.getString(R.string.pref_units_imperial))
+                .putString(mLocationKey, "Paris, France")
+                .commit();
+
+        /* The listener runs on the main thread, which may not have got to it yet */
+        PollingCheck.check("The units change wasn't seen", 3000, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return !SunshinePreferences.isMetric(mContext);
+            }
+        });
+        assertEquals("Paris, France", SunshinePreferences.getPreferredWeatherLocation(mContext));
+    }
+
+    /**
+     * SharedPreferences calls its listeners in no particular order, so a listener registered
+     * with it directly could run before the snapshot is replaced. One registered with
+     * SunshinePreferences must always read the new value.
+     */
+    @Test
+    public void testChangeListenerSeesTheNewValue() {
+        final AtomicReference<Boolean> metricSeen = new AtomicReference<Boolean>();
+        SharedPreferences.OnSharedPreferenceChangeListener listener =
+                new SharedPreferences.OnSharedPreferenceChangeListener() {
+                    @Override
+                    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences,
+                                                          String key) {
+                        if (mUnitsKey.equals(key)) {
+                            metricSeen.set(SunshinePreferences.isMetric(mContext));
+                        }
+                    }
+                };
+
+        SunshinePreferences.registerOnChangeListener(mContext, listener);
+        try {
+            mPreferences.edit()
+                    .putString(mUnitsKey, mContext.getString(R.string.pref_units_imperial))
+                    .commit();
+
+            /* The listeners are called on the main thread */
+            InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+        } finally {
+            SunshinePreferences.unregisterOnChangeListener(listener);
+        }
+
+        assertEquals(Boolean.FALSE, metricSeen.get());
+    }
+}
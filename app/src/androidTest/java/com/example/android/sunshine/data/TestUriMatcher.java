@@ -38,6 +38,12 @@ public class TestUriMatcher {
     private static final Uri TEST_WEATHER_WITH_DATE_DIR = WeatherContract.WeatherEntry
             .buildWeatherUriWithDate(TestUtilities.DATE_NORMALIZED);
 
+    private static final Uri TEST_WEATHER_RANGE_DIR = WeatherContract.WeatherEntry
+            .buildWeatherUriForRange(TestUtilities.DATE_NORMALIZED,
+                    TestUtilities.DATE_NORMALIZED + 7 * 86400000L);
+    private static final Uri TEST_WEATHER_PAGE_DIR = WeatherContract.WeatherEntry
+            .buildWeatherUriForPage(14, 7);
+
     private static final String weatherCodeVariableName = "CODE_WEATHER";
     private static int REFLECTED_WEATHER_CODE;
 
@@ -101,5 +107,30 @@ public class TestUriMatcher {
         assertEquals(weatherWithDateUriCodeDoesNotMatch,
                 expectedWeatherWithDateCode,
                 actualWeatherWithDateCode);
+
+        /* Test that windows of days match their own codes */
+        assertEquals("Error: The CODE_WEATHER_RANGE URI was matched incorrectly.",
+                WeatherProvider.CODE_WEATHER_RANGE,
+                testMatcher.match(TEST_WEATHER_RANGE_DIR));
+
+        assertEquals("Error: The CODE_WEATHER_PAGE URI was matched incorrectly.",
+                WeatherProvider.CODE_WEATHER_PAGE,
+                testMatcher.match(TEST_WEATHER_PAGE_DIR));
+
+        /* Test that location scoped URIs match, even with characters that need encoding */
+        assertEquals("Error: The CODE_WEATHER_FOR_LOCATION URI was matched incorrectly.",
+                WeatherProvider.CODE_WEATHER_FOR_LOCATION,
+                testMatcher.match(WeatherContract.WeatherEntry
+                        .buildWeatherUriForLocation("Mountain View, CA")));
+
+        assertEquals("Error: The CODE_WEATHER_FOR_LOCATION_WITH_DATE URI was matched incorrectly.",
+                WeatherProvider.CODE_WEATHER_FOR_LOCATION_WITH_DATE,
+                testMatcher.match(WeatherContract.WeatherEntry
+                        .buildWeatherUriForLocationWithDate("94043,USA",
+                                TestUtilities.DATE_NORMALIZED)));
+
+        assertEquals("Error: The CODE_LOCATION URI was matched incorrectly.",
+                WeatherProvider.CODE_LOCATION,
+                testMatcher.match(WeatherContract.LocationEntry.CONTENT_URI));
     }
 }
@@ -16,8 +16,11 @@
 package com.example.android.sunshine.data;
 
 import android.content.ContentValues;
+import android.content.Context;
 import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.HandlerThread;
@@ -35,6 +38,7 @@ import java.util.regex.Pattern;
 import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_DATE;
 import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_DEGREES;
 import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_HUMIDITY;
+import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_LOCATION_ID;
 import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_MAX_TEMP;
 import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_MIN_TEMP;
 import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_PRESSURE;
@@ -59,6 +63,9 @@ class TestUtilities {
 
     static final int BULK_INSERT_RECORDS_TO_INSERT = 10;
 
+    /* The location of the rows written straight into weather.db by the database tests */
+    static final long TEST_LOCATION_ID = 1;
+
     /**
      * Ensures there is a non empty cursor and validates the cursor's data by checking it against
      * a set of expected values. This method will then close the cursor.
@@ -110,6 +117,25 @@ class TestUtilities {
         }
     }
 
+    /**
+     * Stores the preferred location in the location table, if it isn't there yet, and returns
+     * its _ID. Rows written straight into weather.db need it to show up in the provider's
+     * queries, which only return the weather of the preferred location.
+     */
+    static long insertPreferredLocation(Context context, SQLiteDatabase database) {
+        String locationSetting = SunshinePreferences.getPreferredWeatherLocation(context);
+
+        ContentValues locationValues = new ContentValues();
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        database.insert(WeatherContract.LocationEntry.TABLE_NAME, null, locationValues);
+
+        return DatabaseUtils.longForQuery(database,
+                "SELECT " + WeatherContract.LocationEntry._ID
+                        + " FROM " + WeatherContract.LocationEntry.TABLE_NAME
+                        + " WHERE " + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting});
+    }
+
     /**
      * Used as a convenience method to return a singleton instance of ContentValues to populate
      * our database or insert using our ContentProvider.
@@ -128,6 +154,7 @@ class TestUtilities {
         testWeatherValues.put(COLUMN_MIN_TEMP, 65);
         testWeatherValues.put(COLUMN_WIND_SPEED, 5.5);
         testWeatherValues.put(COLUMN_WEATHER_ID, 321);
+        testWeatherValues.put(COLUMN_LOCATION_ID, TEST_LOCATION_ID);
 
         return testWeatherValues;
     }
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.sunshine.utilities.FakeDataUtils;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Checks that reading the forecast is not blocked while a large bulk insert is in progress
+ * once write-ahead logging is enabled. The same workload is run against a database using a
+ * rollback journal and one using {@link WeatherDbHelper.ConnectionProfile#DEFAULT}, and the
+ * p50/p99 read latencies of both are written to logcat under the tag of this class.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestWeatherDbConcurrency {
+
+    private static final String TAG = TestWeatherDbConcurrency.class.getSimpleName();
+
+    private static final String JOURNAL_DATABASE_NAME = "concurrency_journal.db";
+    private static final String WAL_DATABASE_NAME = "concurrency_wal.db";
+
+    private static final int FORECAST_DAYS = 14;
+    private static final int ROWS_TO_WRITE = 200000;
+    private static final int CHUNK_SIZE = 10000;
+
+    private static final WeatherDbHelper.ConnectionProfile JOURNAL_PROFILE =
+            new WeatherDbHelper.ConnectionProfile(false, 4096, 2048,
+                    WeatherDbHelper.ConnectionProfile.SYNCHRONOUS_FULL, 0);
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    @After
+    public void tearDown() {
+        mContext.deleteDatabase(JOURNAL_DATABASE_NAME);
+        mContext.deleteDatabase(WAL_DATABASE_NAME);
+    }
+
+    @Test
+    public void testReadersAreNotBlockedByBulkInsert() throws Exception {
+        ReadLatencies journal = measureReadsDuringWrite(
+                new WeatherDbHelper(mContext, JOURNAL_DATABASE_NAME, JOURNAL_PROFILE));
+        ReadLatencies wal = measureReadsDuringWrite(
+                new WeatherDbHelper(mContext, WAL_DATABASE_NAME,
+                        WeatherDbHelper.ConnectionProfile.DEFAULT));
+
+        Log.i(TAG, "Rollback journal: " + journal);
+        Log.i(TAG, "Write-ahead log: " + wal);
+
+        /*
+         * Latencies depend too much on the device and whatever else it is doing to be asserted
+         * on, so they are only logged above. That readers get through at all is what matters.
+         */
+        assertTrue("Reads should complete while the bulk insert is running in WAL mode",
+                wal.mReadsDuringWrite > 1);
+    }
+
+    /**
+     * Fills the database with a forecast, then repeatedly reads it from one thread while another
+     * inserts {@link #ROWS_TO_WRITE} rows in a single transaction.
+     */
+    private ReadLatencies measureReadsDuringWrite(WeatherDbHelper helper) throws Exception {
+        final SQLiteDatabase database = helper.getWritableDatabase();
+        final long today = SunshineDateUtils.getNormalizedUtcDateForToday();
+
+        WeatherProvider.insertForecastBatch(database, TestUtilities.TEST_LOCATION_ID,
+                FakeDataUtils.createTestForecastBatch(new ForecastBatch(), today, FORECAST_DAYS));
+
+        final CountDownLatch writerStarted = new CountDownLatch(1);
+        final AtomicBoolean writing = new AtomicBoolean(true);
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ForecastBatch chunk = new ForecastBatch(CHUNK_SIZE);
+                long firstDate = today + SunshineDateUtils.DAY_IN_MILLIS * FORECAST_DAYS;
+
+                database.beginTransaction();
+                try {
+                    writerStarted.countDown();
+                    for (int row = 0; row < ROWS_TO_WRITE; row += CHUNK_SIZE) {
+                        FakeDataUtils.createTestForecastBatch(chunk,
+                                firstDate + SunshineDateUtils.DAY_IN_MILLIS * row, CHUNK_SIZE);
+                        WeatherProvider.insertForecastBatch(database,
+                                TestUtilities.TEST_LOCATION_ID, chunk);
+                    }
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
+                    writing.set(false);
+                }
+            }
+        });
+
+        ReadLatencies latencies = new ReadLatencies();
+        String[] selectionArgs = {Long.toString(today)};
+
+        writer.start();
+        writerStarted.await();
+
+        while (writing.get()) {
+            long start = System.nanoTime();
+            Cursor cursor = database.query(
+                    WeatherContract.WeatherEntry.TABLE_NAME,
+                    null,
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " >= ?",
+                    selectionArgs,
+                    null,
+                    null,
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " ASC",
+                    Integer.toString(FORECAST_DAYS));
+            cursor.getCount();
+            cursor.close();
+            long elapsed = System.nanoTime() - start;
+
+            latencies.add(elapsed, writing.get());
+        }
+
+        writer.join();
+        helper.close();
+        return latencies;
+    }
+
+    private static class ReadLatencies {
+        final List<Long> mNanos = new ArrayList<Long>();
+        int mReadsDuringWrite;
+
+        void add(long nanos, boolean writeStillRunning) {
+            mNanos.add(nanos);
+            if (writeStillRunning) {
+                mReadsDuringWrite++;
+            }
+        }
+
+        long percentile(int percentile) {
+            List<Long> sorted = new ArrayList<Long>(mNanos);
+            Collections.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+            return sorted.get(Math.max(0, index));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d reads (%d during the write), p50 %.2f ms, p99 %.2f ms",
+                    mNanos.size(), mReadsDuringWrite,
+                    percentile(50) / 1e6, percentile(99) / 1e6);
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Builds every historical schema of weather.db, fills it with a forecast and opens it with the
+ * current {@link WeatherDbHelper}. The upgraded database must keep every stored row and end up
+ * with exactly the same tables, columns and indices as a freshly created one.
+ * <p>
+ * The schemas below are copied verbatim from the version of Sunshine that shipped them. They
+ * deliberately do not use the constants in {@link WeatherContract}, since those always describe
+ * the current schema. Whenever DATABASE_VERSION is incremented, add the new schema here.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestWeatherDbMigrations {
+
+    private static final String UPGRADED_DATABASE_NAME = "migration_upgraded.db";
+    private static final String FRESH_DATABASE_NAME = "migration_fresh.db";
+
+    /* Number of days of weather stored in every historical database before it is upgraded */
+    private static final int SEED_DAY_COUNT = 14;
+
+    private static final HistoricalSchema[] HISTORICAL_SCHEMAS = {
+
+            new HistoricalSchema(3,
+                    new String[]{
+                            "CREATE TABLE weather (" +
+                                    "_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                                    "date INTEGER NOT NULL, " +
+                                    "weather_id INTEGER NOT NULL," +
+                                    "min REAL NOT NULL, " +
+                                    "max REAL NOT NULL, " +
+                                    "humidity REAL NOT NULL, " +
+                                    "pressure REAL NOT NULL, " +
+                                    "wind REAL NOT NULL, " +
+                                    "degrees REAL NOT NULL, " +
+                                    " UNIQUE (date) ON CONFLICT REPLACE);"
+                    },
+                    "INSERT INTO weather (date, weather_id, min, max, humidity, pressure, " +
+                            "wind, degrees) VALUES (?, 800, 10.5, 21.5, 70, 1013.25, 4.5, 270)"),
+
+            new HistoricalSchema(4,
+                    new String[]{
+                            "CREATE TABLE location (" +
+                                    "_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                                    "location_setting TEXT NOT NULL, " +
+                                    " UNIQUE (location_setting) ON CONFLICT IGNORE);",
+                            "CREATE TABLE weather (" +
+                                    "_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                                    "date INTEGER NOT NULL, " +
+                                    "weather_id INTEGER NOT NULL," +
+                                    "min REAL NOT NULL, " +
+                                    "max REAL NOT NULL, " +
+                                    "humidity REAL NOT NULL, " +
+                                    "pressure REAL NOT NULL, " +
+                                    "wind REAL NOT NULL, " +
+                                    "degrees REAL NOT NULL, " +
+                                    "location_id INTEGER NOT NULL REFERENCES location (_id), " +
+                                    " UNIQUE (location_id, date) ON CONFLICT REPLACE);",
+                            "INSERT INTO location (_id, location_setting) VALUES (1, '94043,USA')"
+                    },
+                    "INSERT INTO weather (date, weather_id, min, max, humidity, pressure, " +
+                            "wind, degrees, location_id) " +
+                            "VALUES (?, 800, 10.5, 21.5, 70, 1013.25, 4.5, 270, 1)"),
+
+            new HistoricalSchema(5,
+                    new String[]{
+                            "CREATE TABLE location (" +
+                                    "_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                                    "location_setting TEXT NOT NULL, " +
+                                    "last_used INTEGER NOT NULL DEFAULT 0, " +
+                                    " UNIQUE (location_setting) ON CONFLICT IGNORE);",
+                            "CREATE TABLE weather (" +
+                                    "_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                                    "date INTEGER NOT NULL, " +
+                                    "weather_id INTEGER NOT NULL," +
+                                    "min REAL NOT NULL, " +
+                                    "max REAL NOT NULL, " +
+                                    "humidity REAL NOT NULL, " +
+                                    "pressure REAL NOT NULL, " +
+                                    "wind REAL NOT NULL, " +
+                                    "degrees REAL NOT NULL, " +
+                                    "location_id INTEGER NOT NULL REFERENCES location (_id), " +
+                                    " UNIQUE (location_id, date) ON CONFLICT REPLACE);",
+                            "INSERT INTO location (_id, location_setting, last_used) " +
+                                    "VALUES (1, '94043,USA', 1475280000000)"
+                    },
+                    "INSERT INTO weather (date, weather_id, min, max, humidity, pressure, " +
+                            "wind, degrees, location_id) " +
+                            "VALUES (?, 800, 10.5, 21.5, 70, 1013.25, 4.5, 270, 1)"),
+    };
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    @After
+    public void tearDown() {
+        mContext.deleteDatabase(UPGRADED_DATABASE_NAME);
+        mContext.deleteDatabase(FRESH_DATABASE_NAME);
+    }
+
+    /**
+     * The newest historical schema has to be the current one, otherwise the schema that was
+     * added last has no entry here and its upgrade is never tested.
+     */
+    @Test
+    public void testLatestHistoricalSchemaIsCurrentVersion() {
+        int currentVersion = openHelper(FRESH_DATABASE_NAME).getVersion();
+        HistoricalSchema latest = HISTORICAL_SCHEMAS[HISTORICAL_SCHEMAS.length - 1];
+
+        assertEquals("Add the schema of database version " + currentVersion
+                        + " to HISTORICAL_SCHEMAS",
+                currentVersion, latest.mVersion);
+    }
+
+    @Test
+    public void testEveryHistoricalSchemaUpgradesWithoutLosingRows() {
+        Map<String, String> expectedSchema = describeSchema(openHelper(FRESH_DATABASE_NAME));
+
+        for (HistoricalSchema historical : HISTORICAL_SCHEMAS) {
+            mContext.deleteDatabase(UPGRADED_DATABASE_NAME);
+            createHistoricalDatabase(historical);
+
+            SQLiteDatabase upgraded = openHelper(UPGRADED_DATABASE_NAME);
+
+            String prefix = "Upgrading from version " + historical.mVersion + ": ";
+            assertEquals(prefix + "weather rows were lost",
+                    SEED_DAY_COUNT,
+                    DatabaseUtils.queryNumEntries(upgraded, WeatherContract.WeatherEntry.TABLE_NAME));
+            assertEquals(prefix + "schema differs from a freshly created database",
+                    expectedSchema,
+                    describeSchema(upgraded));
+
+            upgraded.close();
+        }
+    }
+
+    /**
+     * Schemas older than the first migratable version are thrown away and rebuilt, which must
+     * still leave a database with the current schema rather than fail to open.
+     */
+    @Test
+    public void testSchemaBeforeFirstMigratableVersionIsRecreated() {
+        Map<String, String> expectedSchema = describeSchema(openHelper(FRESH_DATABASE_NAME));
+
+        SQLiteDatabase legacy = SQLiteDatabase.openOrCreateDatabase(
+                mContext.getDatabasePath(UPGRADED_DATABASE_NAME), null);
+        legacy.execSQL("CREATE TABLE weather (_id INTEGER PRIMARY KEY, location_id INTEGER)");
+        legacy.setVersion(WeatherDbMigrations.FIRST_MIGRATABLE_VERSION - 1);
+        legacy.close();
+
+        SQLiteDatabase upgraded = openHelper(UPGRADED_DATABASE_NAME);
+        assertEquals(expectedSchema, describeSchema(upgraded));
+        upgraded.close();
+    }
+
+    @Test
+    public void testDowngradeRecreatesDatabase() {
+        SQLiteDatabase current = openHelper(UPGRADED_DATABASE_NAME);
+        int currentVersion = current.getVersion();
+        current.setVersion(currentVersion + 1);
+        current.close();
+
+        SQLiteDatabase downgraded = openHelper(UPGRADED_DATABASE_NAME);
+        assertEquals(currentVersion, downgraded.getVersion());
+        downgraded.close();
+    }
+
+    private void createHistoricalDatabase(HistoricalSchema historical) {
+        File path = mContext.getDatabasePath(UPGRADED_DATABASE_NAME);
+        path.getParentFile().mkdirs();
+
+        SQLiteDatabase database = SQLiteDatabase.openOrCreateDatabase(path, null);
+        database.beginTransaction();
+        try {
+            for (String statement : historical.mCreateStatements) {
+                database.execSQL(statement);
+            }
+
+            long date = 1475280000000L;
+            for (int day = 0; day < SEED_DAY_COUNT; day++) {
+                database.execSQL(historical.mSeedStatement, new Object[]{date});
+                date += 86400000L;
+            }
+
+            database.setVersion(historical.mVersion);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        database.close();
+    }
+
+    private SQLiteDatabase openHelper(String name) {
+        return new WeatherDbHelper(mContext, name, WeatherDbHelper.ConnectionProfile.DEFAULT)
+                .getWritableDatabase();
+    }
+
+    /**
+     * Describes every table and index in the database as a sorted map from its name to its
+     * columns, so that two schemas can be compared with a single assertEquals. The column
+     * descriptions come from PRAGMA table_info and PRAGMA index_info, which ignore formatting
+     * differences between a CREATE statement and the ALTER TABLEs of a migration.
+     */
+    private static Map<String, String> describeSchema(SQLiteDatabase database) {
+        Map<String, String> schema = new TreeMap<String, String>();
+
+        Cursor objects = database.rawQuery("SELECT type, name FROM sqlite_master "
+                + "WHERE type IN ('table', 'index') AND name NOT LIKE 'sqlite_%' "
+                + "AND name != 'android_metadata'", null);
+        try {
+            while (objects.moveToNext()) {
+                String type = objects.getString(0);
+                String name = objects.getString(1);
+                String pragma = "table".equals(type) ? "table_info" : "index_info";
+                schema.put(type + " " + name, describeColumns(database, pragma, name));
+            }
+        } finally {
+            objects.close();
+        }
+        return schema;
+    }
+
+    private static String describeColumns(SQLiteDatabase database, String pragma, String name) {
+        List<String> columns = new ArrayList<String>();
+        Cursor cursor = database.rawQuery("PRAGMA " + pragma + "(" + name + ")", null);
+        try {
+            while (cursor.moveToNext()) {
+                StringBuilder column = new StringBuilder();
+                for (int i = 0; i < cursor.getColumnCount(); i++) {
+                    /* The position of a column doesn't matter, ALTER TABLE always appends */
+                    if ("cid".equals(cursor.getColumnName(i))) {
+                        continue;
+                    }
+                    column.append(cursor.getColumnName(i)).append('=')
+                            .append(cursor.getString(i)).append(' ');
+                }
+                columns.add(column.toString().trim());
+            }
+        } finally {
+            cursor.close();
+        }
+        Collections.sort(columns);
+        assertTrue("No columns found for " + name, columns.size() > 0);
+        return columns.toString();
+    }
+
+    private static class HistoricalSchema {
+        final int mVersion;
+        final String[] mCreateStatements;
+
+        /* Inserts one day of weather; its only argument is the date */
+        final String mSeedStatement;
+
+        HistoricalSchema(int version, String[] createStatements, String seedStatement) {
+            mVersion = version;
+            mCreateStatements = createStatements;
+            mSeedStatement = seedStatement;
+        }
+    }
+}
@@ -16,6 +16,7 @@
 package com.example.android.sunshine.data;
 
 import android.content.ComponentName;
+import android.content.ContentProviderClient;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
@@ -24,8 +25,13 @@ import android.content.pm.ProviderInfo;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Bundle;
 import android.support.test.InstrumentationRegistry;
 import android.support.test.runner.AndroidJUnit4;
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.os.OperationCanceledException;
+
+import com.example.android.sunshine.utilities.SunshineDateUtils;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -171,6 +177,10 @@ public class TestWeatherProvider {
         /* Obtain weather values from TestUtilities */
         ContentValues testWeatherValues = TestUtilities.createTestWeatherContentValues();
 
+        /* The provider only returns the weather of the preferred location */
+        testWeatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOCATION_ID,
+                TestUtilities.insertPreferredLocation(mContext, database));
+
         /* Insert ContentValues into database and get a row ID back */
         long weatherRowId = database.insert(
                 /* Table to insert values into */
@@ -423,6 +433,373 @@ public class TestWeatherProvider {
         shouldBeEmptyCursor.close();
     }
 
+    /**
+     * This test merges a forecast that overlaps the stored one and checks that only the days
+     * that changed were written, that days missing from the new forecast were deleted, and
+     * that observers were notified.
+     */
+    @Test
+    public void testMergeWritesOnlyChangedDays() {
+
+        /* Start with BULK_INSERT_RECORDS_TO_INSERT days of weather */
+        ContentValues[] storedValues = createBulkInsertTestWeatherValues();
+        ContentResolver contentResolver = mContext.getContentResolver();
+        contentResolver.bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, storedValues);
+
+        /*
+         * The new forecast keeps the first five days as they are, changes the sixth, drops the
+         * rest and adds two days after the last stored one.
+         */
+        ContentValues[] mergedValues = new ContentValues[8];
+        for (int i = 0; i < 6; i++) {
+            mergedValues[i] = new ContentValues(storedValues[i]);
+        }
+        mergedValues[5].put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, 99.0);
+
+        long lastStoredDate = storedValues[BULK_INSERT_RECORDS_TO_INSERT - 1]
+                .getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+        for (int i = 6; i < 8; i++) {
+            mergedValues[i] = new ContentValues(storedValues[0]);
+            mergedValues[i].put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                    lastStoredDate + SunshineDateUtils.DAY_IN_MILLIS * (i - 5));
+        }
+
+        TestUtilities.TestContentObserver weatherObserver = TestUtilities.getTestContentObserver();
+        contentResolver.registerContentObserver(
+                WeatherContract.WeatherEntry.CONTENT_URI, true, weatherObserver);
+
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(WeatherContract.EXTRA_WEATHER_VALUES, mergedValues);
+        Bundle result = contentResolver.call(WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_MERGE_WEATHER, null, extras);
+
+        weatherObserver.waitForNotificationOrFail();
+        contentResolver.unregisterContentObserver(weatherObserver);
+
+        assertEquals("Unexpected number of inserted rows",
+                2, result.getInt(WeatherContract.EXTRA_ROWS_INSERTED));
+        assertEquals("Unexpected number of updated rows",
+                1, result.getInt(WeatherContract.EXTRA_ROWS_UPDATED));
+        assertEquals("Unexpected number of unchanged rows",
+                5, result.getInt(WeatherContract.EXTRA_ROWS_UNCHANGED));
+        assertEquals("Unexpected number of deleted rows",
+                BULK_INSERT_RECORDS_TO_INSERT - 6,
+                result.getInt(WeatherContract.EXTRA_ROWS_DELETED));
+
+        Cursor cursor = contentResolver.query(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                null,
+                null,
+                null,
+                WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+
+        assertEquals(mergedValues.length, cursor.getCount());
+
+        cursor.moveToFirst();
+        for (int i = 0; i < mergedValues.length; i++, cursor.moveToNext()) {
+            TestUtilities.validateCurrentRecord(
+                    "testMergeWritesOnlyChangedDays. Error validating WeatherEntry " + i,
+                    cursor,
+                    mergedValues[i]);
+        }
+
+        cursor.close();
+    }
+
+    /**
+     * This test merges a forecast that starts after the stored one and checks that the stored
+     * days before it, which are long past the retention window, are deleted.
+     */
+    @Test
+    public void testMergeDeletesDaysPastRetention() {
+        ContentValues[] storedValues = createBulkInsertTestWeatherValues();
+        ContentResolver contentResolver = mContext.getContentResolver();
+        contentResolver.bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, storedValues);
+
+        /* The test dates are in 2016, so every day before the new forecast is too old to keep */
+        int firstMergedDay = BULK_INSERT_RECORDS_TO_INSERT / 2;
+        ContentValues[] mergedValues =
+                new ContentValues[BULK_INSERT_RECORDS_TO_INSERT - firstMergedDay];
+        for (int i = 0; i < mergedValues.length; i++) {
+            mergedValues[i] = storedValues[firstMergedDay + i];
+        }
+
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(WeatherContract.EXTRA_WEATHER_VALUES, mergedValues);
+        Bundle result = contentResolver.call(WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_MERGE_WEATHER, null, extras);
+
+        assertEquals("Days past the retention window should have been deleted",
+                firstMergedDay, result.getInt(WeatherContract.EXTRA_ROWS_DELETED));
+
+        Cursor cursor = contentResolver.query(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                null,
+                null,
+                null,
+                WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+
+        assertEquals(mergedValues.length, cursor.getCount());
+
+        cursor.moveToFirst();
+        for (int i = 0; i < mergedValues.length; i++, cursor.moveToNext()) {
+            TestUtilities.validateCurrentRecord(
+                    "testMergeDeletesDaysPastRetention. Error validating WeatherEntry " + i,
+                    cursor,
+                    mergedValues[i]);
+        }
+
+        cursor.close();
+    }
+
+    /**
+     * This test cancels a merge half way through the new forecast and checks that none of the
+     * days it had already written are left behind.
+     */
+    @Test
+    public void testCancelledMergeIsRolledBack() {
+        ContentValues[] storedValues = createBulkInsertTestWeatherValues();
+        ContentResolver contentResolver = mContext.getContentResolver();
+        contentResolver.bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, storedValues);
+
+        CancellationSignal cancellationSignal = new CancellationSignal();
+        ForecastMerge merge = getWeatherProvider().beginForecastMerge(
+                WeatherContract.WeatherEntry.CONTENT_URI, cancellationSignal);
+        try {
+            for (int i = 0; i < storedValues.length / 2; i++) {
+                ContentValues changed = new ContentValues(storedValues[i]);
+                changed.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, 99.0);
+                merge.add(changed);
+            }
+
+            cancellationSignal.cancel();
+            try {
+                merge.add(storedValues[storedValues.length / 2]);
+                fail("A cancelled merge should not accept more days");
+            } catch (OperationCanceledException expected) {
+            }
+        } finally {
+            merge.close();
+        }
+
+        assertEquals(storedValues.length / 2, merge.getRolledBackCount());
+        assertEquals(0, merge.getUpdatedCount());
+
+        Cursor cursor = contentResolver.query(WeatherContract.WeatherEntry.CONTENT_URI,
+                null, null, null, WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals(storedValues.length, cursor.getCount());
+        cursor.moveToFirst();
+        for (int i = 0; i < storedValues.length; i++, cursor.moveToNext()) {
+            TestUtilities.validateCurrentRecord(
+                    "testCancelledMergeIsRolledBack. Error validating WeatherEntry " + i,
+                    cursor,
+                    storedValues[i]);
+        }
+        cursor.close();
+    }
+
+    /**
+     * This test queries the same forecast twice and checks that the second query is answered
+     * from memory, and that a bulkInsert drops the cached result so the new rows are returned.
+     */
+    @Test
+    public void testQueryCacheIsInvalidatedByWrites() {
+        ContentResolver contentResolver = mContext.getContentResolver();
+        WeatherQueryCache queryCache = getWeatherProvider().getQueryCache();
+
+        ContentValues[] values = createBulkInsertTestWeatherValues();
+        contentResolver.bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, values);
+
+        long hitsBefore = queryCache.getHitCount();
+
+        Cursor first = contentResolver.query(WeatherContract.WeatherEntry.CONTENT_URI,
+                null, null, null, WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+        Cursor second = contentResolver.query(WeatherContract.WeatherEntry.CONTENT_URI,
+                null, null, null, WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+
+        assertEquals("Repeating a query should be served from the cache",
+                hitsBefore + 1, queryCache.getHitCount());
+        assertEquals(first.getCount(), second.getCount());
+
+        second.moveToFirst();
+        for (int i = 0; i < values.length; i++, second.moveToNext()) {
+            TestUtilities.validateCurrentRecord(
+                    "testQueryCacheIsInvalidatedByWrites. Error validating cached entry " + i,
+                    second,
+                    values[i]);
+        }
+        first.close();
+        second.close();
+
+        /* Add one more day after the last one, which must show up in the next query */
+        ContentValues extraDay = new ContentValues(values[0]);
+        extraDay.put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                values[values.length - 1].getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE)
+                        + SunshineDateUtils.DAY_IN_MILLIS);
+        contentResolver.bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI,
+                new ContentValues[]{extraDay});
+
+        Cursor afterWrite = contentResolver.query(WeatherContract.WeatherEntry.CONTENT_URI,
+                null, null, null, WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals("A write should invalidate the cached forecast",
+                values.length + 1, afterWrite.getCount());
+        afterWrite.close();
+    }
+
+    /**
+     * This test reads a range of days and then the whole table page by page, and checks that
+     * both return exactly the expected days in order.
+     */
+    @Test
+    public void testRangeAndPageQueries() {
+        ContentResolver contentResolver = mContext.getContentResolver();
+        ContentValues[] values = createBulkInsertTestWeatherValues();
+        contentResolver.bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, values);
+
+        /* Days 2, 3 and 4; the end of a range is exclusive */
+        long startDate = values[2].getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+        long endDate = values[5].getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+        Cursor range = contentResolver.query(
+                WeatherContract.WeatherEntry.buildWeatherUriForRange(startDate, endDate),
+                null,
+                null,
+                null,
+                WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+
+        assertEquals(3, range.getCount());
+        range.moveToFirst();
+        for (int i = 2; i < 5; i++, range.moveToNext()) {
+            TestUtilities.validateCurrentRecord(
+                    "testRangeAndPageQueries. Error validating range entry " + i, range, values[i]);
+        }
+        range.close();
+
+        /* Read every day back three at a time */
+        int pageSize = 3;
+        int daysRead = 0;
+        Uri pageUri = WeatherContract.WeatherEntry.buildWeatherUriForPage(0, pageSize);
+        while (true) {
+            Cursor page = contentResolver.query(pageUri, null, null, null, null);
+            int pageCount = page.getCount();
+            assertTrue("Page is larger than its limit", pageCount <= pageSize);
+
+            while (page.moveToNext()) {
+                TestUtilities.validateCurrentRecord(
+                        "testRangeAndPageQueries. Error validating page entry " + daysRead,
+                        page, values[daysRead]);
+                daysRead++;
+            }
+            page.close();
+
+            if (pageCount < pageSize) {
+                break;
+            }
+            pageUri = WeatherContract.WeatherEntry.buildWeatherUriForNextPage(pageUri);
+        }
+
+        assertEquals(values.length, daysRead);
+    }
+
+    /**
+     * This test stores a forecast for two locations that aren't the preferred one, and checks
+     * that each location URI only returns and deletes its own weather.
+     */
+    @Test
+    public void testWeatherIsKeptPerLocation() {
+        ContentResolver contentResolver = mContext.getContentResolver();
+        Uri firstLocationUri = WeatherContract.WeatherEntry.buildWeatherUriForLocation("Paris,FR");
+        Uri secondLocationUri =
+                WeatherContract.WeatherEntry.buildWeatherUriForLocation("Mountain View, CA");
+
+        /* The same dates for both locations, with different weather */
+        ContentValues[] firstValues = createBulkInsertTestWeatherValues();
+        ContentValues[] secondValues = createBulkInsertTestWeatherValues();
+        for (ContentValues values : secondValues) {
+            values.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, 800);
+        }
+
+        assertEquals(firstValues.length, contentResolver.bulkInsert(firstLocationUri, firstValues));
+        assertEquals(secondValues.length,
+                contentResolver.bulkInsert(secondLocationUri, secondValues));
+
+        long date = firstValues[0].getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+        Cursor secondDay = contentResolver.query(
+                WeatherContract.WeatherEntry.buildWeatherUriForLocationWithDate(
+                        "Mountain View, CA", date),
+                null, null, null, null);
+        TestUtilities.validateThenCloseCursor("testWeatherIsKeptPerLocation",
+                secondDay, secondValues[0]);
+
+        /* Neither location is the preferred one, so the plain URI returns nothing */
+        Cursor preferred = contentResolver.query(
+                WeatherContract.WeatherEntry.CONTENT_URI, null, null, null, null);
+        assertEquals(0, preferred.getCount());
+        preferred.close();
+
+        Cursor locations = contentResolver.query(
+                WeatherContract.LocationEntry.CONTENT_URI, null, null, null, null);
+        assertTrue(locations.getCount() >= 2);
+        locations.close();
+
+        /* Deleting one location's weather leaves the other one alone */
+        assertEquals(firstValues.length, contentResolver.delete(firstLocationUri, null, null));
+
+        Cursor remaining = contentResolver.query(secondLocationUri, null, null, null, null);
+        assertEquals(secondValues.length, remaining.getCount());
+        remaining.close();
+    }
+
+    /**
+     * This test stores weather for two locations, makes one of them look unused for longer than
+     * the retention window, and checks that using the other one deletes it with its weather.
+     */
+    @Test
+    public void testUsingALocationDeletesUnusedLocations() {
+        ContentResolver contentResolver = mContext.getContentResolver();
+        Uri unusedLocationUri = WeatherContract.WeatherEntry.buildWeatherUriForLocation("Oslo,NO");
+        Uri usedLocationUri = WeatherContract.WeatherEntry.buildWeatherUriForLocation("Lima,PE");
+
+        ContentValues[] unusedValues = createBulkInsertTestWeatherValues();
+        ContentValues[] usedValues = createBulkInsertTestWeatherValues();
+        contentResolver.bulkInsert(unusedLocationUri, unusedValues);
+        contentResolver.bulkInsert(usedLocationUri, usedValues);
+
+        /* Nobody has looked at Oslo since a day before the retention window started */
+        ContentValues lastUsed = new ContentValues();
+        lastUsed.put(WeatherContract.LocationEntry.COLUMN_LAST_USED, System.currentTimeMillis()
+                - (WeatherContract.WeatherEntry.RETENTION_DAYS + 1)
+                * SunshineDateUtils.DAY_IN_MILLIS);
+        SQLiteDatabase database =
+                new WeatherDbHelper(InstrumentationRegistry.getTargetContext())
+                        .getWritableDatabase();
+        database.update(WeatherContract.LocationEntry.TABLE_NAME, lastUsed,
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{"Oslo,NO"});
+        database.close();
+
+        Bundle result = contentResolver.call(WeatherContract.LocationEntry.CONTENT_URI,
+                WeatherContract.METHOD_USE_LOCATION, "Lima,PE", null);
+
+        assertEquals("The weather of the unused location should have been deleted",
+                unusedValues.length, result.getInt(WeatherContract.EXTRA_ROWS_DELETED));
+
+        Cursor unused = contentResolver.query(unusedLocationUri, null, null, null, null);
+        assertEquals(0, unused.getCount());
+        unused.close();
+
+        Cursor used = contentResolver.query(usedLocationUri, null, null, null, null);
+        assertEquals(usedValues.length, used.getCount());
+        used.close();
+
+        Cursor locations = contentResolver.query(WeatherContract.LocationEntry.CONTENT_URI,
+                null,
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{"Oslo,NO"},
+                null);
+        assertEquals("The unused location should have been deleted", 0, locations.getCount());
+        locations.close();
+    }
+
     /**
      * This method will clear all rows from the weather table in our database.
      * <p>
@@ -445,5 +822,24 @@ public class TestWeatherProvider {
 
         /* Always close the database when you're through with it */
         database.close();
+
+        /*
+         * The rows were deleted behind the provider's back, so the results it has cached in
+         * memory have to be dropped as well.
+         */
+        getWeatherProvider().getQueryCache().invalidate();
+    }
+
+    /**
+     * Returns the instance of WeatherProvider running in this process.
+     */
+    private WeatherProvider getWeatherProvider() {
+        ContentProviderClient client = mContext.getContentResolver()
+                .acquireContentProviderClient(WeatherContract.CONTENT_AUTHORITY);
+        try {
+            return (WeatherProvider) client.getLocalContentProvider();
+        } finally {
+            client.release();
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Tests {@link WeatherQueryCache} on its own, with hand-made cursors instead of a database.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestWeatherQueryCache {
+
+    private static final String[] COLUMNS = {
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP
+    };
+
+    @Test
+    public void testHitReturnsIndependentCopyOfRows() {
+        WeatherQueryCache cache = new WeatherQueryCache(WeatherQueryCache.DEFAULT_MAX_SIZE_BYTES);
+        String key = keyFor(1);
+
+        assertNull(cache.get(key));
+        cache.put(key, cache.getGeneration(), createForecastCursor(3)).close();
+
+        Cursor first = cache.get(key);
+        Cursor second = cache.get(key);
+        assertNotNull(first);
+
+        /* Moving one cursor must not move the other */
+        first.moveToLast();
+        assertTrue(second.moveToFirst());
+        assertEquals(0L, second.getLong(0));
+        assertEquals(2L, first.getLong(0));
+        assertEquals(800, second.getInt(1));
+        assertEquals(20.5, second.getDouble(2), 0.0);
+
+        first.close();
+        second.close();
+
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(2f / 3f, cache.getHitRate(), 0.001f);
+    }
+
+    /**
+     * A result read before a write committed must not be stored, or the cache would keep
+     * serving the forecast from before the write.
+     */
+    @Test
+    public void testResultReadBeforeInvalidationIsNotCached() {
+        WeatherQueryCache cache = new WeatherQueryCache(WeatherQueryCache.DEFAULT_MAX_SIZE_BYTES);
+        String key = keyFor(1);
+
+        long generation = cache.getGeneration();
+        Cursor staleResult = createForecastCursor(3);
+        cache.invalidate();
+
+        Cursor returned = cache.put(key, generation, staleResult);
+        assertEquals("The caller should still get its rows", 3, returned.getCount());
+        returned.close();
+
+        assertNull(cache.get(key));
+        assertEquals(1, cache.getInvalidationCount());
+    }
+
+    @Test
+    public void testCacheStaysWithinMemoryBudget() {
+        int budget = 4 * 1024;
+        WeatherQueryCache cache = new WeatherQueryCache(budget);
+
+        for (int i = 0; i < 100; i++) {
+            cache.put(keyFor(i), cache.getGeneration(), createForecastCursor(14)).close();
+            assertTrue("Cache grew past its budget: " + cache.getSizeBytes(),
+                    cache.getSizeBytes() <= budget);
+        }
+
+        assertTrue(cache.getEvictionCount() > 0);
+
+        /* The most recent result is kept, the first one was evicted */
+        assertNotNull(cache.get(keyFor(99)));
+        assertNull(cache.get(keyFor(0)));
+    }
+
+    private static String keyFor(int query) {
+        return WeatherQueryCache.buildKey(
+                WeatherContract.WeatherEntry.CONTENT_URI, "94043,USA", null,
+                WeatherContract.WeatherEntry.COLUMN_DATE + " >= ?",
+                new String[]{Integer.toString(query)}, null);
+    }
+
+    private static Cursor createForecastCursor(int dayCount) {
+        MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        for (long day = 0; day < dayCount; day++) {
+            cursor.addRow(new Object[]{day, 800, 20.5});
+        }
+        return cursor;
+    }
+}
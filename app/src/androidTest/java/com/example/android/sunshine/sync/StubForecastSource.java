@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.v4.os.CancellationSignal;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link ForecastSource} that never leaves the process. Every request is answered after a
+ * fixed latency with a generated forecast of a given number of days, or, at a given rate, with
+ * the error OpenWeatherMap sends when it is overloaded.
+ * <p>
+ * The n-th request always gets the same answer for the same seed, so a run can be repeated
+ * exactly as long as requests arrive in the same order.
+ */
+public class StubForecastSource implements ForecastSource {
+
+    /* How often a request held back by the latency checks whether it was cancelled */
+    private static final long CANCEL_POLL_MILLIS = 10;
+
+    private static final String SERVER_ERROR_JSON =
+            "{\"cod\":\"503\",\"message\":\"service unavailable\"}";
+
+    private final long mSeed;
+
+    private int mPayloadDays = 14;
+    private long mLatencyMillis;
+    private double mErrorRate;
+
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicInteger mErrorCount = new AtomicInteger();
+    private final AtomicInteger mStoredCount = new AtomicInteger();
+    private final AtomicLong mBytesServed = new AtomicLong();
+
+    public StubForecastSource(long seed) {
+        mSeed = seed;
+    }
+
+    /** Sets the number of days in each forecast, which is about 300 bytes per day. */
+    public StubForecastSource setPayloadDays(int payloadDays) {
+        mPayloadDays = payloadDays;
+        return this;
+    }
+
+    /** Sets how long each request takes before its response starts to arrive. */
+    public StubForecastSource setLatencyMillis(long latencyMillis) {
+        mLatencyMillis = latencyMillis;
+        return this;
+    }
+
+    /** Sets the share of requests, between 0 and 1, that are answered with a server error. */
+    public StubForecastSource setErrorRate(double errorRate) {
+        mErrorRate = errorRate;
+        return this;
+    }
+
+    @Override
+    public InputStream openForecast(Context context, String locationSetting,
+                                    CancellationSignal cancellationSignal) throws IOException {
+        int request = mRequestCount.getAndIncrement();
+        Random random = new Random(mSeed * 31 + request);
+
+        long endMillis = SystemClock.elapsedRealtime() + mLatencyMillis;
+        long remainingMillis = mLatencyMillis;
+        while (remainingMillis > 0) {
+            if (cancellationSignal != null) {
+                cancellationSignal.throwIfCanceled();
+            }
+            SystemClock.sleep(Math.min(remainingMillis, CANCEL_POLL_MILLIS));
+            remainingMillis = endMillis - SystemClock.elapsedRealtime();
+        }
+
+        byte[] payload;
+        if (random.nextDouble() < mErrorRate) {
+            mErrorCount.incrementAndGet();
+            payload = SERVER_ERROR_JSON.getBytes("UTF-8");
+        } else {
+            payload = createForecastJson(mPayloadDays, random).getBytes("UTF-8");
+        }
+        mBytesServed.addAndGet(payload.length);
+        return new ByteArrayInputStream(payload);
+    }
+
+    @Override
+    public void onForecastStored(Context context, String locationSetting) {
+        mStoredCount.incrementAndGet();
+    }
+
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /** Returns the number of requests that were answered with a server error. */
+    public int getErrorCount() {
+        return mErrorCount.get();
+    }
+
+    /** Returns the number of forecasts the sync reported as stored. */
+    public int getStoredCount() {
+        return mStoredCount.get();
+    }
+
+    public long getBytesServed() {
+        return mBytesServed.get();
+    }
+
+    /**
+     * Builds a forecast in the format OpenWeatherMap uses, with values drawn from the given
+     * random, so that each one differs from the last and has to be written.
+     */
+    static String createForecastJson(int dayCount, Random random) {
+        StringBuilder json = new StringBuilder(256 + dayCount * 320);
+        json.append("{\"city\":{\"id\":5375480,\"name\":\"Mountain View\",")
+                .append("\"coord\":{\"lon\":-122.0838,\"lat\":37.3861},")
+                .append("\"country\":\"US\",\"population\":0},")
+                .append("\"cod\":\"200\",\"message\":0.0132,\"cnt\":").append(dayCount)
+                .append(",\"list\":[");
+
+        for (int i = 0; i < dayCount; i++) {
+            double min = -10 + random.nextInt(300) / 10.0;
+            double max = min + random.nextInt(150) / 10.0;
+            if (i > 0) json.append(',');
+            json.append("{\"dt\":").append(1474632000L + i * 86400L)
+                    .append(",\"temp\":{\"day\":").append(format(max))
+                    .append(",\"min\":").append(format(min))
+                    .append(",\"max\":").append(format(max))
+                    .append(",\"night\":").append(format(min))
+                    .append(",\"eve\":").append(format(max))
+                    .append(",\"morn\":").append(format(min)).append("},")
+                    .append("\"pressure\":").append(format(980 + random.nextInt(600) / 10.0))
+                    .append(",\"humidity\":").append(random.nextInt(101)).append(',')
+                    .append("\"weather\":[{\"id\":").append(random.nextBoolean() ? 800 : 501)
+                    .append(",\"main\":\"Clear\",\"description\":\"sky is clear\",")
+                    .append("\"icon\":\"01d\"}],")
+                    .append("\"speed\":").append(format(random.nextInt(200) / 10.0))
+                    .append(",\"deg\":").append(random.nextInt(360))
+                    .append(",\"clouds\":0}");
+        }
+
+        json.append("]}");
+        return json.toString();
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.US, "%.1f", value);
+    }
+}
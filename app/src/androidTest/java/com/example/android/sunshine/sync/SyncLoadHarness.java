@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives {@link SunshineSyncTask} end to end, from the {@link ForecastSource} to the database,
+ * from several threads at once, and reports how many syncs it got through and how long they
+ * took.
+ */
+final class SyncLoadHarness {
+
+    private static final String TAG = SyncLoadHarness.class.getSimpleName();
+
+    private SyncLoadHarness() {
+    }
+
+    /**
+     * The throughput and latency distribution of a load test run.
+     */
+    static final class Report {
+
+        final int mSyncCount;
+        final int mFailedCount;
+        final long mElapsedMillis;
+        final double mSyncsPerSecond;
+
+        /* Latency percentiles of single syncs, including any retries */
+        final long mP50Millis;
+        final long mP90Millis;
+        final long mP99Millis;
+        final long mMaxMillis;
+
+        Report(long[] latenciesNanos, int failedCount, long elapsedNanos) {
+            long[] sorted = latenciesNanos.clone();
+            Arrays.sort(sorted);
+
+            mSyncCount = sorted.length;
+            mFailedCount = failedCount;
+            mElapsedMillis = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+            mSyncsPerSecond = elapsedNanos > 0
+                    ? sorted.length * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos
+                    : 0;
+            mP50Millis = percentileMillis(sorted, 50);
+            mP90Millis = percentileMillis(sorted, 90);
+            mP99Millis = percentileMillis(sorted, 99);
+            mMaxMillis = sorted.length > 0
+                    ? TimeUnit.NANOSECONDS.toMillis(sorted[sorted.length - 1])
+                    : 0;
+        }
+
+        /* The nearest-rank percentile: the smallest value at least that share of syncs beat */
+        private static long percentileMillis(long[] sorted, int percentile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+            return TimeUnit.NANOSECONDS.toMillis(sorted[Math.max(0, rank - 1)]);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d syncs (%d failed) in %dms: %.1f syncs/s, "
+                            + "p50 %dms, p90 %dms, p99 %dms, max %dms",
+                    mSyncCount, mFailedCount, mElapsedMillis, mSyncsPerSecond,
+                    mP50Millis, mP90Millis, mP99Millis, mMaxMillis);
+        }
+    }
+
+    /**
+     * Runs the given number of syncs on each of the given number of threads, all started at the
+     * same moment. Each thread goes through the locations in turn, starting at a different one,
+     * so that threads mostly sync different locations at the same time.
+     *
+     * @param context        Used by the syncs to access the ContentResolver
+     * @param source         Where every sync gets its forecast from
+     * @param locations      The locations to sync
+     * @param threadCount    How many syncs run at the same time
+     * @param syncsPerThread How many syncs each thread runs, one after the other
+     * @return The throughput and latency of the run
+     */
+    static Report run(final Context context, final ForecastSource source,
+                      final String[] locations, int threadCount, final int syncsPerThread)
+            throws Exception {
+
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        final CountDownLatch startGate = new CountDownLatch(1);
+        final long[] latenciesNanos = new long[threadCount * syncsPerThread];
+
+        List<Future<Integer>> threads = new ArrayList<Future<Integer>>();
+        for (int t = 0; t < threadCount; t++) {
+            final int thread = t;
+            threads.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    startGate.await();
+
+                    int failedCount = 0;
+                    for (int i = 0; i < syncsPerThread; i++) {
+                        String location = locations[(thread + i * threadCount) % locations.length];
+
+                        long startNanos = System.nanoTime();
+                        WeatherSyncResult result =
+                                SunshineSyncTask.syncWeather(context, location, source, null);
+                        latenciesNanos[thread * syncsPerThread + i] =
+                                System.nanoTime() - startNanos;
+
+                        if (result.getStatus() == WeatherSyncResult.STATUS_FAILED) {
+                            failedCount++;
+                        }
+                    }
+                    return failedCount;
+                }
+            }));
+        }
+
+        long startNanos = System.nanoTime();
+        startGate.countDown();
+
+        int failedCount = 0;
+        try {
+            for (Future<Integer> thread : threads) {
+                failedCount += thread.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+
+        /* Each thread only wrote its own slots, and get() makes them visible here */
+        Report report = new Report(latenciesNanos, failedCount, elapsedNanos);
+        Log.i(TAG, threadCount + " threads, " + locations.length + " locations: " + report);
+        return report;
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.firebase.jobdispatcher.DefaultJobValidator;
+import com.firebase.jobdispatcher.Driver;
+import com.firebase.jobdispatcher.FirebaseJobDispatcher;
+import com.firebase.jobdispatcher.Job;
+import com.firebase.jobdispatcher.JobTrigger;
+import com.firebase.jobdispatcher.JobValidator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Feeds an {@link AdaptiveSyncScheduler} with sync results while moving a fake clock along, and
+ * checks the jobs it hands to a fake driver.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestAdaptiveSyncScheduler {
+
+    private static final String HISTORY_NAME = "sync_history_test";
+
+    private static final String LOCATION = "scheduler-test";
+
+    private static final int MIN_INTERVAL_SECONDS = (int) TimeUnit.HOURS.toSeconds(1);
+    private static final int MAX_INTERVAL_SECONDS = (int) TimeUnit.HOURS.toSeconds(12);
+    private static final int INITIAL_INTERVAL_SECONDS = (int) TimeUnit.HOURS.toSeconds(3);
+
+    private static final WeatherSyncResult UPDATED =
+            new WeatherSyncResult(WeatherSyncResult.STATUS_UPDATED, 1000, 14, 100);
+    private static final WeatherSyncResult UNCHANGED =
+            new WeatherSyncResult(WeatherSyncResult.STATUS_UNCHANGED, 0, 0, 100);
+    private static final WeatherSyncResult FAILED =
+            new WeatherSyncResult(WeatherSyncResult.STATUS_FAILED, 0, 0, 100);
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private FakeClock mClock;
+    private FakeDriver mDriver;
+    private AdaptiveSyncScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mClock = new FakeClock();
+        mDriver = new FakeDriver(mContext);
+        mScheduler = new AdaptiveSyncScheduler(mContext, HISTORY_NAME,
+                new AdaptiveSyncScheduler.Config(MIN_INTERVAL_SECONDS, MAX_INTERVAL_SECONDS,
+                        INITIAL_INTERVAL_SECONDS, 0.3),
+                mClock, mDriver);
+        mScheduler.clearHistory();
+    }
+
+    @After
+    public void tearDown() {
+        mScheduler.clearHistory();
+    }
+
+    @Test
+    public void testNewLocationIsScheduledAtTheInitialInterval() {
+        mScheduler.schedulePeriodicSync(LOCATION);
+
+        assertEquals("Exactly one job should have been scheduled", 1, mDriver.mJobs.size());
+        assertEquals("A location without history should start at the initial interval",
+                INITIAL_INTERVAL_SECONDS, getWindowStart(mDriver.getLastJob()));
+    }
+
+    @Test
+    public void testStableForecastLengthensTheInterval() {
+        mScheduler.schedulePeriodicSync(LOCATION);
+        syncRepeatedly(UPDATED, 1);
+        syncRepeatedly(UNCHANGED, 30);
+
+        int intervalSeconds = mScheduler.getIntervalSeconds(LOCATION);
+        assertTrue("A forecast that never changes should be synced less often, but the "
+                        + "interval is " + intervalSeconds + "s",
+                intervalSeconds > TimeUnit.HOURS.toSeconds(10));
+        assertTrue("The interval must not exceed the maximum",
+                intervalSeconds <= MAX_INTERVAL_SECONDS);
+        assertTrue("The job should have been rescheduled", mDriver.mJobs.size() > 1);
+        assertEquals("The scheduled job should use the current interval",
+                intervalSeconds, getWindowStart(mDriver.getLastJob()), 0.1 * intervalSeconds);
+
+        /* 30 syncs in far less time than the fixed interval would have needed */
+        assertTrue("Syncing less often than every 3 hours should save requests",
+                mScheduler.getRequestsSavedPerDay(LOCATION) > 0);
+    }
+
+    @Test
+    public void testVolatileForecastShortensTheInterval() {
+        mScheduler.schedulePeriodicSync(LOCATION);
+        syncRepeatedly(UPDATED, 30);
+
+        int intervalSeconds = mScheduler.getIntervalSeconds(LOCATION);
+        assertTrue("A forecast that always changes should be synced more often, but the "
+                        + "interval is " + intervalSeconds + "s",
+                intervalSeconds < TimeUnit.HOURS.toSeconds(2));
+        assertTrue("The interval must not drop below the minimum",
+                intervalSeconds >= MIN_INTERVAL_SECONDS);
+        assertEquals("The scheduled job should use the current interval",
+                intervalSeconds, getWindowStart(mDriver.getLastJob()), 0.1 * intervalSeconds);
+
+        assertTrue("Syncing more often than every 3 hours costs requests",
+                mScheduler.getRequestsSavedPerDay(LOCATION) < 0);
+    }
+
+    @Test
+    public void testFailedSyncsAreIgnored() {
+        mScheduler.schedulePeriodicSync(LOCATION);
+        syncRepeatedly(FAILED, 10);
+
+        assertEquals("Failed syncs say nothing about the forecast",
+                INITIAL_INTERVAL_SECONDS, mScheduler.getIntervalSeconds(LOCATION));
+        assertEquals("Nothing should have been rescheduled", 1, mDriver.mJobs.size());
+    }
+
+    @Test
+    public void testForecastGoesStaleAfterOneInterval() {
+        assertTrue("A location that was never synced is stale",
+                mScheduler.isForecastStale(LOCATION));
+
+        mScheduler.onForecastStored(LOCATION);
+        assertFalse("A forecast that was just stored is current",
+                mScheduler.isForecastStale(LOCATION));
+
+        mClock.advance(TimeUnit.SECONDS.toMillis(INITIAL_INTERVAL_SECONDS) - 1);
+        assertFalse("The forecast is current until its sync would have run",
+                mScheduler.isForecastStale(LOCATION));
+
+        mClock.advance(1);
+        assertTrue("The forecast is stale once its sync would have run",
+                mScheduler.isForecastStale(LOCATION));
+    }
+
+    /**
+     * Reports the same result for a number of syncs, each one interval after the one before.
+     */
+    private void syncRepeatedly(WeatherSyncResult result, int count) {
+        for (int i = 0; i < count; i++) {
+            mScheduler.onSyncFinished(LOCATION, result);
+            mClock.advance(TimeUnit.SECONDS.toMillis(mScheduler.getIntervalSeconds(LOCATION)));
+        }
+    }
+
+    private static int getWindowStart(Job job) {
+        return ((JobTrigger.ExecutionWindowTrigger) job.getTrigger()).getWindowStart();
+    }
+
+    private static class FakeClock implements AdaptiveSyncScheduler.Clock {
+
+        private long mNowMillis = 1000000000000L;
+
+        void advance(long millis) {
+            mNowMillis += millis;
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return mNowMillis;
+        }
+    }
+
+    /**
+     * Keeps scheduled jobs in a list instead of handing them to Google Play services.
+     */
+    private static class FakeDriver implements Driver {
+
+        final List<Job> mJobs = new ArrayList<Job>();
+        private final JobValidator mValidator;
+
+        FakeDriver(Context context) {
+            mValidator = new DefaultJobValidator(context);
+        }
+
+        Job getLastJob() {
+            return mJobs.get(mJobs.size() - 1);
+        }
+
+        @Override
+        public int schedule(Job job) {
+            mJobs.add(job);
+            return FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS;
+        }
+
+        @Override
+        public int cancel(String tag) {
+            return FirebaseJobDispatcher.CANCEL_RESULT_SUCCESS;
+        }
+
+        @Override
+        public int cancelAll() {
+            return FirebaseJobDispatcher.CANCEL_RESULT_SUCCESS;
+        }
+
+        @Override
+        public JobValidator getValidator() {
+            return mValidator;
+        }
+
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.data.SunshinePreferences;
+import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.utilities.NetworkUtils;
+import com.example.android.sunshine.utilities.TestOpenWeatherJsonUtils;
+import com.example.android.sunshine.utils.StubHttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Syncs several locations at once from a {@link StubHttpServer} that answers every request
+ * after a fixed delay, for locations that are only used by this test.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestBatchForecastSync {
+
+    private static final String LOCATION_PREFIX = "batch-test-";
+
+    private static final int LOCATION_COUNT = 8;
+
+    /* Every response takes this long, so the wall time of a batch is mostly waiting */
+    private static final long RESPONSE_DELAY_MILLIS = 500;
+
+    /* Requests for this path get the error OpenWeatherMap sends for an unknown city */
+    private static final String MISSING_CITY_PATH = "/weather?q=missing";
+    private static final String MISSING_CITY_JSON =
+            "{\"cod\":\"404\",\"message\":\"city not found\"}";
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+    private StubHttpServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        NetworkUtils.clearResponseValidators(mContext);
+
+        final byte[] forecast = TestOpenWeatherJsonUtils.createForecastJson(14).getBytes("UTF-8");
+        mServer = new StubHttpServer(new StubHttpServer.Handler() {
+            @Override
+            public StubHttpServer.Response handle(StubHttpServer.Request request)
+                    throws Exception {
+                if (MISSING_CITY_PATH.equals(request.path)) {
+                    return StubHttpServer.Response.ok(MISSING_CITY_JSON.getBytes("UTF-8"));
+                }
+                return StubHttpServer.Response.ok(forecast).setDelay(RESPONSE_DELAY_MILLIS);
+            }
+        });
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.shutdown();
+        NetworkUtils.clearResponseValidators(mContext);
+        SunshinePreferences.resetLocationCoordinates(mContext);
+
+        for (int i = 0; i < LOCATION_COUNT; i++) {
+            mContext.getContentResolver().delete(
+                    WeatherContract.WeatherEntry.buildWeatherUriForLocation(LOCATION_PREFIX + i),
+                    null, null);
+        }
+    }
+
+    @Test
+    public void testWallTimeScalesWithTheParallelismCap() {
+        BatchForecastSync.Result serial =
+                BatchForecastSync.syncLocations(mContext, buildLocationUrls(), 2, null);
+
+        NetworkUtils.clearResponseValidators(mContext);
+        BatchForecastSync.Result parallel = BatchForecastSync.syncLocations(mContext,
+                buildLocationUrls(), LOCATION_COUNT, null);
+
+        assertEquals(2 * LOCATION_COUNT, mServer.getRequestCount());
+        assertTrue("No more than 2 requests should have run at once",
+                serial.getMaxConcurrentRequests() <= 2);
+        assertTrue("No more than " + LOCATION_COUNT + " requests should have run at once",
+                parallel.getMaxConcurrentRequests() <= LOCATION_COUNT);
+
+        /* 8 locations, 2 at a time, means 4 rounds of waiting for the server */
+        long rounds = LOCATION_COUNT / 2;
+        assertTrue("With 2 requests at a time, " + LOCATION_COUNT + " locations should take at "
+                        + "least " + rounds + " response delays, but took "
+                        + serial.getElapsedMillis() + "ms",
+                serial.getElapsedMillis() >= rounds * RESPONSE_DELAY_MILLIS);
+        assertTrue("With every request at once, the batch should take about one response "
+                        + "delay, but took " + parallel.getElapsedMillis() + "ms",
+                parallel.getElapsedMillis() < 3 * RESPONSE_DELAY_MILLIS);
+    }
+
+    @Test
+    public void testBatchIsStoredWithOneNotification() throws Exception {
+        final AtomicInteger notificationCount = new AtomicInteger();
+        ContentObserver observer = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                notificationCount.incrementAndGet();
+            }
+        };
+        mContext.getContentResolver().registerContentObserver(
+                WeatherContract.WeatherEntry.CONTENT_URI, true, observer);
+
+        BatchForecastSync.Result result;
+        try {
+            result = BatchForecastSync.syncLocations(mContext, buildLocationUrls(), 4, null);
+
+            /* Notifications are delivered asynchronously */
+            Thread.sleep(RESPONSE_DELAY_MILLIS);
+        } finally {
+            mContext.getContentResolver().unregisterContentObserver(observer);
+        }
+
+        assertEquals(LOCATION_COUNT, result.getChangedCount());
+        assertEquals(0, result.getFailedCount());
+        assertEquals("The whole batch should be announced with a single notification",
+                1, notificationCount.get());
+
+        for (int i = 0; i < LOCATION_COUNT; i++) {
+            assertEquals("Every location should have its whole forecast stored",
+                    14, countStoredDays(LOCATION_PREFIX + i));
+        }
+    }
+
+    @Test
+    public void testFailedLocationDoesNotStopTheOthers() {
+        LinkedHashMap<String, URL> locationUrls = buildLocationUrls();
+        locationUrls.put(LOCATION_PREFIX + 0, mServer.getUrl(MISSING_CITY_PATH));
+
+        BatchForecastSync.Result result =
+                BatchForecastSync.syncLocations(mContext, locationUrls, 4, null);
+
+        assertEquals(1, result.getFailedCount());
+        assertTrue("An unknown city won't be found by asking again",
+                result.getRetryableFailedLocations().isEmpty());
+        assertEquals(LOCATION_COUNT - 1, result.getChangedCount());
+        assertEquals("Nothing should be stored for the location that failed",
+                0, countStoredDays(LOCATION_PREFIX + 0));
+        assertEquals(14, countStoredDays(LOCATION_PREFIX + 1));
+
+        /* The work of a batch that fails in part is reported, so it can be counted as wasted */
+        assertTrue(result.getBytesRead() > 0);
+        assertEquals((LOCATION_COUNT - 1) * 14, result.getDaysParsed());
+    }
+
+    private LinkedHashMap<String, URL> buildLocationUrls() {
+        LinkedHashMap<String, URL> locationUrls = new LinkedHashMap<String, URL>();
+        for (int i = 0; i < LOCATION_COUNT; i++) {
+            String locationSetting = LOCATION_PREFIX + i;
+            locationUrls.put(locationSetting, mServer.getUrl("/weather?q=" + locationSetting));
+        }
+        return locationUrls;
+    }
+
+    private int countStoredDays(String locationSetting) {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherUriForLocation(locationSetting),
+                new String[]{WeatherContract.WeatherEntry._ID},
+                null,
+                null,
+                null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
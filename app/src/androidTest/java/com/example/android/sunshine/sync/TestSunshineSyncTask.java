@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.data.SunshinePreferences;
+import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.utilities.NetworkUtils;
+import com.example.android.sunshine.utilities.TestOpenWeatherJsonUtils;
+import com.example.android.sunshine.utils.StubHttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Syncs forecasts from a {@link StubHttpServer} into the real provider, for locations that are
+ * only used by this test.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestSunshineSyncTask {
+
+    private static final String FIRST_LOCATION = "sync-test-first";
+    private static final String SECOND_LOCATION = "sync-test-second";
+
+    /* Long enough for every concurrent caller to arrive while the first sync is running */
+    private static final long RESPONSE_DELAY_MILLIS = 1000;
+
+    private static final int CONCURRENT_REQUESTS = 100;
+
+    /* Requests for this path get the error OpenWeatherMap sends for an unknown city */
+    private static final String MISSING_CITY_PATH = "/weather?q=missing";
+    private static final String MISSING_CITY_JSON =
+            "{\"cod\":\"404\",\"message\":\"city not found\"}";
+
+    private byte[] mForecast;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+    private StubHttpServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        NetworkUtils.clearResponseValidators(mContext);
+
+        mForecast = TestOpenWeatherJsonUtils.createForecastJson(14).getBytes("UTF-8");
+        mServer = new StubHttpServer(new StubHttpServer.Handler() {
+            @Override
+            public StubHttpServer.Response handle(StubHttpServer.Request request)
+                    throws Exception {
+                if (MISSING_CITY_PATH.equals(request.path)) {
+                    return StubHttpServer.Response.ok(MISSING_CITY_JSON.getBytes("UTF-8"));
+                }
+                return StubHttpServer.Response.ok(mForecast).setDelay(RESPONSE_DELAY_MILLIS);
+            }
+        });
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.shutdown();
+        NetworkUtils.clearResponseValidators(mContext);
+
+        /* Parsing stores the coordinates of the forecast's city as the preferred ones */
+        SunshinePreferences.resetLocationCoordinates(mContext);
+
+        mContext.getContentResolver().delete(
+                WeatherContract.WeatherEntry.buildWeatherUriForLocation(FIRST_LOCATION),
+                null, null);
+        mContext.getContentResolver().delete(
+                WeatherContract.WeatherEntry.buildWeatherUriForLocation(SECOND_LOCATION),
+                null, null);
+    }
+
+    @Test
+    public void testConcurrentRequestsForOneLocationShareOneFetch() throws Exception {
+        final URL url = mServer.getUrl("/weather?q=" + FIRST_LOCATION);
+        long coalescedBefore = SunshineSyncTask.getCoalescedSyncCount();
+
+        List<WeatherSyncResult> results = syncConcurrently(CONCURRENT_REQUESTS, new String[]{
+                FIRST_LOCATION
+        }, new URL[]{url});
+
+        assertEquals("Concurrent syncs of one location should download the forecast once",
+                1, mServer.getRequestCount());
+        assertEquals(CONCURRENT_REQUESTS - 1,
+                SunshineSyncTask.getCoalescedSyncCount() - coalescedBefore);
+
+        for (WeatherSyncResult result : results) {
+            assertEquals("Every caller should get the result of the shared sync",
+                    WeatherSyncResult.STATUS_UPDATED, result.getStatus());
+            assertEquals(14, result.getDaysMerged());
+        }
+    }
+
+    @Test
+    public void testDifferentLocationsSyncInParallel() throws Exception {
+        long startMillis = SystemClock.elapsedRealtime();
+
+        List<WeatherSyncResult> results = syncConcurrently(2, new String[]{
+                FIRST_LOCATION, SECOND_LOCATION
+        }, new URL[]{
+                mServer.getUrl("/weather?q=" + FIRST_LOCATION),
+                mServer.getUrl("/weather?q=" + SECOND_LOCATION)
+        });
+
+        long elapsedMillis = SystemClock.elapsedRealtime() - startMillis;
+
+        assertEquals(2, mServer.getRequestCount());
+        assertTrue("Syncs of different locations should not wait for each other, took "
+                        + elapsedMillis + "ms",
+                elapsedMillis < 2 * RESPONSE_DELAY_MILLIS);
+        for (WeatherSyncResult result : results) {
+            assertEquals(WeatherSyncResult.STATUS_UPDATED, result.getStatus());
+        }
+    }
+
+    @Test
+    public void testSyncReportsEveryStage() {
+        WeatherSyncResult result = SunshineSyncTask.syncWeather(mContext, FIRST_LOCATION,
+                new HttpForecastSource(mServer.getUrl("/weather?q=" + FIRST_LOCATION)), null);
+
+        assertEquals(WeatherSyncResult.STATUS_UPDATED, result.getStatus());
+        assertEquals(mForecast.length, result.getBytesRead());
+        assertEquals(14, result.getDaysMerged());
+
+        /* The server holds the response back, which shows up before the body is read */
+        assertTrue(result.getConnectMillis() >= RESPONSE_DELAY_MILLIS);
+
+        /* The stages run one after another, so together they can't take longer than the sync */
+        assertTrue(result.getConnectMillis() + result.getParseMillis()
+                + result.getPersistMillis() <= result.getElapsedMillis());
+    }
+
+    /**
+     * A response with an error code is parsed to the end, but nothing may be committed for it.
+     */
+    @Test
+    public void testErrorResponseStoresNothing() {
+        WeatherSyncResult result = SunshineSyncTask.syncWeather(mContext, FIRST_LOCATION,
+                new HttpForecastSource(mServer.getUrl(MISSING_CITY_PATH)), null);
+
+        assertEquals(WeatherSyncResult.STATUS_FAILED, result.getStatus());
+        assertEquals(0, result.getDaysMerged());
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherUriForLocation(FIRST_LOCATION),
+                null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    /**
+     * Starts the given number of syncs at the same moment, cycling through the locations, and
+     * waits for all of them.
+     */
+    private List<WeatherSyncResult> syncConcurrently(int count, final String[] locations,
+                                                     final URL[] urls) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(count);
+        final CountDownLatch startGate = new CountDownLatch(1);
+
+        List<Future<WeatherSyncResult>> futures = new ArrayList<Future<WeatherSyncResult>>();
+        for (int i = 0; i < count; i++) {
+            final int index = i % locations.length;
+            futures.add(executor.submit(new Callable<WeatherSyncResult>() {
+                @Override
+                public WeatherSyncResult call() throws Exception {
+                    startGate.await();
+                    return SunshineSyncTask.syncWeather(mContext, locations[index],
+                            new HttpForecastSource(urls[index]), null);
+                }
+            }));
+        }
+        startGate.countDown();
+
+        List<WeatherSyncResult> results = new ArrayList<WeatherSyncResult>();
+        try {
+            for (Future<WeatherSyncResult> future : futures) {
+                results.add(future.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        return results;
+    }
+}
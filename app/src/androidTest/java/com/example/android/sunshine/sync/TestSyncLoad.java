@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.data.SunshinePreferences;
+import com.example.android.sunshine.data.WeatherContract;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Puts {@link SunshineSyncTask} under load from several threads with a
+ * {@link StubForecastSource}, so the numbers measure the sync itself rather than the network.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestSyncLoad {
+
+    private static final String LOCATION_PREFIX = "load-test-";
+
+    private static final String[] LOCATIONS = new String[8];
+    static {
+        for (int i = 0; i < LOCATIONS.length; i++) {
+            LOCATIONS[i] = LOCATION_PREFIX + i;
+        }
+    }
+
+    private static final int THREAD_COUNT = 4;
+    private static final int SYNCS_PER_THREAD = 25;
+
+    private static final long LATENCY_MILLIS = 50;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    @After
+    public void tearDown() {
+        /* Parsing a forecast stores its coordinates, even for a location that isn't preferred */
+        SunshinePreferences.resetLocationCoordinates(mContext);
+
+        for (String location : LOCATIONS) {
+            mContext.getContentResolver().delete(
+                    WeatherContract.WeatherEntry.buildWeatherUriForLocation(location),
+                    null, null);
+        }
+    }
+
+    @Test
+    public void testEverySyncCompletesUnderLoad() throws Exception {
+        StubForecastSource source = new StubForecastSource(42)
+                .setPayloadDays(14)
+                .setLatencyMillis(LATENCY_MILLIS);
+
+        SyncLoadHarness.Report report = SyncLoadHarness.run(
+                mContext, source, LOCATIONS, THREAD_COUNT, SYNCS_PER_THREAD);
+
+        assertEquals(THREAD_COUNT * SYNCS_PER_THREAD, report.mSyncCount);
+        assertEquals("No sync should fail without errors from the source: " + report,
+                0, report.mFailedCount);
+
+        /* Syncs that joined a running one don't ask the source, so never more than one each */
+        assertTrue(source.getRequestCount() <= report.mSyncCount);
+        assertEquals(source.getRequestCount(), source.getStoredCount());
+
+        /* Every sync that didn't join another waited out the latency at least once */
+        assertTrue("p50 is below the latency of the source: " + report,
+                report.mP50Millis >= LATENCY_MILLIS);
+        assertTrue(report.mP50Millis <= report.mP90Millis);
+        assertTrue(report.mP90Millis <= report.mP99Millis);
+        assertTrue(report.mP99Millis <= report.mMaxMillis);
+        assertTrue(report.mSyncsPerSecond > 0);
+    }
+
+    @Test
+    public void testServerErrorsAreRetriedUnderLoad() throws Exception {
+        /*
+         * Low enough that the circuit breaker, which is shared by every sync in the process,
+         * doesn't open, since that would make syncs in later tests fail
+         */
+        StubForecastSource source = new StubForecastSource(7)
+                .setPayloadDays(7)
+                .setErrorRate(0.1);
+
+        SyncLoadHarness.Report report = SyncLoadHarness.run(
+                mContext, source, LOCATIONS, THREAD_COUNT, 10);
+
+        assertEquals(THREAD_COUNT * 10, report.mSyncCount);
+        assertEquals(source.getRequestCount(),
+                source.getStoredCount() + source.getErrorCount());
+
+        /* A sync only fails once every one of its attempts got an error */
+        assertTrue("Failed syncs weren't retried: " + report,
+                report.mFailedCount * RetryPolicy.DEFAULT.getMaxAttempts()
+                        <= source.getErrorCount());
+    }
+}
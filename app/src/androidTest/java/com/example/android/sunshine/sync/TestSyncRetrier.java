@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v4.os.CancellationSignal;
+import android.util.MalformedJsonException;
+
+import com.example.android.sunshine.data.SunshinePreferences;
+import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.utilities.NetworkUtils;
+import com.example.android.sunshine.utilities.TestOpenWeatherJsonUtils;
+import com.example.android.sunshine.utils.StubHttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Runs real syncs through a {@link SyncRetrier} against a {@link StubHttpServer} that answers
+ * with a scripted sequence of responses. Time is a fake clock that the backoff advances instead
+ * of sleeping.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestSyncRetrier {
+
+    private static final String LOCATION = "retry-test";
+
+    private static final String MISSING_CITY_JSON =
+            "{\"cod\":\"404\",\"message\":\"city not found\"}";
+
+    private static final long BASE_DELAY_MILLIS = 1000;
+    private static final long MAX_DELAY_MILLIS = 8000;
+
+    private static final long OPEN_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    /* The responses still to be sent, in order; once empty, the last one is repeated */
+    private final LinkedList<StubHttpServer.Response> mScript =
+            new LinkedList<StubHttpServer.Response>();
+
+    private byte[] mForecast;
+    private StubHttpServer mServer;
+    private FakeClock mClock;
+
+    @Before
+    public void setUp() throws Exception {
+        NetworkUtils.clearResponseValidators(mContext);
+        mClock = new FakeClock();
+
+        mForecast = TestOpenWeatherJsonUtils.createForecastJson(14).getBytes("UTF-8");
+        mServer = new StubHttpServer(new StubHttpServer.Handler() {
+            @Override
+            public StubHttpServer.Response handle(StubHttpServer.Request request) {
+                synchronized (mScript) {
+                    return mScript.size() > 1 ? mScript.removeFirst() : mScript.getFirst();
+                }
+            }
+        });
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.shutdown();
+        NetworkUtils.clearResponseValidators(mContext);
+        SunshinePreferences.resetLocationCoordinates(mContext);
+        mContext.getContentResolver().delete(
+                WeatherContract.WeatherEntry.buildWeatherUriForLocation(LOCATION), null, null);
+    }
+
+    @Test
+    public void testServerErrorsAreRetriedWithBackoff() throws Exception {
+        script(serverError(), serverError(), forecast());
+        SyncRetrier retrier = createRetrier(3, 5);
+
+        WeatherSyncResult result = retrier.run(createAttempt(), null);
+
+        assertEquals(WeatherSyncResult.STATUS_UPDATED, result.getStatus());
+        assertEquals(3, result.getAttempts());
+        assertEquals(3, mServer.getRequestCount());
+        assertEquals(2, retrier.getRetryCount());
+
+        /* Each wait is between half and all of a delay that doubles */
+        assertEquals(2, mClock.mSleeps.size());
+        assertBetween(BASE_DELAY_MILLIS / 2, BASE_DELAY_MILLIS, mClock.mSleeps.get(0));
+        assertBetween(BASE_DELAY_MILLIS, 2 * BASE_DELAY_MILLIS, mClock.mSleeps.get(1));
+    }
+
+    @Test
+    public void testUnknownCityIsNotRetried() throws Exception {
+        script(new StubHttpServer.Response(200, MISSING_CITY_JSON.getBytes("UTF-8")));
+        SyncRetrier retrier = createRetrier(3, 5);
+
+        WeatherSyncResult result = retrier.run(createAttempt(), null);
+
+        assertEquals(WeatherSyncResult.STATUS_FAILED, result.getStatus());
+        assertEquals(WeatherSyncResult.FAILURE_PERMANENT, result.getFailure());
+        assertEquals("A city the server doesn't know should only be asked for once",
+                1, mServer.getRequestCount());
+        assertTrue(mClock.mSleeps.isEmpty());
+        assertEquals(CircuitBreaker.STATE_CLOSED, retrier.getCircuitBreaker().getState());
+    }
+
+    @Test
+    public void testGivesUpAfterTheLastAttempt() {
+        script(serverError());
+        SyncRetrier retrier = createRetrier(3, 5);
+
+        WeatherSyncResult result = retrier.run(createAttempt(), null);
+
+        assertEquals(WeatherSyncResult.FAILURE_RETRYABLE, result.getFailure());
+        assertEquals(3, result.getAttempts());
+        assertEquals(3, mServer.getRequestCount());
+    }
+
+    @Test
+    public void testOpenCircuitKeepsSyncsAwayFromTheServer() {
+        script(serverError());
+        SyncRetrier retrier = createRetrier(1, 2);
+        CircuitBreaker circuitBreaker = retrier.getCircuitBreaker();
+
+        retrier.run(createAttempt(), null);
+        retrier.run(createAttempt(), null);
+        assertEquals(CircuitBreaker.STATE_OPEN, circuitBreaker.getState());
+        assertEquals(2, mServer.getRequestCount());
+
+        /* While open, syncs fail right away without a request */
+        for (int i = 0; i < 10; i++) {
+            WeatherSyncResult result = retrier.run(createAttempt(), null);
+            assertEquals(WeatherSyncResult.FAILURE_CIRCUIT_OPEN, result.getFailure());
+            assertEquals(0, result.getAttempts());
+        }
+        assertEquals(2, mServer.getRequestCount());
+        assertEquals(10, circuitBreaker.getRejectedCount());
+
+        /* Once the server is healthy again, the first sync after the open period closes it */
+        script(forecast());
+        mClock.advance(OPEN_MILLIS);
+        WeatherSyncResult result = retrier.run(createAttempt(), null);
+
+        assertEquals(WeatherSyncResult.STATUS_UPDATED, result.getStatus());
+        assertEquals(3, mServer.getRequestCount());
+        assertEquals(CircuitBreaker.STATE_CLOSED, circuitBreaker.getState());
+    }
+
+    @Test
+    public void testFailedProbeReopensTheCircuit() {
+        script(serverError());
+        SyncRetrier retrier = createRetrier(1, 1);
+
+        retrier.run(createAttempt(), null);
+        mClock.advance(OPEN_MILLIS);
+        retrier.run(createAttempt(), null);
+
+        assertEquals("Only the probe should have reached the server", 2,
+                mServer.getRequestCount());
+        assertEquals(CircuitBreaker.STATE_OPEN, retrier.getCircuitBreaker().getState());
+        assertEquals(WeatherSyncResult.FAILURE_CIRCUIT_OPEN,
+                retrier.run(createAttempt(), null).getFailure());
+    }
+
+    @Test
+    public void testCancelDuringBackoffStopsRetrying() {
+        script(serverError());
+        final CancellationSignal cancellationSignal = new CancellationSignal();
+        SyncRetrier retrier = new SyncRetrier(
+                new RetryPolicy(3, BASE_DELAY_MILLIS, MAX_DELAY_MILLIS),
+                new CircuitBreaker(5, OPEN_MILLIS, mClock),
+                new SyncRetrier.Sleeper() {
+                    @Override
+                    public void sleep(long millis, CancellationSignal signal) {
+                        cancellationSignal.cancel();
+                    }
+                },
+                new Random(0));
+
+        WeatherSyncResult result = retrier.run(createAttempt(), cancellationSignal);
+
+        assertTrue(result.isCancelled());
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    @Test
+    public void testBackoffIsJitteredAndCapped() {
+        RetryPolicy policy = new RetryPolicy(10, BASE_DELAY_MILLIS, MAX_DELAY_MILLIS);
+        Random random = new Random(42);
+
+        for (int failedAttempts = 1; failedAttempts <= 10; failedAttempts++) {
+            long delayMillis = Math.min(MAX_DELAY_MILLIS,
+                    BASE_DELAY_MILLIS << (failedAttempts - 1));
+            for (int i = 0; i < 100; i++) {
+                assertBetween(delayMillis / 2, delayMillis,
+                        policy.getBackoffMillis(failedAttempts, random));
+            }
+        }
+    }
+
+    @Test
+    public void testFailuresAreClassified() {
+        assertTrue("Timeouts may go away", RetryPolicy.isRetryable(new SocketTimeoutException()));
+        assertTrue("A dropped connection may go away", RetryPolicy.isRetryable(new IOException()));
+        assertFalse("A broken response won't fix itself",
+                RetryPolicy.isRetryable(new MalformedJsonException("broken")));
+        assertFalse(RetryPolicy.isRetryable(new IllegalStateException()));
+
+        assertTrue(RetryPolicy.isRetryableStatus(500));
+        assertTrue(RetryPolicy.isRetryableStatus(503));
+        assertTrue(RetryPolicy.isRetryableStatus(429));
+        assertFalse("An unknown city stays unknown", RetryPolicy.isRetryableStatus(404));
+        assertFalse("A bad API key stays bad", RetryPolicy.isRetryableStatus(401));
+    }
+
+    private SyncRetrier createRetrier(int maxAttempts, int failureThreshold) {
+        return new SyncRetrier(new RetryPolicy(maxAttempts, BASE_DELAY_MILLIS, MAX_DELAY_MILLIS),
+                new CircuitBreaker(failureThreshold, OPEN_MILLIS, mClock), mClock, new Random(0));
+    }
+
+    private SyncRetrier.Attempt createAttempt() {
+        final ForecastSource source =
+                new HttpForecastSource(mServer.getUrl("/weather?q=" + LOCATION));
+        return new SyncRetrier.Attempt() {
+            @Override
+            public WeatherSyncResult run() {
+                return SunshineSyncTask.fetchAndMerge(mContext, LOCATION, source, null);
+            }
+        };
+    }
+
+    private void script(StubHttpServer.Response... responses) {
+        synchronized (mScript) {
+            mScript.clear();
+            for (StubHttpServer.Response response : responses) {
+                mScript.add(response);
+            }
+        }
+    }
+
+    private StubHttpServer.Response forecast() {
+        return StubHttpServer.Response.ok(mForecast);
+    }
+
+    private static StubHttpServer.Response serverError() {
+        return new StubHttpServer.Response(503, new byte[0]);
+    }
+
+    private static void assertBetween(long min, long max, long actual) {
+        assertTrue("Expected " + actual + " to be between " + min + " and " + max,
+                actual >= min && actual <= max);
+    }
+
+    /**
+     * A clock that only moves when told to, and that backoff moves instead of sleeping.
+     */
+    private static class FakeClock implements AdaptiveSyncScheduler.Clock, SyncRetrier.Sleeper {
+
+        final List<Long> mSleeps = new ArrayList<Long>();
+        private long mNowMillis = 1000000000000L;
+
+        void advance(long millis) {
+            mNowMillis += millis;
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return mNowMillis;
+        }
+
+        @Override
+        public void sleep(long millis, CancellationSignal cancellationSignal) {
+            mSleeps.add(millis);
+            advance(millis);
+        }
+    }
+}
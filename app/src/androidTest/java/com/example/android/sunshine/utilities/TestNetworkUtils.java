@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.os.OperationCanceledException;
+
+import com.example.android.sunshine.data.ForecastBatch;
+import com.example.android.sunshine.utils.StubHttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/**
+ * Tests the revalidating response cache and the decompression of responses in
+ * {@link NetworkUtils} against a {@link StubHttpServer} that serves a forecast with an ETag and
+ * counts the bytes it sends.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestNetworkUtils {
+
+    private static final String FORECAST_ETAG = "\"forecast-v1\"";
+
+    /* Requests for this path are held back far longer than any test waits */
+    private static final String STALLED_PATH = "/stalled";
+    private static final long STALL_MILLIS = 30000;
+
+    /* Requests for these paths are answered compressed, if the client accepts it */
+    private static final String GZIP_PATH = "/gzipweather";
+    private static final String DEFLATE_PATH = "/deflateweather";
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private byte[] mForecast;
+    private byte[] mGzipForecast;
+    private byte[] mDeflateForecast;
+    private volatile String mAcceptEncoding;
+    private String mCacheControl;
+    private StubHttpServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        NetworkUtils.clearResponseValidators(mContext);
+
+        mForecast = TestOpenWeatherJsonUtils.createForecastJson(14).getBytes("UTF-8");
+        mGzipForecast = gzip(mForecast);
+        mDeflateForecast = rawDeflate(mForecast);
+        mServer = new StubHttpServer(new StubHttpServer.Handler() {
+            @Override
+            public StubHttpServer.Response handle(StubHttpServer.Request request) {
+                mAcceptEncoding = request.getHeader("Accept-Encoding");
+                boolean acceptsCompression = mAcceptEncoding != null;
+                if (GZIP_PATH.equals(request.path) && acceptsCompression
+                        && mAcceptEncoding.contains("gzip")) {
+                    return StubHttpServer.Response.ok(mGzipForecast)
+                            .setHeader("Content-Encoding", "gzip");
+                }
+                if (DEFLATE_PATH.equals(request.path) && acceptsCompression
+                        && mAcceptEncoding.contains("deflate")) {
+                    return StubHttpServer.Response.ok(mDeflateForecast)
+                            .setHeader("Content-Encoding", "deflate");
+                }
+
+                if (FORECAST_ETAG.equals(request.getHeader("If-None-Match"))) {
+                    return new StubHttpServer.Response(304, null)
+                            .setHeader("ETag", FORECAST_ETAG);
+                }
+
+                StubHttpServer.Response response = StubHttpServer.Response.ok(mForecast)
+                        .setHeader("ETag", FORECAST_ETAG);
+                if (STALLED_PATH.equals(request.path)) {
+                    response.setDelay(STALL_MILLIS);
+                }
+                if (mCacheControl != null) {
+                    response.setHeader("Cache-Control", mCacheControl);
+                }
+                return response;
+            }
+        });
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.shutdown();
+        NetworkUtils.clearResponseValidators(mContext);
+    }
+
+    @Test
+    public void testUnchangedResponseIsNotDownloadedAgain() throws Exception {
+        URL url = mServer.getUrl("/staticweather");
+        long missCount = NetworkUtils.getCacheMissCount();
+        long revalidatedCount = NetworkUtils.getCacheRevalidatedCount();
+
+        /* Nothing is stored yet, so the whole forecast is downloaded */
+        assertEquals(mForecast.length, readFully(
+                NetworkUtils.getResponseStreamFromHttpUrl(mContext, url)));
+        NetworkUtils.saveResponseValidators(mContext, url);
+
+        assertEquals(mForecast.length, mServer.getBytesServed());
+        assertEquals(missCount + 1, NetworkUtils.getCacheMissCount());
+
+        /* The second request is answered with 304 and no body */
+        assertNull("Unchanged response should not be returned",
+                NetworkUtils.getResponseStreamFromHttpUrl(mContext, url));
+
+        assertEquals(2, mServer.getRequestCount());
+        assertEquals(mForecast.length, mServer.getBytesServed());
+        assertEquals(revalidatedCount + 1, NetworkUtils.getCacheRevalidatedCount());
+    }
+
+    @Test
+    public void testValidatorsAreOnlySentOnceTheResponseIsSaved() throws Exception {
+        URL url = mServer.getUrl("/staticweather");
+
+        readFully(NetworkUtils.getResponseStreamFromHttpUrl(mContext, url));
+
+        /* The first response was never saved, so it has to be downloaded again */
+        InputStream secondResponse = NetworkUtils.getResponseStreamFromHttpUrl(mContext, url);
+        assertNotNull("Response that was never saved should be downloaded again",
+                secondResponse);
+        readFully(secondResponse);
+
+        assertEquals(2L * mForecast.length, mServer.getBytesServed());
+    }
+
+    @Test
+    public void testClearingValidatorsForcesFullDownload() throws Exception {
+        URL url = mServer.getUrl("/staticweather");
+
+        readFully(NetworkUtils.getResponseStreamFromHttpUrl(mContext, url));
+        NetworkUtils.saveResponseValidators(mContext, url);
+
+        NetworkUtils.clearResponseValidators(mContext);
+
+        assertEquals(mForecast.length, readFully(
+                NetworkUtils.getResponseStreamFromHttpUrl(mContext, url)));
+        assertEquals(2L * mForecast.length, mServer.getBytesServed());
+    }
+
+    @Test
+    public void testStoringAnotherUrlKeepsValidators() throws Exception {
+        URL urlA = mServer.getUrl("/staticweather?q=A");
+        URL urlB = mServer.getUrl("/staticweather?q=B");
+
+        readFully(NetworkUtils.getResponseStreamFromHttpUrl(mContext, urlA));
+        NetworkUtils.saveResponseValidators(mContext, urlA);
+        readFully(NetworkUtils.getResponseStreamFromHttpUrl(mContext, urlB));
+        NetworkUtils.saveResponseValidators(mContext, urlB);
+
+        /* A's forecast is still stored under A, so it only has to be revalidated */
+        assertNull("A's validators should be kept when B's forecast is stored",
+                NetworkUtils.getResponseStreamFromHttpUrl(mContext, urlA));
+        assertEquals(2L * mForecast.length, mServer.getBytesServed());
+    }
+
+    @Test
+    public void testUrlsStoredTogetherKeepTheirValidators() throws Exception {
+        URL urlA = mServer.getUrl("/staticweather?q=A");
+        URL urlB = mServer.getUrl("/staticweather?q=B");
+
+        readFully(NetworkUtils.getResponseStreamFromHttpUrl(mContext, urlA));
+        readFully(NetworkUtils.getResponseStreamFromHttpUrl(mContext, urlB));
+        NetworkUtils.saveResponseValidators(mContext, urlA, urlB);
+
+        assertNull(NetworkUtils.getResponseStreamFromHttpUrl(mContext, urlA));
+        assertNull(NetworkUtils.getResponseStreamFromHttpUrl(mContext, urlB));
+        assertEquals(2L * mForecast.length, mServer.getBytesServed());
+    }
+
+    @Test
+    public void testFreshResponseSkipsTheNetwork() throws Exception {
+        mCacheControl = "public, max-age=600";
+        URL url = mServer.getUrl("/staticweather");
+        long hitCount = NetworkUtils.getCacheHitCount();
+
+        readFully(NetworkUtils.getResponseStreamFromHttpUrl(mContext, url));
+        NetworkUtils.saveResponseValidators(mContext, url);
+
+        assertNull("Fresh response should not be returned",
+                NetworkUtils.getResponseStreamFromHttpUrl(mContext, url));
+
+        assertEquals("Fresh response should not reach the server", 1, mServer.getRequestCount());
+        assertEquals(hitCount + 1, NetworkUtils.getCacheHitCount());
+    }
+
+    /**
+     * Cancelling from another thread has to abort a request that is blocked waiting for the
+     * server, rather than leave the syncing thread stuck until the read times out.
+     */
+    @Test
+    public void testCancelAbortsBlockedRequest() throws Exception {
+        final CancellationSignal cancellationSignal = new CancellationSignal();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                SystemClock.sleep(200);
+                cancellationSignal.cancel();
+            }
+        }).start();
+
+        long startMillis = SystemClock.elapsedRealtime();
+        try {
+            NetworkUtils.getResponseStreamFromHttpUrl(mContext, mServer.getUrl(STALLED_PATH),
+                    cancellationSignal);
+            fail("A cancelled request should not return a response");
+        } catch (OperationCanceledException expected) {
+            long elapsedMillis = SystemClock.elapsedRealtime() - startMillis;
+            assertTrue("Request took " + elapsedMillis + "ms to notice it was cancelled",
+                    elapsedMillis < STALL_MILLIS / 2);
+        }
+    }
+
+    @Test(expected = OperationCanceledException.class)
+    public void testCancelledSignalSkipsTheNetwork() throws Exception {
+        CancellationSignal cancellationSignal = new CancellationSignal();
+        cancellationSignal.cancel();
+
+        try {
+            NetworkUtils.getResponseStreamFromHttpUrl(mContext,
+                    mServer.getUrl("/staticweather"), cancellationSignal);
+        } finally {
+            assertEquals(0, mServer.getRequestCount());
+        }
+    }
+
+    /**
+     * A compressed forecast has to be decompressed while it is parsed, and both sizes have to be
+     * counted: the compressed one as read from the network, the other as handed to the parser.
+     */
+    @Test
+    public void testGzipResponseIsDecompressedWhileParsing() throws Exception {
+        long networkBytes = NetworkUtils.getNetworkBytesRead();
+        long decodedBytes = NetworkUtils.getDecodedBytesRead();
+
+        ForecastBatch forecast = new ForecastBatch();
+        boolean parsed = OpenWeatherJsonUtils.parseWeatherFromJson(null,
+                NetworkUtils.getResponseStreamFromHttpUrl(mContext, mServer.getUrl(GZIP_PATH)),
+                forecast);
+
+        assertTrue("The client should offer to take gzip", mAcceptEncoding.contains("gzip"));
+        assertTrue(parsed);
+        assertEquals(14, forecast.size());
+
+        assertEquals("The compressed body should have been sent",
+                mGzipForecast.length, mServer.getBytesServed());
+        assertTrue("The forecast should compress, but went from " + mForecast.length
+                        + " to " + mGzipForecast.length + " bytes",
+                mGzipForecast.length < mForecast.length / 2);
+        assertEquals(mGzipForecast.length, NetworkUtils.getNetworkBytesRead() - networkBytes);
+        assertEquals(mForecast.length, NetworkUtils.getDecodedBytesRead() - decodedBytes);
+    }
+
+    /**
+     * Some servers send "deflate" without the zlib header it is supposed to have.
+     */
+    @Test
+    public void testRawDeflateResponseIsDecompressed() throws Exception {
+        assertEquals(mForecast.length, readFully(
+                NetworkUtils.getResponseStreamFromHttpUrl(mContext, mServer.getUrl(DEFLATE_PATH))));
+        assertEquals(mDeflateForecast.length, mServer.getBytesServed());
+    }
+
+    @Test
+    public void testUncompressedResponseIsCountedOnce() throws Exception {
+        long networkBytes = NetworkUtils.getNetworkBytesRead();
+        long decodedBytes = NetworkUtils.getDecodedBytesRead();
+
+        readFully(NetworkUtils.getResponseStreamFromHttpUrl(mContext,
+                mServer.getUrl("/staticweather")));
+
+        assertEquals(mForecast.length, NetworkUtils.getNetworkBytesRead() - networkBytes);
+        assertEquals(mForecast.length, NetworkUtils.getDecodedBytesRead() - decodedBytes);
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(data);
+        gzip.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] rawDeflate(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        DeflaterOutputStream deflate = new DeflaterOutputStream(out, deflater);
+        deflate.write(data);
+        deflate.close();
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    private static int readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return out.size();
+    }
+}
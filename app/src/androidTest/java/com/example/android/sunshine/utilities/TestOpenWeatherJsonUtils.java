@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Tests the streaming forecast parser in {@link OpenWeatherJsonUtils} and compares it with
+ * parsing the same response as a String and a JSON object tree, which is what Sunshine used to
+ * do on every sync. Parse time and peak heap for each payload size are written to logcat under
+ * the tag of this class.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestOpenWeatherJsonUtils {
+
+    private static final String TAG = TestOpenWeatherJsonUtils.class.getSimpleName();
+
+    private static final int[] BENCHMARK_DAY_COUNTS = {14, 365, 10000};
+
+    /* How often, in rows, the streaming benchmark samples the heap */
+    private static final int HEAP_SAMPLE_INTERVAL = 16;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    @Test
+    public void testStreamingParseMatchesCompatibilityWrapper() throws Exception {
+        String forecastJson = createForecastJson(14);
+
+        ContentValues[] expected = OpenWeatherJsonUtils
+                .getWeatherContentValuesFromJson(mContext, forecastJson);
+
+        final ContentValues[] actual = new ContentValues[expected.length];
+        boolean parsed = OpenWeatherJsonUtils.parseWeatherFromJson(
+                mContext,
+                new ByteArrayInputStream(forecastJson.getBytes("UTF-8")),
+                new OpenWeatherJsonUtils.WeatherRowSink() {
+                    int mRow;
+
+                    @Override
+                    public void onWeatherRow(long date, int weatherId, double minTemp,
+                                             double maxTemp, double humidity, double pressure,
+                                             double windSpeed, double degrees) {
+                        actual[mRow++] = OpenWeatherJsonUtils.createWeatherContentValues(date,
+                                weatherId, minTemp, maxTemp, humidity, pressure, windSpeed,
+                                degrees);
+                    }
+                });
+
+        assertTrue("Streaming parser did not read the forecast", parsed);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("Row " + i + " differs between the streaming parser and the wrapper",
+                    expected[i], actual[i]);
+        }
+    }
+
+    @Test
+    public void testErrorCodeIsReported() throws Exception {
+        String notFoundJson = "{\"cod\":\"404\",\"message\":\"city not found\"}";
+
+        assertNull("Compatibility wrapper should return null for an error code",
+                OpenWeatherJsonUtils.getWeatherContentValuesFromJson(mContext, notFoundJson));
+
+        CountingSink sink = new CountingSink();
+        boolean parsed = OpenWeatherJsonUtils.parseWeatherFromJson(
+                mContext,
+                new ByteArrayInputStream(notFoundJson.getBytes("UTF-8")),
+                sink);
+
+        assertFalse("Streaming parser should report an error code", parsed);
+        assertEquals("No rows should be emitted for an error response", 0, sink.mRowCount);
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedResponseFails() throws Exception {
+        String forecastJson = createForecastJson(14);
+        String truncatedJson = forecastJson.substring(0, forecastJson.length() / 2);
+
+        OpenWeatherJsonUtils.parseWeatherFromJson(
+                mContext,
+                new ByteArrayInputStream(truncatedJson.getBytes("UTF-8")),
+                new CountingSink());
+    }
+
+    /**
+     * Parses payloads of increasing size with the streaming parser and with the old
+     * String/JSONObject/ContentValues[] approach, logging the parse time and the peak heap
+     * growth of each.
+     */
+    @Test
+    public void benchmarkStreamingParse() throws Exception {
+        for (int dayCount : BENCHMARK_DAY_COUNTS) {
+            byte[] payload = createForecastJson(dayCount).getBytes("UTF-8");
+
+            /* Object tree: String, then JSONObject, then one ContentValues per day */
+            long baseline = usedHeapAfterGc();
+            long start = System.nanoTime();
+            ContentValues[] treeValues = parseAsTree(payload);
+            long treeNanos = System.nanoTime() - start;
+            long treePeak = usedHeap() - baseline;
+            assertEquals(dayCount, treeValues.length);
+            treeValues = null;
+
+            /* Streaming: one row at a time */
+            baseline = usedHeapAfterGc();
+            CountingSink sink = new CountingSink();
+            start = System.nanoTime();
+            OpenWeatherJsonUtils.parseWeatherFromJson(
+                    mContext, new ByteArrayInputStream(payload), sink);
+            long streamNanos = System.nanoTime() - start;
+            long streamPeak = Math.max(sink.mPeakUsedHeap, usedHeap()) - baseline;
+            assertEquals(dayCount, sink.mRowCount);
+
+            Log.i(TAG, String.format("%d days (%d bytes): tree %.2f ms, %d KB peak; "
+                            + "streaming %.2f ms, %d KB peak",
+                    dayCount, payload.length,
+                    treeNanos / 1e6, treePeak / 1024,
+                    streamNanos / 1e6, streamPeak / 1024));
+        }
+    }
+
+    private static ContentValues[] parseAsTree(byte[] payload) throws Exception {
+        JSONObject forecastJson = new JSONObject(new String(payload, "UTF-8"));
+        JSONArray days = forecastJson.getJSONArray("list");
+        ContentValues[] values = new ContentValues[days.length()];
+        for (int i = 0; i < days.length(); i++) {
+            JSONObject day = days.getJSONObject(i);
+            JSONObject temperature = day.getJSONObject("temp");
+            values[i] = OpenWeatherJsonUtils.createWeatherContentValues(
+                    SunshineDateUtils.DAY_IN_MILLIS * i,
+                    day.getJSONArray("weather").getJSONObject(0).getInt("id"),
+                    temperature.getDouble("min"),
+                    temperature.getDouble("max"),
+                    day.getInt("humidity"),
+                    day.getDouble("pressure"),
+                    day.getDouble("speed"),
+                    day.getDouble("deg"));
+        }
+        return values;
+    }
+
+    /**
+     * Builds a forecast response in the same shape as the one served by the weather server.
+     */
+    public static String createForecastJson(int dayCount) {
+        StringBuilder json = new StringBuilder(256 + dayCount * 330);
+        json.append("{\"city\":{\"id\":5375480,\"name\":\"Mountain View\",")
+                .append("\"coord\":{\"lon\":-122.0838,\"lat\":37.3861},")
+                .append("\"country\":\"US\",\"population\":0},")
+                .append("\"cod\":\"200\",\"message\":0.0132,\"cnt\":").append(dayCount)
+                .append(",\"list\":[");
+
+        for (int i = 0; i < dayCount; i++) {
+            if (i > 0) json.append(',');
+            json.append("{\"dt\":").append(1474632000L + i * 86400L)
+                    .append(",\"temp\":{\"day\":20.5,\"min\":").append(10 + i % 7)
+                    .append(".25,\"max\":").append(20 + i % 9)
+                    .append(".75,\"night\":12.1,\"eve\":18.3,\"morn\":11.9},")
+                    .append("\"pressure\":").append(1000 + i % 30).append(".5,")
+                    .append("\"humidity\":").append(40 + i % 50).append(',')
+                    .append("\"weather\":[{\"id\":").append(i % 2 == 0 ? 800 : 501)
+                    .append(",\"main\":\"Clear\",\"description\":\"sky is clear\",")
+                    .append("\"icon\":\"01d\"}],")
+                    .append("\"speed\":").append(1 + i % 5).append(".2,")
+                    .append("\"deg\":").append(i % 360).append(",\"clouds\":0}");
+        }
+
+        json.append("]}");
+        return json.toString();
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long usedHeapAfterGc() {
+        Runtime.getRuntime().gc();
+        Runtime.getRuntime().runFinalization();
+        Runtime.getRuntime().gc();
+        return usedHeap();
+    }
+
+    /**
+     * Counts the rows it receives and samples the heap while doing so.
+     */
+    private static class CountingSink implements OpenWeatherJsonUtils.WeatherRowSink {
+        int mRowCount;
+        long mPeakUsedHeap;
+
+        @Override
+        public void onWeatherRow(long date, int weatherId, double minTemp, double maxTemp,
+                                 double humidity, double pressure, double windSpeed,
+                                 double degrees) {
+            if (mRowCount++ % HEAP_SAMPLE_INTERVAL == 0) {
+                mPeakUsedHeap = Math.max(mPeakUsedHeap, usedHeap());
+            }
+        }
+    }
+}
@@ -0,0 +1,414 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.content.Context;
+import android.os.Debug;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.sunshine.R;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Checks that the condition table of {@link SunshineWeatherUtils} gives every weather id the
+ * same String and art as the branch chains it replaced, and measures both. The benchmark logs
+ * lookups per second and bytes allocated per lookup under the tag of this class.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestWeatherConditions {
+
+    private static final String TAG = TestWeatherConditions.class.getSimpleName();
+
+    /* Wider than the table on both sides, so ids outside of it are covered too */
+    private static final int FIRST_ID = 100;
+    private static final int LAST_ID = 1000;
+
+    /* Lookups that aren't counted, so that classes are loaded and the cache is full */
+    private static final int WARM_UP_RUNS = 5;
+    private static final int COUNTED_RUNS = 20;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    @Test
+    public void testTableMatchesBranches() {
+        for (int weatherId = FIRST_ID; weatherId <= LAST_ID; weatherId++) {
+            int stringId = getLegacyStringId(weatherId);
+            String expected = stringId != 0
+                    ? mContext.getString(stringId)
+                    : mContext.getString(R.string.condition_unknown, weatherId);
+            assertEquals("String of weather id " + weatherId, expected,
+                    SunshineWeatherUtils.getStringForWeatherCondition(mContext, weatherId));
+
+            assertEquals("Small art of weather id " + weatherId,
+                    getLegacySmallArtId(weatherId),
+                    SunshineWeatherUtils.getSmallArtResourceIdForWeatherCondition(weatherId));
+            assertEquals("Large art of weather id " + weatherId,
+                    getLegacyLargeArtId(weatherId),
+                    SunshineWeatherUtils.getLargeArtResourceIdForWeatherCondition(weatherId));
+        }
+    }
+
+    @Test
+    public void testSmallAndLargeArtAgree() {
+        /* Dust was listed as both fog and storm, and the fog range always won */
+        assertEquals(R.drawable.ic_fog,
+                SunshineWeatherUtils.getSmallArtResourceIdForWeatherCondition(761));
+        assertEquals(R.drawable.art_fog,
+                SunshineWeatherUtils.getLargeArtResourceIdForWeatherCondition(761));
+
+        assertEquals(R.drawable.ic_storm,
+                SunshineWeatherUtils.getSmallArtResourceIdForWeatherCondition(781));
+        assertEquals(R.drawable.art_storm,
+                SunshineWeatherUtils.getLargeArtResourceIdForWeatherCondition(781));
+    }
+
+    @Test
+    public void testStringsAreCached() {
+        String first = SunshineWeatherUtils.getStringForWeatherCondition(mContext, 800);
+        assertSame(first, SunshineWeatherUtils.getStringForWeatherCondition(mContext, 800));
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void benchmarkLookups() {
+        /*
+         * Only ids with a String of their own are looked up, as both ways format the others
+         * the same, on every call
+         */
+        int knownCount = 0;
+        int[] knownIds = new int[LAST_ID - FIRST_ID + 1];
+        for (int weatherId = FIRST_ID; weatherId <= LAST_ID; weatherId++) {
+            if (getLegacyStringId(weatherId) != 0) {
+                knownIds[knownCount++] = weatherId;
+            }
+        }
+        int[] weatherIds = new int[knownCount];
+        System.arraycopy(knownIds, 0, weatherIds, 0, knownCount);
+
+        for (int i = 0; i < WARM_UP_RUNS; i++) {
+            lookUpWithBranches(weatherIds);
+            lookUpWithTable(weatherIds);
+        }
+
+        long lookups = (long) COUNTED_RUNS * weatherIds.length;
+        Debug.startAllocCounting();
+        try {
+            Debug.resetThreadAllocSize();
+            long start = System.nanoTime();
+            for (int i = 0; i < COUNTED_RUNS; i++) {
+                lookUpWithBranches(weatherIds);
+            }
+            long branchesNanos = Math.max(1, System.nanoTime() - start);
+            int branchesBytes = (int) (Debug.getThreadAllocSize() / lookups);
+
+            Debug.resetThreadAllocSize();
+            start = System.nanoTime();
+            for (int i = 0; i < COUNTED_RUNS; i++) {
+                lookUpWithTable(weatherIds);
+            }
+            long tableNanos = Math.max(1, System.nanoTime() - start);
+            int tableBytes = (int) (Debug.getThreadAllocSize() / lookups);
+
+            Log.i(TAG, String.format("Branches %d ids/s (%d bytes/id), "
+                            + "table %d ids/s (%d bytes/id), each id is a String and both art",
+                    lookups * 1000000000L / branchesNanos, branchesBytes,
+                    lookups * 1000000000L / tableNanos, tableBytes));
+
+            /* Counting may not be supported by the runtime, in which case both are zero */
+            if (branchesBytes > 0) {
+                assertTrue("The table allocated " + tableBytes + " bytes per id, branches "
+                                + branchesBytes,
+                        tableBytes < branchesBytes);
+            }
+        } finally {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    /* Looks each id up the way a bind used to, reading the String from the resources */
+    private void lookUpWithBranches(int[] weatherIds) {
+        for (int weatherId : weatherIds) {
+            mContext.getString(getLegacyStringId(weatherId));
+            getLegacySmallArtId(weatherId);
+            getLegacyLargeArtId(weatherId);
+        }
+    }
+
+    private void lookUpWithTable(int[] weatherIds) {
+        for (int weatherId : weatherIds) {
+            SunshineWeatherUtils.getStringForWeatherCondition(mContext, weatherId);
+            SunshineWeatherUtils.getSmallArtResourceIdForWeatherCondition(weatherId);
+            SunshineWeatherUtils.getLargeArtResourceIdForWeatherCondition(weatherId);
+        }
+    }
+
+    /* The string resource SunshineWeatherUtils picked before the table, or 0 for unknown */
+    private static int getLegacyStringId(int weatherId) {
+        int stringId;
+        if (weatherId >= 200 && weatherId <= 232) {
+            stringId = R.string.condition_2xx;
+        } else if (weatherId >= 300 && weatherId <= 321) {
+            stringId = R.string.condition_3xx;
+        } else switch (weatherId) {
+            case 500:
+                stringId = R.string.condition_500;
+                break;
+            case 501:
+                stringId = R.string.condition_501;
+                break;
+            case 502:
+                stringId = R.string.condition_502;
+                break;
+            case 503:
+                stringId = R.string.condition_503;
+                break;
+            case 504:
+                stringId = R.string.condition_504;
+                break;
+            case 511:
+                stringId = R.string.condition_511;
+                break;
+            case 520:
+                stringId = R.string.condition_520;
+                break;
+            case 531:
+                stringId = R.string.condition_531;
+                break;
+            case 600:
+                stringId = R.string.condition_600;
+                break;
+            case 601:
+                stringId = R.string.condition_601;
+                break;
+            case 602:
+                stringId = R.string.condition_602;
+                break;
+            case 611:
+                stringId = R.string.condition_611;
+                break;
+            case 612:
+                stringId = R.string.condition_612;
+                break;
+            case 615:
+                stringId = R.string.condition_615;
+                break;
+            case 616:
+                stringId = R.string.condition_616;
+                break;
+            case 620:
+                stringId = R.string.condition_620;
+                break;
+            case 621:
+                stringId = R.string.condition_621;
+                break;
+            case 622:
+                stringId = R.string.condition_622;
+                break;
+            case 701:
+                stringId = R.string.condition_701;
+                break;
+            case 711:
+                stringId = R.string.condition_711;
+                break;
+            case 721:
+                stringId = R.string.condition_721;
+                break;
+            case 731:
+                stringId = R.string.condition_731;
+                break;
+            case 741:
+                stringId = R.string.condition_741;
+                break;
+            case 751:
+                stringId = R.string.condition_751;
+                break;
+            case 761:
+                stringId = R.string.condition_761;
+                break;
+            case 762:
+                stringId = R.string.condition_762;
+                break;
+            case 771:
+                stringId = R.string.condition_771;
+                break;
+            case 781:
+                stringId = R.string.condition_781;
+                break;
+            case 800:
+                stringId = R.string.condition_800;
+                break;
+            case 801:
+                stringId = R.string.condition_801;
+                break;
+            case 802:
+                stringId = R.string.condition_802;
+                break;
+            case 803:
+                stringId = R.string.condition_803;
+                break;
+            case 804:
+                stringId = R.string.condition_804;
+                break;
+            case 900:
+                stringId = R.string.condition_900;
+                break;
+            case 901:
+                stringId = R.string.condition_901;
+                break;
+            case 902:
+                stringId = R.string.condition_902;
+                break;
+            case 903:
+                stringId = R.string.condition_903;
+                break;
+            case 904:
+                stringId = R.string.condition_904;
+                break;
+            case 905:
+                stringId = R.string.condition_905;
+                break;
+            case 906:
+                stringId = R.string.condition_906;
+                break;
+            case 951:
+                stringId = R.string.condition_951;
+                break;
+            case 952:
+                stringId = R.string.condition_952;
+                break;
+            case 953:
+                stringId = R.string.condition_953;
+                break;
+            case 954:
+                stringId = R.string.condition_954;
+                break;
+            case 955:
+                stringId = R.string.condition_955;
+                break;
+            case 956:
+                stringId = R.string.condition_956;
+                break;
+            case 957:
+                stringId = R.string.condition_957;
+                break;
+            case 958:
+                stringId = R.string.condition_958;
+                break;
+            case 959:
+                stringId = R.string.condition_959;
+                break;
+            case 960:
+                stringId = R.string.condition_960;
+                break;
+            case 961:
+                stringId = R.string.condition_961;
+                break;
+            case 962:
+                stringId = R.string.condition_962;
+                break;
+            default:
+                return 0;
+        }
+
+        return stringId;
+    }
+
+    /* The small art SunshineWeatherUtils picked before the table */
+    private static int getLegacySmallArtId(int weatherId) {
+
+        /*
+         * Based on weather code data for Open Weather Map.
+         */
+        if (weatherId >= 200 && weatherId <= 232) {
+            return R.drawable.ic_storm;
+        } else if (weatherId >= 300 && weatherId <= 321) {
+            return R.drawable.ic_light_rain;
+        } else if (weatherId >= 500 && weatherId <= 504) {
+            return R.drawable.ic_rain;
+        } else if (weatherId == 511) {
+            return R.drawable.ic_snow;
+        } else if (weatherId >= 520 && weatherId <= 531) {
+            return R.drawable.ic_rain;
+        } else if (weatherId >= 600 && weatherId <= 622) {
+            return R.drawable.ic_snow;
+        } else if (weatherId >= 701 && weatherId <= 761) {
+            return R.drawable.ic_fog;
+        } else if (weatherId == 761 || weatherId == 771 || weatherId == 781) {
+            return R.drawable.ic_storm;
+        } else if (weatherId == 800) {
+            return R.drawable.ic_clear;
+        } else if (weatherId == 801) {
+            return R.drawable.ic_light_clouds;
+        } else if (weatherId >= 802 && weatherId <= 804) {
+            return R.drawable.ic_cloudy;
+        } else if (weatherId >= 900 && weatherId <= 906) {
+            return R.drawable.ic_storm;
+        } else if (weatherId >= 958 && weatherId <= 962) {
+            return R.drawable.ic_storm;
+        } else if (weatherId >= 951 && weatherId <= 957) {
+            return R.drawable.ic_clear;
+        }
+
+        return R.drawable.ic_storm;
+    }
+
+    /* The large art SunshineWeatherUtils picked before the table */
+    private static int getLegacyLargeArtId(int weatherId) {
+
+        /*
+         * Based on weather code data for Open Weather Map.
+         */
+        if (weatherId >= 200 && weatherId <= 232) {
+            return R.drawable.art_storm;
+        } else if (weatherId >= 300 && weatherId <= 321) {
+            return R.drawable.art_light_rain;
+        } else if (weatherId >= 500 && weatherId <= 504) {
+            return R.drawable.art_rain;
+        } else if (weatherId == 511) {
+            return R.drawable.art_snow;
+        } else if (weatherId >= 520 && weatherId <= 531) {
+            return R.drawable.art_rain;
+        } else if (weatherId >= 600 && weatherId <= 622) {
+            return R.drawable.art_snow;
+        } else if (weatherId >= 701 && weatherId <= 761) {
+            return R.drawable.art_fog;
+        } else if (weatherId == 761 || weatherId == 771 || weatherId == 781) {
+            return R.drawable.art_storm;
+        } else if (weatherId == 800) {
+            return R.drawable.art_clear;
+        } else if (weatherId == 801) {
+            return R.drawable.art_light_clouds;
+        } else if (weatherId >= 802 && weatherId <= 804) {
+            return R.drawable.art_clouds;
+        } else if (weatherId >= 900 && weatherId <= 906) {
+            return R.drawable.art_storm;
+        } else if (weatherId >= 958 && weatherId <= 962) {
+            return R.drawable.art_storm;
+        } else if (weatherId >= 951 && weatherId <= 957) {
+            return R.drawable.art_clear;
+        }
+
+        return R.drawable.art_storm;
+    }
+}
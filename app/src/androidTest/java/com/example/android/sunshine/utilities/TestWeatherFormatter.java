@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Debug;
+import android.preference.PreferenceManager;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.sunshine.R;
+import com.example.android.sunshine.data.SunshinePreferences;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Checks that {@link WeatherFormatter} writes exactly what String.format did with the same
+ * format strings, and measures both. The benchmarks log calls per second and bytes allocated
+ * per call under the tag of this class, for the String.format path, for the String returning
+ * methods of {@link SunshineWeatherUtils}, and for appending to a reused StringBuilder.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestWeatherFormatter {
+
+    private static final String TAG = TestWeatherFormatter.class.getSimpleName();
+
+    /* Calls that aren't counted, so that classes are loaded and builders have grown */
+    private static final int WARM_UP_CALLS = 2000;
+    private static final int COUNTED_CALLS = 20000;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private SharedPreferences mPreferences;
+    private String mUnitsKey;
+
+    @Before
+    public void setUp() {
+        mPreferences = PreferenceManager.getDefaultSharedPreferences(mContext);
+        mUnitsKey = mContext.getString(R.string.pref_units_key);
+    }
+
+    @After
+    public void tearDown() {
+        mPreferences.edit().remove(mUnitsKey).commit();
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+    }
+
+    @Test
+    public void testTemperatureMatchesStringFormat() {
+        for (boolean metric : new boolean[]{true, false}) {
+            setMetric(metric);
+            WeatherFormatter formatter = WeatherFormatter.getInstance(mContext);
+            StringBuilder builder = new StringBuilder();
+
+            for (int tenths = -600; tenths <= 600; tenths++) {
+                double temperature = tenths / 10.0;
+                String expected = formatTemperatureWithStringFormat(temperature);
+
+                builder.setLength(0);
+                assertEquals(expected,
+                        formatter.appendTemperature(builder, temperature).toString());
+                assertEquals(expected,
+                        SunshineWeatherUtils.formatTemperature(mContext, temperature));
+            }
+        }
+    }
+
+    @Test
+    public void testWindMatchesStringFormat() {
+        for (boolean metric : new boolean[]{true, false}) {
+            setMetric(metric);
+            WeatherFormatter formatter = WeatherFormatter.getInstance(mContext);
+            StringBuilder builder = new StringBuilder();
+
+            for (int halves = 0; halves <= 400; halves++) {
+                float windSpeed = halves / 2f;
+                /* Every sector boundary, and past both ends of the compass */
+                float degrees = -45f + (halves * 2.5f) % 450f;
+                String expected = formatWindWithStringFormat(windSpeed, degrees);
+
+                builder.setLength(0);
+                assertEquals(expected,
+                        formatter.appendWind(builder, windSpeed, degrees).toString());
+                assertEquals(expected,
+                        SunshineWeatherUtils.getFormattedWind(mContext, windSpeed, degrees));
+            }
+        }
+    }
+
+    @Test
+    public void testCompassDirections() {
+        assertEquals("N", WeatherFormatter.getCompassDirection(0f));
+        assertEquals("N", WeatherFormatter.getCompassDirection(22.4f));
+        assertEquals("NE", WeatherFormatter.getCompassDirection(22.5f));
+        assertEquals("E", WeatherFormatter.getCompassDirection(90f));
+        assertEquals("SE", WeatherFormatter.getCompassDirection(157.4f));
+        assertEquals("S", WeatherFormatter.getCompassDirection(157.5f));
+        assertEquals("SW", WeatherFormatter.getCompassDirection(225f));
+        assertEquals("W", WeatherFormatter.getCompassDirection(270f));
+        assertEquals("NW", WeatherFormatter.getCompassDirection(337.4f));
+        assertEquals("N", WeatherFormatter.getCompassDirection(337.5f));
+        assertEquals("N", WeatherFormatter.getCompassDirection(400f));
+        assertEquals("N", WeatherFormatter.getCompassDirection(-10f));
+        assertEquals("Unknown", WeatherFormatter.getCompassDirection(Float.NaN));
+    }
+
+    @Test
+    public void testFormatterFollowsUnits() {
+        setMetric(true);
+        WeatherFormatter metric = WeatherFormatter.getInstance(mContext);
+        assertTrue(metric == WeatherFormatter.getInstance(mContext));
+        assertEquals("10 km/h N", metric.appendWind(new StringBuilder(), 10f, 0f).toString());
+
+        setMetric(false);
+        WeatherFormatter imperial = WeatherFormatter.getInstance(mContext);
+        assertTrue(metric != imperial);
+        assertEquals("6 mph N", imperial.appendWind(new StringBuilder(), 10f, 0f).toString());
+        assertEquals(formatTemperatureWithStringFormat(20),
+                imperial.appendTemperature(new StringBuilder(), 20).toString());
+    }
+
+    @Test
+    public void benchmarkTemperature() {
+        setMetric(false);
+        final WeatherFormatter formatter = WeatherFormatter.getInstance(mContext);
+        final StringBuilder builder = new StringBuilder(16);
+
+        Result stringFormat = measure(new Call() {
+            @Override
+            public void run(int i) {
+                formatTemperatureWithStringFormat(i % 50);
+            }
+        });
+        Result formatTemperature = measure(new Call() {
+            @Override
+            public void run(int i) {
+                SunshineWeatherUtils.formatTemperature(mContext, i % 50);
+            }
+        });
+        Result append = measure(new Call() {
+            @Override
+            public void run(int i) {
+                builder.setLength(0);
+                formatter.appendTemperature(builder, i % 50);
+            }
+        });
+
+        log("Temperature", stringFormat, formatTemperature, append);
+        assertFewerAllocations(stringFormat, append);
+    }
+
+    @Test
+    public void benchmarkWind() {
+        setMetric(false);
+        final WeatherFormatter formatter = WeatherFormatter.getInstance(mContext);
+        final StringBuilder builder = new StringBuilder(16);
+
+        Result stringFormat = measure(new Call() {
+            @Override
+            public void run(int i) {
+                formatWindWithStringFormat(i % 30, i % 360);
+            }
+        });
+        Result getFormattedWind = measure(new Call() {
+            @Override
+            public void run(int i) {
+                SunshineWeatherUtils.getFormattedWind(mContext, i % 30, i % 360);
+            }
+        });
+        Result append = measure(new Call() {
+            @Override
+            public void run(int i) {
+                builder.setLength(0);
+                formatter.appendWind(builder, i % 30, i % 360);
+            }
+        });
+
+        log("Wind", stringFormat, getFormattedWind, append);
+        assertFewerAllocations(stringFormat, append);
+    }
+
+    private interface Call {
+        void run(int i);
+    }
+
+    private static class Result {
+        long mCallsPerSecond;
+        int mBytesPerCall;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static Result measure(Call call) {
+        for (int i = 0; i < WARM_UP_CALLS; i++) {
+            call.run(i);
+        }
+
+        Result result = new Result();
+        Debug.startAllocCounting();
+        try {
+            Debug.resetThreadAllocSize();
+            long start = System.nanoTime();
+            for (int i = 0; i < COUNTED_CALLS; i++) {
+                call.run(i);
+            }
+            long elapsedNanos = Math.max(1, System.nanoTime() - start);
+            result.mBytesPerCall = Debug.getThreadAllocSize() / COUNTED_CALLS;
+            result.mCallsPerSecond = COUNTED_CALLS * 1000000000L / elapsedNanos;
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        return result;
+    }
+
+    private static void log(String name, Result stringFormat, Result strings, Result append) {
+        Log.i(TAG, String.format("%s: String.format %d calls/s (%d bytes/call), "
+                        + "String %d calls/s (%d bytes/call), "
+                        + "StringBuilder %d calls/s (%d bytes/call)",
+                name, stringFormat.mCallsPerSecond, stringFormat.mBytesPerCall,
+                strings.mCallsPerSecond, strings.mBytesPerCall,
+                append.mCallsPerSecond, append.mBytesPerCall));
+    }
+
+    private static void assertFewerAllocations(Result stringFormat, Result append) {
+        /* Counting may not be supported by the runtime, in which case both are zero */
+        if (stringFormat.mBytesPerCall > 0) {
+            assertTrue("Appending allocated " + append.mBytesPerCall + " bytes per call, "
+                            + "String.format " + stringFormat.mBytesPerCall,
+                    append.mBytesPerCall < stringFormat.mBytesPerCall);
+        }
+    }
+
+    private void setMetric(boolean metric) {
+        mPreferences.edit()
+                .putString(mUnitsKey, mContext.getString(metric
+                        ? R.string.pref_units_metric
+                        : R.string.pref_units_imperial))
+                .commit();
+
+        /* SunshinePreferences hears of the change on the main thread */
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+    }
+
+    /* How SunshineWeatherUtils formatted temperatures before WeatherFormatter */
+    private String formatTemperatureWithStringFormat(double temperature) {
+        if (!SunshinePreferences.isMetric(mContext)) {
+            temperature = (temperature * 1.8) + 32;
+        }
+        return String.format(mContext.getString(R.string.format_temperature), temperature);
+    }
+
+    /* How SunshineWeatherUtils formatted wind before WeatherFormatter */
+    private String formatWindWithStringFormat(float windSpeed, float degrees) {
+        int windFormat = R.string.format_wind_kmh;
+
+        if (!SunshinePreferences.isMetric(mContext)) {
+            windFormat = R.string.format_wind_mph;
+            windSpeed = .621371192237334f * windSpeed;
+        }
+
+        String direction = "Unknown";
+        if (degrees >= 337.5 || degrees < 22.5) {
+            direction = "N";
+        } else if (degrees >= 22.5 && degrees < 67.5) {
+            direction = "NE";
+        } else if (degrees >= 67.5 && degrees < 112.5) {
+            direction = "E";
+        } else if (degrees >= 112.5 && degrees < 157.5) {
+            direction = "SE";
+        } else if (degrees >= 157.5 && degrees < 202.5) {
+            direction = "S";
+        } else if (degrees >= 202.5 && degrees < 247.5) {
+            direction = "SW";
+        } else if (degrees >= 247.5 && degrees < 292.5) {
+            direction = "W";
+        } else if (degrees >= 292.5 && degrees < 337.5) {
+            direction = "NW";
+        }
+
+        return String.format(mContext.getString(windFormat), windSpeed, direction);
+    }
+}
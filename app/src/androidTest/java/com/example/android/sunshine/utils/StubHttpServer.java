@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A very small HTTP/1.1 server that runs inside the test process. Every request is answered by
+ * a {@link Handler} supplied by the test, and the server keeps count of the requests it received
+ * and of the body bytes it served so tests can check how much was actually transferred.
+ * <p>
+ * Each connection is closed after a single response, which keeps the implementation simple and
+ * makes the counters exact.
+ */
+public class StubHttpServer {
+
+    /**
+     * Produces the response for a single request. Called on a server thread, possibly for
+     * several requests at the same time.
+     */
+    public interface Handler {
+        Response handle(Request request) throws Exception;
+    }
+
+    public static final class Request {
+        public final String method;
+        public final String path;
+        private final Map<String, String> mHeaders;
+
+        Request(String method, String path, Map<String, String> headers) {
+            this.method = method;
+            this.path = path;
+            mHeaders = headers;
+        }
+
+        /** Returns the value of the given header, or null. Header names are case insensitive. */
+        public String getHeader(String name) {
+            return mHeaders.get(name.toLowerCase(Locale.US));
+        }
+    }
+
+    public static final class Response {
+        final int mCode;
+        final Map<String, String> mHeaders = new LinkedHashMap<String, String>();
+        final byte[] mBody;
+        long mDelayMillis;
+
+        public Response(int code, byte[] body) {
+            mCode = code;
+            mBody = body == null ? new byte[0] : body;
+        }
+
+        public static Response ok(byte[] body) {
+            return new Response(200, body);
+        }
+
+        public Response setHeader(String name, String value) {
+            mHeaders.put(name, value);
+            return this;
+        }
+
+        /** Holds the response back for the given time before any of it is written. */
+        public Response setDelay(long delayMillis) {
+            mDelayMillis = delayMillis;
+            return this;
+        }
+    }
+
+    private final Handler mHandler;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicLong mBytesServed = new AtomicLong();
+
+    private ServerSocket mServerSocket;
+
+    public StubHttpServer(Handler handler) {
+        mHandler = handler;
+    }
+
+    public void start() throws IOException {
+        mServerSocket = new ServerSocket(0, 128, InetAddress.getByName("127.0.0.1"));
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        });
+    }
+
+    public void shutdown() throws IOException, InterruptedException {
+        mServerSocket.close();
+        mExecutor.shutdownNow();
+        mExecutor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    public URL getUrl(String path) {
+        try {
+            return new URL("http", "127.0.0.1", mServerSocket.getLocalPort(), path);
+        } catch (MalformedURLException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /** Returns the number of response body bytes written so far, not counting headers. */
+    public long getBytesServed() {
+        return mBytesServed.get();
+    }
+
+    private void acceptConnections() {
+        while (!mServerSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            });
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+
+            String requestLine = reader.readLine();
+            if (requestLine == null) {
+                return;
+            }
+            String[] parts = requestLine.split(" ");
+
+            Map<String, String> headers = new HashMap<String, String>();
+            String line;
+            while ((line = reader.readLine()) != null && line.length() > 0) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                            line.substring(colon + 1).trim());
+                }
+            }
+
+            mRequestCount.incrementAndGet();
+            Response response = mHandler.handle(new Request(parts[0], parts[1], headers));
+
+            if (response.mDelayMillis > 0) {
+                Thread.sleep(response.mDelayMillis);
+            }
+
+            boolean hasBody = !"HEAD".equals(parts[0]) && response.mCode != 304;
+
+            StringBuilder head = new StringBuilder();
+            head.append("HTTP/1.1 ").append(response.mCode).append(' ')
+                    .append(reasonPhrase(response.mCode)).append("\r\n");
+            for (Map.Entry<String, String> header : response.mHeaders.entrySet()) {
+                head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            }
+            if (hasBody) {
+                head.append("Content-Length: ").append(response.mBody.length).append("\r\n");
+            }
+            head.append("Connection: close\r\n\r\n");
+
+            OutputStream out = socket.getOutputStream();
+            out.write(head.toString().getBytes("US-ASCII"));
+            if (hasBody) {
+                out.write(response.mBody);
+                mBytesServed.addAndGet(response.mBody.length);
+            }
+            out.flush();
+        } catch (Exception e) {
+            /* The client went away or the handler failed; there is nobody to report it to */
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static String reasonPhrase(int code) {
+        switch (code) {
+            case 200:
+                return "OK";
+            case 304:
+                return "Not Modified";
+            case 404:
+                return "Not Found";
+            case 500:
+                return "Internal Server Error";
+            case 503:
+                return "Service Unavailable";
+            default:
+                return "Status";
+        }
+    }
+}
@@ -17,26 +17,48 @@ package com.example.android.sunshine;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+import android.support.v7.util.DiffUtil;
 import android.support.v7.widget.RecyclerView;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ImageView;
 import android.widget.TextView;
 
-import com.example.android.sunshine.utilities.SunshineDateUtils;
-import com.example.android.sunshine.utilities.SunshineWeatherUtils;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 /**
  * {@link ForecastAdapter} exposes a list of weather forecasts
  * from a {@link android.database.Cursor} to a {@link android.support.v7.widget.RecyclerView}.
+ * <p>
+ * The rows of each Cursor are formatted into {@link ForecastRow}s when it is swapped in, and the
+ * list is bound from those rather than from the Cursor. The first Cursor is formatted right away
+ * so that it can be drawn in the first frame; every later one on a background thread. When a new
+ * Cursor replaces one that is already showing, its rows are also compared with the ones showing
+ * on that thread, and only the days that were added, removed or changed are updated, with their
+ * animations. Days are matched by date, which is also their stable ID.
  */
 class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.ForecastAdapterViewHolder> {
 
+    private static final String TAG = ForecastAdapter.class.getSimpleName();
+
     private static final int VIEW_TYPE_TODAY = 0;
     private static final int VIEW_TYPE_FUTURE_DAY = 1;
 
+    /*
+     * Formats the rows of new Cursors and compares them with the list showing, one swap at a
+     * time
+     */
+    private static final Executor sMappingExecutor = Executors.newSingleThreadExecutor();
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
     /* The context we use to utility methods, app resources and layout inflaters */
     private final Context mContext;
 
@@ -63,7 +85,16 @@ class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.ForecastAdapt
      */
     private boolean mUseTodayLayout;
 
-    private Cursor mCursor;
+    /* The rows being shown, formatted and ready to bind, or null if there are none */
+    private ForecastRow[] mRows;
+
+    /*
+     * Incremented by every swap. A comparison that finishes after a later swap has started is
+     * thrown away, since the later one is what should be showing.
+     */
+    private volatile int mSwapGeneration;
+
+    private boolean mIncrementalUpdatesEnabled = true;
 
     /**
      * Creates a ForecastAdapter.
@@ -76,6 +107,12 @@ class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.ForecastAdapt
         mContext = context;
         mClickHandler = clickHandler;
         mUseTodayLayout = mContext.getResources().getBoolean(R.bool.use_today_layout);
+
+        /*
+         * Every day has a date of its own, so RecyclerView can tell which ViewHolder belongs to
+         * which day across updates and keep the ones that didn't change.
+         */
+        setHasStableIds(true);
     }
 
     /**
@@ -122,6 +159,9 @@ class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.ForecastAdapt
      * position. In this method, we update the contents of the ViewHolder to display the weather
      * details for this particular position, using the "position" argument that is conveniently
      * passed into us.
+     * <p>
+     * Every text of the row was formatted when the forecast was swapped in, off the main thread,
+     * so all that is left to do here is to hand them to the views.
      *
      * @param forecastAdapterViewHolder The ViewHolder which should be updated to represent the
      *                                  contents of the item at the given position in the data set.
@@ -129,90 +169,21 @@ class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.ForecastAdapt
      */
     @Override
     public void onBindViewHolder(ForecastAdapterViewHolder forecastAdapterViewHolder, int position) {
-        mCursor.moveToPosition(position);
-
-        /****************
-         * Weather Icon *
-         ****************/
-        int weatherId = mCursor.getInt(MainActivity.INDEX_WEATHER_CONDITION_ID);
-        int weatherImageId;
-
-        int viewType = getItemViewType(position);
-
-        switch (viewType) {
-
-            case VIEW_TYPE_TODAY:
-                weatherImageId = SunshineWeatherUtils
-                        .getLargeArtResourceIdForWeatherCondition(weatherId);
-                break;
-
-            case VIEW_TYPE_FUTURE_DAY:
-                weatherImageId = SunshineWeatherUtils
-                        .getSmallArtResourceIdForWeatherCondition(weatherId);
-                break;
-
-            default:
-                throw new IllegalArgumentException("Invalid view type, value of " + viewType);
-        }
-
-        forecastAdapterViewHolder.iconView.setImageResource(weatherImageId);
+        ForecastRow row = mRows[position];
 
-        /****************
-         * Weather Date *
-         ****************/
-         /* Read date from the cursor */
-        long dateInMillis = mCursor.getLong(MainActivity.INDEX_WEATHER_DATE);
-         /* Get human readable string using our utility method */
-        String dateString = SunshineDateUtils.getFriendlyDateString(mContext, dateInMillis, false);
+        forecastAdapterViewHolder.iconView.setImageResource(row.iconResourceId);
 
-         /* Display friendly date string */
-        forecastAdapterViewHolder.dateView.setText(dateString);
-
-        /***********************
-         * Weather Description *
-         ***********************/
-        String description = SunshineWeatherUtils.getStringForWeatherCondition(mContext, weatherId);
-         /* Create the accessibility (a11y) String from the weather description */
-        String descriptionA11y = mContext.getString(R.string.a11y_forecast, description);
+        forecastAdapterViewHolder.dateView.setText(row.dateText);
 
          /* Set the text and content description (for accessibility purposes) */
-        forecastAdapterViewHolder.descriptionView.setText(description);
-        forecastAdapterViewHolder.descriptionView.setContentDescription(descriptionA11y);
-
-        /**************************
-         * High (max) temperature *
-         **************************/
-         /* Read high temperature from the cursor (in degrees celsius) */
-        double highInCelsius = mCursor.getDouble(MainActivity.INDEX_WEATHER_MAX_TEMP);
-         /*
-          * If the user's preference for weather is fahrenheit, formatTemperature will convert
-          * the temperature. This method will also append either °C or °F to the temperature
-          * String.
-          */
-        String highString = SunshineWeatherUtils.formatTemperature(mContext, highInCelsius);
-         /* Create the accessibility (a11y) String from the weather description */
-        String highA11y = mContext.getString(R.string.a11y_high_temp, highString);
+        forecastAdapterViewHolder.descriptionView.setText(row.description);
+        forecastAdapterViewHolder.descriptionView.setContentDescription(row.descriptionA11y);
 
-         /* Set the text and content description (for accessibility purposes) */
-        forecastAdapterViewHolder.highTempView.setText(highString);
-        forecastAdapterViewHolder.highTempView.setContentDescription(highA11y);
-
-        /*************************
-         * Low (min) temperature *
-         *************************/
-         /* Read low temperature from the cursor (in degrees celsius) */
-        double lowInCelsius = mCursor.getDouble(MainActivity.INDEX_WEATHER_MIN_TEMP);
-         /*
-          * If the user's preference for weather is fahrenheit, formatTemperature will convert
-          * the temperature. This method will also append either °C or °F to the temperature
-          * String.
-          */
-        String lowString = SunshineWeatherUtils.formatTemperature(mContext, lowInCelsius);
-        String lowA11y = mContext.getString(R.string.a11y_low_temp, lowString);
+        forecastAdapterViewHolder.highTempView.setText(row.highText);
+        forecastAdapterViewHolder.highTempView.setContentDescription(row.highA11y);
 
-         /* Set the text and content description (for accessibility purposes) */
-        forecastAdapterViewHolder.lowTempView.setText(lowString);
-        forecastAdapterViewHolder.lowTempView.setContentDescription(lowA11y);
+        forecastAdapterViewHolder.lowTempView.setText(row.lowText);
+        forecastAdapterViewHolder.lowTempView.setContentDescription(row.lowA11y);
     }
 
     /**
@@ -223,8 +194,19 @@ class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.ForecastAdapt
      */
     @Override
     public int getItemCount() {
-        if (null == mCursor) return 0;
-        return mCursor.getCount();
+        if (null == mRows) return 0;
+        return mRows.length;
+    }
+
+    /**
+     * Returns the date of the day at the given position, which no other day in the list has.
+     *
+     * @param position index within our RecyclerView
+     * @return the normalized UTC date of the day
+     */
+    @Override
+    public long getItemId(int position) {
+        return mRows[position].date;
     }
 
     /**
@@ -249,14 +231,122 @@ class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.ForecastAdapt
     /**
      * Swaps the cursor used by the ForecastAdapter for its weather data. This method is called by
      * MainActivity after a load has finished, as well as when the Loader responsible for loading
-     * the weather data is reset. When this method is called, we assume we have a completely new
-     * set of data, so we call notifyDataSetChanged to tell the RecyclerView to update.
+     * the weather data is reset.
+     * <p>
+     * Every row of the cursor is formatted into a {@link ForecastRow}. The very first cursor,
+     * such as the snapshot MainActivity shows on a cold start, is formatted right here on the
+     * main thread: it only holds a couple of weeks of days, and formatting it on a background
+     * thread and posting it back would miss the first frame. Every later cursor is formatted on
+     * a background thread. If nothing was showing yet, the whole list is then shown with
+     * notifyDataSetChanged, since there is nothing to animate. Otherwise the new rows are compared with the ones showing,
+     * still on the background thread, and only the differences are dispatched as separate
+     * insertions, removals and changes. The rows that are showing stay valid in the meantime,
+     * even if the Loader closes the cursor they came from.
      *
      * @param newCursor the new cursor to use as ForecastAdapter's data source
      */
-    void swapCursor(Cursor newCursor) {
-        mCursor = newCursor;
-        notifyDataSetChanged();
+    void swapCursor(final Cursor newCursor) {
+        final int generation = ++mSwapGeneration;
+
+        if (newCursor == null) {
+            mRows = null;
+            notifyDataSetChanged();
+            return;
+        }
+
+        if (generation == 1) {
+            try {
+                mRows = ForecastRow.map(mContext, newCursor, mUseTodayLayout);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Couldn't read the new forecast", e);
+                return;
+            }
+            notifyDataSetChanged();
+            return;
+        }
+
+        final ForecastRow[] oldRows = mIncrementalUpdatesEnabled ? mRows : null;
+        final boolean useTodayLayout = mUseTodayLayout;
+        sMappingExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final ForecastRow[] newRows;
+                final DiffUtil.DiffResult diff;
+                try {
+                    newRows = ForecastRow.map(mContext, newCursor, useTodayLayout);
+                    diff = oldRows != null
+                            ? DiffUtil.calculateDiff(
+                                    new ForecastDiffCallback(oldRows, newRows), false)
+                            : null;
+                } catch (RuntimeException e) {
+                    /* A later swap may have got the Loader to close this cursor already */
+                    if (generation == mSwapGeneration) {
+                        Log.w(TAG, "Couldn't read the new forecast", e);
+                    }
+                    return;
+                }
+
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mSwapGeneration) {
+                            return;
+                        }
+                        mRows = newRows;
+                        if (diff != null) {
+                            diff.dispatchUpdatesTo(ForecastAdapter.this);
+                        } else {
+                            notifyDataSetChanged();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Turns the incremental updates of {@link #swapCursor(Cursor)} on or off. With them off,
+     * every swap rebinds the whole list with notifyDataSetChanged.
+     */
+    @VisibleForTesting
+    void setIncrementalUpdatesEnabled(boolean incrementalUpdatesEnabled) {
+        mIncrementalUpdatesEnabled = incrementalUpdatesEnabled;
+    }
+
+    /**
+     * Compares two forecasts day by day. A day is the same item in both if it has the same
+     * date, and it needs to be rebound if anything about how it is shown changed.
+     */
+    static final class ForecastDiffCallback extends DiffUtil.Callback {
+
+        private final ForecastRow[] mOldRows;
+        private final ForecastRow[] mNewRows;
+
+        ForecastDiffCallback(ForecastRow[] oldRows, ForecastRow[] newRows) {
+            mOldRows = oldRows;
+            mNewRows = newRows;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return mOldRows.length;
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNewRows.length;
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOldRows[oldItemPosition].date == mNewRows[newItemPosition].date;
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            /* Moving in or out of the first row of the today layout changes the icon too */
+            return mOldRows[oldItemPosition].hasSameContents(mNewRows[newItemPosition]);
+        }
     }
 
     /**
@@ -294,8 +384,10 @@ class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.ForecastAdapt
         @Override
         public void onClick(View v) {
             int adapterPosition = getAdapterPosition();
-            mCursor.moveToPosition(adapterPosition);
-            long dateInMillis = mCursor.getLong(MainActivity.INDEX_WEATHER_DATE);
+            if (adapterPosition == RecyclerView.NO_POSITION) {
+                return;
+            }
+            long dateInMillis = mRows[adapterPosition].date;
             mClickHandler.onClick(dateInMillis);
         }
     }
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+import com.example.android.sunshine.utilities.SunshineWeatherUtils;
+import com.example.android.sunshine.utilities.WeatherFormatter;
+
+/**
+ * One day of the forecast list exactly as it is shown: every text is already formatted and the
+ * icon is already picked, so binding a row only assigns values to views. Rows are made by
+ * {@link #map(Context, Cursor, boolean)} off the main thread and never change afterwards.
+ */
+final class ForecastRow {
+
+    /* The normalized UTC date of the day, which also identifies the row */
+    final long date;
+
+    final int iconResourceId;
+
+    final String dateText;
+    final String description;
+    final String descriptionA11y;
+    final String highText;
+    final String highA11y;
+    final String lowText;
+    final String lowA11y;
+
+    private ForecastRow(long date, int iconResourceId, String dateText, String description,
+                        String descriptionA11y, String highText, String highA11y,
+                        String lowText, String lowA11y) {
+        this.date = date;
+        this.iconResourceId = iconResourceId;
+        this.dateText = dateText;
+        this.description = description;
+        this.descriptionA11y = descriptionA11y;
+        this.highText = highText;
+        this.highA11y = highA11y;
+        this.lowText = lowText;
+        this.lowA11y = lowA11y;
+    }
+
+    /**
+     * Returns whether this row would look exactly the same as the given one. Whatever changes
+     * how a day is shown, such as its values, the units or today's date, shows up in the texts.
+     */
+    boolean hasSameContents(ForecastRow other) {
+        return iconResourceId == other.iconResourceId
+                && dateText.equals(other.dateText)
+                && descriptionA11y.equals(other.descriptionA11y)
+                && highA11y.equals(other.highA11y)
+                && lowA11y.equals(other.lowA11y);
+    }
+
+    /**
+     * Formats every row of a cursor with the columns of
+     * {@link MainActivity#MAIN_FORECAST_PROJECTION}. This does all the work that binding a row
+     * used to do, so it should be called off the main thread.
+     *
+     * @param context        Used to read the units setting and to format the texts
+     * @param cursor         The forecast to format
+     * @param useTodayLayout Whether the first row is shown with the large today layout
+     * @return One row for every row of the cursor
+     */
+    static ForecastRow[] map(Context context, Cursor cursor, boolean useTodayLayout) {
+        ForecastRow[] rows = new ForecastRow[cursor.getCount()];
+
+        /* Units and templates are resolved once for the whole list, and one builder is reused */
+        WeatherFormatter formatter = WeatherFormatter.getInstance(context);
+        StringBuilder builder = new StringBuilder(16);
+
+        for (int i = 0; i < rows.length; i++) {
+            cursor.moveToPosition(i);
+
+            /****************
+             * Weather Icon *
+             ****************/
+            int weatherId = cursor.getInt(MainActivity.INDEX_WEATHER_CONDITION_ID);
+
+            /* The first row of the today layout gets the large art */
+            int iconResourceId = useTodayLayout && i == 0
+                    ? SunshineWeatherUtils.getLargeArtResourceIdForWeatherCondition(weatherId)
+                    : SunshineWeatherUtils.getSmallArtResourceIdForWeatherCondition(weatherId);
+
+            /****************
+             * Weather Date *
+             ****************/
+            long dateInMillis = cursor.getLong(MainActivity.INDEX_WEATHER_DATE);
+            /* Get human readable string using our utility method */
+            String dateText = SunshineDateUtils.getFriendlyDateString(context, dateInMillis, false);
+
+            /***********************
+             * Weather Description *
+             ***********************/
+            String description =
+                    SunshineWeatherUtils.getStringForWeatherCondition(context, weatherId);
+            /* Create the accessibility (a11y) String from the weather description */
+            String descriptionA11y = context.getString(R.string.a11y_forecast, description);
+
+            /*
+             * If the user's preference for weather is fahrenheit, the formatter will convert
+             * the temperatures, which are stored in degrees celsius. It will also append either
+             * °C or °F to the temperature String.
+             */
+
+            /**************************
+             * High (max) temperature *
+             **************************/
+            double highInCelsius = cursor.getDouble(MainActivity.INDEX_WEATHER_MAX_TEMP);
+            builder.setLength(0);
+            String highText = formatter.appendTemperature(builder, highInCelsius).toString();
+            String highA11y = context.getString(R.string.a11y_high_temp, highText);
+
+            /*************************
+             * Low (min) temperature *
+             *************************/
+            double lowInCelsius = cursor.getDouble(MainActivity.INDEX_WEATHER_MIN_TEMP);
+            builder.setLength(0);
+            String lowText = formatter.appendTemperature(builder, lowInCelsius).toString();
+            String lowA11y = context.getString(R.string.a11y_low_temp, lowText);
+
+            rows[i] = new ForecastRow(dateInMillis, iconResourceId, dateText, description,
+                    descriptionA11y, highText, highA11y, lowText, lowA11y);
+        }
+        return rows;
+    }
+}
@@ -19,6 +19,8 @@ import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.annotation.VisibleForTesting;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
@@ -30,8 +32,10 @@ import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewTreeObserver;
 import android.widget.ProgressBar;
 
+import com.example.android.sunshine.data.ForecastSnapshot;
 import com.example.android.sunshine.data.SunshinePreferences;
 import com.example.android.sunshine.data.WeatherContract;
 import com.example.android.sunshine.sync.SunshineSyncUtils;
@@ -56,7 +60,8 @@ public class MainActivity extends AppCompatActivity implements
     /*
      * We store the indices of the values in the array of Strings above to more quickly be able to
      * access the data from our query. If the order of the Strings above changes, these indices
-     * must be adjusted to match the order of the Strings.
+     * must be adjusted to match the order of the Strings, and so must the columns of
+     * ForecastSnapshot, whose Cursor is read with the same indices.
      */
     public static final int INDEX_WEATHER_DATE = 0;
     public static final int INDEX_WEATHER_MAX_TEMP = 1;
@@ -79,9 +84,21 @@ public class MainActivity extends AppCompatActivity implements
 
     private ProgressBar mLoadingIndicator;
 
+    /*
+     * The forecast as it was after the last sync, shown until the CursorLoader has opened the
+     * database and run its query. Null once the real forecast has replaced it.
+     */
+    private Cursor mSnapshotCursor;
+
+    /* When onCreate started, and how long after that the first forecast was drawn */
+    private long mCreateUptimeMillis;
+    private volatile long mFirstForecastFrameMillis = -1;
+    private volatile boolean mFirstForecastFrameFromSnapshot;
+    private boolean mMeasuringFirstForecastFrame;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        mCreateUptimeMillis = SystemClock.uptimeMillis();
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_forecast);
         getSupportActionBar().setElevation(0f);
@@ -142,9 +159,36 @@ public class MainActivity extends AppCompatActivity implements
         /* Setting the adapter attaches it to the RecyclerView in our layout. */
         mRecyclerView.setAdapter(mForecastAdapter);
 
+        /*
+         * The adapter formats the rows of a cursor off the main thread, so there is only weather
+         * to show once it tells us that its rows have arrived.
+         */
+        mForecastAdapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+            @Override
+            public void onChanged() {
+                if (mForecastAdapter.getItemCount() != 0) showWeatherDataView();
+            }
+
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                showWeatherDataView();
+            }
+        });
 
         showLoading();
 
+        /*
+         * Opening the database and running the query takes a while on a cold start, so if the
+         * last sync left a snapshot of the forecast behind, we show that in the meantime. It is
+         * mapped into memory rather than read, which is quick enough to do right here, and as
+         * the adapter's first cursor it is formatted right away, in time for the first frame.
+         */
+        mSnapshotCursor = ForecastSnapshot.open(this,
+                SunshinePreferences.getPreferredWeatherLocation(this));
+        if (mSnapshotCursor != null) {
+            mForecastAdapter.swapCursor(mSnapshotCursor);
+        }
+
         /*
          * Ensures a loader is initialized and active. If the loader doesn't already exist, one is
          * created and (if the activity/fragment is currently started) starts the loader. Otherwise
@@ -208,12 +252,14 @@ public class MainActivity extends AppCompatActivity implements
                  * We created a handy method to do that in our WeatherEntry class.
                  */
                 String selection = WeatherContract.WeatherEntry.getSqlSelectForTodayOnwards();
+                String[] selectionArgs =
+                        WeatherContract.WeatherEntry.getSqlSelectionArgsForTodayOnwards();
 
                 return new CursorLoader(this,
                         forecastQueryUri,
                         MAIN_FORECAST_PROJECTION,
                         selection,
-                        null,
+                        selectionArgs,
                         sortOrder);
 
             default:
@@ -237,9 +283,9 @@ public class MainActivity extends AppCompatActivity implements
 
 
         mForecastAdapter.swapCursor(data);
+        closeSnapshot();
         if (mPosition == RecyclerView.NO_POSITION) mPosition = 0;
         mRecyclerView.smoothScrollToPosition(mPosition);
-        if (data.getCount() != 0) showWeatherDataView();
     }
 
     /**
@@ -255,6 +301,75 @@ public class MainActivity extends AppCompatActivity implements
          * displaying the data.
          */
         mForecastAdapter.swapCursor(null);
+        closeSnapshot();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        closeSnapshot();
+    }
+
+    /**
+     * Closes the snapshot once the real forecast has replaced it. If the adapter was still
+     * formatting the snapshot, it throws that work away since a later cursor has been swapped in.
+     */
+    private void closeSnapshot() {
+        if (mSnapshotCursor != null) {
+            mSnapshotCursor.close();
+            mSnapshotCursor = null;
+        }
+    }
+
+    @VisibleForTesting
+    ForecastAdapter getForecastAdapter() {
+        return mForecastAdapter;
+    }
+
+    /**
+     * Returns how long after the start of onCreate the first frame with a forecast in it was
+     * drawn, or -1 if it hasn't been drawn yet.
+     */
+    @VisibleForTesting
+    long getFirstForecastFrameMillis() {
+        return mFirstForecastFrameMillis;
+    }
+
+    /**
+     * Returns whether the first forecast that was drawn came from the snapshot rather than
+     * from the database.
+     */
+    @VisibleForTesting
+    boolean isFirstForecastFrameFromSnapshot() {
+        return mFirstForecastFrameFromSnapshot;
+    }
+
+    /**
+     * Measures how long it took from the start of onCreate until the frame that first shows
+     * a forecast is about to be drawn, and writes it to logcat.
+     */
+    private void measureFirstForecastFrame() {
+        if (mMeasuringFirstForecastFrame) {
+            return;
+        }
+        mMeasuringFirstForecastFrame = true;
+
+        mRecyclerView.getViewTreeObserver().addOnPreDrawListener(
+                new ViewTreeObserver.OnPreDrawListener() {
+                    @Override
+                    public boolean onPreDraw() {
+                        mRecyclerView.getViewTreeObserver().removeOnPreDrawListener(this);
+                        long frameMillis = SystemClock.uptimeMillis() - mCreateUptimeMillis;
+
+                        /* The database may have beaten the snapshot to the first frame */
+                        mFirstForecastFrameFromSnapshot = mSnapshotCursor != null;
+                        mFirstForecastFrameMillis = frameMillis;
+                        Log.i(TAG, "First forecast drawn " + mFirstForecastFrameMillis
+                                + "ms after onCreate, from the "
+                                + (mFirstForecastFrameFromSnapshot ? "snapshot" : "database"));
+                        return true;
+                    }
+                });
     }
 
     /**
@@ -279,6 +394,7 @@ public class MainActivity extends AppCompatActivity implements
      * each view is currently visible or invisible.
      */
     private void showWeatherDataView() {
+        measureFirstForecastFrame();
         /* First, hide the loading indicator */
         mLoadingIndicator.setVisibility(View.INVISIBLE);
         /* Finally, make sure the weather data is visible */
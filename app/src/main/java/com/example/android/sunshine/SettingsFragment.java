@@ -26,6 +26,7 @@ import android.support.v7.preference.PreferenceScreen;
 
 import com.example.android.sunshine.data.SunshinePreferences;
 import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.sync.AdaptiveSyncScheduler;
 import com.example.android.sunshine.sync.SunshineSyncUtils;
 
 /**
@@ -78,16 +79,15 @@ public class SettingsFragment extends PreferenceFragmentCompat implements
     public void onStop() {
         super.onStop();
         // unregister the preference change listener
-        getPreferenceScreen().getSharedPreferences()
-                .unregisterOnSharedPreferenceChangeListener(this);
+        SunshinePreferences.unregisterOnChangeListener(this);
     }
 
     @Override
     public void onStart() {
         super.onStart();
-        // register the preference change listener
-        getPreferenceScreen().getSharedPreferences()
-                .registerOnSharedPreferenceChangeListener(this);
+        // register the preference change listener. SunshinePreferences only calls it once its
+        // own snapshot of the preferences has the change, so everything it reads is current.
+        SunshinePreferences.registerOnChangeListener(getActivity(), this);
     }
 
     @Override
@@ -98,7 +98,14 @@ public class SettingsFragment extends PreferenceFragmentCompat implements
             // we've changed the location
             // Wipe out any potential PlacePicker latlng values so that we can use this text entry.
             SunshinePreferences.resetLocationCoordinates(activity);
-            SunshineSyncUtils.startImmediateSync(activity);
+            // The weather of a location we've been to recently is still stored, so only go to
+            // the network if there's nothing for the new one or what's there is out of date.
+            // Either way, everything showing weather has to reload it for the new location.
+            SunshineSyncUtils.startImmediateSyncIfNeeded(activity);
+            // The new location is synced at the interval its own history calls for
+            AdaptiveSyncScheduler.getInstance(activity).schedulePeriodicSync(
+                    SunshinePreferences.getPreferredWeatherLocation(activity));
+            activity.getContentResolver().notifyChange(WeatherContract.WeatherEntry.CONTENT_URI, null);
         } else if (key.equals(getString(R.string.pref_units_key))) {
             // units have changed. update lists of weather entries accordingly
             activity.getContentResolver().notifyChange(WeatherContract.WeatherEntry.CONTENT_URI, null);
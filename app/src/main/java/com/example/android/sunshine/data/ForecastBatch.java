@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.os.Bundle;
+
+import com.example.android.sunshine.utilities.OpenWeatherJsonUtils;
+
+import java.util.Arrays;
+
+/**
+ * A batch of days of weather held in one primitive array per column, rather than one
+ * ContentValues (and its boxed values) per day. The parser can fill a batch directly, since
+ * ForecastBatch is a {@link OpenWeatherJsonUtils.WeatherRowSink}, and
+ * {@link WeatherProvider#bulkInsert(android.net.Uri, ForecastBatch)} binds the values straight
+ * into a compiled statement.
+ * <p>
+ * A batch grows as days are added and can be reused after {@link #clear()}.
+ * <p>
+ * A batch can also cross a process boundary through
+ * {@link android.content.ContentResolver#call}: {@link #toBundle()} puts each column in the
+ * Bundle as a single primitive array, which is parceled without boxing a single value.
+ */
+public class ForecastBatch implements OpenWeatherJsonUtils.WeatherRowSink {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    /* The keys of the columns in the Bundle made by toBundle */
+    private static final String KEY_DATES = "dates";
+    private static final String KEY_WEATHER_IDS = "weather_ids";
+    private static final String KEY_MIN_TEMPS = "min_temps";
+    private static final String KEY_MAX_TEMPS = "max_temps";
+    private static final String KEY_HUMIDITY = "humidity";
+    private static final String KEY_PRESSURE = "pressure";
+    private static final String KEY_WIND_SPEEDS = "wind_speeds";
+    private static final String KEY_DEGREES = "degrees";
+
+    private long[] mDates;
+    private int[] mWeatherIds;
+    private double[] mMinTemps;
+    private double[] mMaxTemps;
+    private double[] mHumidity;
+    private double[] mPressure;
+    private double[] mWindSpeeds;
+    private double[] mDegrees;
+
+    private int mSize;
+
+    public ForecastBatch() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ForecastBatch(int capacity) {
+        mDates = new long[capacity];
+        mWeatherIds = new int[capacity];
+        mMinTemps = new double[capacity];
+        mMaxTemps = new double[capacity];
+        mHumidity = new double[capacity];
+        mPressure = new double[capacity];
+        mWindSpeeds = new double[capacity];
+        mDegrees = new double[capacity];
+    }
+
+    @Override
+    public void onWeatherRow(long date, int weatherId, double minTemp, double maxTemp,
+                             double humidity, double pressure, double windSpeed,
+                             double degrees) {
+        add(date, weatherId, minTemp, maxTemp, humidity, pressure, windSpeed, degrees);
+    }
+
+    /**
+     * Appends a day of weather to the end of this batch.
+     */
+    public void add(long date, int weatherId, double minTemp, double maxTemp,
+                    double humidity, double pressure, double windSpeed, double degrees) {
+        if (mSize == mDates.length) {
+            grow();
+        }
+
+        mDates[mSize] = date;
+        mWeatherIds[mSize] = weatherId;
+        mMinTemps[mSize] = minTemp;
+        mMaxTemps[mSize] = maxTemp;
+        mHumidity[mSize] = humidity;
+        mPressure[mSize] = pressure;
+        mWindSpeeds[mSize] = windSpeed;
+        mDegrees[mSize] = degrees;
+        mSize++;
+    }
+
+    /**
+     * Removes every day from this batch, keeping its arrays so they can be filled again.
+     */
+    public void clear() {
+        mSize = 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public long getDate(int index) {
+        return mDates[index];
+    }
+
+    public int getWeatherId(int index) {
+        return mWeatherIds[index];
+    }
+
+    public double getMinTemp(int index) {
+        return mMinTemps[index];
+    }
+
+    public double getMaxTemp(int index) {
+        return mMaxTemps[index];
+    }
+
+    public double getHumidity(int index) {
+        return mHumidity[index];
+    }
+
+    public double getPressure(int index) {
+        return mPressure[index];
+    }
+
+    public double getWindSpeed(int index) {
+        return mWindSpeeds[index];
+    }
+
+    public double getDegrees(int index) {
+        return mDegrees[index];
+    }
+
+    /**
+     * Hands every day of this batch to the given sink, in the order they were added.
+     */
+    public void writeTo(OpenWeatherJsonUtils.WeatherRowSink sink) {
+        for (int i = 0; i < mSize; i++) {
+            sink.onWeatherRow(mDates[i], mWeatherIds[i], mMinTemps[i], mMaxTemps[i],
+                    mHumidity[i], mPressure[i], mWindSpeeds[i], mDegrees[i]);
+        }
+    }
+
+    /**
+     * Returns the days of this batch as a Bundle holding one primitive array per column, to be
+     * passed as {@link WeatherContract#EXTRA_WEATHER_BATCH}.
+     */
+    public Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        bundle.putLongArray(KEY_DATES, Arrays.copyOf(mDates, mSize));
+        bundle.putIntArray(KEY_WEATHER_IDS, Arrays.copyOf(mWeatherIds, mSize));
+        bundle.putDoubleArray(KEY_MIN_TEMPS, Arrays.copyOf(mMinTemps, mSize));
+        bundle.putDoubleArray(KEY_MAX_TEMPS, Arrays.copyOf(mMaxTemps, mSize));
+        bundle.putDoubleArray(KEY_HUMIDITY, Arrays.copyOf(mHumidity, mSize));
+        bundle.putDoubleArray(KEY_PRESSURE, Arrays.copyOf(mPressure, mSize));
+        bundle.putDoubleArray(KEY_WIND_SPEEDS, Arrays.copyOf(mWindSpeeds, mSize));
+        bundle.putDoubleArray(KEY_DEGREES, Arrays.copyOf(mDegrees, mSize));
+        return bundle;
+    }
+
+    /**
+     * Reads a batch back from a Bundle made by {@link #toBundle()}. The arrays of the Bundle
+     * become the columns of the batch, so nothing is copied.
+     *
+     * @throws IllegalArgumentException If a column is missing or the columns differ in length
+     */
+    public static ForecastBatch fromBundle(Bundle bundle) {
+        ForecastBatch batch = new ForecastBatch(0);
+        batch.mDates = bundle.getLongArray(KEY_DATES);
+        batch.mWeatherIds = bundle.getIntArray(KEY_WEATHER_IDS);
+        batch.mMinTemps = bundle.getDoubleArray(KEY_MIN_TEMPS);
+        batch.mMaxTemps = bundle.getDoubleArray(KEY_MAX_TEMPS);
+        batch.mHumidity = bundle.getDoubleArray(KEY_HUMIDITY);
+        batch.mPressure = bundle.getDoubleArray(KEY_PRESSURE);
+        batch.mWindSpeeds = bundle.getDoubleArray(KEY_WIND_SPEEDS);
+        batch.mDegrees = bundle.getDoubleArray(KEY_DEGREES);
+
+        if (batch.mDates == null || batch.mWeatherIds == null || batch.mMinTemps == null
+                || batch.mMaxTemps == null || batch.mHumidity == null || batch.mPressure == null
+                || batch.mWindSpeeds == null || batch.mDegrees == null) {
+            throw new IllegalArgumentException("Bundle is missing a column of the forecast");
+        }
+
+        int size = batch.mDates.length;
+        if (batch.mWeatherIds.length != size || batch.mMinTemps.length != size
+                || batch.mMaxTemps.length != size || batch.mHumidity.length != size
+                || batch.mPressure.length != size || batch.mWindSpeeds.length != size
+                || batch.mDegrees.length != size) {
+            throw new IllegalArgumentException("Columns of the forecast differ in length");
+        }
+        batch.mSize = size;
+        return batch;
+    }
+
+    private void grow() {
+        int capacity = Math.max(DEFAULT_CAPACITY, mDates.length * 2);
+        mDates = Arrays.copyOf(mDates, capacity);
+        mWeatherIds = Arrays.copyOf(mWeatherIds, capacity);
+        mMinTemps = Arrays.copyOf(mMinTemps, capacity);
+        mMaxTemps = Arrays.copyOf(mMaxTemps, capacity);
+        mHumidity = Arrays.copyOf(mHumidity, capacity);
+        mPressure = Arrays.copyOf(mPressure, capacity);
+        mWindSpeeds = Arrays.copyOf(mWindSpeeds, capacity);
+        mDegrees = Arrays.copyOf(mDegrees, capacity);
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.os.Bundle;
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.util.LongSparseArray;
+
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.utilities.OpenWeatherJsonUtils;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+/**
+ * Replaces the stored forecast of a location with a new one by writing only what actually
+ * changed. Each incoming day is compared with the stored row for the same
+ * {@link WeatherEntry#COLUMN_DATE}: new days are inserted, changed days are updated and identical
+ * days are left alone. Once every day has been received, {@link #commit()} deletes the stored days
+ * that weren't part of the new forecast and sends a single change notification, and only if
+ * something changed. The weather of other locations is never touched.
+ * <p>
+ * Stored days before the first day of the new forecast are history rather than forecast. They are
+ * kept for {@link WeatherEntry#RETENTION_DAYS} days and deleted by the first merge after that, so
+ * the table doesn't grow with every day the app is used.
+ * <p>
+ * Days can be added one at a time, so a merge never needs the whole forecast in memory. The merge
+ * runs in a single exclusive transaction that is started when the first day arrives, so it must
+ * be used from one thread and always be closed. Don't add days while they are still arriving
+ * from the network: the transaction would block other writers for as long as the response
+ * takes. Parse the forecast first, such as into a {@link ForecastBatch}, and then merge it.
+ * <p>
+ * A merge that is started while a transaction is already open becomes part of that transaction.
+ * Such merges are created without a URI to notify, and whoever owns the outer transaction
+ * invalidates the cache and notifies observers once it commits. See
+ * {@link WeatherProvider#mergeForecasts(java.util.Map)}.
+ * <p>
+ * A merge can be given a {@link CancellationSignal}. Once it is cancelled, the next day added
+ * and {@link #commit()} throw {@link android.support.v4.os.OperationCanceledException}, and
+ * closing the merge rolls back everything it wrote.
+ */
+public class ForecastMerge implements OpenWeatherJsonUtils.WeatherRowSink {
+
+    /*
+     * The columns compared for each day. The order matters: it is the order of the values in
+     * the arrays kept for the stored rows.
+     */
+    private static final String[] MERGE_PROJECTION = {
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES,
+    };
+
+    private static final String SELECTION_BY_LOCATION = WeatherEntry.COLUMN_LOCATION_ID + " = ?";
+
+    private static final String SELECTION_BY_LOCATION_BEFORE_DATE =
+            WeatherEntry.COLUMN_LOCATION_ID + " = ? AND " + WeatherEntry.COLUMN_DATE + " < ?";
+
+    private static final String SELECTION_BY_LOCATION_AND_DATE =
+            WeatherEntry.COLUMN_LOCATION_ID + " = ? AND " + WeatherEntry.COLUMN_DATE + " = ?";
+
+    private final Context mContext;
+    private final SQLiteDatabase mDatabase;
+    private final Uri mNotifyUri;
+    private final long mLocationId;
+    private final WeatherQueryCache mQueryCache;
+    private final CancellationSignal mCancellationSignal;
+
+    /* Stored rows that haven't been matched by an incoming day yet, keyed by date */
+    private LongSparseArray<double[]> mStoredRows;
+
+    /* The earliest incoming day; unmatched stored days before it are kept for a while */
+    private long mFirstDate = Long.MAX_VALUE;
+
+    private SQLiteStatement mInsertStatement;
+    private SQLiteStatement mUpdateStatement;
+
+    private boolean mInTransaction;
+    private boolean mCommitted;
+
+    private int mInsertedCount;
+    private int mUpdatedCount;
+    private int mUnchangedCount;
+    private int mDeletedCount;
+
+    /* Days that had been merged when the merge was rolled back instead of committed */
+    private int mRolledBackCount;
+
+    ForecastMerge(Context context, SQLiteDatabase database, Uri notifyUri, long locationId,
+                  WeatherQueryCache queryCache, CancellationSignal cancellationSignal) {
+        mContext = context;
+        mDatabase = database;
+        mNotifyUri = notifyUri;
+        mLocationId = locationId;
+        mQueryCache = queryCache;
+        mCancellationSignal = cancellationSignal;
+    }
+
+    @Override
+    public void onWeatherRow(long date, int weatherId, double minTemp, double maxTemp,
+                             double humidity, double pressure, double windSpeed,
+                             double degrees) {
+
+        if (mCommitted) {
+            throw new IllegalStateException("Merge has already been committed");
+        }
+        if (!SunshineDateUtils.isDateNormalized(date)) {
+            throw new IllegalArgumentException("Date must be normalized to insert");
+        }
+        throwIfCanceled();
+
+        if (!mInTransaction) {
+            mDatabase.beginTransaction();
+            mInTransaction = true;
+            mStoredRows = readStoredRows();
+
+            /* Each day is written with one of these, so they are only compiled once per merge */
+            mInsertStatement = mDatabase.compileStatement(WeatherProvider.SQL_INSERT_WEATHER);
+            mUpdateStatement =
+                    mDatabase.compileStatement(WeatherProvider.SQL_UPDATE_WEATHER_FOR_DATE);
+        }
+
+        mFirstDate = Math.min(mFirstDate, date);
+
+        double[] stored = mStoredRows.get(date);
+        if (stored != null) {
+            mStoredRows.remove(date);
+
+            if (stored[1] == weatherId
+                    && stored[2] == minTemp
+                    && stored[3] == maxTemp
+                    && stored[4] == humidity
+                    && stored[5] == pressure
+                    && stored[6] == windSpeed
+                    && stored[7] == degrees) {
+                mUnchangedCount++;
+                return;
+            }
+        }
+
+        SQLiteStatement statement = stored != null ? mUpdateStatement : mInsertStatement;
+        WeatherProvider.bindWeatherRow(statement, mLocationId, date, weatherId, minTemp, maxTemp,
+                humidity, pressure, windSpeed, degrees);
+
+        if (stored != null) {
+            statement.executeUpdateDelete();
+            mUpdatedCount++;
+        } else {
+            statement.executeInsert();
+            mInsertedCount++;
+        }
+    }
+
+    /**
+     * Adds a day of weather from a set of ContentValues, as passed to
+     * {@link WeatherProvider#bulkInsert}.
+     */
+    public void add(ContentValues values) {
+        onWeatherRow(
+                values.getAsLong(WeatherEntry.COLUMN_DATE),
+                values.getAsInteger(WeatherEntry.COLUMN_WEATHER_ID),
+                values.getAsDouble(WeatherEntry.COLUMN_MIN_TEMP),
+                values.getAsDouble(WeatherEntry.COLUMN_MAX_TEMP),
+                values.getAsDouble(WeatherEntry.COLUMN_HUMIDITY),
+                values.getAsDouble(WeatherEntry.COLUMN_PRESSURE),
+                values.getAsDouble(WeatherEntry.COLUMN_WIND_SPEED),
+                values.getAsDouble(WeatherEntry.COLUMN_DEGREES));
+    }
+
+    /**
+     * Deletes the stored days from the first day of the new forecast on that weren't part of it,
+     * as well as the days older than {@link WeatherEntry#RETENTION_DAYS}, commits the transaction
+     * and notifies observers once if anything changed. If no days were added, the stored forecast
+     * is left exactly as it was.
+     */
+    public void commit() {
+        if (mCommitted) {
+            throw new IllegalStateException("Merge has already been committed");
+        }
+        throwIfCanceled();
+        mCommitted = true;
+
+        if (!mInTransaction) {
+            return;
+        }
+
+        try {
+            int storedCount = mStoredRows.size();
+            for (int i = 0; i < storedCount; i++) {
+                /* Keys are sorted, so everything from here on is within the new forecast */
+                if (mStoredRows.keyAt(i) < mFirstDate) {
+                    continue;
+                }
+                mDeletedCount += mDatabase.delete(WeatherEntry.TABLE_NAME,
+                        SELECTION_BY_LOCATION_AND_DATE,
+                        new String[]{
+                                Long.toString(mLocationId),
+                                Long.toString(mStoredRows.keyAt(i))
+                        });
+            }
+
+            /* Days within the new forecast are never old enough to go, whatever the clock says */
+            long retainedFrom = Math.min(mFirstDate,
+                    SunshineDateUtils.getNormalizedUtcDateForToday()
+                            - WeatherEntry.RETENTION_DAYS * SunshineDateUtils.DAY_IN_MILLIS);
+            mDeletedCount += mDatabase.delete(WeatherEntry.TABLE_NAME,
+                    SELECTION_BY_LOCATION_BEFORE_DATE,
+                    new String[]{Long.toString(mLocationId), Long.toString(retainedFrom)});
+
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            endTransaction();
+        }
+
+        /* Without a URI to notify, the merge is part of a larger transaction that does this */
+        if (hasChanges() && mNotifyUri != null) {
+            mQueryCache.invalidate();
+            mContext.getContentResolver().notifyChange(mNotifyUri, null);
+        }
+    }
+
+    /**
+     * Ends the merge. If it hasn't been committed, everything written so far is rolled back.
+     */
+    public void close() {
+        if (mInTransaction) {
+            mRolledBackCount = mInsertedCount + mUpdatedCount + mUnchangedCount;
+            mInsertedCount = 0;
+            mUpdatedCount = 0;
+            mUnchangedCount = 0;
+            mDeletedCount = 0;
+            endTransaction();
+        }
+    }
+
+    private void throwIfCanceled() {
+        if (mCancellationSignal != null) {
+            mCancellationSignal.throwIfCanceled();
+        }
+    }
+
+    public boolean hasChanges() {
+        return mInsertedCount + mUpdatedCount + mDeletedCount > 0;
+    }
+
+    public int getInsertedCount() {
+        return mInsertedCount;
+    }
+
+    public int getUpdatedCount() {
+        return mUpdatedCount;
+    }
+
+    public int getUnchangedCount() {
+        return mUnchangedCount;
+    }
+
+    /**
+     * Returns the number of days that were merged and then thrown away because the merge was
+     * closed without being committed, such as when it was cancelled.
+     */
+    public int getRolledBackCount() {
+        return mRolledBackCount;
+    }
+
+    public int getDeletedCount() {
+        return mDeletedCount;
+    }
+
+    /**
+     * Returns the counts of this merge in the form returned by
+     * {@link WeatherProvider#call(String, String, Bundle)}.
+     */
+    Bundle toBundle() {
+        Bundle result = new Bundle();
+        result.putInt(WeatherContract.EXTRA_ROWS_INSERTED, mInsertedCount);
+        result.putInt(WeatherContract.EXTRA_ROWS_UPDATED, mUpdatedCount);
+        result.putInt(WeatherContract.EXTRA_ROWS_UNCHANGED, mUnchangedCount);
+        result.putInt(WeatherContract.EXTRA_ROWS_DELETED, mDeletedCount);
+        return result;
+    }
+
+    private void endTransaction() {
+        mInTransaction = false;
+        if (mInsertStatement != null) {
+            mInsertStatement.close();
+        }
+        if (mUpdateStatement != null) {
+            mUpdateStatement.close();
+        }
+        mDatabase.endTransaction();
+    }
+
+    private LongSparseArray<double[]> readStoredRows() {
+        Cursor cursor = mDatabase.query(WeatherEntry.TABLE_NAME, MERGE_PROJECTION,
+                SELECTION_BY_LOCATION, new String[]{Long.toString(mLocationId)},
+                null, null, null);
+        try {
+            LongSparseArray<double[]> storedRows =
+                    new LongSparseArray<double[]>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                double[] row = new double[MERGE_PROJECTION.length];
+                for (int column = 1; column < row.length; column++) {
+                    row[column] = cursor.getDouble(column);
+                }
+                storedRows.put(cursor.getLong(0), row);
+            }
+            return storedRows;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.Context;
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.util.Log;
+
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A copy of the forecast shown in the main list, kept in a small binary file next to the
+ * database so that the list can be drawn as soon as the app starts, before SQLite has even been
+ * opened. The snapshot is written after each sync that changed the forecast of the preferred
+ * location and read back with {@link #open(Context, String)}, which maps the file into memory
+ * and returns it as a Cursor. The Cursor has the columns of {@link #COLUMNS} and nothing is
+ * copied out of the file until a row is actually read.
+ * <p>
+ * The file starts with a header holding a magic number, the version of the format, the time
+ * the snapshot was taken and the location it was taken for. The rows follow, sorted by date,
+ * each holding the date, the high and low temperatures and the weather ID.
+ * <p>
+ * A snapshot is only ever a head start. Once the real query has finished, its Cursor replaces
+ * the snapshot, so a snapshot that is out of date is only shown for a moment.
+ */
+public final class ForecastSnapshot {
+
+    private static final String TAG = ForecastSnapshot.class.getSimpleName();
+
+    static final String FILE_NAME = "forecast_snapshot.bin";
+
+    /* "SNSF", followed by the version of the format that follows the header */
+    private static final int MAGIC = 0x534E5346;
+    private static final int VERSION = 1;
+
+    /* date (long), max temperature (double), min temperature (double), weather ID (int) */
+    private static final int ROW_SIZE = 8 + 8 + 8 + 4;
+
+    /**
+     * The columns of the Cursor returned by {@link #open(Context, String)}. They are in the same
+     * order as the projection of the main forecast list, so a snapshot can stand in for its
+     * Cursor.
+     */
+    public static final String[] COLUMNS = {
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+    };
+
+    private static final int COLUMN_DATE = 0;
+    private static final int COLUMN_MAX_TEMP = 1;
+    private static final int COLUMN_MIN_TEMP = 2;
+    private static final int COLUMN_WEATHER_ID = 3;
+
+    private ForecastSnapshot() {
+    }
+
+    /**
+     * Takes a snapshot of the stored forecast of the given location from today onwards and
+     * replaces the previous snapshot with it. The new file is written next to the old one and
+     * then renamed over it, so a reader never sees half a snapshot.
+     *
+     * @param context         Used to query the forecast and to find the app's files
+     * @param locationSetting The location to take the snapshot of, normally the preferred one
+     */
+    public static void write(Context context, String locationSetting) {
+        Cursor cursor = context.getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherUriForLocation(locationSetting),
+                COLUMNS,
+                WeatherContract.WeatherEntry.getSqlSelectForTodayOnwards(),
+                WeatherContract.WeatherEntry.getSqlSelectionArgsForTodayOnwards(),
+                WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+        if (cursor == null) {
+            return;
+        }
+
+        File file = getFile(context);
+        File tempFile = new File(file.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(tempFile));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(System.currentTimeMillis());
+                out.writeUTF(locationSetting);
+                out.writeInt(cursor.getCount());
+                while (cursor.moveToNext()) {
+                    out.writeLong(cursor.getLong(COLUMN_DATE));
+                    out.writeDouble(cursor.getDouble(COLUMN_MAX_TEMP));
+                    out.writeDouble(cursor.getDouble(COLUMN_MIN_TEMP));
+                    out.writeInt(cursor.getInt(COLUMN_WEATHER_ID));
+                }
+            } finally {
+                out.close();
+            }
+
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Couldn't replace " + file);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't write the forecast snapshot", e);
+            tempFile.delete();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Maps the snapshot into memory and returns its rows from today onwards. Nothing is returned
+     * if there is no snapshot, if it can't be read, if it was taken for another location than
+     * the given one, or if every day in it is already in the past.
+     *
+     * @param context         Used to find the app's files
+     * @param locationSetting The location the caller is going to show the forecast of
+     * @return A Cursor over the snapshot with the columns of {@link #COLUMNS}, or null
+     */
+    public static Cursor open(Context context, String locationSetting) {
+        File file = getFile(context);
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            ByteBuffer buffer;
+            RandomAccessFile snapshotFile = new RandomAccessFile(file, "r");
+            try {
+                /* The mapping stays valid after the file is closed */
+                buffer = snapshotFile.getChannel()
+                        .map(FileChannel.MapMode.READ_ONLY, 0, snapshotFile.length());
+            } finally {
+                snapshotFile.close();
+            }
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+            buffer.getLong();
+            if (!locationSetting.equals(readUtf(buffer))) {
+                return null;
+            }
+
+            int rowCount = buffer.getInt();
+            int rowsOffset = buffer.position();
+            if (rowCount < 0 || buffer.remaining() < (long) rowCount * ROW_SIZE) {
+                return null;
+            }
+
+            /* Rows are sorted by date, so the days that have passed are all at the start */
+            long today = SunshineDateUtils.getNormalizedUtcDateForToday();
+            int firstRow = 0;
+            while (firstRow < rowCount
+                    && buffer.getLong(rowsOffset + firstRow * ROW_SIZE) < today) {
+                firstRow++;
+            }
+            if (firstRow == rowCount) {
+                return null;
+            }
+
+            return new SnapshotCursor(buffer, rowsOffset + firstRow * ROW_SIZE,
+                    rowCount - firstRow);
+
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't read the forecast snapshot", e);
+            return null;
+        } catch (BufferUnderflowException e) {
+            Log.w(TAG, "The forecast snapshot is truncated", e);
+            return null;
+        }
+    }
+
+    /**
+     * Deletes the snapshot, so that the next start waits for the database.
+     *
+     * @return true if there was a snapshot to delete
+     */
+    public static boolean delete(Context context) {
+        return getFile(context).delete();
+    }
+
+    private static File getFile(Context context) {
+        return new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    /* Reads a String written by DataOutputStream#writeUTF */
+    private static String readUtf(ByteBuffer buffer) throws IOException {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+
+        /*
+         * Modified UTF-8 only differs from UTF-8 in how it encodes the null character and
+         * characters outside the BMP, neither of which belongs in a location setting
+         */
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Reads the rows of a snapshot straight out of the mapped file.
+     */
+    private static class SnapshotCursor extends AbstractCursor {
+
+        private final ByteBuffer mBuffer;
+        private final int mRowsOffset;
+        private final int mCount;
+
+        SnapshotCursor(ByteBuffer buffer, int rowsOffset, int count) {
+            mBuffer = buffer;
+            mRowsOffset = rowsOffset;
+            mCount = count;
+        }
+
+        @Override
+        public int getCount() {
+            return mCount;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return COLUMNS;
+        }
+
+        @Override
+        public long getLong(int column) {
+            int row = mRowsOffset + getPosition() * ROW_SIZE;
+            switch (column) {
+                case COLUMN_DATE:
+                    return mBuffer.getLong(row);
+                case COLUMN_MAX_TEMP:
+                    return (long) mBuffer.getDouble(row + 8);
+                case COLUMN_MIN_TEMP:
+                    return (long) mBuffer.getDouble(row + 16);
+                case COLUMN_WEATHER_ID:
+                    return mBuffer.getInt(row + 24);
+                default:
+                    throw new IllegalArgumentException("Invalid column " + column);
+            }
+        }
+
+        @Override
+        public double getDouble(int column) {
+            int row = mRowsOffset + getPosition() * ROW_SIZE;
+            switch (column) {
+                case COLUMN_MAX_TEMP:
+                    return mBuffer.getDouble(row + 8);
+                case COLUMN_MIN_TEMP:
+                    return mBuffer.getDouble(row + 16);
+                default:
+                    return getLong(column);
+            }
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return (float) getDouble(column);
+        }
+
+        @Override
+        public String getString(int column) {
+            if (column == COLUMN_MAX_TEMP || column == COLUMN_MIN_TEMP) {
+                return Double.toString(getDouble(column));
+            }
+            return Long.toString(getLong(column));
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return false;
+        }
+    }
+}
@@ -21,6 +21,8 @@ import android.preference.PreferenceManager;
 
 import com.example.android.sunshine.R;
 
+import java.util.concurrent.CopyOnWriteArrayList;
+
 public final class SunshinePreferences {
 
     /*
@@ -31,6 +33,148 @@ public final class SunshinePreferences {
     public static final String PREF_COORD_LAT = "coord_lat";
     public static final String PREF_COORD_LONG = "coord_long";
 
+    /*
+     * The preferences that are read every time weather is formatted, such as the units of every
+     * temperature, are kept in an immutable Snapshot. Reading one is a single volatile read,
+     * rather than a lookup of the SharedPreferences, of the keys and defaults in the resources
+     * and of the value itself. The snapshot is replaced whenever a preference changes.
+     */
+    private static volatile Snapshot sSnapshot;
+
+    /* Makes sure that of two snapshots taken at the same time, the later one is kept */
+    private static final Object sSnapshotLock = new Object();
+
+    /* SharedPreferences only keeps a weak reference to its listeners, so we keep this one */
+    private static SharedPreferences.OnSharedPreferenceChangeListener sSnapshotUpdater;
+
+    /*
+     * Listeners registered with registerOnChangeListener. SharedPreferences calls its own
+     * listeners in no particular order, so one of them could run before sSnapshotUpdater and
+     * read the old snapshot. These are only called once the snapshot has the change.
+     */
+    private static final CopyOnWriteArrayList<SharedPreferences.OnSharedPreferenceChangeListener>
+            sChangeListeners =
+            new CopyOnWriteArrayList<SharedPreferences.OnSharedPreferenceChangeListener>();
+
+    /**
+     * The values of the preferences at one point in time.
+     */
+    private static final class Snapshot {
+
+        final String preferredLocation;
+        final boolean isMetric;
+        final boolean isLocationLatLonAvailable;
+        final double latitude;
+        final double longitude;
+        final boolean areNotificationsEnabled;
+
+        Snapshot(Context context, SharedPreferences sp) {
+            preferredLocation = sp.getString(context.getString(R.string.pref_location_key),
+                    context.getString(R.string.pref_location_default));
+
+            String metric = context.getString(R.string.pref_units_metric);
+            isMetric = metric.equals(
+                    sp.getString(context.getString(R.string.pref_units_key), metric));
+
+            isLocationLatLonAvailable =
+                    sp.contains(PREF_COORD_LAT) && sp.contains(PREF_COORD_LONG);
+
+            /*
+             * This is a hack we have to resort to since you can't store doubles in
+             * SharedPreferences.
+             *
+             * Double.doubleToLongBits returns an integer corresponding to the bits of the given
+             * IEEE 754 double precision value.
+             *
+             * Double.longBitsToDouble does the opposite, converting a long (that represents a
+             * double) into the double itself.
+             */
+            latitude = Double.longBitsToDouble(
+                    sp.getLong(PREF_COORD_LAT, Double.doubleToRawLongBits(0.0)));
+            longitude = Double.longBitsToDouble(
+                    sp.getLong(PREF_COORD_LONG, Double.doubleToRawLongBits(0.0)));
+
+            /*
+             * In Sunshine, the user has the ability to say whether she would like notifications
+             * enabled or not. If no preference has been chosen, we use the default stored in
+             * bools.xml.
+             */
+            areNotificationsEnabled = sp.getBoolean(
+                    context.getString(R.string.pref_enable_notifications_key),
+                    context.getResources().getBoolean(R.bool.show_notifications_by_default));
+        }
+    }
+
+    private static Snapshot getSnapshot(Context context) {
+        Snapshot snapshot = sSnapshot;
+        if (snapshot == null) {
+            snapshot = takeSnapshot(context);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Registers a listener to be called when a preference changes, after the snapshot has been
+     * replaced, so that everything the listener reads from SunshinePreferences is already the
+     * new value. Use this rather than registering with the SharedPreferences directly whenever
+     * the listener reads preferences through this class.
+     *
+     * @param context  Used to get the SharedPreferences
+     * @param listener Called on the main thread for every changed preference
+     */
+    public static void registerOnChangeListener(
+            Context context, SharedPreferences.OnSharedPreferenceChangeListener listener) {
+        /* Makes sure the snapshot, and so the listener that keeps it current, exists */
+        getSnapshot(context);
+        sChangeListeners.addIfAbsent(listener);
+    }
+
+    /**
+     * Unregisters a listener that was registered with
+     * {@link #registerOnChangeListener(Context, SharedPreferences.OnSharedPreferenceChangeListener)}.
+     *
+     * @param listener The listener to stop calling
+     */
+    public static void unregisterOnChangeListener(
+            SharedPreferences.OnSharedPreferenceChangeListener listener) {
+        sChangeListeners.remove(listener);
+    }
+
+    private static Snapshot takeSnapshot(Context context) {
+        final Context appContext = context.getApplicationContext();
+        synchronized (sSnapshotLock) {
+            SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(appContext);
+            if (sSnapshotUpdater == null) {
+                sSnapshotUpdater = new SharedPreferences.OnSharedPreferenceChangeListener() {
+                    @Override
+                    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences,
+                                                          String key) {
+                        takeSnapshot(appContext);
+                        for (SharedPreferences.OnSharedPreferenceChangeListener listener
+                                : sChangeListeners) {
+                            listener.onSharedPreferenceChanged(sharedPreferences, key);
+                        }
+                    }
+                };
+                sp.registerOnSharedPreferenceChangeListener(sSnapshotUpdater);
+            }
+
+            Snapshot snapshot = new Snapshot(appContext, sp);
+            sSnapshot = snapshot;
+            return snapshot;
+        }
+    }
+
+    /*
+     * Our own changes are in the SharedPreferences as soon as apply returns, but the listener
+     * only hears of them later on the main thread, so we take a new snapshot right away.
+     */
+    private static void onChanged(Context context) {
+        if (sSnapshot != null) {
+            takeSnapshot(context);
+        }
+    }
+
     /**
      * Helper method to handle setting location details in Preferences (city name, latitude,
      * longitude)
@@ -48,6 +192,7 @@ public final class SunshinePreferences {
         editor.putLong(PREF_COORD_LAT, Double.doubleToRawLongBits(lat));
         editor.putLong(PREF_COORD_LONG, Double.doubleToRawLongBits(lon));
         editor.apply();
+        onChanged(context);
     }
 
     /**
@@ -62,6 +207,7 @@ public final class SunshinePreferences {
         editor.remove(PREF_COORD_LAT);
         editor.remove(PREF_COORD_LONG);
         editor.apply();
+        onChanged(context);
     }
 
     /**
@@ -74,12 +220,7 @@ public final class SunshinePreferences {
      * "94043,USA" if SharedPreferences have not been implemented yet.
      */
     public static String getPreferredWeatherLocation(Context context) {
-        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
-
-        String keyForLocation = context.getString(R.string.pref_location_key);
-        String defaultLocation = context.getString(R.string.pref_location_default);
-
-        return sp.getString(keyForLocation, defaultLocation);
+        return getSnapshot(context).preferredLocation;
     }
 
     /**
@@ -89,19 +230,7 @@ public final class SunshinePreferences {
      * @return true if metric display should be used, false if imperial display should be used
      */
     public static boolean isMetric(Context context) {
-        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
-
-        String keyForUnits = context.getString(R.string.pref_units_key);
-        String defaultUnits = context.getString(R.string.pref_units_metric);
-        String preferredUnits = sp.getString(keyForUnits, defaultUnits);
-        String metric = context.getString(R.string.pref_units_metric);
-
-        boolean userPrefersMetric = false;
-        if (metric.equals(preferredUnits)) {
-            userPrefersMetric = true;
-        }
-
-        return userPrefersMetric;
+        return getSnapshot(context).isMetric;
     }
 
     /**
@@ -113,25 +242,10 @@ public final class SunshinePreferences {
      * @return an array containing the two coordinate values for the user's preferred location
      */
     public static double[] getLocationCoordinates(Context context) {
-        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
-
-        double[] preferredCoordinates = new double[2];
-
-        /*
-         * This is a hack we have to resort to since you can't store doubles in SharedPreferences.
-         *
-         * Double.doubleToLongBits returns an integer corresponding to the bits of the given
-         * IEEE 754 double precision value.
-         *
-         * Double.longBitsToDouble does the opposite, converting a long (that represents a double)
-         * into the double itself.
-         */
-        preferredCoordinates[0] = Double
-                 .longBitsToDouble(sp.getLong(PREF_COORD_LAT, Double.doubleToRawLongBits(0.0)));
-        preferredCoordinates[1] = Double
-                .longBitsToDouble(sp.getLong(PREF_COORD_LONG, Double.doubleToRawLongBits(0.0)));
+        Snapshot snapshot = getSnapshot(context);
 
-        return preferredCoordinates;
+        /* A new array every time, since callers are free to change it */
+        return new double[]{snapshot.latitude, snapshot.longitude};
     }
 
     /**
@@ -142,17 +256,7 @@ public final class SunshinePreferences {
      * @return true if lat/long are saved in SharedPreferences
      */
     public static boolean isLocationLatLonAvailable(Context context) {
-        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
-
-        boolean spContainLatitude = sp.contains(PREF_COORD_LAT);
-        boolean spContainLongitude = sp.contains(PREF_COORD_LONG);
-
-        boolean spContainBothLatitudeAndLongitude = false;
-        if (spContainLatitude && spContainLongitude) {
-            spContainBothLatitudeAndLongitude = true;
-        }
-
-        return spContainBothLatitudeAndLongitude;
+        return getSnapshot(context).isLocationLatLonAvailable;
     }
 
     /**
@@ -163,26 +267,7 @@ public final class SunshinePreferences {
      * @return true if the user prefers to see notifications, false otherwise
      */
     public static boolean areNotificationsEnabled(Context context) {
-        /* Key for accessing the preference for showing notifications */
-        String displayNotificationsKey = context.getString(R.string.pref_enable_notifications_key);
-
-        /*
-         * In Sunshine, the user has the ability to say whether she would like notifications
-         * enabled or not. If no preference has been chosen, we want to be able to determine
-         * whether or not to show them. To do this, we reference a bool stored in bools.xml.
-         */
-        boolean shouldDisplayNotificationsByDefault = context
-                .getResources()
-                .getBoolean(R.bool.show_notifications_by_default);
-
-        /* As usual, we use the default SharedPreferences to access the user's preferences */
-        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
-
-        /* If a value is stored with the key, we extract it here. If not, use a default. */
-        boolean shouldDisplayNotifications = sp
-                .getBoolean(displayNotificationsKey, shouldDisplayNotificationsByDefault);
-
-        return shouldDisplayNotifications;
+        return getSnapshot(context).areNotificationsEnabled;
     }
 
     /**
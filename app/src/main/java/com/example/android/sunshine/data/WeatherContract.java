@@ -56,6 +56,85 @@ public class WeatherContract {
      */
     public static final String PATH_WEATHER = "weather";
 
+    /*
+     * Paths appended to PATH_WEATHER to ask for a window of days rather than a single day or
+     * the whole table:
+     *
+     *     content://com.example.android.sunshine/weather/range/{start}/{end}
+     *     content://com.example.android.sunshine/weather/page/{offset}/{limit}
+     *
+     * See WeatherEntry#buildWeatherUriForRange and WeatherEntry#buildWeatherUriForPage.
+     */
+    public static final String PATH_RANGE = "range";
+    public static final String PATH_PAGE = "page";
+
+    /*
+     * Sunshine keeps the weather of every location the user has looked at. Plain weather URIs
+     * always mean the preferred location from the settings; weather for any other location is
+     * found under
+     *
+     *     content://com.example.android.sunshine/weather/location/{location setting}
+     *
+     * while the locations themselves are listed at content://com.example.android.sunshine/location/
+     */
+    public static final String PATH_LOCATION = "location";
+
+    /*
+     * Methods that can be invoked on Sunshine's ContentProvider with ContentResolver#call, along
+     * with the keys of their arguments and results.
+     *
+     * METHOD_MERGE_WEATHER replaces the stored forecast with the one passed in the extras,
+     * writing only the days that changed. The forecast is either a Bundle made by
+     * ForecastBatch#toBundle in EXTRA_WEATHER_BATCH, which carries one primitive array per
+     * column, or a ContentValues[] in EXTRA_WEATHER_VALUES. The returned Bundle holds the
+     * number of rows that were inserted, updated, left unchanged and deleted. The forecast is
+     * stored for the location setting passed as the arg of the call, or for the preferred
+     * location if arg is null.
+     */
+    public static final String METHOD_MERGE_WEATHER = "merge_weather";
+
+    public static final String EXTRA_WEATHER_BATCH = "weather_batch";
+    public static final String EXTRA_WEATHER_VALUES = "weather_values";
+
+    public static final String EXTRA_ROWS_INSERTED = "rows_inserted";
+    public static final String EXTRA_ROWS_UPDATED = "rows_updated";
+    public static final String EXTRA_ROWS_UNCHANGED = "rows_unchanged";
+    public static final String EXTRA_ROWS_DELETED = "rows_deleted";
+
+    /*
+     * METHOD_USE_LOCATION records that the location setting passed as the arg of the call, or the
+     * preferred location if arg is null, is the one the user is looking at. Locations nobody has
+     * used for WeatherEntry.RETENTION_DAYS days are deleted along with their weather, as nothing
+     * refers to them any more. The returned Bundle holds the number of weather rows deleted in
+     * EXTRA_ROWS_DELETED.
+     */
+    public static final String METHOD_USE_LOCATION = "use_location";
+
+    /* Inner class that defines the table contents of the location table */
+    public static final class LocationEntry implements BaseColumns {
+
+        /* The base CONTENT_URI used to query the location table from the content provider */
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_LOCATION)
+                .build();
+
+        /* Used internally as the name of our location table. */
+        public static final String TABLE_NAME = "location";
+
+        /*
+         * The location setting is what the user typed into the settings, such as "94043,USA". It
+         * is the key by which a location is looked up, so each one is only stored once.
+         */
+        public static final String COLUMN_LOCATION_SETTING = "location_setting";
+
+        /*
+         * When the location was last the one the user looked at or had weather written for it,
+         * in milliseconds since the epoch. Locations that go unused for too long are deleted.
+         */
+        public static final String COLUMN_LAST_USED = "last_used";
+
+    }
+
     /* Inner class that defines the table contents of the weather table */
     public static final class WeatherEntry implements BaseColumns {
 
@@ -67,6 +146,13 @@ public class WeatherContract {
         /* Used internally as the name of our weather table. */
         public static final String TABLE_NAME = "weather";
 
+        /*
+         * Number of whole days of weather kept before today. Every forecast merge deletes the
+         * older days of its location, so the table never holds more than RETENTION_DAYS plus the
+         * length of a forecast in rows per location.
+         */
+        public static final int RETENTION_DAYS = 7;
+
         /*
          * The date column will store the UTC date that correlates to the local date for which
          * each particular weather row represents. For example, if you live in the Eastern
@@ -109,6 +195,12 @@ public class WeatherContract {
          */
         public static final String COLUMN_DEGREES = "degrees";
 
+        /*
+         * The _ID of the row in the location table this weather belongs to. Each location holds
+         * at most one row per date, and weather is always looked up by location and then date.
+         */
+        public static final String COLUMN_LOCATION_ID = "location_id";
+
         /**
          * Builds a URI that adds the weather date to the end of the forecast content URI path.
          * This is used to query details about a single weather entry by date. This is what we
@@ -124,15 +216,125 @@ public class WeatherContract {
         }
 
         /**
-         * Returns just the selection part of the weather query from a normalized today value.
-         * This is used to get a weather forecast from today's date. To make this easy to use
-         * in compound selection, we embed today's date as an argument in the query.
+         * Builds a URI for the weather stored for a location other than the preferred one. The
+         * weather of a location stays stored after the user switches away from it, so switching
+         * back only needs to query this URI.
+         *
+         * @param locationSetting The location setting, as entered in the settings
+         * @return Uri to query the weather of that location
+         */
+        public static Uri buildWeatherUriForLocation(String locationSetting) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(PATH_LOCATION)
+                    .appendPath(locationSetting)
+                    .build();
+        }
+
+        /**
+         * Builds a URI for the weather of a single day at a given location.
+         *
+         * @param locationSetting The location setting, as entered in the settings
+         * @param date            Normalized date in milliseconds
+         * @return Uri to query details about a single weather entry of that location
+         */
+        public static Uri buildWeatherUriForLocationWithDate(String locationSetting, long date) {
+            return buildWeatherUriForLocation(locationSetting).buildUpon()
+                    .appendPath(Long.toString(date))
+                    .build();
+        }
+
+        /* The path segments of a location URI are: weather, location, setting[, date] */
+
+        public static String getLocationSettingFromUri(Uri locationUri) {
+            return locationUri.getPathSegments().get(2);
+        }
+
+        public static long getDateFromLocationUri(Uri locationUri) {
+            return Long.parseLong(locationUri.getPathSegments().get(3));
+        }
+
+        /**
+         * Builds a URI for the weather of every day from startDate up to, but not including,
+         * endDate. The rows are read with bound parameters using the index on the date column.
+         *
+         * @param startDate Normalized date of the first day, in milliseconds
+         * @param endDate   Normalized date of the day after the last one, in milliseconds
+         * @return Uri to query the weather of a range of days
+         */
+        public static Uri buildWeatherUriForRange(long startDate, long endDate) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(PATH_RANGE)
+                    .appendPath(Long.toString(startDate))
+                    .appendPath(Long.toString(endDate))
+                    .build();
+        }
+
+        /**
+         * Builds a URI for one page of weather, ordered by date. Long histories can be read page
+         * by page rather than in one cursor: start at offset 0 and move on with
+         * {@link #buildWeatherUriForNextPage(Uri)} until a page has fewer than limit rows.
+         *
+         * @param offset Number of days to skip, counted from the earliest stored day
+         * @param limit  Maximum number of days in the page
+         * @return Uri to query a page of weather
+         */
+        public static Uri buildWeatherUriForPage(int offset, int limit) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(PATH_PAGE)
+                    .appendPath(Integer.toString(offset))
+                    .appendPath(Integer.toString(limit))
+                    .build();
+        }
+
+        /**
+         * Builds the URI of the page that follows the given one.
+         *
+         * @param pageUri A URI built by {@link #buildWeatherUriForPage(int, int)}
+         * @return Uri to query the next page, with the same limit
+         */
+        public static Uri buildWeatherUriForNextPage(Uri pageUri) {
+            int offset = getPageOffsetFromUri(pageUri);
+            int limit = getPageLimitFromUri(pageUri);
+            return buildWeatherUriForPage(offset + limit, limit);
+        }
+
+        /* The path segments of a range or page URI are: weather, range|page, first, second */
+
+        public static long getStartDateFromUri(Uri rangeUri) {
+            return Long.parseLong(rangeUri.getPathSegments().get(2));
+        }
+
+        public static long getEndDateFromUri(Uri rangeUri) {
+            return Long.parseLong(rangeUri.getPathSegments().get(3));
+        }
+
+        public static int getPageOffsetFromUri(Uri pageUri) {
+            return Integer.parseInt(pageUri.getPathSegments().get(2));
+        }
+
+        public static int getPageLimitFromUri(Uri pageUri) {
+            return Integer.parseInt(pageUri.getPathSegments().get(3));
+        }
+
+        /**
+         * Returns just the selection part of the weather query for today onwards. Today's date
+         * is left as a "?" so that the statement is the same every day and SQLite can reuse it;
+         * pass {@link #getSqlSelectionArgsForTodayOnwards()} as its selection arguments.
          *
          * @return The selection part of the weather query for today onwards
          */
         public static String getSqlSelectForTodayOnwards() {
+            return WeatherContract.WeatherEntry.COLUMN_DATE + " >= ?";
+        }
+
+        /**
+         * Returns the selection arguments that go with {@link #getSqlSelectForTodayOnwards()}.
+         *
+         * @return An array holding today's normalized date
+         */
+        public static String[] getSqlSelectionArgsForTodayOnwards() {
             long normalizedUtcNow = SunshineDateUtils.normalizeDate(System.currentTimeMillis());
-            return WeatherContract.WeatherEntry.COLUMN_DATE + " >= " + normalizedUtcNow;
+            return new String[]{Long.toString(normalizedUtcNow)};
         }
     }
 }
\ No newline at end of file
@@ -15,10 +15,15 @@
  */
 package com.example.android.sunshine.data;
 
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.support.annotation.VisibleForTesting;
 
+import com.example.android.sunshine.data.WeatherContract.LocationEntry;
 import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
 
 /**
@@ -43,10 +48,121 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
      * use-case, we wanted to watch out for it and warn you what could happen if you mistakenly
      * version your databases.
      */
-    private static final int DATABASE_VERSION = 3;
+    private static final int DATABASE_VERSION = 5;
+
+    /**
+     * The settings applied to the connection every time the database is opened. See
+     * {@link ConnectionProfile#DEFAULT} for the values Sunshine uses.
+     */
+    public static final class ConnectionProfile {
+
+        public static final String SYNCHRONOUS_OFF = "OFF";
+        public static final String SYNCHRONOUS_NORMAL = "NORMAL";
+        public static final String SYNCHRONOUS_FULL = "FULL";
+
+        /*
+         * Write-ahead logging lets the CursorLoaders keep reading the last committed forecast
+         * while a sync is writing a new one, instead of waiting for the sync's transaction to
+         * finish. NORMAL synchronous is safe in WAL mode (a commit can only be lost on power
+         * failure, never corrupted) and saves an fsync per transaction. A checkpoint is run
+         * whenever the log grows past 1000 pages, which is SQLite's own default.
+         */
+        public static final ConnectionProfile DEFAULT =
+                new ConnectionProfile(true, 4096, 2048, SYNCHRONOUS_NORMAL, 1000);
+
+        /* Whether to use write-ahead logging rather than a rollback journal */
+        final boolean writeAheadLogging;
+
+        /* Page size in bytes. Only takes effect when the database file is first created. */
+        final int pageSizeBytes;
+
+        /* Size of the page cache of the connection in KiB */
+        final int cacheSizeKb;
+
+        /* One of the SYNCHRONOUS_ constants above */
+        final String synchronous;
+
+        /*
+         * Number of pages the write-ahead log may grow to before it is checkpointed back into
+         * the database. 0 turns automatic checkpoints off.
+         */
+        final int walAutoCheckpointPages;
+
+        public ConnectionProfile(boolean writeAheadLogging, int pageSizeBytes, int cacheSizeKb,
+                                 String synchronous, int walAutoCheckpointPages) {
+            this.writeAheadLogging = writeAheadLogging;
+            this.pageSizeBytes = pageSizeBytes;
+            this.cacheSizeKb = cacheSizeKb;
+            this.synchronous = synchronous;
+            this.walAutoCheckpointPages = walAutoCheckpointPages;
+        }
+    }
+
+    private final Context mContext;
+    private final ConnectionProfile mConnectionProfile;
 
     public WeatherDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME, ConnectionProfile.DEFAULT);
+    }
+
+    /**
+     * Creates a helper for a database with its own name and connection settings. Sunshine itself
+     * always uses {@link #WeatherDbHelper(Context)}; this is here so tests can compare profiles
+     * without touching weather.db.
+     */
+    @VisibleForTesting
+    WeatherDbHelper(Context context, String name, ConnectionProfile connectionProfile) {
+        super(context, name, null, DATABASE_VERSION);
+        mContext = context;
+        mConnectionProfile = connectionProfile;
+    }
+
+    /**
+     * Called when the database connection is being configured, before the database is created
+     * or upgraded. This is where the connection profile is applied on API 16 and up.
+     *
+     * @param sqLiteDatabase The database.
+     */
+    @Override
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    public void onConfigure(SQLiteDatabase sqLiteDatabase) {
+        applyConnectionProfile(sqLiteDatabase);
+    }
+
+    /**
+     * Called when the database has been opened. onConfigure doesn't exist before API 16, so on
+     * those versions the connection profile is applied here instead. By then the database has
+     * already been created, so the page size has no effect there.
+     *
+     * @param sqLiteDatabase The database.
+     */
+    @Override
+    public void onOpen(SQLiteDatabase sqLiteDatabase) {
+        super.onOpen(sqLiteDatabase);
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            applyConnectionProfile(sqLiteDatabase);
+        }
+    }
+
+    private void applyConnectionProfile(SQLiteDatabase sqLiteDatabase) {
+        ConnectionProfile profile = mConnectionProfile;
+
+        /* The page size must be set before anything else touches the database file */
+        sqLiteDatabase.setPageSize(profile.pageSizeBytes);
+
+        if (profile.writeAheadLogging) {
+            sqLiteDatabase.enableWriteAheadLogging();
+        }
+
+        /* A negative cache size is read by SQLite as KiB rather than as a number of pages */
+        sqLiteDatabase.execSQL("PRAGMA cache_size = -" + profile.cacheSizeKb);
+        sqLiteDatabase.execSQL("PRAGMA synchronous = " + profile.synchronous);
+
+        if (profile.writeAheadLogging) {
+            /* This PRAGMA returns the new value, so it has to be run as a query */
+            DatabaseUtils.longForQuery(sqLiteDatabase,
+                    "PRAGMA wal_autocheckpoint = " + profile.walAutoCheckpointPages, null);
+        }
     }
 
     /**
@@ -58,6 +174,22 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
     @Override
     public void onCreate(SQLiteDatabase sqLiteDatabase) {
 
+        /*
+         * Every location the user has looked at is stored once, by the location setting they
+         * entered. The weather table refers to these rows by their _ID.
+         */
+        final String SQL_CREATE_LOCATION_TABLE =
+
+                "CREATE TABLE " + LocationEntry.TABLE_NAME + " (" +
+
+                LocationEntry._ID                     + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+
+                LocationEntry.COLUMN_LOCATION_SETTING + " TEXT NOT NULL, "                    +
+
+                LocationEntry.COLUMN_LAST_USED        + " INTEGER NOT NULL DEFAULT 0, "       +
+
+                " UNIQUE (" + LocationEntry.COLUMN_LOCATION_SETTING + ") ON CONFLICT IGNORE);";
+
         /*
          * This String will contain a simple SQL statement that will create a table that will
          * cache our weather data.
@@ -86,28 +218,39 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 WeatherEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, "                    +
                 WeatherEntry.COLUMN_DEGREES    + " REAL NOT NULL, "                    +
 
+                WeatherEntry.COLUMN_LOCATION_ID + " INTEGER NOT NULL REFERENCES "     +
+                        LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), "     +
+
                 /*
-                 * To ensure this table can only contain one weather entry per date, we declare
-                 * the date column to be unique. We also specify "ON CONFLICT REPLACE". This tells
-                 * SQLite that if we have a weather entry for a certain date and we attempt to
-                 * insert another weather entry with that date, we replace the old weather entry.
+                 * To ensure this table can only contain one weather entry per date for each
+                 * location, we declare the pair of location and date to be unique. We also specify
+                 * "ON CONFLICT REPLACE". This tells SQLite that if we have a weather entry for a
+                 * certain location and date and we attempt to insert another weather entry for
+                 * them, we replace the old weather entry.
+                 *
+                 * SQLite backs this constraint with an index on (location_id, date), which is
+                 * what every weather query uses: first find the location, then the dates.
                  */
-                " UNIQUE (" + WeatherEntry.COLUMN_DATE + ") ON CONFLICT REPLACE);";
+                " UNIQUE (" + WeatherEntry.COLUMN_LOCATION_ID + ", " +
+                        WeatherEntry.COLUMN_DATE + ") ON CONFLICT REPLACE);";
 
         /*
          * After we've spelled out our SQLite table creation statement above, we actually execute
          * that SQL with the execSQL method of our SQLite database object.
          */
+        sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_TABLE);
         sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
     }
 
     /**
-     * This database is only a cache for online data, so its upgrade policy is simply to discard
-     * the data and call through to onCreate to recreate the table. Note that this only fires if
-     * you change the version number for your database (in our case, DATABASE_VERSION). It does NOT
-     * depend on the version number for your application found in your app/build.gradle file. If
-     * you want to update the schema without wiping data, commenting out the current body of this
-     * method should be your top priority before modifying this method.
+     * Upgrades the database one version at a time using the scripts in
+     * {@link WeatherDbMigrations}, keeping the weather that is already stored. Note that this only
+     * fires if you change the version number for your database (in our case, DATABASE_VERSION).
+     * It does NOT depend on the version number for your application found in your
+     * app/build.gradle file.
+     * <p>
+     * Databases older than the first migratable version are still only a cache for online data,
+     * so for those the table is dropped and recreated, the same as it has always been.
      *
      * @param sqLiteDatabase Database that is being upgraded
      * @param oldVersion     The old database version
@@ -115,7 +258,31 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
      */
     @Override
     public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
+        if (WeatherDbMigrations.canMigrateFrom(oldVersion)) {
+            WeatherDbMigrations.migrate(mContext, sqLiteDatabase, oldVersion, newVersion);
+        } else {
+            recreateTables(sqLiteDatabase);
+        }
+    }
+
+    /**
+     * Called when the version on disk is newer than this build, which happens when a user goes
+     * back to an older version of Sunshine. There are no scripts that undo a migration, so the
+     * tables are recreated and the next sync fills them again. The default implementation of
+     * SQLiteOpenHelper would throw instead, and Sunshine couldn't open its database at all.
+     *
+     * @param sqLiteDatabase Database that is being downgraded
+     * @param oldVersion     The old database version
+     * @param newVersion     The new database version
+     */
+    @Override
+    public void onDowngrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
+        recreateTables(sqLiteDatabase);
+    }
+
+    private void recreateTables(SQLiteDatabase sqLiteDatabase) {
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
         onCreate(sqLiteDatabase);
     }
-}
\ No newline at end of file
+}
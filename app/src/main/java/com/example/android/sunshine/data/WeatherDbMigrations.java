@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * The step-wise upgrade scripts of weather.db. Each step takes the schema of one version to the
+ * next one while keeping the rows that are already stored, so that the first launch after an
+ * app update can show the forecast from the database instead of waiting for a sync.
+ * <p>
+ * When you change the schema in {@link WeatherDbHelper#onCreate(SQLiteDatabase)}, increment
+ * WeatherDbHelper.DATABASE_VERSION, add a case to {@link #upgradeOneVersion(SQLiteDatabase, int)}
+ * that turns the previous schema into the new one, and add the new schema to the historical
+ * schemas in TestWeatherDbMigrations.
+ */
+final class WeatherDbMigrations {
+
+    /*
+     * The oldest schema we know how to migrate. Versions before 3 were shipped by earlier
+     * editions of Sunshine with a different layout; those are simply rebuilt from scratch.
+     */
+    static final int FIRST_MIGRATABLE_VERSION = 3;
+
+    private WeatherDbMigrations() {
+    }
+
+    /**
+     * Returns whether a database at the given version can be upgraded without losing its data.
+     *
+     * @param version The version of the database on disk
+     * @return true if every step from that version up to the current one exists
+     */
+    static boolean canMigrateFrom(int version) {
+        return version >= FIRST_MIGRATABLE_VERSION;
+    }
+
+    /**
+     * Runs every upgrade step from oldVersion to newVersion, in order. SQLiteOpenHelper already
+     * wraps onUpgrade in a transaction, so if any step fails, none of them are kept.
+     *
+     * @param context    Used to read the preferences some of the steps need
+     * @param db         The database being upgraded
+     * @param oldVersion The version of the database on disk
+     * @param newVersion The version the database is being upgraded to
+     */
+    static void migrate(Context context, SQLiteDatabase db, int oldVersion, int newVersion) {
+        for (int version = oldVersion; version < newVersion; version++) {
+            upgradeOneVersion(context, db, version);
+        }
+    }
+
+    /**
+     * Upgrades the schema from the given version to the one directly after it.
+     *
+     * @param context     Used to read the preferences some of the steps need
+     * @param db          The database being upgraded
+     * @param fromVersion The version the database is currently at
+     */
+    private static void upgradeOneVersion(Context context, SQLiteDatabase db, int fromVersion) {
+        switch (fromVersion) {
+
+            case 3:
+                upgradeFrom3To4(db, SunshinePreferences.getPreferredWeatherLocation(context));
+                break;
+
+            case 4:
+                upgradeFrom4To5(db);
+                break;
+
+            /* Add a case here for every new database version, e.g. "case 5:" for 5 -> 6 */
+
+            default:
+                throw new IllegalStateException(
+                        "No migration from weather.db version " + fromVersion + " to "
+                                + (fromVersion + 1));
+        }
+    }
+
+    /*
+     * The statements of each step are written out in full rather than built from the constants
+     * in WeatherContract, since those always describe the newest schema and a step has to keep
+     * producing the schema of its own version.
+     */
+
+    /**
+     * Version 4 adds the location table and ties every weather row to a location, so that the
+     * weather of several cities can be kept at once. The rows stored so far were all fetched for
+     * the location that is currently preferred, so they are moved to that location.
+     * <p>
+     * SQLite can't change the UNIQUE constraint of an existing table, so the weather table is
+     * rebuilt and its rows are copied over.
+     */
+    private static void upgradeFrom3To4(SQLiteDatabase db, String preferredLocation) {
+        db.execSQL("CREATE TABLE location (" +
+                "_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                "location_setting TEXT NOT NULL, " +
+                " UNIQUE (location_setting) ON CONFLICT IGNORE);");
+
+        db.execSQL("INSERT INTO location (location_setting) VALUES (?)",
+                new Object[]{preferredLocation});
+        long locationId = DatabaseUtils.longForQuery(db,
+                "SELECT _id FROM location WHERE location_setting = ?",
+                new String[]{preferredLocation});
+
+        db.execSQL("CREATE TABLE weather_v4 (" +
+                "_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                "date INTEGER NOT NULL, " +
+                "weather_id INTEGER NOT NULL," +
+                "min REAL NOT NULL, " +
+                "max REAL NOT NULL, " +
+                "humidity REAL NOT NULL, " +
+                "pressure REAL NOT NULL, " +
+                "wind REAL NOT NULL, " +
+                "degrees REAL NOT NULL, " +
+                "location_id INTEGER NOT NULL REFERENCES location (_id), " +
+                " UNIQUE (location_id, date) ON CONFLICT REPLACE);");
+
+        db.execSQL("INSERT INTO weather_v4 (_id, date, weather_id, min, max, humidity, " +
+                "pressure, wind, degrees, location_id) " +
+                "SELECT _id, date, weather_id, min, max, humidity, pressure, wind, degrees, ? " +
+                "FROM weather", new Object[]{locationId});
+
+        db.execSQL("DROP TABLE weather");
+        db.execSQL("ALTER TABLE weather_v4 RENAME TO weather");
+    }
+
+    /**
+     * Version 5 records when each location was last used, so that locations the user no longer
+     * looks at can be deleted. The locations stored so far count as used right now, which gives
+     * each of them the full retention window before it goes.
+     */
+    private static void upgradeFrom4To5(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE location ADD COLUMN last_used INTEGER NOT NULL DEFAULT 0");
+        db.execSQL("UPDATE location SET last_used = ?", new Object[]{System.currentTimeMillis()});
+    }
+}
@@ -20,12 +20,24 @@ import android.content.ContentProvider;
 import android.content.ContentValues;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.Parcelable;
 import android.support.annotation.NonNull;
+import android.support.v4.os.CancellationSignal;
+import android.text.TextUtils;
+import android.util.Log;
 
 import com.example.android.sunshine.utilities.SunshineDateUtils;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * This class serves as the ContentProvider for all of Sunshine's data. This class allows us to
  * bulkInsert data, query data, and delete data.
@@ -45,6 +57,12 @@ public class WeatherProvider extends ContentProvider {
      */
     public static final int CODE_WEATHER = 100;
     public static final int CODE_WEATHER_WITH_DATE = 101;
+    public static final int CODE_WEATHER_RANGE = 102;
+    public static final int CODE_WEATHER_PAGE = 103;
+    public static final int CODE_WEATHER_FOR_LOCATION = 104;
+    public static final int CODE_WEATHER_FOR_LOCATION_WITH_DATE = 105;
+
+    public static final int CODE_LOCATION = 200;
 
     /*
      * The URI Matcher used by this content provider. The leading "s" in this variable name
@@ -54,9 +72,81 @@ public class WeatherProvider extends ContentProvider {
     private static final UriMatcher sUriMatcher = buildUriMatcher();
     private WeatherDbHelper mOpenHelper;
 
+    /*
+     * Results of recent queries, dropped whenever a write commits. See WeatherQueryCache for
+     * how reads that race with a write are kept out of it.
+     */
+    private WeatherQueryCache mQueryCache;
+
+    /*
+     * The _ID of every location setting looked up so far. Locations are only removed from the
+     * location table by useLocation, which empties this map whenever it deletes any, so every
+     * _ID in here belongs to a location that is still stored.
+     */
+    private final HashMap<String, Long> mLocationIds = new HashMap<String, Long>();
+
+    private static final String TAG = WeatherProvider.class.getSimpleName();
+
+    /*
+     * The columns written for each day of weather, in the order they are bound to the compiled
+     * statements below. The date and then the location come last so that the same binding order
+     * also works for the WHERE clause of the UPDATE.
+     */
+    private static final String[] INSERT_COLUMNS = {
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES,
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+    };
+
+    static final String SQL_INSERT_WEATHER =
+            "INSERT INTO " + WeatherContract.WeatherEntry.TABLE_NAME + " ("
+                    + TextUtils.join(", ", INSERT_COLUMNS) + ", "
+                    + WeatherContract.WeatherEntry.COLUMN_LOCATION_ID
+                    + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    static final String SQL_UPDATE_WEATHER_FOR_DATE =
+            "UPDATE " + WeatherContract.WeatherEntry.TABLE_NAME + " SET "
+                    + WeatherContract.WeatherEntry.COLUMN_WEATHER_ID + " = ?, "
+                    + WeatherContract.WeatherEntry.COLUMN_MIN_TEMP + " = ?, "
+                    + WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + " = ?, "
+                    + WeatherContract.WeatherEntry.COLUMN_HUMIDITY + " = ?, "
+                    + WeatherContract.WeatherEntry.COLUMN_PRESSURE + " = ?, "
+                    + WeatherContract.WeatherEntry.COLUMN_WIND_SPEED + " = ?, "
+                    + WeatherContract.WeatherEntry.COLUMN_DEGREES + " = ? "
+                    + "WHERE " + WeatherContract.WeatherEntry.COLUMN_DATE + " = ? AND "
+                    + WeatherContract.WeatherEntry.COLUMN_LOCATION_ID + " = ?";
+
+    /* Selects the weather of one location; every weather query starts with this */
+    private static final String SQL_SELECT_LOCATION =
+            WeatherContract.WeatherEntry.COLUMN_LOCATION_ID + " = ?";
+
+    /* Selects one day of the weather of one location */
+    private static final String SQL_SELECT_LOCATION_AND_DATE =
+            SQL_SELECT_LOCATION + " AND " + WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
+
+    /* Selects the days from the second argument up to, but not including, the third one */
+    private static final String SQL_SELECT_DATE_RANGE =
+            SQL_SELECT_LOCATION + " AND "
+                    + WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? AND "
+                    + WeatherContract.WeatherEntry.COLUMN_DATE + " < ?";
+
+    /* Selects the locations last used before the argument */
+    private static final String SQL_SELECT_UNUSED_LOCATION =
+            WeatherContract.LocationEntry.COLUMN_LAST_USED + " < ?";
+
+    /* Selects the weather rows whose location is no longer in the location table */
+    private static final String SQL_SELECT_WEATHER_WITHOUT_LOCATION =
+            WeatherContract.WeatherEntry.COLUMN_LOCATION_ID + " NOT IN (SELECT "
+                    + WeatherContract.LocationEntry._ID + " FROM "
+                    + WeatherContract.LocationEntry.TABLE_NAME + ")";
+
     /**
-     * Creates the UriMatcher that will match each URI to the CODE_WEATHER and
-     * CODE_WEATHER_WITH_DATE constants defined above.
+     * Creates the UriMatcher that will match each URI to the CODE_ constants defined above.
      * <p>
      * It's possible you might be thinking, "Why create a UriMatcher when you can use regular
      * expressions instead? After all, we really just need to match some patterns, and we can
@@ -96,6 +186,29 @@ public class WeatherProvider extends ContentProvider {
          */
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/#", CODE_WEATHER_WITH_DATE);
 
+        /*
+         * These URIs look like content://com.example.android.sunshine/weather/range/1472169600000/1473379200000
+         * and content://com.example.android.sunshine/weather/page/0/14, and return a window of
+         * days rather than a single day or the whole table.
+         */
+        matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/"
+                + WeatherContract.PATH_RANGE + "/#/#", CODE_WEATHER_RANGE);
+        matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/"
+                + WeatherContract.PATH_PAGE + "/#/#", CODE_WEATHER_PAGE);
+
+        /*
+         * The weather of a location other than the preferred one, such as
+         * content://com.example.android.sunshine/weather/location/94043%2CUSA, optionally
+         * followed by a date. The "*" matches any text in a single path segment.
+         */
+        matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/"
+                + WeatherContract.PATH_LOCATION + "/*", CODE_WEATHER_FOR_LOCATION);
+        matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/"
+                + WeatherContract.PATH_LOCATION + "/*/#", CODE_WEATHER_FOR_LOCATION_WITH_DATE);
+
+        /* This URI is content://com.example.android.sunshine/location/ */
+        matcher.addURI(authority, WeatherContract.PATH_LOCATION, CODE_LOCATION);
+
         return matcher;
     }
 
@@ -122,6 +235,7 @@ public class WeatherProvider extends ContentProvider {
          * very lightweight, we are safe to perform that initialization here.
          */
         mOpenHelper = new WeatherDbHelper(getContext());
+        mQueryCache = new WeatherQueryCache(WeatherQueryCache.DEFAULT_MAX_SIZE_BYTES);
         return true;
     }
 
@@ -141,12 +255,24 @@ public class WeatherProvider extends ContentProvider {
     @Override
     public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int match = sUriMatcher.match(uri);
 
-        switch (sUriMatcher.match(uri)) {
+        switch (match) {
 
             case CODE_WEATHER:
+            case CODE_WEATHER_FOR_LOCATION:
+                /* Rows that don't name a location are stored for the location of the URI */
+                long locationId = getOrInsertLocationId(getLocationSetting(uri, match));
+
                 db.beginTransaction();
                 int rowsInserted = 0;
+
+                /*
+                 * Rather than having SQLiteDatabase#insert build and compile the same INSERT
+                 * statement for every row, we compile it once for the whole transaction and only
+                 * bind new values for each row.
+                 */
+                SQLiteStatement insertStatement = db.compileStatement(SQL_INSERT_WEATHER);
                 try {
                     for (ContentValues value : values) {
                         long weatherDate =
@@ -155,17 +281,39 @@ public class WeatherProvider extends ContentProvider {
                             throw new IllegalArgumentException("Date must be normalized to insert");
                         }
 
-                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
+                        long _id;
+                        if (hasOnlyInsertColumns(value)) {
+                            for (int i = 0; i < INSERT_COLUMNS.length; i++) {
+                                DatabaseUtils.bindObjectToProgram(insertStatement, i + 1,
+                                        value.get(INSERT_COLUMNS[i]));
+                            }
+                            Long rowLocationId = value.getAsLong(
+                                    WeatherContract.WeatherEntry.COLUMN_LOCATION_ID);
+                            insertStatement.bindLong(INSERT_COLUMNS.length + 1,
+                                    rowLocationId != null ? rowLocationId : locationId);
+                            _id = executeInsert(insertStatement);
+                        } else {
+                            if (!value.containsKey(
+                                    WeatherContract.WeatherEntry.COLUMN_LOCATION_ID)) {
+                                value = new ContentValues(value);
+                                value.put(WeatherContract.WeatherEntry.COLUMN_LOCATION_ID,
+                                        locationId);
+                            }
+                            _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
+                        }
+
                         if (_id != -1) {
                             rowsInserted++;
                         }
                     }
                     db.setTransactionSuccessful();
                 } finally {
+                    insertStatement.close();
                     db.endTransaction();
                 }
 
                 if (rowsInserted > 0) {
+                    mQueryCache.invalidate();
                     getContext().getContentResolver().notifyChange(uri, null);
                 }
 
@@ -176,6 +324,412 @@ public class WeatherProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Inserts a batch of weather held in primitive arrays. This does the same as
+     * {@link #bulkInsert(Uri, ContentValues[])}, but binds each value straight into a compiled
+     * statement without boxing it or going through ContentValues.
+     * <p>
+     * This is only reachable by code running in the same process as the provider, through
+     * {@link android.content.ContentProviderClient#getLocalContentProvider()}.
+     *
+     * @param uri   The content:// URI of the insertion request.
+     * @param batch The days of weather to insert
+     *
+     * @return The number of values that were inserted.
+     */
+    public int bulkInsert(@NonNull Uri uri, @NonNull ForecastBatch batch) {
+        int match = sUriMatcher.match(uri);
+
+        switch (match) {
+
+            case CODE_WEATHER:
+            case CODE_WEATHER_FOR_LOCATION:
+                long locationId = getOrInsertLocationId(getLocationSetting(uri, match));
+                final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+                int rowsInserted;
+
+                db.beginTransaction();
+                try {
+                    rowsInserted = insertForecastBatch(db, locationId, batch);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+
+                if (rowsInserted > 0) {
+                    mQueryCache.invalidate();
+                    getContext().getContentResolver().notifyChange(uri, null);
+                }
+
+                return rowsInserted;
+
+            default:
+                throw new UnsupportedOperationException("Unknown uri: " + uri);
+        }
+    }
+
+    /**
+     * Inserts every day of the batch into the weather table with a single compiled statement.
+     * The caller is responsible for the transaction.
+     *
+     * @param locationId The _ID of the location the weather belongs to
+     * @return The number of rows that were inserted
+     */
+    static int insertForecastBatch(SQLiteDatabase db, long locationId, ForecastBatch batch) {
+        int rowsInserted = 0;
+
+        SQLiteStatement insertStatement = db.compileStatement(SQL_INSERT_WEATHER);
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                long weatherDate = batch.getDate(i);
+                if (!SunshineDateUtils.isDateNormalized(weatherDate)) {
+                    throw new IllegalArgumentException("Date must be normalized to insert");
+                }
+
+                bindWeatherRow(insertStatement, locationId, weatherDate, batch.getWeatherId(i),
+                        batch.getMinTemp(i), batch.getMaxTemp(i), batch.getHumidity(i),
+                        batch.getPressure(i), batch.getWindSpeed(i), batch.getDegrees(i));
+
+                if (executeInsert(insertStatement) != -1) {
+                    rowsInserted++;
+                }
+            }
+        } finally {
+            insertStatement.close();
+        }
+
+        return rowsInserted;
+    }
+
+    /**
+     * Binds a day of weather to a statement compiled from {@link #SQL_INSERT_WEATHER} or
+     * {@link #SQL_UPDATE_WEATHER_FOR_DATE}, which bind their values in the same order.
+     */
+    static void bindWeatherRow(SQLiteStatement statement, long locationId, long date,
+                               int weatherId, double minTemp, double maxTemp, double humidity,
+                               double pressure, double windSpeed, double degrees) {
+        statement.bindLong(1, weatherId);
+        statement.bindDouble(2, minTemp);
+        statement.bindDouble(3, maxTemp);
+        statement.bindDouble(4, humidity);
+        statement.bindDouble(5, pressure);
+        statement.bindDouble(6, windSpeed);
+        statement.bindDouble(7, degrees);
+        statement.bindLong(8, date);
+        statement.bindLong(9, locationId);
+    }
+
+    /**
+     * Runs a compiled INSERT, returning -1 rather than throwing if a constraint is violated, the
+     * same way {@link SQLiteDatabase#insert} does.
+     */
+    private static long executeInsert(SQLiteStatement insertStatement) {
+        try {
+            return insertStatement.executeInsert();
+        } catch (SQLException e) {
+            Log.e(TAG, "Error inserting weather", e);
+            return -1;
+        }
+    }
+
+    /**
+     * Returns true if the values contain exactly the columns bound by
+     * {@link #SQL_INSERT_WEATHER}, so that they can be inserted with the compiled statement. The
+     * location may be left out, in which case the location of the URI is used.
+     */
+    private static boolean hasOnlyInsertColumns(ContentValues values) {
+        int expectedSize = INSERT_COLUMNS.length;
+        if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_LOCATION_ID)) {
+            expectedSize++;
+        }
+        if (values.size() != expectedSize) {
+            return false;
+        }
+        for (String column : INSERT_COLUMNS) {
+            if (!values.containsKey(column)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the location setting a weather URI refers to: the one in its path for the location
+     * URIs, and the preferred location from the settings for every other weather URI.
+     */
+    private String getLocationSetting(Uri uri, int match) {
+        switch (match) {
+            case CODE_WEATHER_FOR_LOCATION:
+            case CODE_WEATHER_FOR_LOCATION_WITH_DATE:
+                return WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
+
+            default:
+                return SunshinePreferences.getPreferredWeatherLocation(getContext());
+        }
+    }
+
+    /**
+     * Looks up the _ID of a location without adding it to the location table.
+     *
+     * @return The _ID of the location, or -1 if nothing has been stored for it yet
+     */
+    private long getLocationId(String locationSetting) {
+        synchronized (mLocationIds) {
+            Long cachedId = mLocationIds.get(locationSetting);
+            if (cachedId != null) {
+                return cachedId;
+            }
+        }
+
+        Cursor cursor = mOpenHelper.getReadableDatabase().query(
+                WeatherContract.LocationEntry.TABLE_NAME,
+                new String[]{WeatherContract.LocationEntry._ID},
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting},
+                null,
+                null,
+                null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return -1;
+            }
+            long locationId = cursor.getLong(0);
+            synchronized (mLocationIds) {
+                mLocationIds.put(locationSetting, locationId);
+            }
+            return locationId;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Looks up the _ID of a location, adding the location to the location table the first time
+     * weather is written for it.
+     */
+    private long getOrInsertLocationId(String locationSetting) {
+        long locationId = getLocationId(locationSetting);
+        if (locationId != -1) {
+            return locationId;
+        }
+
+        /* The table ignores a setting that is already stored, should another thread beat us */
+        ContentValues locationValues = new ContentValues();
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_LAST_USED,
+                System.currentTimeMillis());
+        mOpenHelper.getWritableDatabase().insert(
+                WeatherContract.LocationEntry.TABLE_NAME, null, locationValues);
+
+        /* Cached queries of the location table don't have the new location yet */
+        mQueryCache.invalidate();
+
+        return getLocationId(locationSetting);
+    }
+
+    /**
+     * Starts replacing the stored forecast with a new one, writing only the days that changed.
+     * Days are added to the returned {@link ForecastMerge} as they become available, and the
+     * merge is finished with {@link ForecastMerge#commit()}. A single change notification is sent
+     * on commit if anything changed.
+     * <p>
+     * This is only reachable by code running in the same process as the provider, through
+     * {@link android.content.ContentProviderClient#getLocalContentProvider()}. Other callers can
+     * use {@link WeatherContract#METHOD_MERGE_WEATHER} instead.
+     *
+     * @param uri The content:// URI of the forecast to replace
+     * @return A merge that must be used from a single thread and always be closed
+     */
+    public ForecastMerge beginForecastMerge(@NonNull Uri uri) {
+        return beginForecastMerge(uri, null);
+    }
+
+    /**
+     * Same as {@link #beginForecastMerge(Uri)}, but the merge stops accepting days once the
+     * signal is cancelled, and everything it wrote is rolled back when it is closed.
+     *
+     * @param uri                The content:// URI of the forecast to replace
+     * @param cancellationSignal Signal to abandon the merge with, or null
+     * @return A merge that must be used from a single thread and always be closed
+     */
+    public ForecastMerge beginForecastMerge(@NonNull Uri uri,
+                                            CancellationSignal cancellationSignal) {
+        int match = sUriMatcher.match(uri);
+
+        switch (match) {
+
+            case CODE_WEATHER:
+            case CODE_WEATHER_FOR_LOCATION:
+                long locationId = getOrInsertLocationId(getLocationSetting(uri, match));
+                return new ForecastMerge(getContext(), mOpenHelper.getWritableDatabase(), uri,
+                        locationId, mQueryCache, cancellationSignal);
+
+            default:
+                throw new UnsupportedOperationException("Unknown uri: " + uri);
+        }
+    }
+
+    /**
+     * Merges the forecasts of several locations into the stored ones in a single transaction,
+     * writing only the days that changed as {@link #beginForecastMerge(Uri, CancellationSignal)}
+     * does. Either every forecast is stored or, if any of them fails, none is. Observers of
+     * {@link WeatherContract.WeatherEntry#CONTENT_URI} get one change notification for the whole
+     * batch, and only if something changed.
+     * <p>
+     * This is only reachable by code running in the same process as the provider, through
+     * {@link android.content.ContentProviderClient#getLocalContentProvider()}.
+     *
+     * @param forecasts The new forecast of each location, keyed by location setting
+     * @return The committed merge of each location, keyed by location setting
+     */
+    public Map<String, ForecastMerge> mergeForecasts(@NonNull Map<String, ForecastBatch> forecasts) {
+        /*
+         * Locations are added outside the transaction. Their _IDs are cached, and must not point
+         * at rows that a rolled back transaction took away again.
+         */
+        HashMap<String, Long> locationIds = new HashMap<String, Long>();
+        for (String locationSetting : forecasts.keySet()) {
+            locationIds.put(locationSetting, getOrInsertLocationId(locationSetting));
+        }
+
+        HashMap<String, ForecastMerge> merges = new HashMap<String, ForecastMerge>();
+        boolean hasChanges = false;
+
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (Map.Entry<String, ForecastBatch> forecast : forecasts.entrySet()) {
+                ForecastMerge merge = new ForecastMerge(getContext(), db, null,
+                        locationIds.get(forecast.getKey()), mQueryCache, null);
+                try {
+                    forecast.getValue().writeTo(merge);
+                    merge.commit();
+                } finally {
+                    merge.close();
+                }
+
+                merges.put(forecast.getKey(), merge);
+                hasChanges |= merge.hasChanges();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (hasChanges) {
+            mQueryCache.invalidate();
+            getContext().getContentResolver()
+                    .notifyChange(WeatherContract.WeatherEntry.CONTENT_URI, null);
+        }
+
+        return merges;
+    }
+
+    /**
+     * Handles the provider specific methods defined in {@link WeatherContract}.
+     *
+     * @param method The method to call, such as {@link WeatherContract#METHOD_MERGE_WEATHER}
+     * @param arg    The location setting the method applies to, or null for the preferred one
+     * @param extras The arguments of the method
+     * @return The result of the method
+     */
+    @Override
+    public Bundle call(@NonNull String method, String arg, Bundle extras) {
+        if (WeatherContract.METHOD_MERGE_WEATHER.equals(method)) {
+            Bundle batchBundle = extras.getBundle(WeatherContract.EXTRA_WEATHER_BATCH);
+            ForecastBatch batch =
+                    batchBundle != null ? ForecastBatch.fromBundle(batchBundle) : null;
+            Parcelable[] values = batch == null
+                    ? extras.getParcelableArray(WeatherContract.EXTRA_WEATHER_VALUES)
+                    : null;
+            if (batch == null && values == null) {
+                throw new IllegalArgumentException("No forecast passed to " + method);
+            }
+
+            Uri forecastUri = arg != null
+                    ? WeatherContract.WeatherEntry.buildWeatherUriForLocation(arg)
+                    : WeatherContract.WeatherEntry.CONTENT_URI;
+
+            ForecastMerge merge = beginForecastMerge(forecastUri);
+            try {
+                if (batch != null) {
+                    batch.writeTo(merge);
+                } else {
+                    for (Parcelable value : values) {
+                        merge.add((ContentValues) value);
+                    }
+                }
+                merge.commit();
+            } finally {
+                merge.close();
+            }
+
+            return merge.toBundle();
+        }
+
+        if (WeatherContract.METHOD_USE_LOCATION.equals(method)) {
+            String locationSetting = arg != null
+                    ? arg
+                    : SunshinePreferences.getPreferredWeatherLocation(getContext());
+
+            Bundle result = new Bundle();
+            result.putInt(WeatherContract.EXTRA_ROWS_DELETED, useLocation(locationSetting));
+            return result;
+        }
+
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Marks a location as used right now, and deletes the locations that haven't been used for
+     * {@link WeatherContract.WeatherEntry#RETENTION_DAYS} days together with their weather.
+     * Weather rows whose location is gone, such as those a merge wrote while its location was
+     * being deleted, are deleted as well.
+     *
+     * @param locationSetting The location the user is looking at
+     * @return The number of weather rows deleted
+     */
+    private int useLocation(String locationSetting) {
+        long nowMillis = System.currentTimeMillis();
+        String unusedSince = Long.toString(nowMillis
+                - WeatherContract.WeatherEntry.RETENTION_DAYS * SunshineDateUtils.DAY_IN_MILLIS);
+        String locationIdString = Long.toString(getOrInsertLocationId(locationSetting));
+
+        int deletedLocations;
+        int deletedRows;
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentValues lastUsed = new ContentValues();
+            lastUsed.put(WeatherContract.LocationEntry.COLUMN_LAST_USED, nowMillis);
+            db.update(WeatherContract.LocationEntry.TABLE_NAME, lastUsed,
+                    WeatherContract.LocationEntry._ID + " = ?", new String[]{locationIdString});
+
+            deletedLocations = db.delete(WeatherContract.LocationEntry.TABLE_NAME,
+                    SQL_SELECT_UNUSED_LOCATION, new String[]{unusedSince});
+            deletedRows = db.delete(WeatherContract.WeatherEntry.TABLE_NAME,
+                    SQL_SELECT_WEATHER_WITHOUT_LOCATION, null);
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (deletedLocations > 0) {
+            synchronized (mLocationIds) {
+                mLocationIds.clear();
+            }
+        }
+
+        /* Every location row read before this has an old last_used, if it wasn't deleted */
+        mQueryCache.invalidate();
+        if (deletedRows > 0) {
+            getContext().getContentResolver()
+                    .notifyChange(WeatherContract.WeatherEntry.CONTENT_URI, null);
+        }
+        return deletedRows;
+    }
+
     /**
      * Handles query requests from clients. We will use this method in Sunshine to query for all
      * of our weather data as well as to query for the weather on a particular day.
@@ -195,13 +749,54 @@ public class WeatherProvider extends ContentProvider {
     public Cursor query(@NonNull Uri uri, String[] projection, String selection,
                         String[] selectionArgs, String sortOrder) {
 
-        Cursor cursor;
+        int match = sUriMatcher.match(uri);
+
+        /*
+         * Every weather URI is scoped to a location. The plain ones mean whichever location is
+         * preferred right now, so the location is part of the cache key as well.
+         */
+        String locationSetting = getLocationSetting(uri, match);
+
+        /*
+         * The forecast is read far more often than it is written, so most queries can be answered
+         * from memory. The generation is read before going to the database, so that the result is
+         * not cached if a write commits while we are reading.
+         */
+        String cacheKey = WeatherQueryCache.buildKey(uri, locationSetting, projection, selection,
+                selectionArgs, sortOrder);
+        Cursor cursor = mQueryCache.get(cacheKey);
+        if (cursor != null) {
+            cursor.setNotificationUri(getContext().getContentResolver(), uri);
+            return cursor;
+        }
+        long cacheGeneration = mQueryCache.getGeneration();
+
+        /*
+         * A location that has never been synced has no _ID yet, and -1 simply matches no rows.
+         * The location always comes first in the selection, which lets SQLite use the index on
+         * (location_id, date) for every query below.
+         */
+        String locationIdString = Long.toString(getLocationId(locationSetting));
 
         /*
          * Here's the switch statement that, given a URI, will determine what kind of request is
          * being made and query the database accordingly.
          */
-        switch (sUriMatcher.match(uri)) {
+        switch (match) {
+
+            /* content://com.example.android.sunshine/location/ lists the stored locations */
+            case CODE_LOCATION: {
+                cursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.LocationEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder);
+
+                break;
+            }
 
             /*
              * When sUriMatcher's match method is called with a URI that looks something like this
@@ -215,8 +810,11 @@ public class WeatherProvider extends ContentProvider {
              *
              * In this case, we want to return a cursor that contains one row of weather data for
              * a particular date.
+             *
+             * URIs for a location other than the preferred one end in a date the same way.
              */
-            case CODE_WEATHER_WITH_DATE: {
+            case CODE_WEATHER_WITH_DATE:
+            case CODE_WEATHER_FOR_LOCATION_WITH_DATE: {
 
                 /*
                  * In order to determine the date associated with this URI, we look at the last
@@ -227,11 +825,11 @@ public class WeatherProvider extends ContentProvider {
 
                 /*
                  * The query method accepts a string array of arguments, as there may be more
-                 * than one "?" in the selection statement. Even though in our case, we only have
-                 * one "?", we have to create a string array that only contains one element
-                 * because this method signature accepts a string array.
+                 * than one "?" in the selection statement. In our case, we have two "?": one for
+                 * the location and one for the date.
                  */
-                String[] selectionArguments = new String[]{normalizedUtcDateString};
+                String[] selectionArguments =
+                        new String[]{locationIdString, normalizedUtcDateString};
 
                 cursor = mOpenHelper.getReadableDatabase().query(
                         /* Table we are going to query */
@@ -252,7 +850,7 @@ public class WeatherProvider extends ContentProvider {
                          * within the selectionArguments array will be inserted into the
                          * selection statement by SQLite under the hood.
                          */
-                        WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ",
+                        SQL_SELECT_LOCATION_AND_DATE,
                         selectionArguments,
                         null,
                         null,
@@ -261,6 +859,55 @@ public class WeatherProvider extends ContentProvider {
                 break;
             }
 
+            /*
+             * content://com.example.android.sunshine/weather/range/{start}/{end} returns every
+             * day from start up to, but not including, end. Both dates are bound as arguments,
+             * so the statement is the same for every range, and the range is found through the
+             * index SQLite keeps for the UNIQUE (location_id, date) constraint. Any selection
+             * passed by the caller narrows the range further.
+             */
+            case CODE_WEATHER_RANGE: {
+                String rangeSelection = DatabaseUtils.concatenateWhere(
+                        SQL_SELECT_DATE_RANGE, selection);
+                String[] rangeSelectionArgs = DatabaseUtils.appendSelectionArgs(
+                        new String[]{
+                                locationIdString,
+                                Long.toString(WeatherContract.WeatherEntry.getStartDateFromUri(uri)),
+                                Long.toString(WeatherContract.WeatherEntry.getEndDateFromUri(uri))
+                        },
+                        selectionArgs);
+
+                cursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.WeatherEntry.TABLE_NAME,
+                        projection,
+                        rangeSelection,
+                        rangeSelectionArgs,
+                        null,
+                        null,
+                        sortOrder);
+
+                break;
+            }
+
+            /*
+             * content://com.example.android.sunshine/weather/page/{offset}/{limit} returns at
+             * most limit days, skipping the first offset ones. Pages are ordered by date unless
+             * the caller asks for another order, so that consecutive pages don't overlap.
+             */
+            case CODE_WEATHER_PAGE: {
+                cursor = queryPage(projection,
+                        DatabaseUtils.concatenateWhere(SQL_SELECT_LOCATION, selection),
+                        DatabaseUtils.appendSelectionArgs(
+                                new String[]{locationIdString}, selectionArgs),
+                        sortOrder != null
+                                ? sortOrder
+                                : WeatherContract.WeatherEntry.COLUMN_DATE + " ASC",
+                        WeatherContract.WeatherEntry.getPageOffsetFromUri(uri),
+                        WeatherContract.WeatherEntry.getPageLimitFromUri(uri));
+
+                break;
+            }
+
             /*
              * When sUriMatcher's match method is called with a URI that looks EXACTLY like this
              *
@@ -270,14 +917,16 @@ public class WeatherProvider extends ContentProvider {
              * to return all of the weather in our weather table.
              *
              * In this case, we want to return a cursor that contains every row of weather data
-             * in our weather table.
+             * in our weather table for the preferred location, or for the location in the URI.
              */
-            case CODE_WEATHER: {
+            case CODE_WEATHER:
+            case CODE_WEATHER_FOR_LOCATION: {
                 cursor = mOpenHelper.getReadableDatabase().query(
                         WeatherContract.WeatherEntry.TABLE_NAME,
                         projection,
-                        selection,
-                        selectionArgs,
+                        DatabaseUtils.concatenateWhere(SQL_SELECT_LOCATION, selection),
+                        DatabaseUtils.appendSelectionArgs(
+                                new String[]{locationIdString}, selectionArgs),
                         null,
                         null,
                         sortOrder);
@@ -289,10 +938,42 @@ public class WeatherProvider extends ContentProvider {
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
 
+        cursor = mQueryCache.put(cacheKey, cacheGeneration, cursor);
         cursor.setNotificationUri(getContext().getContentResolver(), uri);
         return cursor;
     }
 
+    /**
+     * Queries one page of weather. SQLiteDatabase#query only accepts a literal LIMIT clause, which
+     * would make every page a different statement, so the query is built here with the limit and
+     * offset bound as arguments after those of the selection.
+     */
+    private Cursor queryPage(String[] projection, String selection, String[] selectionArgs,
+                             String sortOrder, int offset, int limit) {
+        String sql = SQLiteQueryBuilder.buildQueryString(
+                false,
+                WeatherContract.WeatherEntry.TABLE_NAME,
+                projection,
+                selection,
+                null,
+                null,
+                sortOrder,
+                null) + " LIMIT ? OFFSET ?";
+
+        String[] pageSelectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                new String[]{Integer.toString(limit), Integer.toString(offset)});
+
+        return mOpenHelper.getReadableDatabase().rawQuery(sql, pageSelectionArgs);
+    }
+
+    /**
+     * Returns the cache of query results, so that its hit rate can be inspected. Like
+     * {@link #beginForecastMerge(Uri)}, this is only reachable from the provider's own process.
+     */
+    public WeatherQueryCache getQueryCache() {
+        return mQueryCache;
+    }
+
     /**
      * Deletes data at a given URI with optional arguments for more fine tuned deletions.
      *
@@ -316,13 +997,21 @@ public class WeatherProvider extends ContentProvider {
          */
         if (null == selection) selection = "1";
 
-        switch (sUriMatcher.match(uri)) {
+        int match = sUriMatcher.match(uri);
+
+        switch (match) {
 
+            /* Only the weather of the preferred location, or of the location in the URI, is deleted */
             case CODE_WEATHER:
+            case CODE_WEATHER_FOR_LOCATION:
+                String locationIdString =
+                        Long.toString(getLocationId(getLocationSetting(uri, match)));
+
                 numRowsDeleted = mOpenHelper.getWritableDatabase().delete(
                         WeatherContract.WeatherEntry.TABLE_NAME,
-                        selection,
-                        selectionArgs);
+                        DatabaseUtils.concatenateWhere(SQL_SELECT_LOCATION, selection),
+                        DatabaseUtils.appendSelectionArgs(
+                                new String[]{locationIdString}, selectionArgs));
 
                 break;
 
@@ -332,6 +1021,7 @@ public class WeatherProvider extends ContentProvider {
 
         /* If we actually deleted any rows, notify that a change has occurred to this URI */
         if (numRowsDeleted != 0) {
+            mQueryCache.invalidate();
             getContext().getContentResolver().notifyChange(uri, null);
         }
 
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.util.LruCache;
+
+import java.util.Arrays;
+
+/**
+ * An in-memory cache of the results of {@link WeatherProvider#query}. The forecast is only a few
+ * rows and is read by MainActivity, DetailActivity, the notification, the watch face and the
+ * empty check of the sync on nearly every launch, while it only changes once per sync. Serving
+ * those reads from memory saves a trip to SQLite for each of them.
+ * <p>
+ * Results are kept as immutable snapshots, and every hit is handed out as a new
+ * {@link MatrixCursor} over the snapshot, so callers can move and close their cursor freely.
+ * The snapshots are held in an {@link LruCache} sized by an estimate of their memory use.
+ * <p>
+ * The provider calls {@link #invalidate()} right after a write has committed. Every read
+ * remembers the {@link #getGeneration() generation} of the cache before it went to the
+ * database, and its result is only stored if no write committed in the meantime. That way a
+ * read that raced with a sync can never put the old forecast back into the cache.
+ */
+public class WeatherQueryCache {
+
+    /* The default memory budget for all cached results */
+    static final int DEFAULT_MAX_SIZE_BYTES = 256 * 1024;
+
+    /*
+     * Results with more rows than this are returned straight from SQLite and never copied. The
+     * forecast is 14 rows, so this only keeps unusual queries from flushing the cache.
+     */
+    static final int MAX_CACHED_ROWS = 512;
+
+    /* Rough per-object overhead on the heap, used to estimate the size of a snapshot */
+    private static final int OBJECT_OVERHEAD_BYTES = 16;
+
+    private final LruCache<String, Snapshot> mSnapshots;
+
+    private long mGeneration;
+
+    private long mHitCount;
+    private long mMissCount;
+    private long mInvalidationCount;
+
+    public WeatherQueryCache(int maxSizeBytes) {
+        mSnapshots = new LruCache<String, Snapshot>(maxSizeBytes) {
+            @Override
+            protected int sizeOf(String key, Snapshot snapshot) {
+                return key.length() * 2 + snapshot.mSizeBytes;
+            }
+        };
+    }
+
+    /**
+     * Builds the key of a query. Every argument of the query is part of it, since any of them
+     * can change the rows that are returned, and so is the location the query was resolved to.
+     */
+    static String buildKey(Uri uri, String locationSetting, String[] projection,
+                           String selection, String[] selectionArgs, String sortOrder) {
+        /* The unit separator can't appear in any sensible column name or argument */
+        final char separator = '\u001f';
+        return uri.toString()
+                + separator + locationSetting
+                + separator + Arrays.toString(projection)
+                + separator + selection
+                + separator + Arrays.toString(selectionArgs)
+                + separator + sortOrder;
+    }
+
+    /**
+     * Returns a new cursor over the cached result of a query, or null if it isn't cached.
+     */
+    public synchronized Cursor get(String key) {
+        Snapshot snapshot = mSnapshots.get(key);
+        if (snapshot == null) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        return snapshot.newCursor();
+    }
+
+    /**
+     * Returns the number of writes that have committed so far. Read this before querying the
+     * database and pass it to {@link #put} along with the result.
+     */
+    public synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Copies the result of a query into the cache and returns a cursor to hand to the caller in
+     * its place. The given cursor is closed if it was copied. If the result is too large to be
+     * cached, or a write has committed since generation was read, the cursor is returned as is.
+     *
+     * @param key        The key of the query, from {@link #buildKey}
+     * @param generation The generation read before the query was run
+     * @param cursor     The result of the query, positioned before its first row
+     * @return A cursor over the same rows as the given cursor
+     */
+    public Cursor put(String key, long generation, Cursor cursor) {
+        if (cursor.getCount() > MAX_CACHED_ROWS) {
+            return cursor;
+        }
+
+        Snapshot snapshot;
+        try {
+            snapshot = new Snapshot(cursor);
+        } finally {
+            cursor.close();
+        }
+
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mSnapshots.put(key, snapshot);
+            }
+        }
+        return snapshot.newCursor();
+    }
+
+    /**
+     * Drops every cached result. Called by the provider each time a write commits.
+     */
+    public synchronized void invalidate() {
+        mGeneration++;
+        mInvalidationCount++;
+        mSnapshots.evictAll();
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized long getInvalidationCount() {
+        return mInvalidationCount;
+    }
+
+    /**
+     * Returns the number of results that were pushed out to stay within the memory budget.
+     * Results dropped by {@link #invalidate()} are not counted.
+     */
+    public synchronized long getEvictionCount() {
+        return mSnapshots.evictionCount();
+    }
+
+    /**
+     * Returns the fraction of lookups that were served from memory, between 0 and 1.
+     */
+    public synchronized float getHitRate() {
+        long lookups = mHitCount + mMissCount;
+        return lookups == 0 ? 0f : (float) mHitCount / lookups;
+    }
+
+    /**
+     * Returns the estimated memory used by the cached results, in bytes.
+     */
+    public synchronized int getSizeBytes() {
+        return mSnapshots.size();
+    }
+
+    /**
+     * An immutable copy of the rows of a cursor.
+     */
+    private static class Snapshot {
+        final String[] mColumnNames;
+        final Object[][] mRows;
+        final int mSizeBytes;
+
+        Snapshot(Cursor cursor) {
+            mColumnNames = cursor.getColumnNames();
+            mRows = new Object[cursor.getCount()][];
+
+            int columnCount = mColumnNames.length;
+            int sizeBytes = OBJECT_OVERHEAD_BYTES * (mRows.length + 1);
+
+            int row = 0;
+            while (cursor.moveToNext()) {
+                Object[] values = new Object[columnCount];
+                for (int column = 0; column < columnCount; column++) {
+                    values[column] = readValue(cursor, column);
+                    sizeBytes += sizeOf(values[column]);
+                }
+                mRows[row++] = values;
+            }
+
+            mSizeBytes = sizeBytes;
+        }
+
+        Cursor newCursor() {
+            MatrixCursor cursor = new MatrixCursor(mColumnNames, mRows.length);
+            for (Object[] values : mRows) {
+                cursor.addRow(values);
+            }
+            return cursor;
+        }
+
+        private static Object readValue(Cursor cursor, int column) {
+            switch (cursor.getType(column)) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    return cursor.getLong(column);
+                case Cursor.FIELD_TYPE_FLOAT:
+                    return cursor.getDouble(column);
+                case Cursor.FIELD_TYPE_STRING:
+                    return cursor.getString(column);
+                case Cursor.FIELD_TYPE_BLOB:
+                    return cursor.getBlob(column);
+                default:
+                    return null;
+            }
+        }
+
+        private static int sizeOf(Object value) {
+            if (value instanceof String) {
+                return OBJECT_OVERHEAD_BYTES + ((String) value).length() * 2;
+            } else if (value instanceof byte[]) {
+                return OBJECT_OVERHEAD_BYTES + ((byte[]) value).length;
+            }
+            /* A reference in the row array plus the boxed Long or Double */
+            return OBJECT_OVERHEAD_BYTES + 8;
+        }
+    }
+}
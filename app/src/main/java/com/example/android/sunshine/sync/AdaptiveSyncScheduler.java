@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import com.firebase.jobdispatcher.Driver;
+import com.firebase.jobdispatcher.FirebaseJobDispatcher;
+import com.firebase.jobdispatcher.GooglePlayDriver;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides how often the forecast of a location is synced, based on how often syncing it has
+ * actually brought in a different forecast.
+ * <p>
+ * Every sync that got an answer is recorded as changed or unchanged. The scheduler keeps an
+ * exponentially weighted change rate per location, between 0 (the forecast never changes) and 1
+ * (it changes every time), and picks the sync interval on a logarithmic scale between the
+ * bounds of its {@link Config}: the shortest interval when every sync changes something, the
+ * longest when none does. A location that is synced for the first time starts at the initial
+ * interval. Whenever the interval changes, the periodic sync job is scheduled again.
+ * <p>
+ * The history is kept in its own SharedPreferences file so that it survives restarts. Time comes
+ * from a {@link Clock} and jobs go to a {@link Driver}, so tests can use fakes for both.
+ */
+public class AdaptiveSyncScheduler {
+
+    private static final String TAG = AdaptiveSyncScheduler.class.getSimpleName();
+
+    private static final String HISTORY_PREFERENCES = "sync_history";
+
+    /* Keys of the history of a location are the location setting followed by these */
+    private static final String CHANGE_RATE_SUFFIX = "#change_rate";
+    private static final String INTERVAL_SUFFIX = "#interval_seconds";
+    private static final String SYNC_COUNT_SUFFIX = "#sync_count";
+    private static final String FIRST_SYNC_SUFFIX = "#first_sync_millis";
+    private static final String LAST_STORED_SUFFIX = "#last_stored_millis";
+
+    /* Intervals closer than this to the scheduled one aren't worth rescheduling for */
+    private static final double RESCHEDULE_THRESHOLD = 0.1;
+
+    /**
+     * The source of the current time, so that tests can move time along themselves.
+     */
+    public interface Clock {
+        long currentTimeMillis();
+    }
+
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    /**
+     * The bounds the sync interval stays within, and how quickly it follows the change rate.
+     */
+    public static final class Config {
+
+        /*
+         * The interval Sunshine used to sync at no matter what. Savings are counted against it,
+         * and new locations start from it.
+         */
+        static final int FIXED_INTERVAL_SECONDS = (int) TimeUnit.HOURS.toSeconds(3);
+
+        public static final Config DEFAULT = new Config(
+                (int) TimeUnit.HOURS.toSeconds(1),
+                (int) TimeUnit.HOURS.toSeconds(12),
+                FIXED_INTERVAL_SECONDS,
+                0.3);
+
+        final int mMinIntervalSeconds;
+        final int mMaxIntervalSeconds;
+        final int mInitialIntervalSeconds;
+        final double mSmoothing;
+
+        /**
+         * @param minIntervalSeconds     Interval used when every sync changes the forecast
+         * @param maxIntervalSeconds     Interval used when no sync changes the forecast
+         * @param initialIntervalSeconds Interval of a location without any history
+         * @param smoothing              Weight of the latest sync in the change rate, between 0
+         *                               and 1. Higher values react faster.
+         */
+        public Config(int minIntervalSeconds, int maxIntervalSeconds, int initialIntervalSeconds,
+                      double smoothing) {
+            if (minIntervalSeconds <= 0 || maxIntervalSeconds < minIntervalSeconds) {
+                throw new IllegalArgumentException("Invalid interval bounds "
+                        + minIntervalSeconds + ".." + maxIntervalSeconds);
+            }
+            if (smoothing <= 0 || smoothing > 1) {
+                throw new IllegalArgumentException("Smoothing must be in (0, 1]: " + smoothing);
+            }
+            mMinIntervalSeconds = minIntervalSeconds;
+            mMaxIntervalSeconds = maxIntervalSeconds;
+            mInitialIntervalSeconds = Math.max(minIntervalSeconds,
+                    Math.min(maxIntervalSeconds, initialIntervalSeconds));
+            mSmoothing = smoothing;
+        }
+    }
+
+    private static AdaptiveSyncScheduler sInstance;
+
+    private final Context mContext;
+    private final SharedPreferences mHistory;
+    private final Config mConfig;
+    private final Clock mClock;
+    private final Driver mDriver;
+
+    @VisibleForTesting
+    AdaptiveSyncScheduler(Context context, String historyName, Config config, Clock clock,
+                          Driver driver) {
+        mContext = context.getApplicationContext();
+        mHistory = mContext.getSharedPreferences(historyName, Context.MODE_PRIVATE);
+        mConfig = config;
+        mClock = clock;
+        mDriver = driver;
+    }
+
+    /**
+     * Returns the scheduler used by the app, which runs its jobs through Google Play services.
+     */
+    public static synchronized AdaptiveSyncScheduler getInstance(@NonNull Context context) {
+        if (sInstance == null) {
+            sInstance = new AdaptiveSyncScheduler(context, HISTORY_PREFERENCES, Config.DEFAULT,
+                    SYSTEM_CLOCK, new GooglePlayDriver(context.getApplicationContext()));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Schedules the periodic sync of a location at the interval its history calls for. This
+     * replaces the sync job of any other location: there is one periodic sync, which keeps every
+     * stored location current at the interval of the preferred one.
+     *
+     * @param locationSetting The location to sync
+     */
+    public synchronized void schedulePeriodicSync(@NonNull String locationSetting) {
+        int intervalSeconds = getIntervalSeconds(locationSetting);
+
+        FirebaseJobDispatcher dispatcher = new FirebaseJobDispatcher(mDriver);
+        dispatcher.schedule(SunshineSyncUtils.buildPeriodicSyncJob(dispatcher, intervalSeconds));
+
+        mHistory.edit().putInt(locationSetting + INTERVAL_SUFFIX, intervalSeconds).apply();
+    }
+
+    /**
+     * Records the outcome of a sync of a location, and reschedules the periodic sync if the
+     * change rate now calls for a noticeably different interval. Syncs that failed or were
+     * cancelled say nothing about how often the forecast changes and are ignored.
+     *
+     * @param locationSetting The location that was synced
+     * @param result          What the sync did
+     */
+    public synchronized void onSyncFinished(@NonNull String locationSetting,
+                                            @NonNull WeatherSyncResult result) {
+        int status = result.getStatus();
+        if (status != WeatherSyncResult.STATUS_UPDATED
+                && status != WeatherSyncResult.STATUS_UNCHANGED) {
+            return;
+        }
+
+        double changed = status == WeatherSyncResult.STATUS_UPDATED ? 1 : 0;
+        int syncCount = mHistory.getInt(locationSetting + SYNC_COUNT_SUFFIX, 0);
+
+        /* The first sync always brings in a forecast, so it is no evidence either way */
+        double changeRate;
+        if (syncCount == 0) {
+            changeRate = getInitialChangeRate();
+        } else {
+            changeRate = getChangeRate(locationSetting);
+            changeRate += mConfig.mSmoothing * (changed - changeRate);
+        }
+
+        SharedPreferences.Editor editor = mHistory.edit()
+                .putFloat(locationSetting + CHANGE_RATE_SUFFIX, (float) changeRate)
+                .putInt(locationSetting + SYNC_COUNT_SUFFIX, syncCount + 1);
+        if (syncCount == 0) {
+            editor.putLong(locationSetting + FIRST_SYNC_SUFFIX, mClock.currentTimeMillis());
+        }
+        editor.apply();
+
+        int scheduledSeconds = mHistory.getInt(locationSetting + INTERVAL_SUFFIX, -1);
+        int intervalSeconds = getIntervalSeconds(locationSetting);
+        if (scheduledSeconds != -1
+                && Math.abs(intervalSeconds - scheduledSeconds)
+                > RESCHEDULE_THRESHOLD * scheduledSeconds) {
+            Log.d(TAG, "Sync interval for " + locationSetting + " is now "
+                    + intervalSeconds + "s (was " + scheduledSeconds + "s)");
+            schedulePeriodicSync(locationSetting);
+        }
+    }
+
+    /**
+     * Records that the stored forecast of a location was just fetched or confirmed by the server
+     * to still be current. Unlike {@link #onSyncFinished}, this is recorded for every location,
+     * whether or not it is the one synced periodically.
+     *
+     * @param locationSetting The location whose forecast is current
+     */
+    public synchronized void onForecastStored(@NonNull String locationSetting) {
+        mHistory.edit()
+                .putLong(locationSetting + LAST_STORED_SUFFIX, mClock.currentTimeMillis())
+                .apply();
+    }
+
+    /**
+     * Returns whether the stored forecast of a location is older than the interval the location
+     * is synced at, which is as long as its periodic sync would have let it get. A location
+     * that has never been synced is always stale.
+     */
+    public synchronized boolean isForecastStale(@NonNull String locationSetting) {
+        long lastStoredMillis = mHistory.getLong(locationSetting + LAST_STORED_SUFFIX, -1);
+        if (lastStoredMillis == -1) {
+            return true;
+        }
+
+        long ageMillis = mClock.currentTimeMillis() - lastStoredMillis;
+        return ageMillis < 0
+                || ageMillis >= TimeUnit.SECONDS.toMillis(getIntervalSeconds(locationSetting));
+    }
+
+    /**
+     * Returns the interval the location should be synced at, given its history.
+     */
+    public synchronized int getIntervalSeconds(@NonNull String locationSetting) {
+        if (mHistory.getInt(locationSetting + SYNC_COUNT_SUFFIX, 0) == 0) {
+            return mConfig.mInitialIntervalSeconds;
+        }
+
+        double changeRate = getChangeRate(locationSetting);
+        double ratio = (double) mConfig.mMaxIntervalSeconds / mConfig.mMinIntervalSeconds;
+        return (int) Math.round(mConfig.mMinIntervalSeconds * Math.pow(ratio, 1 - changeRate));
+    }
+
+    /**
+     * Returns the change rate of a location: 0 if syncing it never changes the forecast, 1 if
+     * it always does.
+     */
+    public synchronized double getChangeRate(@NonNull String locationSetting) {
+        return mHistory.getFloat(locationSetting + CHANGE_RATE_SUFFIX,
+                (float) getInitialChangeRate());
+    }
+
+    /**
+     * Returns how many fewer requests per day the location has needed since its first recorded
+     * sync than it would have at Sunshine's old fixed interval. This is negative if the forecast
+     * is so volatile that it is synced more often than it used to be.
+     */
+    public synchronized double getRequestsSavedPerDay(@NonNull String locationSetting) {
+        int syncCount = mHistory.getInt(locationSetting + SYNC_COUNT_SUFFIX, 0);
+        if (syncCount == 0) {
+            return 0;
+        }
+
+        long elapsedMillis = mClock.currentTimeMillis()
+                - mHistory.getLong(locationSetting + FIRST_SYNC_SUFFIX, 0);
+        long fixedIntervalMillis = TimeUnit.SECONDS.toMillis(Config.FIXED_INTERVAL_SECONDS);
+        if (elapsedMillis < fixedIntervalMillis) {
+            return 0;
+        }
+
+        /* The first sync would have happened at the fixed interval as well */
+        double fixedRequests = 1 + (double) elapsedMillis / fixedIntervalMillis;
+        double elapsedDays = (double) elapsedMillis / TimeUnit.DAYS.toMillis(1);
+        return (fixedRequests - syncCount) / elapsedDays;
+    }
+
+    /**
+     * Forgets the history of every location.
+     */
+    public synchronized void clearHistory() {
+        mHistory.edit().clear().apply();
+    }
+
+    /* The change rate at which a location gets the initial interval */
+    private double getInitialChangeRate() {
+        double ratio = (double) mConfig.mMaxIntervalSeconds / mConfig.mMinIntervalSeconds;
+        if (ratio == 1) {
+            return 1;
+        }
+        return 1 - Math.log((double) mConfig.mInitialIntervalSeconds
+                / mConfig.mMinIntervalSeconds) / Math.log(ratio);
+    }
+}
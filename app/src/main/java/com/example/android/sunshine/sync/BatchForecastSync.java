@@ -0,0 +1,458 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.ContentProviderClient;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.VisibleForTesting;
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.os.OperationCanceledException;
+import android.util.Log;
+
+import com.example.android.sunshine.data.ForecastBatch;
+import com.example.android.sunshine.data.ForecastMerge;
+import com.example.android.sunshine.data.SunshinePreferences;
+import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.data.WeatherProvider;
+import com.example.android.sunshine.utilities.NetworkUtils;
+import com.example.android.sunshine.utilities.OpenWeatherJsonUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Syncs the forecast of every stored location at once, rather than only the preferred one.
+ * <p>
+ * The forecasts are downloaded and parsed in parallel, but never more than a given number at a
+ * time, so that a user with many saved cities doesn't open dozens of connections at once. Each
+ * forecast is parsed into a {@link ForecastBatch}. Once every download has finished, all of
+ * them are merged into the stored forecasts in a single transaction, with
+ * {@link WeatherProvider#mergeForecasts(Map)}, so observers see one change rather than one per
+ * location. A location that fails to download doesn't keep the others from being stored.
+ * <p>
+ * This is a single attempt. {@link SunshineSyncTask#syncAllLocations} runs it for the periodic
+ * sync, and takes care of retries and of locations that are already being synced.
+ */
+public final class BatchForecastSync {
+
+    private static final String TAG = BatchForecastSync.class.getSimpleName();
+
+    /* How many forecasts are downloaded at the same time, unless the caller says otherwise */
+    public static final int DEFAULT_MAX_PARALLEL_REQUESTS = 4;
+
+    private BatchForecastSync() {
+    }
+
+    /**
+     * What a batch sync did.
+     */
+    public static final class Result {
+
+        private final int mLocationCount;
+        private final List<String> mChangedLocations;
+        private final List<String> mUnchangedLocations;
+        private final List<String> mRetryableFailedLocations;
+        private final int mFailedCount;
+        private final int mMaxConcurrentRequests;
+        private final long mBytesRead;
+        private final int mDaysParsed;
+        private final long mElapsedMillis;
+        private final boolean mCancelled;
+
+        Result(int locationCount, List<String> changedLocations,
+               List<String> unchangedLocations, List<String> retryableFailedLocations,
+               int failedCount, int maxConcurrentRequests, long bytesRead, int daysParsed,
+               long elapsedMillis, boolean cancelled) {
+            mLocationCount = locationCount;
+            mChangedLocations = changedLocations;
+            mUnchangedLocations = unchangedLocations;
+            mRetryableFailedLocations = retryableFailedLocations;
+            mFailedCount = failedCount;
+            mMaxConcurrentRequests = maxConcurrentRequests;
+            mBytesRead = bytesRead;
+            mDaysParsed = daysParsed;
+            mElapsedMillis = elapsedMillis;
+            mCancelled = cancelled;
+        }
+
+        /** Returns the number of locations the batch was asked to sync. */
+        public int getLocationCount() {
+            return mLocationCount;
+        }
+
+        /** Returns the number of locations whose stored forecast changed. */
+        public int getChangedCount() {
+            return mChangedLocations.size();
+        }
+
+        /** Returns the locations whose stored forecast changed. */
+        public List<String> getChangedLocations() {
+            return mChangedLocations;
+        }
+
+        /**
+         * Returns the number of locations whose forecast hadn't changed, whether the server said
+         * so or the new forecast matched the stored one.
+         */
+        public int getUnchangedCount() {
+            return mUnchangedLocations.size();
+        }
+
+        /** Returns the locations whose stored forecast was already current. */
+        public List<String> getUnchangedLocations() {
+            return mUnchangedLocations;
+        }
+
+        /** Returns the number of locations whose forecast couldn't be fetched or parsed. */
+        public int getFailedCount() {
+            return mFailedCount;
+        }
+
+        /**
+         * Returns the locations that failed in a way that may go away by itself, such as a
+         * timeout or a server error, and are worth trying again.
+         */
+        public List<String> getRetryableFailedLocations() {
+            return mRetryableFailedLocations;
+        }
+
+        /** Returns the largest number of requests that were running at the same time. */
+        public int getMaxConcurrentRequests() {
+            return mMaxConcurrentRequests;
+        }
+
+        /**
+         * Returns the number of bytes read from every response, including those of locations
+         * that failed or of a batch that was cancelled.
+         */
+        public long getBytesRead() {
+            return mBytesRead;
+        }
+
+        /**
+         * Returns the number of days parsed from the responses that were downloaded in full. If
+         * the batch was cancelled, none of them were stored.
+         */
+        public int getDaysParsed() {
+            return mDaysParsed;
+        }
+
+        public long getElapsedMillis() {
+            return mElapsedMillis;
+        }
+
+        /** Returns true if the batch was cancelled, in which case nothing was stored. */
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        @Override
+        public String toString() {
+            return "BatchForecastSync.Result{locations=" + mLocationCount
+                    + ", changed=" + getChangedCount()
+                    + ", unchanged=" + getUnchangedCount()
+                    + ", failed=" + mFailedCount
+                    + ", maxConcurrentRequests=" + mMaxConcurrentRequests
+                    + ", bytesRead=" + mBytesRead
+                    + ", daysParsed=" + mDaysParsed
+                    + ", elapsedMillis=" + mElapsedMillis
+                    + ", cancelled=" + mCancelled + "}";
+        }
+    }
+
+    /**
+     * Returns every location in the location table, which holds every location the user has
+     * looked at recently.
+     *
+     * @param context Used to access the ContentResolver
+     */
+    static List<String> getStoredLocations(Context context) {
+        List<String> locations = new ArrayList<String>();
+
+        Cursor cursor = context.getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING},
+                null,
+                null,
+                null);
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    locations.add(cursor.getString(0));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return locations;
+    }
+
+    /**
+     * Downloads the forecast of each location from its URL, at most
+     * {@code maxParallelRequests} at a time, and stores all of them in one transaction.
+     *
+     * @param context             Used to access the ContentResolver and the saved validators
+     * @param locationUrls        The URL to fetch the forecast of each location from, keyed by
+     *                            location setting
+     * @param maxParallelRequests The most requests to run at the same time
+     * @param cancellationSignal  Signal to abort the whole batch with, or null
+     * @return What the batch did
+     */
+    @VisibleForTesting
+    static Result syncLocations(final Context context, Map<String, URL> locationUrls,
+                                int maxParallelRequests, CancellationSignal cancellationSignal) {
+
+        if (maxParallelRequests < 1) {
+            throw new IllegalArgumentException("maxParallelRequests must be at least 1");
+        }
+
+        long startMillis = SystemClock.elapsedRealtime();
+        final String preferredLocation = SunshinePreferences.getPreferredWeatherLocation(context);
+
+        /*
+         * A CancellationSignal only has room for one listener, and each request sets its own to
+         * disconnect when cancelled. So every request gets a signal of its own, and cancelling
+         * the batch cancels all of them.
+         */
+        final List<CancellationSignal> requestSignals = new ArrayList<CancellationSignal>();
+        for (int i = 0; i < locationUrls.size(); i++) {
+            requestSignals.add(new CancellationSignal());
+        }
+        if (cancellationSignal != null) {
+            cancellationSignal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    cancelAll(requestSignals);
+                }
+            });
+        }
+
+        final AtomicInteger runningRequests = new AtomicInteger();
+        final AtomicInteger maxConcurrentRequests = new AtomicInteger();
+        final AtomicLong bytesRead = new AtomicLong();
+
+        ExecutorService executor = createFetchExecutor(
+                Math.min(maxParallelRequests, Math.max(1, locationUrls.size())));
+        LinkedHashMap<String, Future<ForecastBatch>> downloads =
+                new LinkedHashMap<String, Future<ForecastBatch>>();
+        try {
+            int index = 0;
+            for (final Map.Entry<String, URL> location : locationUrls.entrySet()) {
+                final CancellationSignal requestSignal = requestSignals.get(index++);
+                downloads.put(location.getKey(), executor.submit(new Callable<ForecastBatch>() {
+                    @Override
+                    public ForecastBatch call() throws IOException {
+                        int running = runningRequests.incrementAndGet();
+                        try {
+                            updateMax(maxConcurrentRequests, running);
+
+                            /*
+                             * Only the preferred location's forecast may update the coordinates
+                             * that are stored for the preferred location.
+                             */
+                            boolean isPreferredLocation =
+                                    location.getKey().equals(preferredLocation);
+                            return fetchForecast(context, location.getValue(),
+                                    isPreferredLocation, bytesRead, requestSignal);
+                        } finally {
+                            runningRequests.decrementAndGet();
+                        }
+                    }
+                }));
+            }
+
+            /* Wait for every download, so that they can all be stored together */
+            HashMap<String, ForecastBatch> forecasts = new HashMap<String, ForecastBatch>();
+            List<String> changedLocations = new ArrayList<String>();
+            List<String> unchangedLocations = new ArrayList<String>();
+            List<String> retryableFailedLocations = new ArrayList<String>();
+            int failedCount = 0;
+            int daysParsed = 0;
+            for (Map.Entry<String, Future<ForecastBatch>> download : downloads.entrySet()) {
+                try {
+                    ForecastBatch forecast = download.getValue().get();
+                    if (forecast == null) {
+                        unchangedLocations.add(download.getKey());
+                    } else {
+                        forecasts.put(download.getKey(), forecast);
+                        daysParsed += forecast.size();
+                    }
+                } catch (ExecutionException e) {
+                    if (!(e.getCause() instanceof OperationCanceledException)) {
+                        Log.w(TAG, "Couldn't sync " + download.getKey(), e.getCause());
+                    }
+                    if (RetryPolicy.isRetryable(e.getCause())) {
+                        retryableFailedLocations.add(download.getKey());
+                    }
+                    failedCount++;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    cancelAll(requestSignals);
+                    break;
+                }
+            }
+
+            boolean cancelled = (cancellationSignal != null && cancellationSignal.isCanceled())
+                    || Thread.currentThread().isInterrupted();
+            if (cancelled) {
+                return new Result(locationUrls.size(), new ArrayList<String>(),
+                        new ArrayList<String>(), new ArrayList<String>(), 0,
+                        maxConcurrentRequests.get(), bytesRead.get(), daysParsed,
+                        SystemClock.elapsedRealtime() - startMillis, true);
+            }
+
+            if (!forecasts.isEmpty()) {
+                Map<String, ForecastMerge> merges = mergeForecasts(context, forecasts);
+                for (Map.Entry<String, ForecastMerge> merge : merges.entrySet()) {
+                    if (merge.getValue().hasChanges()) {
+                        changedLocations.add(merge.getKey());
+                    } else {
+                        unchangedLocations.add(merge.getKey());
+                    }
+                }
+
+                ForecastMerge preferredMerge = merges.get(preferredLocation);
+                if (preferredMerge != null && preferredMerge.hasChanges()) {
+                    SunshineSyncTask.announceNewWeather(context);
+                }
+            }
+
+            /*
+             * The forecasts are stored or were confirmed current, so the next sync can ask whether
+             * they changed.
+             */
+            List<URL> storedUrls = new ArrayList<URL>();
+            for (String locationSetting : changedLocations) {
+                storedUrls.add(locationUrls.get(locationSetting));
+            }
+            for (String locationSetting : unchangedLocations) {
+                storedUrls.add(locationUrls.get(locationSetting));
+            }
+            if (!storedUrls.isEmpty()) {
+                NetworkUtils.saveResponseValidators(context,
+                        storedUrls.toArray(new URL[storedUrls.size()]));
+            }
+
+            /* Switching to any of these locations won't need the network for a while */
+            AdaptiveSyncScheduler scheduler = AdaptiveSyncScheduler.getInstance(context);
+            for (String locationSetting : changedLocations) {
+                scheduler.onForecastStored(locationSetting);
+            }
+            for (String locationSetting : unchangedLocations) {
+                scheduler.onForecastStored(locationSetting);
+            }
+
+            Result result = new Result(locationUrls.size(), changedLocations, unchangedLocations,
+                    retryableFailedLocations, failedCount, maxConcurrentRequests.get(),
+                    bytesRead.get(), daysParsed, SystemClock.elapsedRealtime() - startMillis,
+                    false);
+            Log.d(TAG, result.toString());
+            return result;
+
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Downloads and parses the forecast of one location, adding the bytes it reads to bytesRead.
+     *
+     * @return The forecast, or null if the one that was stored last time is still current
+     * @throws IOException If the forecast couldn't be downloaded, or the response was an error,
+     *                     in which case it is a {@link NetworkUtils.HttpStatusException}
+     */
+    private static ForecastBatch fetchForecast(Context context, URL url,
+                                               boolean isPreferredLocation, AtomicLong bytesRead,
+                                               CancellationSignal cancellationSignal)
+            throws IOException {
+
+        InputStream responseStream =
+                NetworkUtils.getResponseStreamFromHttpUrl(context, url, cancellationSignal);
+        if (responseStream == null) {
+            return null;
+        }
+
+        /* OpenWeatherMap puts the HTTP status of an error, such as an unknown city, in the body */
+        ForecastBatch forecast = new ForecastBatch();
+        int responseCode = OpenWeatherJsonUtils.parseForecastFromJson(
+                isPreferredLocation ? context : null,
+                new NetworkUtils.CountingInputStream(responseStream, bytesRead), forecast);
+        if (responseCode != HttpURLConnection.HTTP_OK) {
+            throw new NetworkUtils.HttpStatusException(responseCode, url);
+        }
+        return forecast;
+    }
+
+    private static Map<String, ForecastMerge> mergeForecasts(Context context,
+                                                             Map<String, ForecastBatch> forecasts) {
+        ContentProviderClient weatherProviderClient = context.getContentResolver()
+                .acquireContentProviderClient(WeatherContract.CONTENT_AUTHORITY);
+        try {
+            WeatherProvider weatherProvider =
+                    (WeatherProvider) weatherProviderClient.getLocalContentProvider();
+            return weatherProvider.mergeForecasts(forecasts);
+        } finally {
+            weatherProviderClient.release();
+        }
+    }
+
+    private static void cancelAll(List<CancellationSignal> signals) {
+        for (CancellationSignal signal : signals) {
+            signal.cancel();
+        }
+    }
+
+    private static void updateMax(AtomicInteger max, int value) {
+        int current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /* One thread per allowed request, so the pool size is the parallelism cap */
+    private static ExecutorService createFetchExecutor(int threadCount) {
+        return Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, "SunshineBatchSync");
+            }
+        });
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+/**
+ * Stops syncs from reaching a server that keeps failing.
+ * <p>
+ * The breaker starts out closed, letting every request through. After a number of failures in a
+ * row it opens, and requests are turned away without touching the network. Once it has been
+ * open for a while, it lets a single request through to probe the server: if that succeeds the
+ * breaker closes again, and if it fails the breaker stays open for another while.
+ * <p>
+ * Only failures that say something about the health of the server should be reported. An
+ * unknown city is the server working correctly.
+ */
+final class CircuitBreaker {
+
+    static final int STATE_CLOSED = 0;
+    static final int STATE_OPEN = 1;
+    static final int STATE_HALF_OPEN = 2;
+
+    private final int mFailureThreshold;
+    private final long mOpenMillis;
+    private final AdaptiveSyncScheduler.Clock mClock;
+
+    private int mState = STATE_CLOSED;
+    private int mConsecutiveFailures;
+    private long mOpenedAtMillis;
+
+    /* Whether the single request allowed through while half open is still running */
+    private boolean mProbeInFlight;
+
+    private long mRejectedCount;
+
+    /**
+     * @param failureThreshold Failures in a row that open the breaker
+     * @param openMillis       How long the breaker stays open before it probes the server
+     * @param clock            The source of the current time
+     */
+    CircuitBreaker(int failureThreshold, long openMillis, AdaptiveSyncScheduler.Clock clock) {
+        if (failureThreshold < 1 || openMillis < 0) {
+            throw new IllegalArgumentException("Invalid circuit breaker settings");
+        }
+        mFailureThreshold = failureThreshold;
+        mOpenMillis = openMillis;
+        mClock = clock;
+    }
+
+    /**
+     * Returns whether a request may go to the server. Every request that is allowed must be
+     * followed by {@link #onSuccess()}, {@link #onFailure()} or {@link #onAbandoned()}.
+     */
+    synchronized boolean allowRequest() {
+        if (mState == STATE_OPEN
+                && mClock.currentTimeMillis() - mOpenedAtMillis >= mOpenMillis) {
+            mState = STATE_HALF_OPEN;
+        }
+
+        if (mState == STATE_CLOSED) {
+            return true;
+        }
+        if (mState == STATE_HALF_OPEN && !mProbeInFlight) {
+            mProbeInFlight = true;
+            return true;
+        }
+
+        mRejectedCount++;
+        return false;
+    }
+
+    /** The server answered properly, so it is healthy. */
+    synchronized void onSuccess() {
+        mState = STATE_CLOSED;
+        mConsecutiveFailures = 0;
+        mProbeInFlight = false;
+    }
+
+    /** The server failed in a way that may mean it is unhealthy. */
+    synchronized void onFailure() {
+        mConsecutiveFailures++;
+        if (mState == STATE_HALF_OPEN || mConsecutiveFailures >= mFailureThreshold) {
+            mState = STATE_OPEN;
+            mOpenedAtMillis = mClock.currentTimeMillis();
+        }
+        mProbeInFlight = false;
+    }
+
+    /** The request ended without telling anything about the server, such as when cancelled. */
+    synchronized void onAbandoned() {
+        mProbeInFlight = false;
+    }
+
+    synchronized int getState() {
+        return mState;
+    }
+
+    /** Returns the number of requests that were turned away while the breaker was open. */
+    synchronized long getRejectedCount() {
+        return mRejectedCount;
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.support.v4.os.CancellationSignal;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Where {@link SunshineSyncTask} gets the forecast of a location from. The app uses
+ * {@link HttpForecastSource}, which asks the weather server; tests and load tests can plug in a
+ * source that never touches the network.
+ * <p>
+ * A source may be used by several syncs at the same time, for different locations.
+ */
+public interface ForecastSource {
+
+    /**
+     * Opens the forecast of a location as OpenWeatherMap JSON.
+     *
+     * @param context            Used to access preferences and saved state
+     * @param locationSetting    The location to get the forecast of
+     * @param cancellationSignal Signal that aborts the request, or null
+     * @return A stream over the forecast that the caller must close, or null if the forecast
+     * stored for the location last time is still current
+     * @throws IOException If the forecast could not be opened
+     */
+    InputStream openForecast(Context context, String locationSetting,
+                             CancellationSignal cancellationSignal) throws IOException;
+
+    /**
+     * Called once the forecast last opened for a location has been stored, or turned out to be
+     * the one already stored. A source can only rely on the stored forecast from then on, for
+     * instance to ask the server whether it has changed.
+     *
+     * @param context         Used to access preferences and saved state
+     * @param locationSetting The location whose forecast was stored
+     */
+    void onForecastStored(Context context, String locationSetting);
+}
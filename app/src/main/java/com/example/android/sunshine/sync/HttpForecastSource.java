@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.support.v4.os.CancellationSignal;
+
+import com.example.android.sunshine.utilities.NetworkUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.HashMap;
+
+/**
+ * Gets forecasts from the weather server over HTTP, with the revalidating cache, compression and
+ * cancellation of {@link NetworkUtils}.
+ */
+public class HttpForecastSource implements ForecastSource {
+
+    /* The URL every location is fetched from, or null to build one per location */
+    private final URL mUrl;
+
+    /*
+     * The URL each location was last opened with. Parsing a forecast can store coordinates for
+     * the preferred location, which changes the URL NetworkUtils builds for it, so the
+     * validators have to be saved for the URL that was actually requested.
+     */
+    private final HashMap<String, URL> mOpenedUrls = new HashMap<String, URL>();
+
+    /**
+     * Creates a source that asks the weather server for each location with the URL
+     * {@link NetworkUtils#getUrl(Context, String)} builds for it.
+     */
+    public HttpForecastSource() {
+        this(null);
+    }
+
+    /**
+     * Creates a source that gets every forecast from the same URL, such as that of a test
+     * server.
+     */
+    public HttpForecastSource(URL url) {
+        mUrl = url;
+    }
+
+    @Override
+    public InputStream openForecast(Context context, String locationSetting,
+                                    CancellationSignal cancellationSignal) throws IOException {
+        URL url = mUrl != null ? mUrl : NetworkUtils.getUrl(context, locationSetting);
+        if (url == null) {
+            throw new IOException("No URL for " + locationSetting);
+        }
+
+        synchronized (mOpenedUrls) {
+            mOpenedUrls.put(locationSetting, url);
+        }
+        return NetworkUtils.getResponseStreamFromHttpUrl(context, url, cancellationSignal);
+    }
+
+    @Override
+    public void onForecastStored(Context context, String locationSetting) {
+        URL url;
+        synchronized (mOpenedUrls) {
+            url = mOpenedUrls.remove(locationSetting);
+        }
+        if (url != null) {
+            NetworkUtils.saveResponseValidators(context, url);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.util.MalformedJsonException;
+
+import com.example.android.sunshine.utilities.NetworkUtils;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.Random;
+
+/**
+ * How often, and how far apart, a failed sync is tried again, and which failures are worth
+ * trying again at all.
+ * <p>
+ * The wait before each retry doubles, up to a maximum, and is jittered: it is somewhere between
+ * half of the doubled delay and all of it. Without jitter, every device that saw the server fail
+ * at the same moment would come back at the same moment too.
+ */
+final class RetryPolicy {
+
+    /* Three tries, 1 to 2 seconds apart and then 2 to 4, well within the time a job gets */
+    static final RetryPolicy DEFAULT = new RetryPolicy(3, 2000, 30000);
+
+    /* Too many requests, a rate limit that clears by itself */
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private final int mMaxAttempts;
+    private final long mBaseDelayMillis;
+    private final long mMaxDelayMillis;
+
+    /**
+     * @param maxAttempts     The most times a sync is tried, including the first
+     * @param baseDelayMillis The longest wait before the first retry
+     * @param maxDelayMillis  The longest wait before any retry
+     */
+    RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+        if (maxAttempts < 1 || baseDelayMillis < 0 || maxDelayMillis < baseDelayMillis) {
+            throw new IllegalArgumentException("Invalid retry policy");
+        }
+        mMaxAttempts = maxAttempts;
+        mBaseDelayMillis = baseDelayMillis;
+        mMaxDelayMillis = maxDelayMillis;
+    }
+
+    int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    /**
+     * Returns how long to wait before trying again after the given number of failed attempts.
+     *
+     * @param failedAttempts The number of attempts that have failed so far, at least 1
+     * @param random         The source of the jitter
+     */
+    long getBackoffMillis(int failedAttempts, Random random) {
+        /* Shifting by more than this would overflow; the maximum has long been reached by then */
+        int doublings = Math.min(failedAttempts - 1, 30);
+        long delayMillis = Math.min(mMaxDelayMillis, mBaseDelayMillis << doublings);
+
+        long halfDelayMillis = delayMillis / 2;
+        return halfDelayMillis + (long) (random.nextDouble() * (delayMillis - halfDelayMillis));
+    }
+
+    /**
+     * Returns whether a sync that failed with this exception may succeed if it is tried again.
+     * Network trouble, timeouts and server errors are; a response that can't be parsed, or an
+     * error status that says the request itself is wrong, are not.
+     */
+    static boolean isRetryable(Throwable e) {
+        if (e instanceof NetworkUtils.HttpStatusException) {
+            return isRetryableStatus(((NetworkUtils.HttpStatusException) e).getStatusCode());
+        }
+        if (e instanceof MalformedJsonException || e instanceof FileNotFoundException) {
+            return false;
+        }
+        /* Timeouts, refused connections, unknown hosts and connections cut short */
+        return e instanceof IOException;
+    }
+
+    /**
+     * Returns whether a request that got this HTTP status, or this "cod" in the body of an
+     * OpenWeatherMap response, may succeed if it is tried again.
+     */
+    static boolean isRetryableStatus(int statusCode) {
+        return statusCode >= HttpURLConnection.HTTP_INTERNAL_ERROR
+                || statusCode == HttpURLConnection.HTTP_CLIENT_TIMEOUT
+                || statusCode == HTTP_TOO_MANY_REQUESTS;
+    }
+}
@@ -16,17 +16,45 @@
 package com.example.android.sunshine.sync;
 
 import android.content.Context;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.v4.os.CancellationSignal;
+import android.util.Log;
 
 import com.firebase.jobdispatcher.Job;
 import com.firebase.jobdispatcher.JobParameters;
 import com.firebase.jobdispatcher.JobService;
 import com.firebase.jobdispatcher.RetryStrategy;
 
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 
 public class SunshineFirebaseJobService extends JobService {
 
-    private AsyncTask<Void, Void, Void> mFetchWeatherTask;
+    private static final String TAG = SunshineFirebaseJobService.class.getSimpleName();
+
+    /*
+     * Syncs run one at a time on a thread of their own, rather than on AsyncTask's shared
+     * executor where they would queue up behind, or hold up, unrelated work. Only a couple of
+     * jobs may wait behind the running one: a sync that is already queued will fetch the newest
+     * forecast anyway, so any job beyond that has nothing left to do.
+     */
+    private static final int MAX_QUEUED_SYNCS = 2;
+    private static final long IDLE_THREAD_TIMEOUT_SECONDS = 30;
+
+    private static final ThreadPoolExecutor sSyncExecutor = createSyncExecutor();
+
+    /* Syncs that have been started and not finished or stopped yet, keyed by job tag */
+    private final HashMap<String, RunningSync> mRunningSyncs = new HashMap<String, RunningSync>();
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
 
     /**
      * The entry point to your Job. Implementations should offload work to another thread of
@@ -40,29 +68,28 @@ public class SunshineFirebaseJobService extends JobService {
      */
     @Override
     public boolean onStartJob(final JobParameters jobParameters) {
+        SyncJobMetrics.recordJobStarted();
 
-        mFetchWeatherTask = new AsyncTask<Void, Void, Void>(){
-            @Override
-            protected Void doInBackground(Void... voids) {
-                Context context = getApplicationContext();
-                SunshineSyncTask.syncWeather(context);
-                jobFinished(jobParameters, false);
-                return null;
-            }
-
-            @Override
-            protected void onPostExecute(Void aVoid) {
-                jobFinished(jobParameters, false);
-            }
-        };
+        RunningSync sync = new RunningSync(getApplicationContext(), jobParameters);
+        try {
+            sSyncExecutor.execute(sync);
+        } catch (RejectedExecutionException e) {
+            Log.d(TAG, "Syncs are already queued, skipping " + jobParameters.getTag());
+            return false;
+        }
 
-        mFetchWeatherTask.execute();
+        mRunningSyncs.put(jobParameters.getTag(), sync);
         return true;
     }
 
     /**
      * Called when the scheduling engine has decided to interrupt the execution of a running job,
      * most likely because the runtime constraints associated with the job are no longer satisfied.
+     * <p>
+     * The sync is cancelled rather than left to run: cancelling aborts the request even while it
+     * is blocked reading from the network, and rolls back whatever was merged so far. Once a job
+     * has been stopped, the dispatcher no longer expects to hear about it, so the sync never
+     * calls {@link #jobFinished(JobParameters, boolean)} for it.
      *
      * @return whether the job should be retried
      * @see Job.Builder#setRetryStrategy(RetryStrategy)
@@ -70,9 +97,116 @@ public class SunshineFirebaseJobService extends JobService {
      */
     @Override
     public boolean onStopJob(JobParameters jobParameters) {
-        if (mFetchWeatherTask != null) {
-            mFetchWeatherTask.cancel(true);
+        RunningSync sync = mRunningSyncs.remove(jobParameters.getTag());
+        if (sync != null) {
+            SyncJobMetrics.recordJobStopped();
+            sync.stop();
         }
         return true;
     }
-}
\ No newline at end of file
+
+    /**
+     * Reports the end of a sync to the dispatcher, unless the job was stopped in the meantime.
+     * Always called on the main thread, like onStartJob and onStopJob.
+     *
+     * @param sync            The sync that ended
+     * @param needsReschedule Whether the dispatcher should run the job again, following its
+     *                        retry strategy
+     */
+    private void finishSync(RunningSync sync, boolean needsReschedule) {
+        if (mRunningSyncs.get(sync.mJobParameters.getTag()) == sync) {
+            mRunningSyncs.remove(sync.mJobParameters.getTag());
+        }
+        if (sync.mFinished.compareAndSet(false, true)) {
+            SyncJobMetrics.recordJobFinished();
+            jobFinished(sync.mJobParameters, needsReschedule);
+        }
+    }
+
+    private static ThreadPoolExecutor createSyncExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                1,
+                1,
+                IDLE_THREAD_TIMEOUT_SECONDS,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_QUEUED_SYNCS),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, "SunshineSync");
+                    }
+                });
+        /* There is nothing to sync most of the time, so don't keep the thread around */
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * One sync job. The job ends exactly once: either the sync finishes and reports back with
+     * jobFinished, or the dispatcher stops the job first, in which case the sync is cancelled
+     * and its result only goes into {@link SyncJobMetrics}.
+     */
+    private class RunningSync implements Runnable {
+
+        final Context mContext;
+        final JobParameters mJobParameters;
+        final CancellationSignal mCancellationSignal = new CancellationSignal();
+        final AtomicBoolean mFinished = new AtomicBoolean();
+
+        RunningSync(Context context, JobParameters jobParameters) {
+            mContext = context;
+            mJobParameters = jobParameters;
+        }
+
+        @Override
+        public void run() {
+            /* Stopped while it was still queued, so no work was done */
+            if (mCancellationSignal.isCanceled()) {
+                return;
+            }
+
+            /* The periodic sync keeps every location the user has looked at recently current */
+            final WeatherSyncResult result =
+                    SunshineSyncTask.syncAllLocations(mContext, mCancellationSignal);
+
+            /*
+             * Only this job's own signal says whether it was stopped. A job that joined the sync
+             * of another caller gets a cancelled result when that caller cancels, but it was
+             * never stopped itself, so it still has to report back to the dispatcher.
+             */
+            if (mCancellationSignal.isCanceled()) {
+                SyncJobMetrics.recordCancelledSync(result);
+                return;
+            }
+
+            /*
+             * The sync thread is free for the next job now, but the job only ends once the
+             * snapshot, wearable and notification updates this sync asked for are done.
+             */
+            SunshineSyncTask.runAfterAnnouncements(new Runnable() {
+                @Override
+                public void run() {
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            /* The forecast wasn't fetched on this job's behalf, so try again */
+                            finishSync(RunningSync.this, result.isCancelled());
+                        }
+                    });
+                }
+            });
+        }
+
+        void stop() {
+            mFinished.set(true);
+            sSyncExecutor.remove(this);
+            mCancellationSignal.cancel();
+        }
+    }
+}
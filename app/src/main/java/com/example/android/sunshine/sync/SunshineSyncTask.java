@@ -15,22 +15,79 @@
  */
 package com.example.android.sunshine.sync;
 
-import android.content.ContentResolver;
-import android.content.ContentValues;
+import android.content.ContentProviderClient;
 import android.content.Context;
+import android.os.SystemClock;
+import android.support.annotation.VisibleForTesting;
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.os.OperationCanceledException;
 import android.text.format.DateUtils;
+import android.util.Log;
 
+import com.example.android.sunshine.data.ForecastBatch;
+import com.example.android.sunshine.data.ForecastMerge;
+import com.example.android.sunshine.data.ForecastSnapshot;
 import com.example.android.sunshine.data.SunshinePreferences;
 import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.data.WeatherProvider;
 import com.example.android.sunshine.utilities.NetworkUtils;
 import com.example.android.sunshine.utilities.NotificationUtils;
 import com.example.android.sunshine.utilities.OpenWeatherJsonUtils;
 import com.example.android.sunshine.utilities.SunshineWearFaceUtils;
 
+import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class SunshineSyncTask {
 
+    private static final String TAG = SunshineSyncTask.class.getSimpleName();
+
+    /*
+     * The sync currently running for each location setting. A caller that asks for a location
+     * that is already being synced waits for that sync and shares its result, instead of
+     * downloading the same forecast again right after it. Different locations don't share
+     * anything and sync in parallel.
+     */
+    private static final HashMap<String, FutureTask<WeatherSyncResult>> sInFlightSyncs =
+            new HashMap<String, FutureTask<WeatherSyncResult>>();
+
+    /*
+     * The longest a caller waits for another caller's sync. A job may not run for longer than
+     * ten minutes, so a sync that hasn't finished by then is not going to help the caller.
+     */
+    private static final long JOIN_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private static final AtomicLong sCoalescedSyncCount = new AtomicLong();
+
+    /*
+     * Tries a failed sync again a couple of times, a little later each time, and stops going to
+     * the server at all while it keeps failing. A sync is retried as a whole, so callers that
+     * joined it wait for the retries as well.
+     */
+    private static final SyncRetrier sRetrier = SyncRetrier.createDefault();
+
+    /* Gets the forecast of the location being synced from the weather server */
+    private static final ForecastSource sHttpForecastSource = new HttpForecastSource();
+
+    /*
+     * Runs what has to happen after a sync stored new weather, one announcement at a time and in
+     * the order they were asked for. See runAfterAnnouncements for how a job waits for them.
+     */
+    private static final Executor sSideEffectExecutor = Executors.newSingleThreadExecutor();
+
     /**
      * Performs the network request for updated weather, parses the JSON from that request, and
      * inserts the new weather information into our ContentProvider. Will notify the user that new
@@ -39,46 +96,518 @@ public class SunshineSyncTask {
      *
      * @param context Used to access utility methods and the ContentResolver
      */
-    synchronized public static void syncWeather(Context context) {
+    public static void syncWeather(Context context) {
+        syncWeather(context, null);
+    }
+
+    /**
+     * Same as {@link #syncWeather(Context)}, but can be cancelled from another thread. Cancelling
+     * aborts the request even while it is blocked on the network, and rolls back whatever part of
+     * the forecast has already been merged, so a cancelled sync leaves the stored weather exactly
+     * as it was.
+     *
+     * @param context            Used to access utility methods and the ContentResolver
+     * @param cancellationSignal Signal to abort the sync with, or null
+     * @return What the sync did, and how much work it took
+     */
+    public static WeatherSyncResult syncWeather(Context context,
+                                                CancellationSignal cancellationSignal) {
+        String locationSetting = SunshinePreferences.getPreferredWeatherLocation(context);
+
+        /*
+         * The weather server is asked for the forecast with the URL that NetworkUtils builds
+         * for the location, from its latitude and longitude if we know them or else from the
+         * location as a String.
+         */
+        return syncWeather(context, locationSetting, sHttpForecastSource, cancellationSignal);
+    }
+
+    /**
+     * Syncs the forecast of one location from the given source. If that location is already being
+     * synced, this waits for the running sync and returns its result rather than starting
+     * another one. The caller that started the sync owns it: cancelling that caller's signal
+     * cancels the sync for everyone waiting on it, while a caller that only joined stops waiting
+     * when its own signal is cancelled.
+     *
+     * @param context            Used to access utility methods and the ContentResolver
+     * @param locationSetting    The location the forecast is stored for
+     * @param forecastSource     Where to get the forecast from
+     * @param cancellationSignal Signal to abort the sync with, or null
+     * @return What the sync did, and how much work it took
+     */
+    @VisibleForTesting
+    static WeatherSyncResult syncWeather(final Context context, final String locationSetting,
+                                         final ForecastSource forecastSource,
+                                         final CancellationSignal cancellationSignal) {
+
+        FutureTask<WeatherSyncResult> sync = new FutureTask<WeatherSyncResult>(
+                new Callable<WeatherSyncResult>() {
+                    @Override
+                    public WeatherSyncResult call() {
+                        return sRetrier.run(new SyncRetrier.Attempt() {
+                            @Override
+                            public WeatherSyncResult run() {
+                                return fetchAndMerge(context, locationSetting, forecastSource,
+                                        cancellationSignal);
+                            }
+                        }, cancellationSignal);
+                    }
+                });
+
+        FutureTask<WeatherSyncResult> inFlightSync;
+        synchronized (sInFlightSyncs) {
+            inFlightSync = sInFlightSyncs.get(locationSetting);
+            if (inFlightSync == null) {
+                sInFlightSyncs.put(locationSetting, sync);
+            }
+        }
+
+        if (inFlightSync != null) {
+            sCoalescedSyncCount.incrementAndGet();
+            return awaitSync(inFlightSync, cancellationSignal);
+        }
+
+        /* This caller started the sync, so it runs it on its own thread */
+        try {
+            sync.run();
+        } finally {
+            synchronized (sInFlightSyncs) {
+                sInFlightSyncs.remove(locationSetting);
+            }
+        }
+        WeatherSyncResult result = awaitSync(sync, null);
+
+        /* Switching to this location later only needs the network once this is out of date */
+        AdaptiveSyncScheduler scheduler = AdaptiveSyncScheduler.getInstance(context);
+        if (result.getStatus() == WeatherSyncResult.STATUS_UPDATED
+                || result.getStatus() == WeatherSyncResult.STATUS_UNCHANGED) {
+            scheduler.onForecastStored(locationSetting);
+        }
+
+        /*
+         * The periodic sync runs at the interval of the preferred location, so only its syncs
+         * tell the scheduler anything about how often that sync should run. Callers that joined
+         * this sync share its result and aren't counted again.
+         */
+        if (locationSetting.equals(SunshinePreferences.getPreferredWeatherLocation(context))) {
+            scheduler.onSyncFinished(locationSetting, result);
+        }
+        return result;
+    }
+
+    /**
+     * Syncs the forecast of every stored location, which is what the periodic sync does. With
+     * only one location stored, this is the same as {@link #syncWeather(Context,
+     * CancellationSignal)}. Otherwise the locations are downloaded in parallel and stored
+     * together by {@link BatchForecastSync}, which goes through the same steps as a sync of one
+     * location:
+     * <ul>
+     * <li>Locations that are already being synced are left to that sync, and a caller that
+     * asks for one of this batch's locations meanwhile waits for the batch.</li>
+     * <li>The batch is run by the same {@link SyncRetrier}, so it waits out the circuit breaker
+     * along with every other sync. Each retry only asks for the locations that failed in a way
+     * that may go away by itself.</li>
+     * <li>The result for the preferred location goes to the {@link AdaptiveSyncScheduler}.</li>
+     * </ul>
+     *
+     * @param context            Used to access utility methods and the ContentResolver
+     * @param cancellationSignal Signal to abort the sync with, or null
+     * @return What the sync did; for a batch, whether any location changed or failed in the end
+     */
+    public static WeatherSyncResult syncAllLocations(final Context context,
+                                                     final CancellationSignal cancellationSignal) {
+        final String preferredLocation = SunshinePreferences.getPreferredWeatherLocation(context);
+
+        List<String> storedLocations = BatchForecastSync.getStoredLocations(context);
+        if (!storedLocations.contains(preferredLocation)) {
+            storedLocations.add(preferredLocation);
+        }
+        if (storedLocations.size() == 1) {
+            return syncWeather(context, cancellationSignal);
+        }
+
+        final LinkedHashMap<String, URL> locationUrls = new LinkedHashMap<String, URL>();
+        for (String locationSetting : storedLocations) {
+            locationUrls.put(locationSetting, NetworkUtils.getUrl(context, locationSetting));
+        }
+
+        /* What the batch found for the preferred location, if it has been stored */
+        final int[] preferredStatus = {WeatherSyncResult.STATUS_FAILED};
+
+        FutureTask<WeatherSyncResult> batch = new FutureTask<WeatherSyncResult>(
+                new Callable<WeatherSyncResult>() {
+                    @Override
+                    public WeatherSyncResult call() {
+                        return sRetrier.run(new BatchAttempt(context, locationUrls,
+                                preferredLocation, preferredStatus, cancellationSignal),
+                                cancellationSignal);
+                    }
+                });
+
+        /* Claim every location that nobody is syncing yet; the batch leaves the others alone */
+        List<String> claimedLocations = new ArrayList<String>();
+        FutureTask<WeatherSyncResult> preferredInFlightSync;
+        synchronized (sInFlightSyncs) {
+            preferredInFlightSync = sInFlightSyncs.get(preferredLocation);
+            for (String locationSetting : storedLocations) {
+                if (sInFlightSyncs.containsKey(locationSetting)) {
+                    locationUrls.remove(locationSetting);
+                    sCoalescedSyncCount.incrementAndGet();
+                } else {
+                    sInFlightSyncs.put(locationSetting, batch);
+                    claimedLocations.add(locationSetting);
+                }
+            }
+        }
+
+        /* Every location, and so the preferred one too, is being synced already */
+        if (claimedLocations.isEmpty()) {
+            return awaitSync(preferredInFlightSync, cancellationSignal);
+        }
+
+        try {
+            batch.run();
+        } finally {
+            synchronized (sInFlightSyncs) {
+                for (String locationSetting : claimedLocations) {
+                    sInFlightSyncs.remove(locationSetting);
+                }
+            }
+        }
+        WeatherSyncResult result = awaitSync(batch, null);
+
+        /* The preferred location was synced along with the others, so it is counted the same */
+        if (claimedLocations.contains(preferredLocation)) {
+            AdaptiveSyncScheduler.getInstance(context).onSyncFinished(preferredLocation,
+                    new WeatherSyncResult(preferredStatus[0], 0, 0, result.getElapsedMillis()));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of sync requests that were answered by joining a sync that was already
+     * running for the same location, rather than with a download of their own.
+     */
+    public static long getCoalescedSyncCount() {
+        return sCoalescedSyncCount.get();
+    }
+
+    /**
+     * Waits for a sync started by another caller, giving up if the waiting caller is cancelled.
+     * Cancelling the signal interrupts the wait right away, rather than the waiting caller having
+     * to check the signal every so often.
+     */
+    private static WeatherSyncResult awaitSync(FutureTask<WeatherSyncResult> sync,
+                                               CancellationSignal cancellationSignal) {
+        final Thread waitingThread = Thread.currentThread();
+        if (cancellationSignal != null) {
+            /* Runs right away, on this thread, if the signal was cancelled in the meantime */
+            cancellationSignal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    waitingThread.interrupt();
+                }
+            });
+        }
+
+        try {
+            return sync.get(JOIN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            /* Only an interrupt that didn't come from the signal is passed on to the caller */
+            if (cancellationSignal == null || !cancellationSignal.isCanceled()) {
+                Thread.currentThread().interrupt();
+            }
+            return new WeatherSyncResult(WeatherSyncResult.STATUS_CANCELLED, 0, 0, 0);
+        } catch (TimeoutException e) {
+            Log.w(TAG, "Gave up waiting for a sync that was already running");
+            return new WeatherSyncResult(WeatherSyncResult.STATUS_FAILED, 0, 0,
+                    JOIN_TIMEOUT_MILLIS).withFailure(WeatherSyncResult.FAILURE_RETRYABLE);
+        } catch (ExecutionException e) {
+            /* fetchAndMerge handles every Exception, so only an Error ends up here */
+            throw new RuntimeException(e.getCause());
+        } finally {
+            if (cancellationSignal != null) {
+                /* Waits for a listener that is running, so nothing interrupts this thread later */
+                cancellationSignal.setOnCancelListener(null);
+
+                /* A cancel that came in just as the sync finished mustn't leave us interrupted */
+                if (cancellationSignal.isCanceled()) {
+                    Thread.interrupted();
+                }
+            }
+        }
+    }
+
+    /**
+     * Downloads the forecast and merges it into the stored forecast of the location. The
+     * response is parsed while it is still arriving, into a {@link ForecastBatch}, and the days
+     * are merged once the whole forecast has been parsed. This is a single attempt: a failed
+     * result says whether trying again might help, but nothing is retried here.
+     */
+    @VisibleForTesting
+    static WeatherSyncResult fetchAndMerge(Context context, String locationSetting,
+                                           ForecastSource forecastSource,
+                                           CancellationSignal cancellationSignal) {
+
+        long startMillis = SystemClock.elapsedRealtime();
+        long connectMillis = 0;
+        long parseMillis = 0;
+        long persistMillis = 0;
+        AtomicLong bytesRead = new AtomicLong();
+        ForecastMerge forecastMerge = null;
 
         try {
             /*
-             * The getUrl method will return the URL that we need to get the forecast JSON for the
-             * weather. It will decide whether to create a URL based off of the latitude and
-             * longitude or off of a simple location as a String.
+             * Open a stream on the JSON. Rather than reading the whole response into memory, we
+             * parse it as it arrives.
              */
-            URL weatherRequestUrl = NetworkUtils.getUrl(context);
+            InputStream weatherResponseStream = forecastSource.openForecast(
+                    context, locationSetting, cancellationSignal);
+            connectMillis = SystemClock.elapsedRealtime() - startMillis;
 
-            /* Use the URL to retrieve the JSON */
-            String jsonWeatherResponse = NetworkUtils.getResponseFromHttpUrl(weatherRequestUrl);
+            /*
+             * A null stream means the forecast we stored last time is still current. There is
+             * nothing to parse, delete or insert, and nobody needs to be told about it.
+             */
+            if (weatherResponseStream == null) {
+                forecastSource.onForecastStored(context, locationSetting);
+                return new WeatherSyncResult(WeatherSyncResult.STATUS_UNCHANGED, 0, 0,
+                        connectMillis, connectMillis, 0, 0);
+            }
 
-            /* Parse the JSON into a list of weather values */
-            ContentValues[] weatherValues = OpenWeatherJsonUtils
-                    .getWeatherContentValuesFromJson(context, jsonWeatherResponse);
+            /*
+             * The coordinates in the response are only saved as the preferred location's if
+             * this still is the preferred location; the user may have switched away from it.
+             */
+            boolean isPreferredWhenParsed = locationSetting.equals(
+                    SunshinePreferences.getPreferredWeatherLocation(context));
 
             /*
-             * In cases where our JSON contained an error code, getWeatherContentValuesFromJson
-             * would have returned null. We need to check for those cases here to prevent any
-             * NullPointerExceptions being thrown. We also have no reason to insert fresh data if
-             * there isn't any to insert.
+             * The days are small, so all of them are parsed before anything is written. A slow
+             * or stalled response then holds up this sync alone, rather than every other writer
+             * for as long as the read timeout allows. The parser closes the stream.
              */
-            if (weatherValues != null && weatherValues.length != 0) {
-                /* Get a handle on the ContentResolver to delete and insert data */
-                ContentResolver sunshineContentResolver = context.getContentResolver();
+            ForecastBatch forecast = new ForecastBatch();
+            int responseCode;
+            long parseStartMillis = SystemClock.elapsedRealtime();
+            try {
+                responseCode = OpenWeatherJsonUtils.parseForecastFromJson(
+                        isPreferredWhenParsed ? context : null,
+                        new NetworkUtils.CountingInputStream(weatherResponseStream, bytesRead),
+                        forecast);
+            } finally {
+                parseMillis = SystemClock.elapsedRealtime() - parseStartMillis;
+            }
+
+            /*
+             * OpenWeatherMap puts the HTTP status of an error in the body. A city it doesn't
+             * know will stay unknown, while a server error may be gone in a moment. Either way,
+             * nothing is stored.
+             */
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                Log.w(TAG, "Server returned error " + responseCode + " for " + locationSetting);
+                return new WeatherSyncResult(WeatherSyncResult.STATUS_FAILED, bytesRead.get(), 0,
+                        SystemClock.elapsedRealtime() - startMillis,
+                        connectMillis, parseMillis, 0)
+                        .withFailure(RetryPolicy.isRetryableStatus(responseCode)
+                                ? WeatherSyncResult.FAILURE_RETRYABLE
+                                : WeatherSyncResult.FAILURE_PERMANENT);
+            }
+
+            /*
+             * Rather than deleting every row and inserting the whole forecast again, we merge the
+             * new forecast into the stored one so that only the days that changed are written.
+             * The merge needs the provider object itself, which is available to us because it
+             * runs in our process. If the signal is cancelled before the commit, nothing is
+             * stored.
+             */
+            long persistStartMillis = SystemClock.elapsedRealtime();
+            ContentProviderClient weatherProviderClient = context.getContentResolver()
+                    .acquireContentProviderClient(WeatherContract.CONTENT_AUTHORITY);
+            try {
+                WeatherProvider weatherProvider =
+                        (WeatherProvider) weatherProviderClient.getLocalContentProvider();
+                forecastMerge = weatherProvider.beginForecastMerge(
+                        WeatherContract.WeatherEntry.buildWeatherUriForLocation(locationSetting),
+                        cancellationSignal);
+                try {
+                    forecast.writeTo(forecastMerge);
+                    forecastMerge.commit();
+                } finally {
+                    forecastMerge.close();
+                }
+            } finally {
+                weatherProviderClient.release();
+                persistMillis = SystemClock.elapsedRealtime() - persistStartMillis;
+            }
+
+            /* The forecast is stored, so the next sync can ask whether it changed */
+            forecastSource.onForecastStored(context, locationSetting);
+
+            Log.d(TAG, "Forecast merged: "
+                    + forecastMerge.getInsertedCount() + " inserted, "
+                    + forecastMerge.getUpdatedCount() + " updated, "
+                    + forecastMerge.getUnchangedCount() + " unchanged, "
+                    + forecastMerge.getDeletedCount() + " deleted");
+
+            WeatherSyncResult result = new WeatherSyncResult(forecastMerge.hasChanges()
+                    ? WeatherSyncResult.STATUS_UPDATED
+                    : WeatherSyncResult.STATUS_UNCHANGED,
+                    bytesRead.get(),
+                    forecastMerge.getInsertedCount() + forecastMerge.getUpdatedCount()
+                            + forecastMerge.getUnchangedCount(),
+                    SystemClock.elapsedRealtime() - startMillis,
+                    connectMillis,
+                    parseMillis,
+                    persistMillis);
+
+            /*
+             * We have no reason to notify anybody if the forecast we already had didn't change,
+             * or if it isn't the forecast of the location the user is looking at (any more).
+             * The result is taken first, so the time it reports is the sync's alone.
+             */
+            boolean isPreferredLocation = locationSetting.equals(
+                    SunshinePreferences.getPreferredWeatherLocation(context));
+            if (forecastMerge.hasChanges() && isPreferredLocation) {
+                announceNewWeather(context);
+            }
+            return result;
+
+        } catch (Exception e) {
+            /*
+             * Cancelling disconnects from the server, so a cancelled sync may just as well end
+             * with an IOException from the aborted read as with OperationCanceledException.
+             */
+            boolean cancelled = e instanceof OperationCanceledException
+                    || (cancellationSignal != null && cancellationSignal.isCanceled());
+            if (!cancelled) {
+                Log.w(TAG, "Sync of " + locationSetting + " failed", e);
+            }
+
+            WeatherSyncResult result = new WeatherSyncResult(
+                    cancelled ? WeatherSyncResult.STATUS_CANCELLED : WeatherSyncResult.STATUS_FAILED,
+                    bytesRead.get(),
+                    forecastMerge != null ? forecastMerge.getRolledBackCount() : 0,
+                    SystemClock.elapsedRealtime() - startMillis,
+                    connectMillis,
+                    parseMillis,
+                    persistMillis);
 
-                /* Delete old weather data because we don't need to keep multiple days' data */
-                sunshineContentResolver.delete(
-                        WeatherContract.WeatherEntry.CONTENT_URI,
-                        null,
-                        null);
+            if (!cancelled) {
+                result = result.withFailure(RetryPolicy.isRetryable(e)
+                        ? WeatherSyncResult.FAILURE_RETRYABLE
+                        : WeatherSyncResult.FAILURE_PERMANENT);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * One attempt at the batch of {@link #syncAllLocations}. Each attempt only fetches the
+     * locations that haven't been stored yet and are worth asking for again.
+     */
+    private static final class BatchAttempt implements SyncRetrier.Attempt {
+
+        private final Context mContext;
+        private final LinkedHashMap<String, URL> mRemainingUrls;
+        private final String mPreferredLocation;
+        private final int[] mPreferredStatus;
+        private final CancellationSignal mCancellationSignal;
+
+        private boolean mChanged;
+
+        BatchAttempt(Context context, LinkedHashMap<String, URL> locationUrls,
+                     String preferredLocation, int[] preferredStatus,
+                     CancellationSignal cancellationSignal) {
+            mContext = context;
+            mRemainingUrls = locationUrls;
+            mPreferredLocation = preferredLocation;
+            mPreferredStatus = preferredStatus;
+            mCancellationSignal = cancellationSignal;
+        }
 
-                /* Insert our new weather data into Sunshine's ContentProvider */
-                sunshineContentResolver.bulkInsert(
-                        WeatherContract.WeatherEntry.CONTENT_URI,
-                        weatherValues);
+        @Override
+        public WeatherSyncResult run() {
+            long startMillis = SystemClock.elapsedRealtime();
+
+            BatchForecastSync.Result batchResult;
+            try {
+                batchResult = BatchForecastSync.syncLocations(mContext, mRemainingUrls,
+                        BatchForecastSync.DEFAULT_MAX_PARALLEL_REQUESTS, mCancellationSignal);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Sync of every location failed", e);
+                return new WeatherSyncResult(WeatherSyncResult.STATUS_FAILED, 0, 0,
+                        SystemClock.elapsedRealtime() - startMillis)
+                        .withFailure(WeatherSyncResult.FAILURE_PERMANENT);
+            }
+            long elapsedMillis = SystemClock.elapsedRealtime() - startMillis;
+
+            /* The work thrown away by a cancelled or failed batch counts as wasted, too */
+            long bytesRead = batchResult.getBytesRead();
+            int daysParsed = batchResult.getDaysParsed();
+
+            if (batchResult.isCancelled()) {
+                return new WeatherSyncResult(WeatherSyncResult.STATUS_CANCELLED, bytesRead,
+                        daysParsed, elapsedMillis);
+            }
+
+            if (batchResult.getChangedLocations().contains(mPreferredLocation)) {
+                mPreferredStatus[0] = WeatherSyncResult.STATUS_UPDATED;
+            } else if (batchResult.getUnchangedLocations().contains(mPreferredLocation)) {
+                mPreferredStatus[0] = WeatherSyncResult.STATUS_UNCHANGED;
+            }
+            mChanged |= batchResult.getChangedCount() > 0;
+
+            /* Only what failed in a way that may go away by itself is asked for again */
+            mRemainingUrls.keySet().retainAll(batchResult.getRetryableFailedLocations());
+
+            if (!mRemainingUrls.isEmpty()) {
+                return new WeatherSyncResult(WeatherSyncResult.STATUS_FAILED, bytesRead,
+                        daysParsed, elapsedMillis)
+                        .withFailure(WeatherSyncResult.FAILURE_RETRYABLE);
+            }
+            if (batchResult.getFailedCount() > 0) {
+                return new WeatherSyncResult(WeatherSyncResult.STATUS_FAILED, bytesRead,
+                        daysParsed, elapsedMillis)
+                        .withFailure(WeatherSyncResult.FAILURE_PERMANENT);
+            }
+            return new WeatherSyncResult(mChanged
+                    ? WeatherSyncResult.STATUS_UPDATED
+                    : WeatherSyncResult.STATUS_UNCHANGED, bytesRead, daysParsed, elapsedMillis);
+        }
+    }
+
+    /**
+     * Runs the given Runnable once every announcement that has been asked for so far is done.
+     * Announcements run after the sync that asked for them has returned, so a job that ends as
+     * soon as its sync returns could end, and let the process be killed, with them still
+     * waiting. A job hands its jobFinished call to this method instead.
+     *
+     * @param runnable What to run once the announcements are done
+     */
+    public static void runAfterAnnouncements(Runnable runnable) {
+        /* The executor has a single thread, so this runs after everything queued before it */
+        sSideEffectExecutor.execute(runnable);
+    }
+
+    /**
+     * Takes a new snapshot of the forecast for the next start of the app, sends the new weather
+     * to the wearable and, if it's due, notifies the user. All of these happen after the forecast
+     * has been committed and none affects it, so they run on a thread of their own rather than
+     * holding up the sync and everyone who joined it; connecting to the wearable alone can take
+     * up to 30 seconds. See {@link #runAfterAnnouncements(Runnable)} for waiting for them.
+     */
+    static void announceNewWeather(final Context context) {
+        sSideEffectExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+
+                /* The next time the app starts, the list shows this forecast straight away */
+                ForecastSnapshot.write(context,
+                        SunshinePreferences.getPreferredWeatherLocation(context));
 
                 /* Sending today's weather data to the wearable */
-                 new SunshineWearFaceUtils().initialize(context);
+                new SunshineWearFaceUtils().initialize(context);
 
                 /*
                  * Finally, after we insert data into the ContentProvider, determine whether or not
@@ -107,14 +636,7 @@ public class SunshineSyncTask {
                 if (notificationsEnabled && oneDayPassedSinceLastNotification) {
                     NotificationUtils.notifyUserOfNewWeather(context);
                 }
-
-            /* If the code reaches this point, we have successfully performed our sync */
-
             }
-
-        } catch (Exception e) {
-            /* Server probably invalid */
-            e.printStackTrace();
-        }
+        });
     }
-}
\ No newline at end of file
+}
@@ -19,45 +19,55 @@ import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Bundle;
 import android.support.annotation.NonNull;
 
+import com.example.android.sunshine.data.SunshinePreferences;
 import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.utilities.NetworkUtils;
 import com.firebase.jobdispatcher.Constraint;
-import com.firebase.jobdispatcher.Driver;
 import com.firebase.jobdispatcher.FirebaseJobDispatcher;
-import com.firebase.jobdispatcher.GooglePlayDriver;
 import com.firebase.jobdispatcher.Job;
 import com.firebase.jobdispatcher.Lifetime;
 import com.firebase.jobdispatcher.Trigger;
 
-import java.util.concurrent.TimeUnit;
-
 public class SunshineSyncUtils {
 
     /*
-     * Interval at which to sync with the weather. Use TimeUnit for convenience, rather than
-     * writing out a bunch of multiplication ourselves and risk making a silly mistake.
+     * The interval at which to sync with the weather is chosen by the AdaptiveSyncScheduler.
+     * Each sync may run up to a third of that interval late.
      */
-    private static final int SYNC_INTERVAL_HOURS = 3;
-    private static final int SYNC_INTERVAL_SECONDS = (int) TimeUnit.HOURS.toSeconds(SYNC_INTERVAL_HOURS);
-    private static final int SYNC_FLEXTIME_SECONDS = SYNC_INTERVAL_SECONDS / 3;
+    private static final int SYNC_FLEXTIME_DIVISOR = 3;
 
     private static boolean sInitialized;
 
     private static final String SUNSHINE_SYNC_TAG = "sunshine-sync";
 
     /**
-     * Schedules a repeating sync of Sunshine's weather data using FirebaseJobDispatcher.
+     * Schedules a repeating sync of Sunshine's weather data using FirebaseJobDispatcher. How
+     * often it runs is up to the {@link AdaptiveSyncScheduler}, which starts out at every 3 to 4
+     * hours and adapts the interval to how often the forecast of the location actually changes.
+     *
      * @param context Context used to create the GooglePlayDriver that powers the
      *                FirebaseJobDispatcher
      */
     static void scheduleFirebaseJobDispatcherSync(@NonNull final Context context) {
+        AdaptiveSyncScheduler.getInstance(context).schedulePeriodicSync(
+                SunshinePreferences.getPreferredWeatherLocation(context));
+    }
 
-        Driver driver = new GooglePlayDriver(context);
-        FirebaseJobDispatcher dispatcher = new FirebaseJobDispatcher(driver);
+    /**
+     * Builds the Job that periodically syncs Sunshine.
+     *
+     * @param dispatcher      The FirebaseJobDispatcher the Job will be scheduled with
+     * @param intervalSeconds How long to wait between syncs
+     * @return The Job, ready to be scheduled
+     */
+    static Job buildPeriodicSyncJob(@NonNull FirebaseJobDispatcher dispatcher,
+                                    int intervalSeconds) {
 
         /* Create the Job to periodically sync Sunshine */
-        Job syncSunshineJob = dispatcher.newJobBuilder()
+        return dispatcher.newJobBuilder()
                 /* The Service that will be used to sync Sunshine's data */
                 .setService(SunshineFirebaseJobService.class)
                 /* Set the UNIQUE tag used to identify this Job */
@@ -79,15 +89,15 @@ public class SunshineSyncUtils {
                  */
                 .setRecurring(true)
                 /*
-                 * We want the weather data to be synced every 3 to 4 hours. The first argument for
-                 * Trigger's static executionWindow method is the start of the time frame when the
-                 * sync should be performed. The second argument is the latest point in time at
-                 * which the data should be synced. Please note that this end time is not
-                 * guaranteed, but is more of a guideline for FirebaseJobDispatcher to go off of.
+                 * The first argument for Trigger's static executionWindow method is the start of
+                 * the time frame when the sync should be performed. The second argument is the
+                 * latest point in time at which the data should be synced. Please note that this
+                 * end time is not guaranteed, but is more of a guideline for
+                 * FirebaseJobDispatcher to go off of.
                  */
                 .setTrigger(Trigger.executionWindow(
-                        SYNC_INTERVAL_SECONDS,
-                        SYNC_INTERVAL_SECONDS + SYNC_FLEXTIME_SECONDS))
+                        intervalSeconds,
+                        intervalSeconds + intervalSeconds / SYNC_FLEXTIME_DIVISOR))
                 /*
                  * If a Job with the tag with provided already exists, this new job will replace
                  * the old one.
@@ -95,10 +105,8 @@ public class SunshineSyncUtils {
                 .setReplaceCurrent(true)
                 /* Once the Job is ready, call the builder's build method to return the Job */
                 .build();
-
-        /* Schedule the Job with the dispatcher */
-        dispatcher.schedule(syncSunshineJob);
     }
+
     /**
      * Creates periodic sync tasks and checks to see if an immediate sync is required. If an
      * immediate sync is required, this method will take care of making sure that sync occurs.
@@ -122,6 +130,23 @@ public class SunshineSyncUtils {
          */
         scheduleFirebaseJobDispatcherSync(context);
 
+        startImmediateSyncIfNeeded(context);
+    }
+
+    /**
+     * Checks whether the weather stored for the preferred location is missing or out of date,
+     * and only syncs if it is. This is used at startup, and when the user switches to a
+     * location: the weather of locations the user has looked at recently stays stored, so
+     * switching back to one of them only needs the network if its forecast has gone stale in the
+     * meantime.
+     * <p>
+     * The preferred location is marked as used first, which also deletes the locations the user
+     * hasn't looked at for {@link WeatherContract.WeatherEntry#RETENTION_DAYS} days.
+     *
+     * @param context Context used to access the ContentResolver
+     */
+    public static void startImmediateSyncIfNeeded(@NonNull final Context context) {
+
         /*
          * We need to check to see if our ContentProvider has data to display in our forecast
          * list. However, performing a query on the main thread is a bad idea as this may
@@ -132,6 +157,14 @@ public class SunshineSyncUtils {
             @Override
             public void run() {
 
+                Bundle used = context.getContentResolver().call(
+                        WeatherContract.LocationEntry.CONTENT_URI,
+                        WeatherContract.METHOD_USE_LOCATION,
+                        null,
+                        null);
+                boolean locationsDeleted = used != null
+                        && used.getInt(WeatherContract.EXTRA_ROWS_DELETED) > 0;
+
                 /* URI for every row of weather data in our weather table*/
                 Uri forecastQueryUri = WeatherContract.WeatherEntry.CONTENT_URI;
 
@@ -144,13 +177,15 @@ public class SunshineSyncUtils {
                 String[] projectionColumns = {WeatherContract.WeatherEntry._ID};
                 String selectionStatement = WeatherContract.WeatherEntry
                         .getSqlSelectForTodayOnwards();
+                String[] selectionArguments = WeatherContract.WeatherEntry
+                        .getSqlSelectionArgsForTodayOnwards();
 
                 /* Here, we perform the query to check to see if we have any weather data */
                 Cursor cursor = context.getContentResolver().query(
                         forecastQueryUri,
                         projectionColumns,
                         selectionStatement,
-                        null,
+                        selectionArguments,
                         null);
                 /*
                  * A Cursor object can be null for various different reasons. A few are
@@ -166,12 +201,31 @@ public class SunshineSyncUtils {
                  * If the Cursor was null OR if it was empty, we need to sync immediately to
                  * be able to display data to the user.
                  */
-                if (null == cursor || cursor.getCount() == 0) {
-                    startImmediateSync(context);
-                }
+                boolean isEmpty = null == cursor || cursor.getCount() == 0;
 
                 /* Make sure to close the Cursor to avoid memory leaks! */
-                cursor.close();
+                if (cursor != null) {
+                    cursor.close();
+                }
+
+                if (isEmpty || locationsDeleted) {
+                    /*
+                     * Whatever response we last stored may be gone, so make sure the sync
+                     * doesn't accept a "not modified" answer for it.
+                     */
+                    NetworkUtils.clearResponseValidators(context);
+                }
+
+                /*
+                 * Weather that is stored but older than the location's sync interval would
+                 * have been replaced by the periodic sync if this location had been the
+                 * preferred one all along, so it is refreshed now.
+                 */
+                String locationSetting = SunshinePreferences.getPreferredWeatherLocation(context);
+                if (isEmpty || AdaptiveSyncScheduler.getInstance(context)
+                        .isForecastStale(locationSetting)) {
+                    startImmediateSync(context);
+                }
             }
         });
 
@@ -189,4 +243,4 @@ public class SunshineSyncUtils {
         Intent intentToSyncImmediately = new Intent(context, SunshineSyncIntentService.class);
         context.startService(intentToSyncImmediately);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts how the sync jobs run by {@link SunshineFirebaseJobService} end. A job that the
+ * dispatcher stops before it finishes throws away whatever it had downloaded and merged; these
+ * counters show how often that happens and how much work it costs.
+ * <p>
+ * The counters live for as long as the process does.
+ */
+public final class SyncJobMetrics {
+
+    private static final AtomicLong sJobsStarted = new AtomicLong();
+    private static final AtomicLong sJobsFinished = new AtomicLong();
+    private static final AtomicLong sJobsStopped = new AtomicLong();
+    private static final AtomicLong sJobsStoppedMidFlight = new AtomicLong();
+
+    private static final AtomicLong sWastedBytes = new AtomicLong();
+    private static final AtomicLong sWastedDays = new AtomicLong();
+    private static final AtomicLong sWastedMillis = new AtomicLong();
+
+    private SyncJobMetrics() {
+    }
+
+    static void recordJobStarted() {
+        sJobsStarted.incrementAndGet();
+    }
+
+    static void recordJobFinished() {
+        sJobsFinished.incrementAndGet();
+    }
+
+    static void recordJobStopped() {
+        sJobsStopped.incrementAndGet();
+    }
+
+    /**
+     * Records a sync that was cancelled after it had started, along with the work it had done
+     * by then.
+     */
+    static void recordCancelledSync(WeatherSyncResult result) {
+        sJobsStoppedMidFlight.incrementAndGet();
+        sWastedBytes.addAndGet(result.getBytesRead());
+        sWastedDays.addAndGet(result.getDaysMerged());
+        sWastedMillis.addAndGet(result.getElapsedMillis());
+    }
+
+    /** Number of jobs the dispatcher started */
+    public static long getJobsStarted() {
+        return sJobsStarted.get();
+    }
+
+    /** Number of jobs that ran to the end and reported back to the dispatcher */
+    public static long getJobsFinished() {
+        return sJobsFinished.get();
+    }
+
+    /** Number of jobs the dispatcher stopped before they finished, including queued ones */
+    public static long getJobsStopped() {
+        return sJobsStopped.get();
+    }
+
+    /** Number of stopped jobs whose sync had already started, and so wasted work */
+    public static long getJobsStoppedMidFlight() {
+        return sJobsStoppedMidFlight.get();
+    }
+
+    /** Response bytes downloaded by syncs that were then cancelled */
+    public static long getWastedBytes() {
+        return sWastedBytes.get();
+    }
+
+    /**
+     * Days merged and then rolled back by syncs that were cancelled, or for a sync of every
+     * location, parsed and then thrown away
+     */
+    public static long getWastedDays() {
+        return sWastedDays.get();
+    }
+
+    /** Time spent by syncs that were cancelled, up to the point they gave up */
+    public static long getWastedMillis() {
+        return sWastedMillis.get();
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.os.SystemClock;
+import android.support.v4.os.CancellationSignal;
+import android.util.Log;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a sync, trying it again after a jittered backoff when it fails in a way that may go away
+ * by itself, and not running it at all while the {@link CircuitBreaker} says the server is
+ * unhealthy.
+ * <p>
+ * Time passes through a {@link Sleeper} and the breaker's clock, so that tests can run through
+ * minutes of backoff without waiting for them.
+ */
+final class SyncRetrier {
+
+    private static final String TAG = SyncRetrier.class.getSimpleName();
+
+    /* How often a waiting retry checks whether it was cancelled */
+    private static final long CANCEL_POLL_MILLIS = 100;
+
+    /**
+     * One try at a sync.
+     */
+    interface Attempt {
+        WeatherSyncResult run();
+    }
+
+    /**
+     * Waits between attempts.
+     */
+    interface Sleeper {
+        /**
+         * Waits for the given time, or less if the signal is cancelled in the meantime.
+         */
+        void sleep(long millis, CancellationSignal cancellationSignal);
+    }
+
+    static final Sleeper SYSTEM_SLEEPER = new Sleeper() {
+        @Override
+        public void sleep(long millis, CancellationSignal cancellationSignal) {
+            long endMillis = SystemClock.elapsedRealtime() + millis;
+            long remainingMillis = millis;
+            while (remainingMillis > 0) {
+                if (cancellationSignal != null && cancellationSignal.isCanceled()) {
+                    return;
+                }
+                SystemClock.sleep(Math.min(remainingMillis, CANCEL_POLL_MILLIS));
+                remainingMillis = endMillis - SystemClock.elapsedRealtime();
+            }
+        }
+    };
+
+    private final RetryPolicy mPolicy;
+    private final CircuitBreaker mCircuitBreaker;
+    private final Sleeper mSleeper;
+    private final Random mRandom;
+
+    private final AtomicLong mRetryCount = new AtomicLong();
+
+    SyncRetrier(RetryPolicy policy, CircuitBreaker circuitBreaker, Sleeper sleeper,
+                Random random) {
+        mPolicy = policy;
+        mCircuitBreaker = circuitBreaker;
+        mSleeper = sleeper;
+        mRandom = random;
+    }
+
+    /**
+     * The retrier used by the app: up to three tries, and five failing syncs in a row keep the
+     * server alone for ten minutes.
+     */
+    static SyncRetrier createDefault() {
+        return new SyncRetrier(RetryPolicy.DEFAULT,
+                new CircuitBreaker(5, TimeUnit.MINUTES.toMillis(10),
+                        AdaptiveSyncScheduler.SYSTEM_CLOCK),
+                SYSTEM_SLEEPER,
+                new Random());
+    }
+
+    /**
+     * Runs the attempt until it succeeds, fails for good, is cancelled or runs out of tries.
+     *
+     * @param attempt            The sync to run
+     * @param cancellationSignal Signal that stops both attempts and the waits between them
+     * @return The result of the last attempt, with the number of attempts that were made
+     */
+    WeatherSyncResult run(Attempt attempt, CancellationSignal cancellationSignal) {
+        int attempts = 0;
+        while (true) {
+            if (!mCircuitBreaker.allowRequest()) {
+                Log.d(TAG, "Server has been failing, not syncing");
+                return new WeatherSyncResult(WeatherSyncResult.STATUS_FAILED, 0, 0, 0)
+                        .withFailure(WeatherSyncResult.FAILURE_CIRCUIT_OPEN)
+                        .withAttempts(attempts);
+            }
+
+            WeatherSyncResult result = attempt.run();
+            attempts++;
+
+            if (result.isCancelled()) {
+                mCircuitBreaker.onAbandoned();
+                return result.withAttempts(attempts);
+            }
+            if (!result.isRetryable()) {
+                /* Even a permanent failure, such as an unknown city, is a healthy server */
+                mCircuitBreaker.onSuccess();
+                return result.withAttempts(attempts);
+            }
+
+            mCircuitBreaker.onFailure();
+            if (attempts >= mPolicy.getMaxAttempts()) {
+                return result.withAttempts(attempts);
+            }
+
+            long backoffMillis = mPolicy.getBackoffMillis(attempts, mRandom);
+            Log.d(TAG, "Sync failed, trying again in " + backoffMillis + "ms");
+            mSleeper.sleep(backoffMillis, cancellationSignal);
+            if (cancellationSignal != null && cancellationSignal.isCanceled()) {
+                /* What the failed attempt downloaded was for nothing, so it is reported */
+                return new WeatherSyncResult(WeatherSyncResult.STATUS_CANCELLED,
+                        result.getBytesRead(), result.getDaysMerged(), result.getElapsedMillis())
+                        .withAttempts(attempts);
+            }
+            mRetryCount.incrementAndGet();
+        }
+    }
+
+    /** Returns the number of times a failed sync was tried again. */
+    long getRetryCount() {
+        return mRetryCount.get();
+    }
+
+    CircuitBreaker getCircuitBreaker() {
+        return mCircuitBreaker;
+    }
+}
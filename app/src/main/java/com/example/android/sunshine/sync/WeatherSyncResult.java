@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+/**
+ * What a single run of {@link SunshineSyncTask} did, and how much work it took. For a cancelled
+ * run, the bytes and days are the work that was thrown away.
+ * <p>
+ * The stages of a sync run one after another: connecting, then reading and parsing the body,
+ * which are one stage since the body is parsed as it arrives, then persisting. Their times add
+ * up to no more than the elapsed time of the whole sync.
+ */
+public final class WeatherSyncResult {
+
+    /* The stored forecast was replaced and at least one day changed */
+    public static final int STATUS_UPDATED = 0;
+    /* The server had nothing new, or the new forecast matched the stored one */
+    public static final int STATUS_UNCHANGED = 1;
+    /* The forecast couldn't be fetched or parsed; nothing was written */
+    public static final int STATUS_FAILED = 2;
+    /* The sync was cancelled before it committed; nothing was written */
+    public static final int STATUS_CANCELLED = 3;
+
+    /*
+     * Why a sync with STATUS_FAILED failed, as far as trying it again is concerned. Syncs that
+     * didn't fail have FAILURE_NONE.
+     */
+    public static final int FAILURE_NONE = 0;
+    /* The failure may go away by itself, such as a timeout or a server error */
+    public static final int FAILURE_RETRYABLE = 1;
+    /* Trying again won't help, such as for a city the server doesn't know */
+    public static final int FAILURE_PERMANENT = 2;
+    /* The server has been failing, so the sync didn't even try it */
+    public static final int FAILURE_CIRCUIT_OPEN = 3;
+
+    private final int mStatus;
+    private final long mBytesRead;
+    private final int mDaysMerged;
+    private final long mElapsedMillis;
+
+    private final long mConnectMillis;
+    private final long mParseMillis;
+    private final long mPersistMillis;
+
+    private final int mFailure;
+    private final int mAttempts;
+
+    WeatherSyncResult(int status, long bytesRead, int daysMerged, long elapsedMillis) {
+        this(status, bytesRead, daysMerged, elapsedMillis, 0, 0, 0);
+    }
+
+    WeatherSyncResult(int status, long bytesRead, int daysMerged, long elapsedMillis,
+                      long connectMillis, long parseMillis, long persistMillis) {
+        this(status, bytesRead, daysMerged, elapsedMillis, connectMillis, parseMillis,
+                persistMillis, FAILURE_NONE, 1);
+    }
+
+    private WeatherSyncResult(int status, long bytesRead, int daysMerged, long elapsedMillis,
+                              long connectMillis, long parseMillis, long persistMillis,
+                              int failure, int attempts) {
+        mStatus = status;
+        mBytesRead = bytesRead;
+        mDaysMerged = daysMerged;
+        mElapsedMillis = elapsedMillis;
+        mConnectMillis = connectMillis;
+        mParseMillis = parseMillis;
+        mPersistMillis = persistMillis;
+        mFailure = failure;
+        mAttempts = attempts;
+    }
+
+    /**
+     * Returns a failed result that says whether the failure is worth retrying.
+     *
+     * @param failure One of the FAILURE_ constants
+     */
+    WeatherSyncResult withFailure(int failure) {
+        return new WeatherSyncResult(STATUS_FAILED, mBytesRead, mDaysMerged, mElapsedMillis,
+                mConnectMillis, mParseMillis, mPersistMillis, failure, mAttempts);
+    }
+
+    /**
+     * Returns the same result, as the outcome of the given number of attempts.
+     */
+    WeatherSyncResult withAttempts(int attempts) {
+        return new WeatherSyncResult(mStatus, mBytesRead, mDaysMerged, mElapsedMillis,
+                mConnectMillis, mParseMillis, mPersistMillis, mFailure, attempts);
+    }
+
+    public int getStatus() {
+        return mStatus;
+    }
+
+    public boolean isCancelled() {
+        return mStatus == STATUS_CANCELLED;
+    }
+
+    /** Why the sync failed, one of the FAILURE_ constants */
+    public int getFailure() {
+        return mFailure;
+    }
+
+    public boolean isRetryable() {
+        return mFailure == FAILURE_RETRYABLE;
+    }
+
+    /** Number of times the sync was tried, including the one this is the result of */
+    public int getAttempts() {
+        return mAttempts;
+    }
+
+    /** Number of bytes of the response body that were read */
+    public long getBytesRead() {
+        return mBytesRead;
+    }
+
+    /** Number of days that were merged, or rolled back if the sync was cancelled */
+    public int getDaysMerged() {
+        return mDaysMerged;
+    }
+
+    /** Wall clock time from the start of the sync until it finished or gave up */
+    public long getElapsedMillis() {
+        return mElapsedMillis;
+    }
+
+    /** Time until the response headers arrived, or the cache answered */
+    public long getConnectMillis() {
+        return mConnectMillis;
+    }
+
+    /** Time spent reading the response body off the network and parsing it, to the last day */
+    public long getParseMillis() {
+        return mParseMillis;
+    }
+
+    /** Time spent merging days into the stored forecast, up to the commit */
+    public long getPersistMillis() {
+        return mPersistMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "WeatherSyncResult{status=" + mStatus
+                + ", bytesRead=" + mBytesRead
+                + ", daysMerged=" + mDaysMerged
+                + ", elapsedMillis=" + mElapsedMillis
+                + ", connectMillis=" + mConnectMillis
+                + ", parseMillis=" + mParseMillis
+                + ", persistMillis=" + mPersistMillis
+                + ", failure=" + mFailure
+                + ", attempts=" + mAttempts + "}";
+    }
+}
@@ -3,6 +3,7 @@ package com.example.android.sunshine.utilities;
 import android.content.ContentValues;
 import android.content.Context;
 
+import com.example.android.sunshine.data.ForecastBatch;
 import com.example.android.sunshine.data.WeatherContract;
 
 import java.util.ArrayList;
@@ -20,7 +21,7 @@ public class FakeDataUtils {
      * @param date a normalized date
      * @return ContentValues object filled with random weather data
      */
-    private static ContentValues createTestWeatherContentValues(long date) {
+    public static ContentValues createTestWeatherContentValues(long date) {
         ContentValues testWeatherValues = new ContentValues();
         testWeatherValues.put(WeatherEntry.COLUMN_DATE, date);
         testWeatherValues.put(WeatherEntry.COLUMN_DEGREES, Math.random()*2);
@@ -34,6 +35,30 @@ public class FakeDataUtils {
         return testWeatherValues;
     }
 
+    /**
+     * Fills a ForecastBatch with random weather data for consecutive days, the same way
+     * {@link #createTestWeatherContentValues(long)} does for a single day.
+     * @param batch the batch to fill. Anything already in it is removed first.
+     * @param firstDate a normalized date for the first day
+     * @param dayCount the number of days to create
+     * @return the batch that was passed in
+     */
+    public static ForecastBatch createTestForecastBatch(ForecastBatch batch, long firstDate, int dayCount) {
+        batch.clear();
+        for (int i = 0; i < dayCount; i++) {
+            int maxTemp = (int)(Math.random()*100);
+            batch.add(firstDate + TimeUnit.DAYS.toMillis(i),
+                    weatherIDs[(int)(Math.random()*10)%5],
+                    maxTemp - (int) (Math.random()*10),
+                    maxTemp,
+                    Math.random()*100,
+                    870 + Math.random()*100,
+                    Math.random()*10,
+                    Math.random()*2);
+        }
+        return batch;
+    }
+
     /**
      * Creates random weather data for 7 days starting today
      * @param context
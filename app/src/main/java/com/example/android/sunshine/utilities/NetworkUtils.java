@@ -16,17 +16,31 @@
 package com.example.android.sunshine.utilities;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.net.Uri;
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.os.OperationCanceledException;
 import android.util.Log;
 
 import com.example.android.sunshine.data.SunshinePreferences;
 
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.Scanner;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
  * These utilities will be used to communicate with the weather servers.
@@ -83,6 +97,51 @@ public final class NetworkUtils {
     /* The days parameter allows us to designate how many days of weather data we want */
     private static final String DAYS_PARAM = "cnt";
 
+    /*
+     * The validators (ETag and Last-Modified) of the last stored responses are kept in their own
+     * SharedPreferences file, keyed by the URL followed by one of these suffixes. Each location is
+     * fetched from a URL of its own and its weather is stored apart from the others, so the
+     * validators of one URL stay valid however many other URLs are stored after it.
+     */
+    private static final String VALIDATOR_PREFERENCES = "http_validators";
+    private static final String ETAG_SUFFIX = "#etag";
+    private static final String LAST_MODIFIED_SUFFIX = "#last_modified";
+    private static final String EXPIRES_SUFFIX = "#expires";
+    private static final String SAVED_DAY_SUFFIX = "#saved_day";
+
+    private static final String MAX_AGE = "max-age=";
+
+    /* Validators of responses that have been fetched but not stored yet, keyed by URL */
+    private static final Map<String, String[]> sPendingValidators = new HashMap<String, String[]>();
+
+    private static final AtomicLong sCacheHitCount = new AtomicLong();
+    private static final AtomicLong sCacheRevalidatedCount = new AtomicLong();
+    private static final AtomicLong sCacheMissCount = new AtomicLong();
+
+    /*
+     * The server is asked to compress responses. The forecast is repetitive JSON, so it shrinks
+     * to a fraction of its size, and decompressing it as it arrives costs far less than
+     * receiving the difference over a mobile network.
+     */
+    private static final String ACCEPT_ENCODING = "gzip, deflate";
+    private static final String ENCODING_GZIP = "gzip";
+    private static final String ENCODING_DEFLATE = "deflate";
+    private static final String ENCODING_IDENTITY = "identity";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /*
+     * Without timeouts, a server that accepts the connection and then never answers would hold
+     * on to the syncing thread forever. A timeout is reported as a SocketTimeoutException, which
+     * the sync treats as worth retrying.
+     */
+    private static final int CONNECT_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(15);
+    private static final int READ_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(20);
+
+    /* Response body bytes as they came over the network, and after decompression */
+    private static final AtomicLong sNetworkBytesRead = new AtomicLong();
+    private static final AtomicLong sDecodedBytesRead = new AtomicLong();
+
     /**
      * Retrieves the proper URL to query for the weather data. The reason for both this method as
      * well as {@link #buildUrlWithLocationQuery(String)} is two fold.
@@ -109,6 +168,22 @@ public final class NetworkUtils {
         }
     }
 
+    /**
+     * Returns the URL to query the weather of any stored location with, rather than only the
+     * preferred one. Only the preferred location can have coordinates from the place picker, so
+     * other locations are always queried by their location setting.
+     *
+     * @param context         used to access other Utility methods
+     * @param locationSetting The location to query the weather of
+     * @return URL to query weather service
+     */
+    public static URL getUrl(Context context, String locationSetting) {
+        if (locationSetting.equals(SunshinePreferences.getPreferredWeatherLocation(context))) {
+            return getUrl(context);
+        }
+        return buildUrlWithLocationQuery(locationSetting);
+    }
+
     /**
      * Builds the URL used to talk to the weather server using latitude and longitude of a
      * location.
@@ -162,29 +237,431 @@ public final class NetworkUtils {
     }
 
     /**
-     * This method returns the entire result from the HTTP response.
+     * This method returns the entire result from the HTTP response. Parsers should read the
+     * stream from {@link #getResponseStreamFromHttpUrl(URL)} instead, rather than holding the
+     * whole response in memory as a String.
      *
      * @param url The URL to fetch the HTTP response from.
      * @return The contents of the HTTP response, null if no response
      * @throws IOException Related to network and stream reading
      */
     public static String getResponseFromHttpUrl(URL url) throws IOException {
-        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+        InputStream in = getResponseStreamFromHttpUrl(url);
         try {
-            InputStream in = urlConnection.getInputStream();
+            /* The body is decoded as UTF-8, as the server sends it, whatever the device default */
+            Reader reader = new InputStreamReader(in, "UTF-8");
+            StringBuilder response = new StringBuilder();
+            char[] buffer = new char[BUFFER_SIZE];
+            int count;
+            while ((count = reader.read(buffer)) != -1) {
+                response.append(buffer, 0, count);
+            }
+            return response.length() > 0 ? response.toString() : null;
+        } finally {
+            in.close();
+        }
+    }
 
-            Scanner scanner = new Scanner(in);
-            scanner.useDelimiter("\\A");
+    /**
+     * Opens the body of the HTTP response as a stream so that it can be parsed while it is still
+     * arriving, rather than being buffered into a String first. Closing the returned stream also
+     * disconnects from the server, so callers must always close it.
+     *
+     * @param url The URL to fetch the HTTP response from.
+     * @return A stream over the contents of the HTTP response
+     * @throws IOException Related to network and stream reading
+     */
+    public static InputStream getResponseStreamFromHttpUrl(URL url) throws IOException {
+        HttpURLConnection urlConnection = openConnection(url);
+        try {
+            return openResponseStream(urlConnection);
+        } catch (IOException e) {
+            urlConnection.disconnect();
+            throw e;
+        }
+    }
+
+    /**
+     * Same as {@link #getResponseStreamFromHttpUrl(URL)}, but revalidates the response that was
+     * last saved for this URL with {@link #saveResponseValidators(Context, URL)} instead of
+     * downloading it again. The server is asked to send the body only if it has changed since,
+     * using the ETag and Last-Modified validators it returned last time. If the saved response
+     * is still fresh according to its Cache-Control max-age, the server isn't contacted at all.
+     * <p>
+     * Validators are only used on the day they were saved. Sunshine dates each day of a forecast
+     * relative to the day it was parsed on, so an unchanged response still has to be parsed
+     * again once the day rolls over.
+     *
+     * @param context Used to access the saved validators
+     * @param url     The URL to fetch the HTTP response from.
+     * @return A stream over the contents of the HTTP response, or null if the response that was
+     * last saved for this URL is still current
+     * @throws IOException Related to network and stream reading
+     */
+    public static InputStream getResponseStreamFromHttpUrl(Context context, URL url)
+            throws IOException {
+        return getResponseStreamFromHttpUrl(context, url, null);
+    }
 
-            boolean hasInput = scanner.hasNext();
-            String response = null;
-            if (hasInput) {
-                response = scanner.next();
+    /**
+     * Same as {@link #getResponseStreamFromHttpUrl(Context, URL)}, but can be cancelled from
+     * another thread. Cancelling disconnects from the server, which aborts a connect or a read
+     * that is blocked on the socket, so a stalled server can't hold on to the calling thread.
+     *
+     * @param context            Used to access the saved validators
+     * @param url                The URL to fetch the HTTP response from.
+     * @param cancellationSignal Signal to abort the request with, or null
+     * @return A stream over the contents of the HTTP response, or null if the response that was
+     * last saved for this URL is still current
+     * @throws IOException                Related to network and stream reading
+     * @throws OperationCanceledException If the signal was cancelled before the response arrived
+     */
+    public static InputStream getResponseStreamFromHttpUrl(Context context, URL url,
+                                                           CancellationSignal cancellationSignal)
+            throws IOException {
+        if (cancellationSignal != null) {
+            cancellationSignal.throwIfCanceled();
+        }
+
+        String key = url.toString();
+        SharedPreferences validators = getValidatorPreferences(context);
+        long today = SunshineDateUtils.getNormalizedUtcDateForToday();
+
+        String eTag = null;
+        String lastModified = null;
+        if (validators.getLong(key + SAVED_DAY_SUFFIX, -1) == today) {
+            if (System.currentTimeMillis() < validators.getLong(key + EXPIRES_SUFFIX, 0)) {
+                sCacheHitCount.incrementAndGet();
+                return null;
             }
-            scanner.close();
-            return response;
-        } finally {
+
+            eTag = validators.getString(key + ETAG_SUFFIX, null);
+            lastModified = validators.getString(key + LAST_MODIFIED_SUFFIX, null);
+        }
+
+        final HttpURLConnection urlConnection = openConnection(url);
+        if (cancellationSignal != null) {
+            /* Runs right away, on this thread, if the signal was cancelled in the meantime */
+            cancellationSignal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    urlConnection.disconnect();
+                }
+            });
+        }
+
+        try {
+            if (eTag != null) {
+                urlConnection.setRequestProperty("If-None-Match", eTag);
+            }
+            if (lastModified != null) {
+                urlConnection.setRequestProperty("If-Modified-Since", lastModified);
+            }
+
+            if (urlConnection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                sCacheRevalidatedCount.incrementAndGet();
+                rememberValidators(key, urlConnection, eTag, lastModified);
+                urlConnection.disconnect();
+                return null;
+            }
+
+            InputStream responseStream = openResponseStream(urlConnection);
+            sCacheMissCount.incrementAndGet();
+            rememberValidators(key, urlConnection, null, null);
+            return responseStream;
+        } catch (IOException e) {
             urlConnection.disconnect();
+
+            /* A disconnect from the cancel listener surfaces here as a socket error */
+            if (cancellationSignal != null) {
+                cancellationSignal.throwIfCanceled();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Saves the validators of the last responses fetched for these URLs with
+     * {@link #getResponseStreamFromHttpUrl(Context, URL)}. This should only be called once those
+     * responses have been stored, so that a later "not modified" answer can safely be ignored.
+     * <p>
+     * Only the validators of these URLs are replaced. Every location's weather is stored under
+     * its own location, so the validators saved for other URLs still describe what is stored
+     * for them. A URL that got no new response since its last save, such as one that was
+     * answered by a fresh response, keeps what was saved for it.
+     *
+     * @param context Used to access the saved validators
+     * @param urls    The URLs the stored responses were fetched from
+     */
+    public static void saveResponseValidators(Context context, URL... urls) {
+        SharedPreferences.Editor editor = getValidatorPreferences(context).edit();
+
+        long today = SunshineDateUtils.getNormalizedUtcDateForToday();
+        for (URL url : urls) {
+            String key = url.toString();
+
+            String[] pending;
+            synchronized (sPendingValidators) {
+                pending = sPendingValidators.remove(key);
+            }
+
+            if (pending == null) {
+                /* Nothing new was fetched, such as for a fresh response, so keep what's saved */
+                continue;
+            }
+
+            putOrRemove(editor, key + ETAG_SUFFIX, pending[0]);
+            putOrRemove(editor, key + LAST_MODIFIED_SUFFIX, pending[1]);
+            editor.putLong(key + EXPIRES_SUFFIX, Long.parseLong(pending[2]));
+            editor.putLong(key + SAVED_DAY_SUFFIX, today);
+        }
+        editor.apply();
+    }
+
+    /**
+     * Forgets every saved validator, so that the next request for each URL downloads the full
+     * response. This must be called whenever the stored weather data is lost.
+     *
+     * @param context Used to access the saved validators
+     */
+    public static void clearResponseValidators(Context context) {
+        synchronized (sPendingValidators) {
+            sPendingValidators.clear();
+        }
+        getValidatorPreferences(context).edit().clear().apply();
+    }
+
+    /** Number of requests answered from a saved response without contacting the server */
+    public static long getCacheHitCount() {
+        return sCacheHitCount.get();
+    }
+
+    /** Number of requests for which the server confirmed the saved response was still current */
+    public static long getCacheRevalidatedCount() {
+        return sCacheRevalidatedCount.get();
+    }
+
+    /** Number of requests that downloaded a full response */
+    public static long getCacheMissCount() {
+        return sCacheMissCount.get();
+    }
+
+    /** Number of response body bytes received from the network, compressed or not */
+    public static long getNetworkBytesRead() {
+        return sNetworkBytesRead.get();
+    }
+
+    /** Number of response body bytes handed to callers, after decompression */
+    public static long getDecodedBytesRead() {
+        return sDecodedBytesRead.get();
+    }
+
+    private static SharedPreferences getValidatorPreferences(Context context) {
+        return context.getSharedPreferences(VALIDATOR_PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Holds on to the validators of a response until it has been stored. A 304 response may
+     * omit validators, in which case the ones that were sent with the request are kept.
+     */
+    private static void rememberValidators(String key, HttpURLConnection urlConnection,
+                                           String requestETag, String requestLastModified) {
+        String eTag = urlConnection.getHeaderField("ETag");
+        String lastModified = urlConnection.getHeaderField("Last-Modified");
+        long expires = System.currentTimeMillis() + getMaxAgeMillis(urlConnection);
+
+        String[] validators = {
+                eTag != null ? eTag : requestETag,
+                lastModified != null ? lastModified : requestLastModified,
+                Long.toString(expires)
+        };
+
+        synchronized (sPendingValidators) {
+            sPendingValidators.put(key, validators);
+        }
+    }
+
+    /**
+     * Returns the freshness lifetime of a response from its Cache-Control max-age directive, or 0
+     * if the response must always be revalidated.
+     */
+    private static long getMaxAgeMillis(HttpURLConnection urlConnection) {
+        String cacheControl = urlConnection.getHeaderField("Cache-Control");
+        if (cacheControl == null || cacheControl.contains("no-cache")
+                || cacheControl.contains("no-store")) {
+            return 0;
+        }
+
+        int maxAgeIndex = cacheControl.indexOf(MAX_AGE);
+        if (maxAgeIndex == -1) {
+            return 0;
+        }
+
+        int start = maxAgeIndex + MAX_AGE.length();
+        int end = start;
+        while (end < cacheControl.length() && Character.isDigit(cacheControl.charAt(end))) {
+            end++;
+        }
+
+        try {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(cacheControl.substring(start, end)));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static void putOrRemove(SharedPreferences.Editor editor, String key, String value) {
+        if (value != null) {
+            editor.putString(key, value);
+        } else {
+            editor.remove(key);
+        }
+    }
+
+    /**
+     * Opens a connection that offers to take the response compressed. Once a caller sets
+     * Accept-Encoding itself, HttpURLConnection no longer decompresses the body on its own, so
+     * every connection opened this way must be read through {@link #openResponseStream}.
+     */
+    private static HttpURLConnection openConnection(URL url) throws IOException {
+        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+        urlConnection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        urlConnection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        urlConnection.setRequestProperty("Accept-Encoding", ACCEPT_ENCODING);
+        return urlConnection;
+    }
+
+    /**
+     * Wraps the response body of an open connection in a stream that decompresses it as it is
+     * read, according to its Content-Encoding, and disconnects when closed. The body is never
+     * held in memory as a whole, compressed or not.
+     *
+     * @throws HttpStatusException If the server answered with an error status
+     */
+    private static InputStream openResponseStream(final HttpURLConnection urlConnection)
+            throws IOException {
+        int statusCode = urlConnection.getResponseCode();
+        if (statusCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+            throw new HttpStatusException(statusCode, urlConnection.getURL());
+        }
+
+        InputStream in = new CountingInputStream(
+                new BufferedInputStream(urlConnection.getInputStream(), BUFFER_SIZE),
+                sNetworkBytesRead);
+
+        String contentEncoding = urlConnection.getContentEncoding();
+        if (contentEncoding != null) {
+            contentEncoding = contentEncoding.trim().toLowerCase(Locale.US);
+        }
+        if (ENCODING_GZIP.equals(contentEncoding)) {
+            in = new GZIPInputStream(in, BUFFER_SIZE);
+        } else if (ENCODING_DEFLATE.equals(contentEncoding)) {
+            in = openDeflateStream(in);
+        } else if (contentEncoding != null && !ENCODING_IDENTITY.equals(contentEncoding)) {
+            throw new IOException("Unsupported Content-Encoding: " + contentEncoding);
+        }
+        in = new CountingInputStream(in, sDecodedBytesRead);
+
+        return new FilterInputStream(in) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    urlConnection.disconnect();
+                }
+            }
+        };
+    }
+
+    /**
+     * "deflate" is meant to be zlib data, but some servers send raw deflate data without the
+     * zlib header. The first two bytes tell them apart: a zlib header names the deflate method
+     * in its low nibble and is a multiple of 31 when read as a 16 bit number.
+     */
+    private static InputStream openDeflateStream(InputStream in) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in, BUFFER_SIZE);
+        buffered.mark(2);
+        int cmf = buffered.read();
+        int flg = buffered.read();
+        buffered.reset();
+
+        boolean zlibWrapped = cmf != -1 && flg != -1
+                && (cmf & 0x0f) == 8
+                && ((cmf << 8) | flg) % 31 == 0;
+        final Inflater inflater = new Inflater(!zlibWrapped);
+        return new InflaterInputStream(buffered, inflater, BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                /* An Inflater that was passed in isn't released by the stream itself */
+                try {
+                    super.close();
+                } finally {
+                    inflater.end();
+                }
+            }
+        };
+    }
+
+    /**
+     * Thrown when the server answers a request with an error status, so that callers can tell
+     * an error that will go away, such as 503, from one that won't, such as 404.
+     */
+    public static final class HttpStatusException extends IOException {
+
+        private final int mStatusCode;
+
+        public HttpStatusException(int statusCode, URL url) {
+            super("HTTP " + statusCode + " for " + url);
+            mStatusCode = statusCode;
+        }
+
+        public int getStatusCode() {
+            return mStatusCode;
+        }
+    }
+
+    /**
+     * Adds the number of bytes read through it to a counter.
+     */
+    public static final class CountingInputStream extends FilterInputStream {
+
+        private final AtomicLong mCounter;
+
+        public CountingInputStream(InputStream in, AtomicLong counter) {
+            super(in);
+            mCounter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mCounter.incrementAndGet();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                mCounter.addAndGet(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = super.skip(count);
+            mCounter.addAndGet(skipped);
+            return skipped;
+        }
+
+        /* Counting a range twice would be wrong, so marks aren't passed through */
+        @Override
+        public boolean markSupported() {
+            return false;
         }
     }
-}
\ No newline at end of file
+}
@@ -17,15 +17,22 @@ package com.example.android.sunshine.utilities;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.util.JsonReader;
+import android.util.MalformedJsonException;
 
+import com.example.android.sunshine.data.ForecastBatch;
 import com.example.android.sunshine.data.SunshinePreferences;
 import com.example.android.sunshine.data.WeatherContract;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
 import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Utility functions to handle OpenWeatherMap JSON data.
@@ -60,52 +67,250 @@ public final class OpenWeatherJsonUtils {
 
     private static final String OWM_MESSAGE_CODE = "cod";
 
+
     /**
-     * This method parses JSON from a web response and returns an array of Strings
+     * Receives each day of a forecast as soon as it has been read from the response. This lets
+     * callers write rows straight to their destination instead of holding the whole forecast in
+     * memory while it is being parsed.
+     */
+    public interface WeatherRowSink {
+
+        /**
+         * Called once per day of forecast, in the order the days appear in the response.
+         *
+         * @param date      Normalized UTC date for the day
+         * @param weatherId Weather ID as returned by the API
+         * @param minTemp   Minimum temperature for the day in °C
+         * @param maxTemp   Maximum temperature for the day in °C
+         * @param humidity  Humidity as a percentage
+         * @param pressure  Pressure in hPa
+         * @param windSpeed Wind speed
+         * @param degrees   Meteorological wind direction in degrees
+         */
+        void onWeatherRow(long date, int weatherId, double minTemp, double maxTemp,
+                          double humidity, double pressure, double windSpeed, double degrees);
+    }
+
+    /**
+     * This method parses JSON from a web response and returns an array of ContentValues
      * describing the weather over various days from the forecast.
-     * <p/>
-     * Later on, we'll be parsing the JSON into structured data within the
-     * getFullWeatherDataFromJson function, leveraging the data we have stored in the JSON. For
-     * now, we just convert the JSON into human-readable strings.
+     * <p>
+     * This is kept for callers that already have the response as a String. New code should
+     * prefer {@link #parseWeatherFromJson(Context, InputStream, WeatherRowSink)}, which never
+     * holds more than one day of the forecast in memory, or {@link #getForecastBatchFromJson},
+     * which doesn't create a ContentValues, a HashMap and eight boxed values for every day.
      *
      * @param forecastJsonStr JSON response from server
      *
-     * @return Array of Strings describing weather data
+     * @return Array of ContentValues describing weather data, null if the response contained an
+     * error code
      *
      * @throws JSONException If JSON data cannot be properly parsed
      */
     public static ContentValues[] getWeatherContentValuesFromJson(Context context, String forecastJsonStr)
             throws JSONException {
 
-        JSONObject forecastJson = new JSONObject(forecastJsonStr);
-
-        /* Is there an error? */
-        if (forecastJson.has(OWM_MESSAGE_CODE)) {
-            int errorCode = forecastJson.getInt(OWM_MESSAGE_CODE);
-
-            switch (errorCode) {
-                case HttpURLConnection.HTTP_OK:
-                    break;
-                case HttpURLConnection.HTTP_NOT_FOUND:
-                    /* Location invalid */
-                    return null;
-                default:
-                    /* Server probably down */
-                    return null;
+        final List<ContentValues> weatherContentValues = new ArrayList<ContentValues>();
+
+        JsonReader reader = new JsonReader(new StringReader(forecastJsonStr));
+        try {
+            int responseCode = readForecast(context, reader, new WeatherRowSink() {
+                @Override
+                public void onWeatherRow(long date, int weatherId, double minTemp, double maxTemp,
+                                         double humidity, double pressure, double windSpeed,
+                                         double degrees) {
+                    weatherContentValues.add(createWeatherContentValues(date, weatherId, minTemp,
+                            maxTemp, humidity, pressure, windSpeed, degrees));
+                }
+            });
+
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                return null;
+            }
+        } catch (IOException e) {
+            throw new JSONException(e.getMessage());
+        } catch (IllegalStateException e) {
+            throw new JSONException(e.getMessage());
+        } catch (NumberFormatException e) {
+            throw new JSONException(e.getMessage());
+        } finally {
+            closeQuietly(reader);
+        }
+
+        return weatherContentValues.toArray(new ContentValues[weatherContentValues.size()]);
+    }
+
+    /**
+     * Parses a forecast response into a {@link ForecastBatch}, which holds every day in one
+     * primitive array per column. The batch can be merged with
+     * {@link com.example.android.sunshine.data.WeatherProvider#mergeForecasts} or passed to
+     * {@link WeatherContract#METHOD_MERGE_WEATHER} as it is.
+     *
+     * @param context Used to save the location details of the forecast as those of the
+     *                preferred location, or null to leave them alone
+     * @param in      Stream containing the JSON response from the server. It is closed by this
+     *                method.
+     *
+     * @return The days of the forecast, null if the response contained an error code
+     *
+     * @throws IOException If the stream could not be read or did not contain a valid forecast
+     */
+    public static ForecastBatch getForecastBatchFromJson(Context context, InputStream in)
+            throws IOException {
+        ForecastBatch batch = new ForecastBatch();
+        if (!parseWeatherFromJson(context, in, batch)) {
+            return null;
+        }
+        return batch;
+    }
+
+    /**
+     * Parses a forecast response as it is read from the given stream, handing each day to the
+     * sink as soon as it is complete. Unlike {@link #getWeatherContentValuesFromJson}, the
+     * response is never materialized as a String or a JSON object tree.
+     * <p>
+     * The "cod" error code is normally sent before the list of days. If a server sends it after
+     * the list, the sink will already have received rows by the time this method returns false.
+     *
+     * @param context Used to save the location details of the forecast as those of the
+     *                preferred location, or null to leave them alone
+     * @param in      Stream containing the JSON response from the server. It is closed by this
+     *                method.
+     * @param sink    Receives each day of the forecast
+     *
+     * @return true if the forecast was read, false if the response contained an error code
+     *
+     * @throws IOException If the stream could not be read or did not contain a valid forecast
+     */
+    public static boolean parseWeatherFromJson(Context context, InputStream in, WeatherRowSink sink)
+            throws IOException {
+        return parseForecastFromJson(context, in, sink) == HttpURLConnection.HTTP_OK;
+    }
+
+    /**
+     * Same as {@link #parseWeatherFromJson(Context, InputStream, WeatherRowSink)}, but tells
+     * callers which error code the response contained. OpenWeatherMap reports errors such as an
+     * unknown city in the body, with the HTTP status of the error in "cod", so this is what
+     * tells an error that will never go away from one that is worth trying again.
+     *
+     * @param context Used to save the location details of the forecast as those of the
+     *                preferred location, or null to leave them alone
+     * @param in      Stream containing the JSON response from the server. It is closed by this
+     *                method.
+     * @param sink    Receives each day of the forecast
+     *
+     * @return {@link HttpURLConnection#HTTP_OK} if the forecast was read, or the error code the
+     * response contained instead
+     *
+     * @throws IOException If the stream could not be read or did not contain a valid forecast
+     */
+    public static int parseForecastFromJson(Context context, InputStream in, WeatherRowSink sink)
+            throws IOException {
+
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            return readForecast(context, reader, sink);
+        } catch (IllegalStateException e) {
+            /* JsonReader reports unexpected tokens as an unchecked exception */
+            throw new MalformedJsonException(e.getMessage());
+        } catch (NumberFormatException e) {
+            throw new MalformedJsonException(e.getMessage());
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Reads the top level forecast object.
+     *
+     * @return {@link HttpURLConnection#HTTP_OK} if the forecast was read, or the error code the
+     * response contained instead
+     */
+    private static int readForecast(Context context, JsonReader reader, WeatherRowSink sink)
+            throws IOException {
+
+        boolean hasList = false;
+        double[] cityCoord = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+
+            if (OWM_MESSAGE_CODE.equals(name)) {
+                /* Is there an error? */
+                int errorCode = reader.nextInt();
+
+                switch (errorCode) {
+                    case HttpURLConnection.HTTP_OK:
+                        break;
+                    case HttpURLConnection.HTTP_NOT_FOUND:
+                        /* Location invalid */
+                        return errorCode;
+                    default:
+                        /* Server probably down */
+                        return errorCode;
+                }
+            } else if (OWM_CITY.equals(name)) {
+                cityCoord = readCityCoordinates(reader);
+            } else if (OWM_LIST.equals(name)) {
+                readDays(reader, sink);
+                hasList = true;
+            } else {
+                reader.skipValue();
             }
         }
+        reader.endObject();
 
-        JSONArray jsonWeatherArray = forecastJson.getJSONArray(OWM_LIST);
+        if (!hasList) {
+            throw new MalformedJsonException("No value for " + OWM_LIST);
+        }
+        if (cityCoord == null) {
+            throw new MalformedJsonException("No value for " + OWM_COORD);
+        }
 
-        JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
+        if (context != null) {
+            SunshinePreferences.setLocationDetails(context, cityCoord[0], cityCoord[1]);
+        }
+        return HttpURLConnection.HTTP_OK;
+    }
 
-        JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
-        double cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
-        double cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
+    /**
+     * Reads the "city" object and returns its latitude and longitude, or null if the city has no
+     * coordinates.
+     */
+    private static double[] readCityCoordinates(JsonReader reader) throws IOException {
+        double[] coordinates = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (OWM_COORD.equals(reader.nextName())) {
+                coordinates = new double[2];
+
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    if (OWM_LATITUDE.equals(name)) {
+                        coordinates[0] = reader.nextDouble();
+                    } else if (OWM_LONGITUDE.equals(name)) {
+                        coordinates[1] = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
 
-        SunshinePreferences.setLocationDetails(context, cityLatitude, cityLongitude);
+        return coordinates;
+    }
 
-        ContentValues[] weatherContentValues = new ContentValues[jsonWeatherArray.length()];
+    /**
+     * Reads the "list" array, handing each day to the sink as soon as it has been read.
+     */
+    private static void readDays(JsonReader reader, WeatherRowSink sink) throws IOException {
 
         /*
          * OWM returns daily forecasts based upon the local time of the city that is being asked
@@ -113,72 +318,139 @@ public final class OpenWeatherJsonUtils {
          * Since this data is also sent in-order and the first day is always the current day, we're
          * going to take advantage of that to get a nice normalized UTC date for all of our weather.
          */
-//        long now = System.currentTimeMillis();
-//        long normalizedUtcStartDay = SunshineDateUtils.normalizeDate(now);
-
         long normalizedUtcStartDay = SunshineDateUtils.getNormalizedUtcDateForToday();
 
-        for (int i = 0; i < jsonWeatherArray.length(); i++) {
-
-            long dateTimeMillis;
-            double pressure;
-            int humidity;
-            double windSpeed;
-            double windDirection;
-
-            double high;
-            double low;
-
-            int weatherId;
+        int day = 0;
+
+        reader.beginArray();
+        while (reader.hasNext()) {
+
+            double pressure = Double.NaN;
+            double humidity = Double.NaN;
+            double windSpeed = Double.NaN;
+            double windDirection = Double.NaN;
+
+            double high = Double.NaN;
+            double low = Double.NaN;
+
+            int weatherId = -1;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+
+                if (OWM_PRESSURE.equals(name)) {
+                    pressure = reader.nextDouble();
+                } else if (OWM_HUMIDITY.equals(name)) {
+                    /* Humidity has always been stored as a whole percentage */
+                    humidity = (int) reader.nextDouble();
+                } else if (OWM_WINDSPEED.equals(name)) {
+                    windSpeed = reader.nextDouble();
+                } else if (OWM_WIND_DIRECTION.equals(name)) {
+                    windDirection = reader.nextDouble();
+                } else if (OWM_WEATHER.equals(name)) {
+                    /*
+                     * Description is in a child array called "weather", which is 1 element long.
+                     * That element also contains a weather code.
+                     */
+                    weatherId = readWeatherId(reader);
+                } else if (OWM_TEMPERATURE.equals(name)) {
+                    /*
+                     * Temperatures are sent by Open Weather Map in a child object called "temp".
+                     *
+                     * Editor's Note: Try not to name variables "temp" when working with
+                     * temperature. It confuses everybody.
+                     */
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String temperatureName = reader.nextName();
+                        if (OWM_MAX.equals(temperatureName)) {
+                            high = reader.nextDouble();
+                        } else if (OWM_MIN.equals(temperatureName)) {
+                            low = reader.nextDouble();
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
 
-            /* Get the JSON object representing the day */
-            JSONObject dayForecast = jsonWeatherArray.getJSONObject(i);
+            if (Double.isNaN(pressure) || Double.isNaN(humidity) || Double.isNaN(windSpeed)
+                    || Double.isNaN(windDirection) || Double.isNaN(high) || Double.isNaN(low)
+                    || weatherId == -1) {
+                throw new MalformedJsonException("Incomplete forecast for day " + day);
+            }
 
             /*
              * We ignore all the datetime values embedded in the JSON and assume that
              * the values are returned in-order by day (which is not guaranteed to be correct).
              */
-            dateTimeMillis = normalizedUtcStartDay + SunshineDateUtils.DAY_IN_MILLIS * i;
+            long dateTimeMillis = normalizedUtcStartDay + SunshineDateUtils.DAY_IN_MILLIS * day;
 
-            pressure = dayForecast.getDouble(OWM_PRESSURE);
-            humidity = dayForecast.getInt(OWM_HUMIDITY);
-            windSpeed = dayForecast.getDouble(OWM_WINDSPEED);
-            windDirection = dayForecast.getDouble(OWM_WIND_DIRECTION);
-
-            /*
-             * Description is in a child array called "weather", which is 1 element long.
-             * That element also contains a weather code.
-             */
-            JSONObject weatherObject =
-                    dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
+            sink.onWeatherRow(dateTimeMillis, weatherId, low, high, humidity, pressure,
+                    windSpeed, windDirection);
+            day++;
+        }
+        reader.endArray();
+    }
 
-            weatherId = weatherObject.getInt(OWM_WEATHER_ID);
+    /**
+     * Reads the "weather" array and returns the ID of its first element, or -1 if it is empty.
+     */
+    private static int readWeatherId(JsonReader reader) throws IOException {
+        int weatherId = -1;
+
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (weatherId != -1) {
+                reader.skipValue();
+                continue;
+            }
 
-            /*
-             * Temperatures are sent by Open Weather Map in a child object called "temp".
-             *
-             * Editor's Note: Try not to name variables "temp" when working with temperature.
-             * It confuses everybody. Temp could easily mean any number of things, including
-             * temperature, temporary variable, temporary folder, temporary employee, or many
-             * others, and is just a bad variable name.
-             */
-            JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
-            high = temperatureObject.getDouble(OWM_MAX);
-            low = temperatureObject.getDouble(OWM_MIN);
-
-            ContentValues weatherValues = new ContentValues();
-            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTimeMillis);
-            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, humidity);
-            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, pressure);
-            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
-            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, windDirection);
-            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
-            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
-            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
-
-            weatherContentValues[i] = weatherValues;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (OWM_WEATHER_ID.equals(reader.nextName())) {
+                    weatherId = reader.nextInt();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
         }
+        reader.endArray();
 
-        return weatherContentValues;
+        return weatherId;
+    }
+
+    /**
+     * Creates the ContentValues used to insert a single day of weather into the
+     * ContentProvider.
+     */
+    public static ContentValues createWeatherContentValues(long date, int weatherId,
+                                                           double minTemp, double maxTemp,
+                                                           double humidity, double pressure,
+                                                           double windSpeed, double degrees) {
+        ContentValues weatherValues = new ContentValues();
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, date);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, humidity);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, pressure);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, degrees);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, maxTemp);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, minTemp);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
+        return weatherValues;
+    }
+
+    private static void closeQuietly(JsonReader reader) {
+        try {
+            reader.close();
+        } catch (IOException e) {
+            // ignore
+        }
     }
-}
\ No newline at end of file
+}
@@ -19,7 +19,8 @@ import android.content.Context;
 import android.util.Log;
 
 import com.example.android.sunshine.R;
-import com.example.android.sunshine.data.SunshinePreferences;
+
+import java.util.Locale;
 
 /**
  * Contains useful utilities for a weather app, such as conversion between Celsius and Fahrenheit,
@@ -30,6 +31,37 @@ public final class SunshineWeatherUtils {
 
     private static final String LOG_TAG = SunshineWeatherUtils.class.getSimpleName();
 
+    /*
+     * Everything known about a weather condition is kept in one table with a row for each id
+     * from FIRST_WEATHER_ID to LAST_WEATHER_ID, so looking a condition up is a subtraction and
+     * an array read. Each row holds a string resource, small art and large art, in that order,
+     * and 0 for an id that has none of them.
+     */
+    private static final int FIRST_WEATHER_ID = 200;
+    private static final int LAST_WEATHER_ID = 962;
+
+    private static final int CONDITION_STRING = 0;
+    private static final int CONDITION_SMALL_ART = 1;
+    private static final int CONDITION_LARGE_ART = 2;
+    private static final int CONDITION_COLUMNS = 3;
+
+    private static final int[] sConditions = buildConditionTable();
+
+    /* Condition Strings already read from the resources, for the locale they were read in */
+    private static volatile ConditionStrings sConditionStrings;
+
+    /*
+     * The formatted Strings returned below are built in one of these per thread, so the only
+     * thing allocated for each of them is the String itself. See WeatherFormatter.
+     */
+    private static final ThreadLocal<StringBuilder> sFormatBuilder =
+            new ThreadLocal<StringBuilder>() {
+                @Override
+                protected StringBuilder initialValue() {
+                    return new StringBuilder(32);
+                }
+            };
+
     /**
      * This method will convert a temperature from Celsius to Fahrenheit.
      *
@@ -37,7 +69,7 @@ public final class SunshineWeatherUtils {
      *
      * @return Temperature in degrees Fahrenheit (°F)
      */
-    private static double celsiusToFahrenheit(double temperatureInCelsius) {
+    static double celsiusToFahrenheit(double temperatureInCelsius) {
         double temperatureInFahrenheit = (temperatureInCelsius * 1.8) + 32;
         return temperatureInFahrenheit;
     }
@@ -47,6 +79,9 @@ public final class SunshineWeatherUtils {
      * the app may need to display the temperature in Fahrenheit. This method will perform that
      * temperature conversion if necessary. It will also format the temperature so that no
      * decimal points show. Temperatures will be formatted to the following form: "21°"
+     * <p>
+     * Code that formats many temperatures, such as a whole forecast, can append them to a
+     * StringBuilder of its own with {@link WeatherFormatter#appendTemperature} instead.
      *
      * @param context     Android Context to access preferences and resources
      * @param temperature Temperature in degrees Celsius (°C)
@@ -55,14 +90,13 @@ public final class SunshineWeatherUtils {
      * "21°"
      */
     public static String formatTemperature(Context context, double temperature) {
-        if (!SunshinePreferences.isMetric(context)) {
-            temperature = celsiusToFahrenheit(temperature);
-        }
-
-        int temperatureFormatResourceId = R.string.format_temperature;
+        StringBuilder builder = sFormatBuilder.get();
+        builder.setLength(0);
 
         /* For presentation, assume the user doesn't care about tenths of a degree. */
-        return String.format(context.getString(temperatureFormatResourceId), temperature);
+        return WeatherFormatter.getInstance(context)
+                .appendTemperature(builder, temperature)
+                .toString();
     }
 
     /**
@@ -89,6 +123,9 @@ public final class SunshineWeatherUtils {
     /**
      * This method uses the wind direction in degrees to determine compass direction as a
      * String. (eg NW) The method will return the wind String in the following form: "2 km/h SW"
+     * <p>
+     * As with temperatures, {@link WeatherFormatter#appendWind} appends the same String to a
+     * StringBuilder of the caller's own.
      *
      * @param context   Android Context to access preferences and resources
      * @param windSpeed Wind speed in kilometers / hour
@@ -98,42 +135,21 @@ public final class SunshineWeatherUtils {
      * @return Wind String in the following form: "2 km/h SW"
      */
     public static String getFormattedWind(Context context, float windSpeed, float degrees) {
-        int windFormat = R.string.format_wind_kmh;
-
-        if (!SunshinePreferences.isMetric(context)) {
-            windFormat = R.string.format_wind_mph;
-            windSpeed = .621371192237334f * windSpeed;
-        }
-
-        /*
-         * You know what's fun? Writing really long if/else statements with tons of possible
-         * conditions. Seriously, try it!
-         */
-        String direction = "Unknown";
-        if (degrees >= 337.5 || degrees < 22.5) {
-            direction = "N";
-        } else if (degrees >= 22.5 && degrees < 67.5) {
-            direction = "NE";
-        } else if (degrees >= 67.5 && degrees < 112.5) {
-            direction = "E";
-        } else if (degrees >= 112.5 && degrees < 157.5) {
-            direction = "SE";
-        } else if (degrees >= 157.5 && degrees < 202.5) {
-            direction = "S";
-        } else if (degrees >= 202.5 && degrees < 247.5) {
-            direction = "SW";
-        } else if (degrees >= 247.5 && degrees < 292.5) {
-            direction = "W";
-        } else if (degrees >= 292.5 && degrees < 337.5) {
-            direction = "NW";
-        }
+        StringBuilder builder = sFormatBuilder.get();
+        builder.setLength(0);
 
-        return String.format(context.getString(windFormat), windSpeed, direction);
+        /* The compass direction comes from a table, see WeatherFormatter#getCompassDirection */
+        return WeatherFormatter.getInstance(context)
+                .appendWind(builder, windSpeed, degrees)
+                .toString();
     }
 
     /**
      * Helper method to provide the string according to the weather
      * condition id returned by the OpenWeatherMap call.
+     * <p>
+     * Strings are read from the resources once per locale and kept, so binding the same
+     * condition again only costs a table lookup.
      *
      * @param context   Android context
      * @param weatherId from OpenWeatherMap API response
@@ -142,173 +158,23 @@ public final class SunshineWeatherUtils {
      * @return String for the weather condition, null if no relation is found.
      */
     public static String getStringForWeatherCondition(Context context, int weatherId) {
-        int stringId;
-        if (weatherId >= 200 && weatherId <= 232) {
-            stringId = R.string.condition_2xx;
-        } else if (weatherId >= 300 && weatherId <= 321) {
-            stringId = R.string.condition_3xx;
-        } else switch (weatherId) {
-            case 500:
-                stringId = R.string.condition_500;
-                break;
-            case 501:
-                stringId = R.string.condition_501;
-                break;
-            case 502:
-                stringId = R.string.condition_502;
-                break;
-            case 503:
-                stringId = R.string.condition_503;
-                break;
-            case 504:
-                stringId = R.string.condition_504;
-                break;
-            case 511:
-                stringId = R.string.condition_511;
-                break;
-            case 520:
-                stringId = R.string.condition_520;
-                break;
-            case 531:
-                stringId = R.string.condition_531;
-                break;
-            case 600:
-                stringId = R.string.condition_600;
-                break;
-            case 601:
-                stringId = R.string.condition_601;
-                break;
-            case 602:
-                stringId = R.string.condition_602;
-                break;
-            case 611:
-                stringId = R.string.condition_611;
-                break;
-            case 612:
-                stringId = R.string.condition_612;
-                break;
-            case 615:
-                stringId = R.string.condition_615;
-                break;
-            case 616:
-                stringId = R.string.condition_616;
-                break;
-            case 620:
-                stringId = R.string.condition_620;
-                break;
-            case 621:
-                stringId = R.string.condition_621;
-                break;
-            case 622:
-                stringId = R.string.condition_622;
-                break;
-            case 701:
-                stringId = R.string.condition_701;
-                break;
-            case 711:
-                stringId = R.string.condition_711;
-                break;
-            case 721:
-                stringId = R.string.condition_721;
-                break;
-            case 731:
-                stringId = R.string.condition_731;
-                break;
-            case 741:
-                stringId = R.string.condition_741;
-                break;
-            case 751:
-                stringId = R.string.condition_751;
-                break;
-            case 761:
-                stringId = R.string.condition_761;
-                break;
-            case 762:
-                stringId = R.string.condition_762;
-                break;
-            case 771:
-                stringId = R.string.condition_771;
-                break;
-            case 781:
-                stringId = R.string.condition_781;
-                break;
-            case 800:
-                stringId = R.string.condition_800;
-                break;
-            case 801:
-                stringId = R.string.condition_801;
-                break;
-            case 802:
-                stringId = R.string.condition_802;
-                break;
-            case 803:
-                stringId = R.string.condition_803;
-                break;
-            case 804:
-                stringId = R.string.condition_804;
-                break;
-            case 900:
-                stringId = R.string.condition_900;
-                break;
-            case 901:
-                stringId = R.string.condition_901;
-                break;
-            case 902:
-                stringId = R.string.condition_902;
-                break;
-            case 903:
-                stringId = R.string.condition_903;
-                break;
-            case 904:
-                stringId = R.string.condition_904;
-                break;
-            case 905:
-                stringId = R.string.condition_905;
-                break;
-            case 906:
-                stringId = R.string.condition_906;
-                break;
-            case 951:
-                stringId = R.string.condition_951;
-                break;
-            case 952:
-                stringId = R.string.condition_952;
-                break;
-            case 953:
-                stringId = R.string.condition_953;
-                break;
-            case 954:
-                stringId = R.string.condition_954;
-                break;
-            case 955:
-                stringId = R.string.condition_955;
-                break;
-            case 956:
-                stringId = R.string.condition_956;
-                break;
-            case 957:
-                stringId = R.string.condition_957;
-                break;
-            case 958:
-                stringId = R.string.condition_958;
-                break;
-            case 959:
-                stringId = R.string.condition_959;
-                break;
-            case 960:
-                stringId = R.string.condition_960;
-                break;
-            case 961:
-                stringId = R.string.condition_961;
-                break;
-            case 962:
-                stringId = R.string.condition_962;
-                break;
-            default:
-                return context.getString(R.string.condition_unknown, weatherId);
+        int stringId = getCondition(weatherId, CONDITION_STRING);
+        if (stringId == 0) {
+            return context.getString(R.string.condition_unknown, weatherId);
         }
 
-        return context.getString(stringId);
+        /*
+         * Two threads may both miss and read the same String, which is harmless: they read
+         * equal Strings, and a String is safe to hand to another thread through the array.
+         */
+        String[] strings = getConditionStrings();
+        int index = weatherId - FIRST_WEATHER_ID;
+        String condition = strings[index];
+        if (condition == null) {
+            condition = context.getString(stringId);
+            strings[index] = condition;
+        }
+        return condition;
     }
 
     /**
@@ -326,42 +192,12 @@ public final class SunshineWeatherUtils {
      * @return resource id for the corresponding icon. -1 if no relation is found.
      */
     public static int getSmallArtResourceIdForWeatherCondition(int weatherId) {
-
-        /*
-         * Based on weather code data for Open Weather Map.
-         */
-        if (weatherId >= 200 && weatherId <= 232) {
-            return R.drawable.ic_storm;
-        } else if (weatherId >= 300 && weatherId <= 321) {
-            return R.drawable.ic_light_rain;
-        } else if (weatherId >= 500 && weatherId <= 504) {
-            return R.drawable.ic_rain;
-        } else if (weatherId == 511) {
-            return R.drawable.ic_snow;
-        } else if (weatherId >= 520 && weatherId <= 531) {
-            return R.drawable.ic_rain;
-        } else if (weatherId >= 600 && weatherId <= 622) {
-            return R.drawable.ic_snow;
-        } else if (weatherId >= 701 && weatherId <= 761) {
-            return R.drawable.ic_fog;
-        } else if (weatherId == 761 || weatherId == 771 || weatherId == 781) {
+        int artId = getCondition(weatherId, CONDITION_SMALL_ART);
+        if (artId == 0) {
+            Log.e(LOG_TAG, "Unknown Weather: " + weatherId);
             return R.drawable.ic_storm;
-        } else if (weatherId == 800) {
-            return R.drawable.ic_clear;
-        } else if (weatherId == 801) {
-            return R.drawable.ic_light_clouds;
-        } else if (weatherId >= 802 && weatherId <= 804) {
-            return R.drawable.ic_cloudy;
-        } else if (weatherId >= 900 && weatherId <= 906) {
-            return R.drawable.ic_storm;
-        } else if (weatherId >= 958 && weatherId <= 962) {
-            return R.drawable.ic_storm;
-        } else if (weatherId >= 951 && weatherId <= 957) {
-            return R.drawable.ic_clear;
         }
-
-        Log.e(LOG_TAG, "Unknown Weather: " + weatherId);
-        return R.drawable.ic_storm;
+        return artId;
     }
 
     /**
@@ -379,41 +215,159 @@ public final class SunshineWeatherUtils {
      * @return resource ID for the corresponding icon. -1 if no relation is found.
      */
     public static int getLargeArtResourceIdForWeatherCondition(int weatherId) {
+        int artId = getCondition(weatherId, CONDITION_LARGE_ART);
+        if (artId == 0) {
+            Log.e(LOG_TAG, "Unknown Weather: " + weatherId);
+            return R.drawable.art_storm;
+        }
+        return artId;
+    }
 
+    /* Returns one column of the condition table for the weather id, or 0 if it has none */
+    private static int getCondition(int weatherId, int column) {
+        if (weatherId < FIRST_WEATHER_ID || weatherId > LAST_WEATHER_ID) {
+            return 0;
+        }
+        return sConditions[(weatherId - FIRST_WEATHER_ID) * CONDITION_COLUMNS + column];
+    }
+
+    /* Returns the Strings read so far for the current locale, starting over if it changed */
+    private static String[] getConditionStrings() {
+        Locale locale = Locale.getDefault();
+        ConditionStrings strings = sConditionStrings;
+        if (strings == null || !strings.mLocale.equals(locale)) {
+            strings = new ConditionStrings(locale);
+            sConditionStrings = strings;
+        }
+        return strings.mStrings;
+    }
+
+    /**
+     * Builds the condition table, based on weather code data for Open Weather Map. Some ranges
+     * include ids that Open Weather Map doesn't use. Those get art, as they always have, but no
+     * String of their own.
+     */
+    private static int[] buildConditionTable() {
+        int[] table = new int[(LAST_WEATHER_ID - FIRST_WEATHER_ID + 1) * CONDITION_COLUMNS];
+
+        /* Thunderstorm */
+        putString(table, 200, 232, R.string.condition_2xx);
+        putArt(table, 200, 232, R.drawable.ic_storm, R.drawable.art_storm);
+
+        /* Drizzle */
+        putString(table, 300, 321, R.string.condition_3xx);
+        putArt(table, 300, 321, R.drawable.ic_light_rain, R.drawable.art_light_rain);
+
+        /* Rain */
+        putString(table, 500, R.string.condition_500);
+        putString(table, 501, R.string.condition_501);
+        putString(table, 502, R.string.condition_502);
+        putString(table, 503, R.string.condition_503);
+        putString(table, 504, R.string.condition_504);
+        putString(table, 511, R.string.condition_511);
+        putString(table, 520, R.string.condition_520);
+        putString(table, 531, R.string.condition_531);
+        putArt(table, 500, 504, R.drawable.ic_rain, R.drawable.art_rain);
+        putArt(table, 511, 511, R.drawable.ic_snow, R.drawable.art_snow);
+        putArt(table, 520, 531, R.drawable.ic_rain, R.drawable.art_rain);
+
+        /* Snow */
+        putString(table, 600, R.string.condition_600);
+        putString(table, 601, R.string.condition_601);
+        putString(table, 602, R.string.condition_602);
+        putString(table, 611, R.string.condition_611);
+        putString(table, 612, R.string.condition_612);
+        putString(table, 615, R.string.condition_615);
+        putString(table, 616, R.string.condition_616);
+        putString(table, 620, R.string.condition_620);
+        putString(table, 621, R.string.condition_621);
+        putString(table, 622, R.string.condition_622);
+        putArt(table, 600, 622, R.drawable.ic_snow, R.drawable.art_snow);
+
+        /* Atmosphere */
+        putString(table, 701, R.string.condition_701);
+        putString(table, 711, R.string.condition_711);
+        putString(table, 721, R.string.condition_721);
+        putString(table, 731, R.string.condition_731);
+        putString(table, 741, R.string.condition_741);
+        putString(table, 751, R.string.condition_751);
+        putString(table, 761, R.string.condition_761);
+        putString(table, 762, R.string.condition_762);
+        putString(table, 771, R.string.condition_771);
+        putString(table, 781, R.string.condition_781);
         /*
-         * Based on weather code data for Open Weather Map.
+         * Dust (761) is shown as fog, as it always has been. The storm art used to list it too,
+         * but that check came after the fog range and could never match.
          */
-        if (weatherId >= 200 && weatherId <= 232) {
-            return R.drawable.art_storm;
-        } else if (weatherId >= 300 && weatherId <= 321) {
-            return R.drawable.art_light_rain;
-        } else if (weatherId >= 500 && weatherId <= 504) {
-            return R.drawable.art_rain;
-        } else if (weatherId == 511) {
-            return R.drawable.art_snow;
-        } else if (weatherId >= 520 && weatherId <= 531) {
-            return R.drawable.art_rain;
-        } else if (weatherId >= 600 && weatherId <= 622) {
-            return R.drawable.art_snow;
-        } else if (weatherId >= 701 && weatherId <= 761) {
-            return R.drawable.art_fog;
-        } else if (weatherId == 761 || weatherId == 771 || weatherId == 781) {
-            return R.drawable.art_storm;
-        } else if (weatherId == 800) {
-            return R.drawable.art_clear;
-        } else if (weatherId == 801) {
-            return R.drawable.art_light_clouds;
-        } else if (weatherId >= 802 && weatherId <= 804) {
-            return R.drawable.art_clouds;
-        } else if (weatherId >= 900 && weatherId <= 906) {
-            return R.drawable.art_storm;
-        } else if (weatherId >= 958 && weatherId <= 962) {
-            return R.drawable.art_storm;
-        } else if (weatherId >= 951 && weatherId <= 957) {
-            return R.drawable.art_clear;
+        putArt(table, 701, 761, R.drawable.ic_fog, R.drawable.art_fog);
+        putArt(table, 762, 762, R.drawable.ic_storm, R.drawable.art_storm);
+        putArt(table, 771, 771, R.drawable.ic_storm, R.drawable.art_storm);
+        putArt(table, 781, 781, R.drawable.ic_storm, R.drawable.art_storm);
+
+        /* Clear and clouds */
+        putString(table, 800, R.string.condition_800);
+        putString(table, 801, R.string.condition_801);
+        putString(table, 802, R.string.condition_802);
+        putString(table, 803, R.string.condition_803);
+        putString(table, 804, R.string.condition_804);
+        putArt(table, 800, 800, R.drawable.ic_clear, R.drawable.art_clear);
+        putArt(table, 801, 801, R.drawable.ic_light_clouds, R.drawable.art_light_clouds);
+        putArt(table, 802, 804, R.drawable.ic_cloudy, R.drawable.art_clouds);
+
+        /* Extreme and additional */
+        putString(table, 900, R.string.condition_900);
+        putString(table, 901, R.string.condition_901);
+        putString(table, 902, R.string.condition_902);
+        putString(table, 903, R.string.condition_903);
+        putString(table, 904, R.string.condition_904);
+        putString(table, 905, R.string.condition_905);
+        putString(table, 906, R.string.condition_906);
+        putString(table, 951, R.string.condition_951);
+        putString(table, 952, R.string.condition_952);
+        putString(table, 953, R.string.condition_953);
+        putString(table, 954, R.string.condition_954);
+        putString(table, 955, R.string.condition_955);
+        putString(table, 956, R.string.condition_956);
+        putString(table, 957, R.string.condition_957);
+        putString(table, 958, R.string.condition_958);
+        putString(table, 959, R.string.condition_959);
+        putString(table, 960, R.string.condition_960);
+        putString(table, 961, R.string.condition_961);
+        putString(table, 962, R.string.condition_962);
+        putArt(table, 900, 906, R.drawable.ic_storm, R.drawable.art_storm);
+        putArt(table, 951, 957, R.drawable.ic_clear, R.drawable.art_clear);
+        putArt(table, 958, 962, R.drawable.ic_storm, R.drawable.art_storm);
+
+        return table;
+    }
+
+    private static void putString(int[] table, int weatherId, int stringId) {
+        putString(table, weatherId, weatherId, stringId);
+    }
+
+    private static void putString(int[] table, int firstId, int lastId, int stringId) {
+        for (int weatherId = firstId; weatherId <= lastId; weatherId++) {
+            table[(weatherId - FIRST_WEATHER_ID) * CONDITION_COLUMNS + CONDITION_STRING] = stringId;
         }
+    }
 
-        Log.e(LOG_TAG, "Unknown Weather: " + weatherId);
-        return R.drawable.art_storm;
+    private static void putArt(int[] table, int firstId, int lastId, int smallArtId,
+                               int largeArtId) {
+        for (int weatherId = firstId; weatherId <= lastId; weatherId++) {
+            int row = (weatherId - FIRST_WEATHER_ID) * CONDITION_COLUMNS;
+            table[row + CONDITION_SMALL_ART] = smallArtId;
+            table[row + CONDITION_LARGE_ART] = largeArtId;
+        }
+    }
+
+    /* The condition Strings of one locale, indexed like the rows of the condition table */
+    private static final class ConditionStrings {
+        final Locale mLocale;
+        final String[] mStrings;
+
+        ConditionStrings(Locale locale) {
+            mLocale = locale;
+            mStrings = new String[LAST_WEATHER_ID - FIRST_WEATHER_ID + 1];
+        }
     }
-}
\ No newline at end of file
+}
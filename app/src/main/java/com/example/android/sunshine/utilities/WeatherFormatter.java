@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.content.Context;
+
+import com.example.android.sunshine.R;
+import com.example.android.sunshine.data.SunshinePreferences;
+
+import java.text.DecimalFormatSymbols;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Formats temperatures and wind by appending to a StringBuilder that the caller owns, without
+ * allocating anything on the way. The format strings in the resources are parsed into templates
+ * once, when a formatter is made for a locale and a choice of units, and numbers are written
+ * digit by digit using integer arithmetic. A formatter never changes, so it can be shared by
+ * any number of threads, as long as each of them appends to a StringBuilder of its own.
+ * <p>
+ * The output is the same as that of {@link String#format} with the same format strings:
+ * numbers are rounded half up and written with the digits of the locale. If a translation ever
+ * uses a format that the templates don't understand, that template falls back to
+ * String#format.
+ */
+public final class WeatherFormatter {
+
+    private static final float KMH_TO_MPH = .621371192237334f;
+
+    /* The compass direction of each 45 degree sector, starting with the one centred on north */
+    private static final String[] COMPASS_DIRECTIONS = {"N", "NE", "E", "SE", "S", "SW", "W", "NW"};
+
+    private static final String UNKNOWN_DIRECTION = "Unknown";
+
+    private static volatile WeatherFormatter sInstance;
+
+    private final Locale mLocale;
+    private final boolean mIsMetric;
+
+    private final Template mTemperatureTemplate;
+    private final Template mWindTemplate;
+
+    private WeatherFormatter(Context context, Locale locale, boolean isMetric) {
+        mLocale = locale;
+        mIsMetric = isMetric;
+
+        char zeroDigit = DecimalFormatSymbols.getInstance(locale).getZeroDigit();
+        mTemperatureTemplate = new Template(
+                context.getString(R.string.format_temperature), locale, zeroDigit);
+        mWindTemplate = new Template(
+                context.getString(isMetric ? R.string.format_wind_kmh : R.string.format_wind_mph),
+                locale, zeroDigit);
+    }
+
+    /**
+     * Returns the formatter for the current locale and units. A new one is only made when either
+     * of them has changed since the last call.
+     *
+     * @param context Used to read the units and the format strings
+     */
+    public static WeatherFormatter getInstance(Context context) {
+        Locale locale = Locale.getDefault();
+        boolean isMetric = SunshinePreferences.isMetric(context);
+
+        WeatherFormatter formatter = sInstance;
+        if (formatter == null || formatter.mIsMetric != isMetric
+                || !formatter.mLocale.equals(locale)) {
+            formatter = new WeatherFormatter(context, locale, isMetric);
+            sInstance = formatter;
+        }
+        return formatter;
+    }
+
+    /**
+     * Appends a temperature in the form "21°", converted to Fahrenheit if the user prefers it.
+     *
+     * @param out                  Where to append the temperature
+     * @param temperatureInCelsius Temperature in degrees Celsius (°C)
+     * @return out, so calls can be chained
+     */
+    public StringBuilder appendTemperature(StringBuilder out, double temperatureInCelsius) {
+        double temperature = mIsMetric
+                ? temperatureInCelsius
+                : SunshineWeatherUtils.celsiusToFahrenheit(temperatureInCelsius);
+        return mTemperatureTemplate.append(out, temperature, null);
+    }
+
+    /**
+     * Appends wind in the form "2 km/h SW", converted to miles per hour if the user prefers it.
+     *
+     * @param out       Where to append the wind
+     * @param windSpeed Wind speed in kilometers / hour
+     * @param degrees   Degrees as measured on a compass, NOT temperature degrees!
+     * @return out, so calls can be chained
+     */
+    public StringBuilder appendWind(StringBuilder out, float windSpeed, float degrees) {
+        float speed = mIsMetric ? windSpeed : KMH_TO_MPH * windSpeed;
+        return mWindTemplate.append(out, speed, getCompassDirection(degrees));
+    }
+
+    /**
+     * Returns the compass direction, such as "NW", that the given degrees point to. Each
+     * direction covers 45 degrees, centred on the direction itself.
+     *
+     * @param degrees Degrees as measured on a compass
+     * @return The compass direction, or "Unknown" if degrees is not a number
+     */
+    public static String getCompassDirection(float degrees) {
+        if (Float.isNaN(degrees)) {
+            return UNKNOWN_DIRECTION;
+        }
+
+        /* Anything outside of the other seven sectors is north, even beyond 0 to 360 */
+        int sector = degrees >= 22.5f && degrees < 337.5f ? (int) ((degrees + 22.5f) / 45f) : 0;
+        return COMPASS_DIRECTIONS[sector];
+    }
+
+    /**
+     * A format string taken apart into the text between its arguments and the arguments
+     * themselves. Only what Sunshine's format strings use is understood: numbers without
+     * decimals ("%1.0f"), Strings ("%2$s"), explicit and ordinary argument indices, widths,
+     * and "%%".
+     */
+    private static final class Template {
+
+        private static final int KIND_LITERAL = 0;
+        private static final int KIND_NUMBER = 1;
+        private static final int KIND_STRING = 2;
+
+        private final String mPattern;
+        private final Locale mLocale;
+        private final char mZeroDigit;
+
+        /* One entry per part, in order; literals have no argument */
+        private final int[] mKinds;
+        private final String[] mLiterals;
+        private final int[] mArgumentIndices;
+        private final int[] mWidths;
+
+        /* Whether the pattern was understood; if not, String#format does the work */
+        private final boolean mSupported;
+
+        Template(String pattern, Locale locale, char zeroDigit) {
+            mPattern = pattern;
+            mLocale = locale;
+            mZeroDigit = zeroDigit;
+
+            List<int[]> arguments = new ArrayList<int[]>();
+            List<String> literals = new ArrayList<String>();
+            boolean supported = parse(pattern, arguments, literals);
+
+            int partCount = literals.size();
+            mKinds = new int[partCount];
+            mLiterals = new String[partCount];
+            mArgumentIndices = new int[partCount];
+            mWidths = new int[partCount];
+            for (int i = 0; i < partCount; i++) {
+                int[] argument = arguments.get(i);
+                mKinds[i] = argument[0];
+                mArgumentIndices[i] = argument[1];
+                mWidths[i] = argument[2];
+                mLiterals[i] = literals.get(i);
+            }
+            mSupported = supported;
+        }
+
+        /*
+         * Splits the pattern into parts, adding {kind, argument index, width} to arguments and
+         * the literal text (or null) to literals for each. Returns false if the pattern uses
+         * anything that isn't understood.
+         */
+        private static boolean parse(String pattern, List<int[]> arguments,
+                                     List<String> literals) {
+            StringBuilder literal = new StringBuilder();
+            int ordinaryIndex = 0;
+            int length = pattern.length();
+            int i = 0;
+            while (i < length) {
+                char c = pattern.charAt(i++);
+                if (c != '%') {
+                    literal.append(c);
+                    continue;
+                }
+                if (i == length) {
+                    return false;
+                }
+                if (pattern.charAt(i) == '%') {
+                    literal.append('%');
+                    i++;
+                    continue;
+                }
+
+                /* Either an argument index followed by '$', or a width */
+                int number = 0;
+                int digitsStart = i;
+                while (i < length && Character.isDigit(pattern.charAt(i))) {
+                    number = number * 10 + (pattern.charAt(i++) - '0');
+                }
+                int argumentIndex = -1;
+                int width = 0;
+                if (i < length && pattern.charAt(i) == '$') {
+                    argumentIndex = number - 1;
+                    i++;
+                    while (i < length && Character.isDigit(pattern.charAt(i))) {
+                        width = width * 10 + (pattern.charAt(i++) - '0');
+                    }
+                } else if (i > digitsStart) {
+                    if (pattern.charAt(digitsStart) == '0') {
+                        /* A leading zero is the flag for zero padding */
+                        return false;
+                    }
+                    width = number;
+                }
+
+                int precision = -1;
+                if (i < length && pattern.charAt(i) == '.') {
+                    i++;
+                    precision = 0;
+                    while (i < length && Character.isDigit(pattern.charAt(i))) {
+                        precision = precision * 10 + (pattern.charAt(i++) - '0');
+                    }
+                }
+                if (i == length) {
+                    return false;
+                }
+
+                int kind;
+                char conversion = pattern.charAt(i++);
+                if (conversion == 'f' && precision == 0) {
+                    kind = KIND_NUMBER;
+                } else if (conversion == 's' && precision == -1) {
+                    kind = KIND_STRING;
+                } else {
+                    return false;
+                }
+                if (argumentIndex < 0) {
+                    argumentIndex = ordinaryIndex++;
+                }
+                if (argumentIndex > 1) {
+                    return false;
+                }
+
+                if (literal.length() > 0) {
+                    arguments.add(new int[]{KIND_LITERAL, -1, 0});
+                    literals.add(literal.toString());
+                    literal.setLength(0);
+                }
+                arguments.add(new int[]{kind, argumentIndex, width});
+                literals.add(null);
+            }
+
+            if (literal.length() > 0) {
+                arguments.add(new int[]{KIND_LITERAL, -1, 0});
+                literals.add(literal.toString());
+            }
+            return true;
+        }
+
+        /**
+         * Appends the pattern with the given arguments, the first of which is a number and the
+         * second, if the pattern has one, a String.
+         */
+        StringBuilder append(StringBuilder out, double number, String text) {
+            if (!mSupported) {
+                return out.append(String.format(mLocale, mPattern, number, text));
+            }
+
+            for (int i = 0; i < mKinds.length; i++) {
+                switch (mKinds[i]) {
+                    case KIND_LITERAL:
+                        out.append(mLiterals[i]);
+                        break;
+
+                    case KIND_NUMBER:
+                        if (mArgumentIndices[i] != 0) {
+                            /* Only the first argument is a number */
+                            return out.append(String.format(mLocale, mPattern, number, text));
+                        }
+                        appendRounded(out, number, mWidths[i]);
+                        break;
+
+                    case KIND_STRING:
+                        String value = mArgumentIndices[i] == 0
+                                ? Double.toString(number)
+                                : String.valueOf(text);
+                        for (int pad = mWidths[i] - value.length(); pad > 0; pad--) {
+                            out.append(' ');
+                        }
+                        out.append(value);
+                        break;
+                }
+            }
+            return out;
+        }
+
+        /*
+         * Appends the number rounded half up to a whole number, the way "%.0f" does, including
+         * the sign of numbers that round to zero, padded with spaces to the given width
+         */
+        private void appendRounded(StringBuilder out, double number, int width) {
+            if (Double.isNaN(number) || Double.isInfinite(number)
+                    || Math.abs(number) >= Long.MAX_VALUE / 10) {
+                out.append(String.format(mLocale, "%" + (width > 0 ? width : "") + ".0f", number));
+                return;
+            }
+
+            boolean negative = number < 0 || (number == 0 && 1 / number < 0);
+            /* Subtracting the floor is exact, where adding 0.5 could round up on its own */
+            double absolute = Math.abs(number);
+            double floor = Math.floor(absolute);
+            long magnitude = (long) floor + (absolute - floor >= 0.5 ? 1 : 0);
+
+            int digitCount = 1;
+            for (long rest = magnitude / 10; rest > 0; rest /= 10) {
+                digitCount++;
+            }
+            for (int pad = width - digitCount - (negative ? 1 : 0); pad > 0; pad--) {
+                out.append(' ');
+            }
+            if (negative) {
+                out.append('-');
+            }
+
+            /* Write the digits in place from the last one backwards */
+            int start = out.length();
+            out.setLength(start + digitCount);
+            for (int i = start + digitCount - 1; i >= start; i--) {
+                out.setCharAt(i, (char) (mZeroDigit + (int) (magnitude % 10)));
+                magnitude /= 10;
+            }
+        }
+    }
+}